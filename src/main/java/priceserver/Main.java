@@ -1,12 +1,24 @@
 package priceserver;
 
 import org.springframework.boot.SpringApplication;
+import org.springframework.boot.WebApplicationType;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.core.env.SimpleCommandLinePropertySource;
+import org.springframework.core.env.StandardEnvironment;
 
 @SpringBootApplication
 public class Main {
+	private static final String WEB_APPLICATION_TYPE = "spring.main.web-application-type";
 
 	public static void main(String[] args) {
-		SpringApplication.run(Main.class, args);
+		final SpringApplication application = new SpringApplication(Main.class);
+		//Spring Boot reads the property too late, after it has already set the environment up for servlets
+		final StandardEnvironment environment = new StandardEnvironment();
+		environment.getPropertySources().addFirst(new SimpleCommandLinePropertySource(args));
+		final String webApplicationType = environment.getProperty(WEB_APPLICATION_TYPE);
+		if (webApplicationType != null) {
+			application.setWebApplicationType(WebApplicationType.valueOf(webApplicationType.toUpperCase()));
+		}
+		application.run(args);
 	}
 }
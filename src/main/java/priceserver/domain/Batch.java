@@ -1,72 +1,279 @@
 package priceserver.domain;
 
 import priceserver.exceptions.BatchAlreadyCommitted;
+import priceserver.exceptions.BatchNotFoundException;
+import priceserver.exceptions.ChunkInProgressException;
+import priceserver.exceptions.IncompleteBatchException;
+import priceserver.exceptions.InvalidChunkException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Batch keeps the state of the prices that are currently being uploaded.  We only want to update the latest bid,
- * and there is a chance that the users could update multiple prices for the same id, so we store those prices
- * in a map and keep only the latest.  Because we're using a ConcurrentHashMap there are no locks involved here
- * at all during the update, but there are locks on this class.  This is because if a commit happens we want to
- * block all other access to the Batch (so no-one tries to update at the same time or afterwards).
+ * and there is a chance that the users could update multiple prices for the same id, so the {@link PriceStaging}
+ * only hands back the latest for each id.
+ *
+ * A batch goes from OPEN to CLOSING to CLOSED, or straight from OPEN to DISCARDED, and no upload is accepted once
+ * it has left OPEN.  A discarded batch is treated as one that was never there.  Rather than take a
+ * lock, each upload counts itself in to a striped in-flight counter and then checks the state, while closing moves
+ * the state on and then waits for the counter to drain.  Both sides write before they read, so an upload either
+ * sees the batch closing and backs out, or is waited for.  Uploaders on different threads count themselves in on
+ * different cache lines, so they do not contend with each other the way they would on a shared reader count.
+ *
+ * A client pushing an upload as many numbered chunks, over as many connections, claims each chunk's number before
+ * uploading it, so that a chunk sent again after its response was lost is skipped rather than merged twice, and one
+ * sent again while the first is still being uploaded is refused until that one is answered.  A chunk only counts as
+ * received once all of it has been uploaded.  If the client also says how many chunks it sent, closing checks that
+ * they have all been received before the batch leaves OPEN, and if not leaves it open for the rest to be sent.
  */
 public class Batch {
 	private static final Logger log = LoggerFactory.getLogger(Batch.class);
-	private final long id;
-	private final ConcurrentMap<Long, Price> pricesToUpload = new ConcurrentHashMap<>(1000);
-	private boolean open = true;
 
-	//Multiple updaters may update the batch, but if we are commiting we want to make su
-	private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+	private static final int OPEN = 0;
+	private static final int CLOSING = 1;
+	private static final int CLOSED = 2;
+	private static final int DISCARDED = 3;
+
+	private static final int ANY_CHUNKS = -1;
+
+	//The client of a batch made outside the batch manager, which does not count batches
+	private static final String NO_CLIENT = "";
+
+	private final long id;
+	private final PriceStaging staging;
+	private final String client;
+	private final long createdNanos = System.nanoTime();
+	private volatile long touchedNanos = createdNanos;
+	private final AtomicInteger state = new AtomicInteger(OPEN);
+	private final InFlightCounter inFlight = new InFlightCounter();
+	private final LongAdder receivedCount = new LongAdder();
+	private final ChunkClaims chunks = new ChunkClaims();
+	private volatile int expectedChunks = ANY_CHUNKS;
 
 	public Batch(long id) {
+		this(id, new HeapPriceStaging());
+	}
+
+	public Batch(long id, PriceStaging staging) {
+		this(id, staging, NO_CLIENT);
+	}
+
+	public Batch(long id, PriceStaging staging, String client) {
 		this.id = id;
+		this.staging = staging;
+		this.client = client;
 	}
 
 	public long getId() {
 		return id;
 	}
 
+	/**
+	 * @return The client that opened the batch, which it counts against
+	 */
+	public String getClient() {
+		return client;
+	}
+
+	/**
+	 * @return How long ago the batch was created, in nanoseconds
+	 */
+	public long getAgeNanos() {
+		return System.nanoTime() - createdNanos;
+	}
+
+	/**
+	 * Marks the batch as in use, putting off its idle timeout.
+	 */
+	public void touch() {
+		touchedNanos = System.nanoTime();
+	}
+
+	/**
+	 * @return How long ago the batch was created or last touched, in nanoseconds
+	 */
+	public long getIdleNanos() {
+		return System.nanoTime() - touchedNanos;
+	}
+
+	/**
+	 * @return How many prices have been uploaded, counting every price for an id rather than only the latest
+	 */
+	public long getReceivedCount() {
+		return receivedCount.sum();
+	}
+
 	public void upload(List<Price> prices) {
-		log.trace("About to enter critical update region in Batch {}", id);
-		readWriteLock.readLock().lock();
+		final int stripe = inFlight.enter();
 		try {
-			log.debug("About to update prices for batch {}", id);
-			if (!open) {
-				throw new BatchAlreadyCommitted(id);
+			final int current = state.get();
+			if (current != OPEN) {
+				throw notOpen(current);
 			}
-
-			prices.forEach(price -> pricesToUpload.compute(price.getId(), new LatestPriceFinder(price)));
+			log.debug("About to update prices for batch {}", id);
+			staging.stage(prices);
+			receivedCount.add(prices.size());
 		} finally {
-			readWriteLock.readLock().unlock();
+			inFlight.exit(stripe);
 		}
 		log.info("Batch {} updated with {} prices", id, prices.size());
 	}
 
+	/**
+	 * Claims a client's chunk sequence number ahead of uploading the chunk, which is then either finished or abandoned.
+	 * @return False if the chunk has already been received, in which case it should not be uploaded again
+	 * @throws ChunkInProgressException If the chunk is being uploaded by another request
+	 * @throws InvalidChunkException If the chunk number is negative
+	 */
+	public boolean startChunk(int chunk) {
+		if (chunk < 0) {
+			throw new InvalidChunkException(id, "chunk", chunk);
+		}
+		final int current = state.get();
+		if (current != OPEN) {
+			throw notOpen(current);
+		}
+		switch (chunks.claim(chunk)) {
+			case RECEIVED:
+				log.info("Batch {} has already received chunk {}", id, chunk);
+				return false;
+			case IN_PROGRESS:
+				throw new ChunkInProgressException(id, chunk);
+			default:
+				return true;
+		}
+	}
+
+	/**
+	 * Counts a claimed chunk as received, once every price in it has been uploaded.
+	 */
+	public void finishChunk(int chunk) {
+		chunks.finish(chunk);
+	}
+
+	/**
+	 * Gives up the claim on a chunk whose upload failed, so that it can be sent again.
+	 */
+	public void abandonChunk(int chunk) {
+		chunks.abandon(chunk);
+	}
+
+	/**
+	 * Makes closing the batch fail unless this many different chunks have been received by then.
+	 * @throws InvalidChunkException If the count is negative
+	 */
+	public void expectChunks(int count) {
+		if (count < 0) {
+			throw new InvalidChunkException(id, "expectedChunks", count);
+		}
+		expectedChunks = count;
+	}
+
+	/**
+	 * @return How many different numbered chunks have been received, not counting those still being uploaded
+	 */
+	public int getChunkCount() {
+		return chunks.received();
+	}
+
 	/**
 	 * This returns all the prices that have been collected in the batch, and closes this batch so that it
-	 * is no longer usable.
-	 * @return All the latest prices from the current batch
+	 * is no longer usable.  Waits for any uploads already in progress to finish first.
+	 * @return All the latest prices from the current batch, split into the book's shards
+	 * @throws BatchAlreadyCommitted If the batch has already been closed
+	 * @throws BatchNotFoundException If the batch has been discarded
+	 * @throws IncompleteBatchException If fewer or more chunks were received than expected, leaving the batch open
 	 */
-	public Collection<Price> closeAndGetPrices() {
+	public ShardedPrices closeAndGetPrices(PriceShards shards) {
 		log.info("About to close batch {}", id);
-		readWriteLock.writeLock().lock();
+		final int current = state.get();
+		if (current != OPEN) {
+			throw notOpen(current);
+		}
+		//Checked while still open, as chunks are only counted once uploaded, so a batch that leaves OPEN never returns
+		final int expected = expectedChunks;
+		final int received = chunks.received();
+		if (expected != ANY_CHUNKS && received != expected) {
+			throw new IncompleteBatchException(id, received, expected);
+		}
+		if (!state.compareAndSet(OPEN, CLOSING)) {
+			throw notOpen(state.get());
+		}
+		inFlight.awaitZero();
 		try {
-			open = false;
-			return pricesToUpload.values();
+			return staging.drain(shards);
 		} finally {
-			readWriteLock.writeLock().unlock();
+			state.set(CLOSED);
 			log.info("Batch {} closed", id);
 		}
 	}
 
+	/**
+	 * Closes the batch and throws away everything uploaded to it, for when it expires or is evicted.  Does nothing to
+	 * a batch already closing, which always goes on to be closed.
+	 */
+	public void discard() {
+		if (!state.compareAndSet(OPEN, DISCARDED)) {
+			return;
+		}
+		inFlight.awaitZero();
+		staging.discard();
+		log.info("Batch {} discarded", id);
+	}
+
+	private RuntimeException notOpen(int current) {
+		return current == DISCARDED ? new BatchNotFoundException(id) : new BatchAlreadyCommitted(id);
+	}
+
+	/**
+	 * Counts uploads in progress across one padded slot per stripe, with each thread always using the same stripe.
+	 */
+	private static final class InFlightCounter {
+		//Sixteen longs apart keeps each stripe on its own cache line
+		private static final int PADDING = 16;
+		private static final int STRIPES = stripes();
+
+		private final AtomicLongArray counts = new AtomicLongArray(STRIPES * PADDING);
+
+		private static int stripes() {
+			final int processors = Runtime.getRuntime().availableProcessors();
+			return Integer.highestOneBit(Math.max(1, processors - 1) << 1);
+		}
+
+		private int enter() {
+			final long threadId = Thread.currentThread().getId();
+			final int stripe = (int) (threadId ^ threadId >>> 16) & STRIPES - 1;
+			counts.incrementAndGet(stripe * PADDING);
+			return stripe;
+		}
+
+		private void exit(int stripe) {
+			counts.decrementAndGet(stripe * PADDING);
+		}
+
+		private void awaitZero() {
+			int spins = 0;
+			while (sum() != 0) {
+				if (++spins < 100) {
+					Thread.yield();
+				} else {
+					LockSupport.parkNanos(10_000L);
+				}
+			}
+		}
 
+		private long sum() {
+			long sum = 0;
+			for (int stripe = 0; stripe < STRIPES; stripe++) {
+				sum += counts.get(stripe * PADDING);
+			}
+			return sum;
+		}
+	}
 }
@@ -0,0 +1,60 @@
+package priceserver.domain;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * The numbered chunks of an upload a batch has received, and those being uploaded now.  A chunk is claimed before
+ * its upload and only counted as received once its prices have all been staged, so a batch checked for its chunks
+ * never counts one still on its way.
+ *
+ * Received chunks are only ever added, and a chunk is added to them before it stops being in progress, so a claim,
+ * which marks the chunk in progress before looking for it among the received, cannot miss one finishing at the same
+ * time.
+ */
+@ThreadSafe
+public final class ChunkClaims {
+	public enum Claim {
+		//The caller is to upload the chunk, and then finish or abandon it
+		CLAIMED,
+		//Already received, so not to be uploaded again
+		RECEIVED,
+		//Being uploaded by another request, which may yet fail
+		IN_PROGRESS
+	}
+
+	private final ReceivedChunks received = new ReceivedChunks();
+	private final ReceivedChunks inProgress = new ReceivedChunks();
+
+	public Claim claim(int chunk) {
+		if (!inProgress.add(chunk)) {
+			return Claim.IN_PROGRESS;
+		}
+		if (received.contains(chunk)) {
+			inProgress.remove(chunk);
+			return Claim.RECEIVED;
+		}
+		return Claim.CLAIMED;
+	}
+
+	/**
+	 * Counts a claimed chunk as received, once its upload has succeeded.
+	 */
+	public void finish(int chunk) {
+		received.add(chunk);
+		inProgress.remove(chunk);
+	}
+
+	/**
+	 * Gives up the claim on a chunk whose upload failed, so that it can be sent again.
+	 */
+	public void abandon(int chunk) {
+		inProgress.remove(chunk);
+	}
+
+	/**
+	 * @return How many different chunks have been received, not counting those in progress
+	 */
+	public int received() {
+		return received.count();
+	}
+}
@@ -0,0 +1,71 @@
+package priceserver.domain;
+
+/**
+ * How an asynchronous commit is getting on.  The ticket is polled by the id of the batch being committed, and once
+ * the commit is COMMITTED its prices can be read, published under the ticket's epoch.
+ */
+public class CommitTicket {
+	public enum Status {
+		PENDING, COMMITTED, FAILED
+	}
+
+	private long batchId;
+	private Status status;
+	private long epoch;
+	private String error;
+
+	private CommitTicket(long batchId, Status status, long epoch, String error) {
+		this.batchId = batchId;
+		this.status = status;
+		this.epoch = epoch;
+		this.error = error;
+	}
+
+	@SuppressWarnings("unused")
+	private CommitTicket() {
+		//For use by JSON
+	}
+
+	public static CommitTicket pending(long batchId) {
+		return new CommitTicket(batchId, Status.PENDING, 0L, null);
+	}
+
+	public static CommitTicket committed(long batchId, long epoch) {
+		return new CommitTicket(batchId, Status.COMMITTED, epoch, null);
+	}
+
+	public static CommitTicket failed(long batchId, String error) {
+		return new CommitTicket(batchId, Status.FAILED, 0L, error);
+	}
+
+	public long getBatchId() {
+		return batchId;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return The epoch the batch was published under, zero until it is COMMITTED
+	 */
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * @return Why the commit FAILED, otherwise null
+	 */
+	public String getError() {
+		return error;
+	}
+
+	@Override
+	public String toString() {
+		return "CommitTicket{" +
+				"batchId=" + batchId +
+				", status=" + status +
+				", epoch=" + epoch +
+				'}';
+	}
+}
@@ -0,0 +1,23 @@
+package priceserver.domain;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the staged prices in a map on the heap, keeping only the latest for each id as they are uploaded.  Because
+ * we're using a ConcurrentHashMap there are no locks involved at all during the update.
+ */
+public class HeapPriceStaging implements PriceStaging {
+	private final ConcurrentMap<Long, Price> pricesToUpload = new ConcurrentHashMap<>(1000);
+
+	@Override
+	public void stage(List<Price> prices) {
+		prices.forEach(price -> pricesToUpload.compute(price.getId(), new LatestPriceFinder(price)));
+	}
+
+	@Override
+	public ShardedPrices drain(PriceShards shards) {
+		return ShardedPrices.of(shards, pricesToUpload.values());
+	}
+}
@@ -15,17 +15,25 @@ public class LatestPriceFinder implements BiFunction<Long, Price, Price> {
 	}
 
 	@Override
-	public Price apply(@SuppressWarnings("unused") Long key, Price oldPrice) {
+	public Price apply(Long key, Price oldPrice) {
+		return apply(key.longValue(), oldPrice);
+	}
 
+	/**
+	 * Same as {@link #apply(Long, Price)} but without boxing the key, for stores keyed on primitive ids.
+	 */
+	public Price apply(long key, Price oldPrice) {
 		final Price priceToSet = shouldUseNewPrice(oldPrice) ? newPrice : oldPrice;
 
-		log.trace("For price id {}, old price was {}, new price is {}, we keep {}", key, oldPrice, newPrice, priceToSet );
+		if (log.isTraceEnabled()) {
+			log.trace("For price id {}, old price was {}, new price is {}, we keep {}", key, oldPrice, newPrice, priceToSet);
+		}
 
 		return priceToSet;
 	}
 
 	private boolean shouldUseNewPrice(Price oldPrice) {
-		return oldPrice == null || oldPrice.getDateTime().isBefore(newPrice.getDateTime());
+		return oldPrice == null || oldPrice.getTimestamp() < newPrice.getTimestamp();
 	}
 
 }
@@ -1,51 +1,135 @@
 package priceserver.domain;
 
-import jdk.nashorn.internal.ir.annotations.Immutable;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+import net.jcip.annotations.Immutable;
 
-import javax.validation.constraints.NotNull;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
-import java.util.Objects;
+import java.util.Arrays;
 
 /**
  * This represents the price.  The flexible data structure can be stored as JSON or XML in the payload.
- * The class is 'effectively' immutable.  The only case where it is not is during creation from XML or JSON
- * where the private default constructor is used and the fields are created.  After that you cannot change it.
+ * The class is immutable.
+ *
+ * Internally the price is kept compact, as the server holds millions of them: the time is a count of nanoseconds
+ * since the epoch (UTC) and the payload is its UTF-8 bytes.  The ZonedDateTime and String forms are only built at the
+ * REST edge, when the price is read from or written to JSON or XML.  Times are therefore always returned in UTC, and
+ * must fall between the years 1677 and 2262.  Binary formats, such as Smile and CBOR, carry the nanosecond count
+ * itself as the timestamp instead, which saves formatting and parsing the date-time: see {@link PriceSerializer}.
+ *
+ * The epoch is the number of the commit that published the price, so clients can tell which commit they are
+ * reading.  It is zero until the price has been committed, and is not part of the price's identity.  As epochs only
+ * go up, it is also the price's version: a later epoch means the price has changed, which is what lets clients read
+ * it conditionally.
  */
 @Immutable
+@JsonIgnoreProperties(ignoreUnknown = true)
+@JsonSerialize(using = PriceSerializer.class)
 public class Price {
+	private static final long NANOS_PER_SECOND = 1_000_000_000L;
 
-	@NotNull
-	private long id;
+	private final long id;
 
-	@NotNull
-	private ZonedDateTime dateTime;
+	private final long timestamp;
 
-	@NotNull
-	private String payload;
+	private final byte[] payload;
+
+	private final long epoch;
 
 	public Price(long id, ZonedDateTime dateTime, String payload) {
+		this(id, toEpochNanos(dateTime), payload.getBytes(StandardCharsets.UTF_8), 0L);
+	}
+
+	/**
+	 * @param timestamp Nanoseconds since the epoch
+	 * @param payload   UTF-8 encoded payload, which is not copied and so must not be changed afterwards
+	 */
+	public Price(long id, long timestamp, byte[] payload) {
+		this(id, timestamp, payload, 0L);
+	}
+
+	/**
+	 * For prices that have already been committed, such as those read back from a snapshot.
+	 */
+	public Price(long id, long timestamp, byte[] payload, long epoch) {
 		this.id = id;
-		this.dateTime = dateTime;
+		this.timestamp = timestamp;
 		this.payload = payload;
+		this.epoch = epoch;
 	}
 
-	@SuppressWarnings("all")
-	private Price() {
-		//For use by JSON
+	/**
+	 * @param timestamp Nanoseconds since the epoch, as binary formats send the time
+	 * @param epoch     Kept when a committed price is read back, such as by the router.  An uploaded price is
+	 *                  stamped with the epoch of the commit publishing it whatever it was sent with
+	 */
+	@JsonCreator
+	static Price fromJson(@JsonProperty("id") long id,
+	                      @JsonProperty("dateTime") ZonedDateTime dateTime,
+	                      @JsonProperty("timestamp") Long timestamp,
+	                      @JsonProperty("payload") String payload,
+	                      @JsonProperty("epoch") long epoch) {
+		if ((dateTime == null && timestamp == null) || payload == null) {
+			throw new IllegalArgumentException("Price " + id + " must have a dateTime or timestamp and a payload");
+		}
+		final long nanos = timestamp != null ? timestamp : toEpochNanos(dateTime);
+		return new Price(id, nanos, payload.getBytes(StandardCharsets.UTF_8), epoch);
 	}
 
 	public long getId() {
 		return id;
 	}
 
+	@JsonProperty("dateTime")
 	public ZonedDateTime getDateTime() {
-		return dateTime;
+		return Instant.ofEpochSecond(Math.floorDiv(timestamp, NANOS_PER_SECOND),
+		                             Math.floorMod(timestamp, NANOS_PER_SECOND))
+		              .atZone(ZoneOffset.UTC);
+	}
+
+	/**
+	 * @return Nanoseconds since the epoch
+	 */
+	@JsonIgnore
+	public long getTimestamp() {
+		return timestamp;
 	}
 
+	@JsonProperty("payload")
 	public String getPayload() {
+		return new String(payload, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return The UTF-8 encoded payload.  This is not a copy, so must not be changed.
+	 */
+	@JsonIgnore
+	public byte[] getPayloadBytes() {
 		return payload;
 	}
 
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * @return A copy of this price stamped with the epoch of the commit publishing it
+	 */
+	public Price withEpoch(long epoch) {
+		return new Price(id, timestamp, payload, epoch);
+	}
+
+	public static long toEpochNanos(ZonedDateTime dateTime) {
+		final Instant instant = dateTime.toInstant();
+		return Math.addExact(Math.multiplyExact(instant.getEpochSecond(), NANOS_PER_SECOND), instant.getNano());
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (this == o) {
@@ -56,21 +140,24 @@ public class Price {
 		}
 		Price price = (Price) o;
 		return id == price.id &&
-				Objects.equals(dateTime.getNano(), price.dateTime.getNano()) &&
-				Objects.equals(payload, price.payload);
+				timestamp == price.timestamp &&
+				Arrays.equals(payload, price.payload);
 	}
 
 	@Override
 	public int hashCode() {
-		return Objects.hash(id, dateTime, payload);
+		int result = Long.hashCode(id);
+		result = 31 * result + Long.hashCode(timestamp);
+		return 31 * result + Arrays.hashCode(payload);
 	}
 
 	@Override
 	public String toString() {
 		return "Price{" +
 				"id=" + id +
-				", dateTime=" + dateTime +
-				", payload='" + payload + '\'' +
+				", dateTime=" + getDateTime() +
+				", payload='" + getPayload() + '\'' +
+				", epoch=" + epoch +
 				'}';
 	}
 }
@@ -0,0 +1,46 @@
+package priceserver.domain;
+
+import java.util.List;
+
+/**
+ * The answer to a bulk price lookup.  Ids with no committed price are reported in missing rather than failing the
+ * whole lookup.  The epoch is that of the last commit published before the lookup, so a client asking only for the
+ * prices changed since then will not miss any.
+ */
+public class PriceQueryResult {
+	private List<Price> prices;
+	private long[] missing;
+	private long epoch;
+
+	public PriceQueryResult(List<Price> prices, long[] missing, long epoch) {
+		this.prices = prices;
+		this.missing = missing;
+		this.epoch = epoch;
+	}
+
+	@SuppressWarnings("unused")
+	private PriceQueryResult() {
+		//For use by JSON
+	}
+
+	public List<Price> getPrices() {
+		return prices;
+	}
+
+	public long[] getMissing() {
+		return missing;
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	@Override
+	public String toString() {
+		return "PriceQueryResult{" +
+				"prices=" + prices.size() +
+				", missing=" + missing.length +
+				", epoch=" + epoch +
+				'}';
+	}
+}
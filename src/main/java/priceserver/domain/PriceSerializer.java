@@ -0,0 +1,35 @@
+package priceserver.domain;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+
+/**
+ * Writes a Price in text formats such as JSON and XML with its time as an ISO date-time and its payload as a string.
+ * Binary formats such as Smile and CBOR get the time as a plain count of nanoseconds since the epoch instead, and the
+ * payload's UTF-8 bytes as they are, so neither has to be converted on the way out.
+ */
+final class PriceSerializer extends StdSerializer<Price> {
+	PriceSerializer() {
+		super(Price.class);
+	}
+
+	@Override
+	public void serialize(Price price, JsonGenerator generator, SerializerProvider provider) throws IOException {
+		generator.writeStartObject();
+		generator.writeNumberField("id", price.getId());
+		if (generator.canWriteBinaryNatively()) {
+			generator.writeNumberField("timestamp", price.getTimestamp());
+			final byte[] payload = price.getPayloadBytes();
+			generator.writeFieldName("payload");
+			generator.writeUTF8String(payload, 0, payload.length);
+		} else {
+			provider.defaultSerializeField("dateTime", price.getDateTime(), generator);
+			generator.writeStringField("payload", price.getPayload());
+		}
+		generator.writeNumberField("epoch", price.getEpoch());
+		generator.writeEndObject();
+	}
+}
@@ -0,0 +1,48 @@
+package priceserver.domain;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * Splits instruments between a power of two number of shards by id, so that each shard of the book can be merged
+ * into on its own.  Ids are spread with Fibonacci hashing and the shard taken from the top bits, leaving the low bits
+ * free for any hashing done within a shard.
+ */
+@Immutable
+public final class PriceShards {
+	private static final long GOLDEN_RATIO = 0x9e3779b97f4a7c15L;
+
+	private final int count;
+	private final int shift;
+
+	public PriceShards(int count) {
+		if (count < 1 || Integer.bitCount(count) != 1) {
+			throw new IllegalArgumentException("Shard count must be a power of two, not " + count);
+		}
+		this.count = count;
+		this.shift = 64 - Integer.numberOfTrailingZeros(count);
+	}
+
+	public int count() {
+		return count;
+	}
+
+	public int shardOf(long id) {
+		//A shift of 64 would be taken as no shift at all
+		return count == 1 ? 0 : (int) ((id * GOLDEN_RATIO) >>> shift);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return this == o || o instanceof PriceShards && count == ((PriceShards) o).count;
+	}
+
+	@Override
+	public int hashCode() {
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return "PriceShards{" + count + '}';
+	}
+}
@@ -0,0 +1,23 @@
+package priceserver.domain;
+
+import java.util.List;
+
+/**
+ * Where a {@link Batch} keeps the prices uploaded to it until it is closed.  The batch does the locking, so stage may
+ * be called by several threads at once but never at the same time as drain, and drain is only called once.
+ */
+public interface PriceStaging {
+	void stage(List<Price> prices);
+
+	/**
+	 * @return The latest price for every id staged, split into the shards given
+	 */
+	ShardedPrices drain(PriceShards shards);
+
+	/**
+	 * Frees whatever the staged prices are holding when the batch is thrown away without being drained.
+	 */
+	default void discard() {
+		//Nothing to free by default
+	}
+}
@@ -0,0 +1,70 @@
+package priceserver.domain;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The client chunk sequence numbers a batch has received, kept as a bit set that is claimed and released with a
+ * compare-and-set rather than a lock.  Bits live in pages of 4096, each created when the first number in its range
+ * arrives, so the dense numbering clients use costs about a bit per chunk however high it goes.
+ */
+@ThreadSafe
+public final class ReceivedChunks {
+	private static final int PAGE_SHIFT = 12;
+	private static final int WORDS_PER_PAGE = (1 << PAGE_SHIFT) / Long.SIZE;
+
+	private final ConcurrentMap<Integer, AtomicLongArray> pages = new ConcurrentHashMap<>();
+	private final AtomicInteger count = new AtomicInteger();
+
+	/**
+	 * @return False if the chunk had already been added
+	 */
+	public boolean add(int chunk) {
+		final AtomicLongArray page = pages.computeIfAbsent(chunk >>> PAGE_SHIFT,
+		                                                   ignored -> new AtomicLongArray(WORDS_PER_PAGE));
+		final int word = (chunk >>> 6) & WORDS_PER_PAGE - 1;
+		final long bit = 1L << chunk;
+		long bits;
+		do {
+			bits = page.get(word);
+			if ((bits & bit) != 0) {
+				return false;
+			}
+		} while (!page.compareAndSet(word, bits, bits | bit));
+		count.incrementAndGet();
+		return true;
+	}
+
+	public boolean contains(int chunk) {
+		final AtomicLongArray page = pages.get(chunk >>> PAGE_SHIFT);
+		return page != null && (page.get((chunk >>> 6) & WORDS_PER_PAGE - 1) & 1L << chunk) != 0;
+	}
+
+	public void remove(int chunk) {
+		final AtomicLongArray page = pages.get(chunk >>> PAGE_SHIFT);
+		if (page == null) {
+			return;
+		}
+		final int word = (chunk >>> 6) & WORDS_PER_PAGE - 1;
+		final long bit = 1L << chunk;
+		long bits;
+		do {
+			bits = page.get(word);
+			if ((bits & bit) == 0) {
+				return;
+			}
+		} while (!page.compareAndSet(word, bits, bits & ~bit));
+		count.decrementAndGet();
+	}
+
+	/**
+	 * @return How many different chunks have been added and not removed
+	 */
+	public int count() {
+		return count.get();
+	}
+}
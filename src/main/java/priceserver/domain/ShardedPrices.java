@@ -0,0 +1,93 @@
+package priceserver.domain;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Prices already split into their {@link PriceShards}, so that each shard can be merged on its own.  As a collection
+ * it holds every price, shard by shard.
+ */
+public class ShardedPrices extends AbstractCollection<Price> {
+	private final PriceShards shards;
+	private final List<Collection<Price>> buckets;
+	private final int size;
+
+	/**
+	 * @param buckets One per shard, holding only prices whose ids belong to it
+	 */
+	public ShardedPrices(PriceShards shards, List<Collection<Price>> buckets) {
+		if (buckets.size() != shards.count()) {
+			throw new IllegalArgumentException(buckets.size() + " buckets given for " + shards);
+		}
+		this.shards = shards;
+		this.buckets = buckets;
+		int total = 0;
+		for (Collection<Price> bucket : buckets) {
+			total += bucket.size();
+		}
+		this.size = total;
+	}
+
+	/**
+	 * Splits the prices into shards, unless they already are.
+	 */
+	public static ShardedPrices of(PriceShards shards, Collection<Price> prices) {
+		if (prices instanceof ShardedPrices && ((ShardedPrices) prices).shards.equals(shards)) {
+			return (ShardedPrices) prices;
+		}
+		final List<Collection<Price>> buckets = new ArrayList<>(shards.count());
+		final int expectedPerShard = prices.size() / shards.count() + 1;
+		for (int shard = 0; shard < shards.count(); shard++) {
+			buckets.add(new ArrayList<>(expectedPerShard));
+		}
+		for (Price price : prices) {
+			buckets.get(shards.shardOf(price.getId())).add(price);
+		}
+		return new ShardedPrices(shards, buckets);
+	}
+
+	public PriceShards getShards() {
+		return shards;
+	}
+
+	public Collection<Price> shard(int shard) {
+		return Collections.unmodifiableCollection(buckets.get(shard));
+	}
+
+	@Override
+	public Iterator<Price> iterator() {
+		return new Iterator<Price>() {
+			private int shard;
+			private Iterator<Price> current = buckets.get(0).iterator();
+
+			@Override
+			public boolean hasNext() {
+				while (!current.hasNext()) {
+					if (shard + 1 == buckets.size()) {
+						return false;
+					}
+					current = buckets.get(++shard).iterator();
+				}
+				return true;
+			}
+
+			@Override
+			public Price next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return current.next();
+			}
+		};
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,16 @@
+package priceserver.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Thrown when a numbered chunk is sent again while the batch is still receiving it from an earlier request.  That
+ * upload may yet fail, so the client should send the chunk again once it has been answered, when it will either be
+ * skipped or taken.
+ */
+@ResponseStatus(value = HttpStatus.CONFLICT)
+public class ChunkInProgressException extends RuntimeException {
+	public ChunkInProgressException(long id, int chunk) {
+		super("Batch [" + id + "] is still receiving chunk " + chunk + ", send it again once that upload is answered");
+	}
+}
@@ -0,0 +1,11 @@
+package priceserver.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(value = HttpStatus.NOT_FOUND)
+public class CommitNotFoundException extends RuntimeException {
+	public CommitNotFoundException(long batchId) {
+		super("No asynchronous commit of batch [" + batchId + "] is known, or it finished too long ago");
+	}
+}
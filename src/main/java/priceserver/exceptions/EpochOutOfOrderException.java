@@ -0,0 +1,14 @@
+package priceserver.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Thrown when a batch is to be committed under an epoch that is not after every epoch already handed out.
+ */
+@ResponseStatus(value = HttpStatus.CONFLICT)
+public class EpochOutOfOrderException extends RuntimeException {
+	public EpochOutOfOrderException(long epoch, long lastEpoch) {
+		super("Cannot commit as epoch " + epoch + ", epochs up to " + lastEpoch + " have already been handed out");
+	}
+}
@@ -0,0 +1,15 @@
+package priceserver.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Thrown when a batch is committed without the number of chunks the client said it sent.  The batch is left open, so
+ * the missing chunks can be sent and the commit tried again.
+ */
+@ResponseStatus(value = HttpStatus.CONFLICT)
+public class IncompleteBatchException extends RuntimeException {
+	public IncompleteBatchException(long id, int received, int expected) {
+		super("Batch [" + id + "] has received " + received + " of the " + expected + " chunks expected");
+	}
+}
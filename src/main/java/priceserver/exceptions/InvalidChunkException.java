@@ -0,0 +1,15 @@
+package priceserver.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Thrown when a chunk number, or the number of chunks a batch is to have, is negative.  Neither could ever be met, and
+ * a count of -1 would otherwise be taken as no count at all, quietly skipping the check the client asked for.
+ */
+@ResponseStatus(value = HttpStatus.BAD_REQUEST)
+public class InvalidChunkException extends RuntimeException {
+	public InvalidChunkException(long id, String what, int value) {
+		super("Batch [" + id + "] was given " + what + " " + value + ", which cannot be negative");
+	}
+}
@@ -0,0 +1,20 @@
+package priceserver.exceptions;
+
+/**
+ * Thrown by a follower asked to take a write, which only the leader can.  Answered with a redirect to the leader.
+ */
+public class NotLeaderException extends RuntimeException {
+	private final String leaderUrl;
+
+	public NotLeaderException(String leaderUrl) {
+		super("Writes are taken by the leader at " + leaderUrl);
+		this.leaderUrl = leaderUrl;
+	}
+
+	/**
+	 * @return The base URL of the leader's REST endpoints, without a trailing slash
+	 */
+	public String getLeaderUrl() {
+		return leaderUrl;
+	}
+}
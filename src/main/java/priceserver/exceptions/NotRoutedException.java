@@ -0,0 +1,14 @@
+package priceserver.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Thrown by the router for requests that have to be sent to the partitions themselves.
+ */
+@ResponseStatus(value = HttpStatus.NOT_IMPLEMENTED)
+public class NotRoutedException extends RuntimeException {
+	public NotRoutedException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,14 @@
+package priceserver.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Thrown by the router when a partition it needs could not be reached, or failed in a way the router cannot pass on.
+ */
+@ResponseStatus(value = HttpStatus.BAD_GATEWAY)
+public class PartitionUnavailableException extends RuntimeException {
+	public PartitionUnavailableException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
@@ -0,0 +1,18 @@
+package priceserver.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Thrown by a follower whose book has fallen too far behind the leader's to be read from.
+ */
+@ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE)
+public class ReplicaBehindException extends RuntimeException {
+	public ReplicaBehindException() {
+		super("This replica has not caught up with the leader yet");
+	}
+
+	public ReplicaBehindException(long lagMs) {
+		super("This replica has not caught up with the leader for " + lagMs + " ms");
+	}
+}
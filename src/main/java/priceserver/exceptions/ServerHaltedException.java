@@ -0,0 +1,15 @@
+package priceserver.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Thrown once a commit has failed part way through being published, after which the book can no longer be trusted.
+ * The server has to be restarted, which rebuilds the book from the journal without the failed commit.
+ */
+@ResponseStatus(value = HttpStatus.SERVICE_UNAVAILABLE)
+public class ServerHaltedException extends RuntimeException {
+	public ServerHaltedException(long epoch, Throwable cause) {
+		super("The server stopped after failing to publish epoch " + epoch + " and has to be restarted", cause);
+	}
+}
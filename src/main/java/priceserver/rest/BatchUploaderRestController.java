@@ -1,50 +1,159 @@
 package priceserver.rest;
 
 import priceserver.domain.Batch;
+import priceserver.domain.CommitTicket;
 import priceserver.domain.Price;
 import priceserver.service.PricerService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
 
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 @RestController
 class BatchUploaderRestController {
 	private static final Logger log = LoggerFactory.getLogger(BatchUploaderRestController.class);
 
+	private static final long MAX_WAIT_MS = 60_000L;
+
 	private final PricerService pricerService;
+	private final StreamingPriceUploader streamingPriceUploader;
 
-	BatchUploaderRestController(PricerService pricerService) {
+	BatchUploaderRestController(PricerService pricerService, StreamingPriceUploader streamingPriceUploader) {
 		this.pricerService = pricerService;
+		this.streamingPriceUploader = streamingPriceUploader;
 	}
 
 	@RequestMapping(value = "/batches/create", method = RequestMethod.POST, produces = "application/json")
-	Long create() {
-		final Batch batch = pricerService.createBatch();
+	Long create(HttpServletRequest request) {
+		final Batch batch = pricerService.createBatch(ClientIds.of(request));
 		log.info("Batch {} has been created", batch);
 		return batch.getId();
 	}
 
+	/**
+	 * With a chunk number the upload is one of many chunks a client may be sending at once, and is skipped if the
+	 * batch already has that chunk.
+	 */
 	@RequestMapping(value = "/batches/{id}/upload", method = RequestMethod.POST)
-	void upload(@PathVariable long id, @RequestBody List<Price> prices) {
+	void upload(@PathVariable long id,
+	            @RequestParam(required = false) Integer chunk,
+	            @RequestBody List<Price> prices) throws IOException {
 		log.info("Received update for batch {} with {} prices", id, prices.size());
 		log.trace("Updating following prices {}", prices);
-		pricerService.upload(id, prices);
+		uploadChunk(id, chunk, () -> pricerService.upload(id, prices));
 		log.info("Batch {} now updated", id);
 	}
 
+	/**
+	 * JSON, newline delimited JSON, Smile and CBOR uploads are streamed into the batch as they are parsed rather than
+	 * being bound to a list first.  Other formats (such as XML) still go through {@link #upload(long, List)}.
+	 */
+	@RequestMapping(value = "/batches/{id}/upload",
+	                method = RequestMethod.POST,
+	                consumes = {MediaType.APPLICATION_JSON_VALUE,
+	                            PriceMediaTypes.APPLICATION_NDJSON_VALUE,
+	                            PriceMediaTypes.APPLICATION_SMILE_VALUE,
+	                            PriceMediaTypes.APPLICATION_CBOR_VALUE})
+	void streamingUpload(@PathVariable long id,
+	                     @RequestParam(required = false) Integer chunk,
+	                     @RequestHeader(HttpHeaders.CONTENT_TYPE) MediaType contentType,
+	                     InputStream body) throws IOException {
+		log.info("Receiving streamed update for batch {}", id);
+		uploadChunk(id, chunk, () -> {
+			final int count = streamingPriceUploader.upload(id, contentType, body);
+			log.info("Batch {} now updated with {} prices", id, count);
+		});
+	}
+
+	/**
+	 * With expectedChunks the commit fails with 409, leaving the batch open, unless the batch has received that many
+	 * different chunks.  The same goes for preparing and committing in the background.
+	 */
 	@RequestMapping(value = "/batches/{id}/commit", method = RequestMethod.POST)
-	void commit(@PathVariable long id) {
+	void commit(@PathVariable long id, @RequestParam(required = false) Integer expectedChunks) {
 		log.info("About to commit batch {}", id);
+		expectChunks(id, expectedChunks);
 		pricerService.commit(id);
 		log.info("Batch {} now commited", id);
 	}
 
+	/**
+	 * Commits the batch under an epoch handed out by the router, the second phase of a commit spanning several
+	 * partitions.
+	 */
+	@RequestMapping(value = "/batches/{id}/commit", method = RequestMethod.POST, params = "epoch")
+	void commitAs(@PathVariable long id,
+	              @RequestParam long epoch,
+	              @RequestParam(required = false) Integer expectedChunks) {
+		log.info("About to commit batch {} as epoch {}", id, epoch);
+		expectChunks(id, expectedChunks);
+		pricerService.commit(id, epoch);
+		log.info("Batch {} now commited", id);
+	}
+
+	/**
+	 * Closes the batch and sets its prices aside for a later commit, the first phase of a commit spanning several
+	 * partitions.
+	 */
+	@RequestMapping(value = "/batches/{id}/prepare", method = RequestMethod.POST)
+	void prepare(@PathVariable long id, @RequestParam(required = false) Integer expectedChunks) {
+		log.info("About to prepare batch {}", id);
+		expectChunks(id, expectedChunks);
+		pricerService.prepare(id);
+		log.info("Batch {} now prepared", id);
+	}
+
+	/**
+	 * Closes the batch and answers 202 straight away, leaving the prices to be published in the background.  Poll
+	 * the ticket at the Location returned to find out when they are visible.
+	 */
+	@RequestMapping(value = "/batches/{id}/commit", method = RequestMethod.POST, params = "async=true")
+	ResponseEntity<CommitTicket> commitAsync(@PathVariable long id,
+	                                         @RequestParam(required = false) Integer expectedChunks) {
+		log.info("About to commit batch {} in the background", id);
+		expectChunks(id, expectedChunks);
+		final CommitTicket ticket = pricerService.commitAsync(id);
+		return ResponseEntity.accepted()
+		                     .location(URI.create("/batches/" + id + "/commit"))
+		                     .body(ticket);
+	}
+
+	/**
+	 * Reports on a background commit.  With waitMs the answer is held back until the commit finishes or the wait is
+	 * up, whichever is sooner, without holding on to a request thread.
+	 */
+	@RequestMapping(value = "/batches/{id}/commit", method = RequestMethod.GET)
+	DeferredResult<CommitTicket> commitStatus(@PathVariable long id, @RequestParam(defaultValue = "0") long waitMs) {
+		final CompletableFuture<CommitTicket> status = pricerService.commitStatus(id);
+		final CommitTicket pending = CommitTicket.pending(id);
+		if (waitMs <= 0) {
+			final DeferredResult<CommitTicket> result = new DeferredResult<>();
+			result.setResult(status.getNow(pending));
+			return result;
+		}
+		final DeferredResult<CommitTicket> result = new DeferredResult<>(Math.min(waitMs, MAX_WAIT_MS), pending);
+		status.thenAccept(result::setResult);
+		return result;
+	}
+
 
 	@RequestMapping(value = "/batches/{id}/cancel", method = RequestMethod.POST)
 	void cancel(@PathVariable long id) {
@@ -53,4 +162,33 @@ class BatchUploaderRestController {
 		log.info("Batch {} now commited", id);
 	}
 
+	/**
+	 * Runs the upload unless it is a numbered chunk the batch already has, counting the chunk once it is all uploaded
+	 * or giving it up again if it fails.
+	 */
+	private void uploadChunk(long id, Integer chunk, ChunkUpload upload) throws IOException {
+		if (chunk == null) {
+			upload.run();
+		} else if (!pricerService.startChunk(id, chunk)) {
+			log.info("Skipping chunk {} of batch {}, which has already been received", chunk, id);
+		} else {
+			try {
+				upload.run();
+			} catch (IOException | RuntimeException | Error e) {
+				pricerService.abandonChunk(id, chunk);
+				throw e;
+			}
+			pricerService.finishChunk(id, chunk);
+		}
+	}
+
+	private void expectChunks(long id, Integer expectedChunks) {
+		if (expectedChunks != null) {
+			pricerService.expectChunks(id, expectedChunks);
+		}
+	}
+
+	private interface ChunkUpload {
+		void run() throws IOException;
+	}
 }
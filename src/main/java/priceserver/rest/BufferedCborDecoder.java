@@ -0,0 +1,83 @@
+package priceserver.rest;
+
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.reactivestreams.Publisher;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.DecodingException;
+import org.springframework.core.codec.Decoder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.util.MimeType;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads CBOR on the reactive stack.  Jackson has no non-blocking CBOR parser, so unlike JSON and Smile, the whole
+ * body is gathered before it is parsed, and the prices in it are only handed on once it has all been read.
+ */
+class BufferedCborDecoder implements Decoder<Object> {
+	private final ObjectMapper cborMapper;
+
+	BufferedCborDecoder(ObjectMapper cborMapper) {
+		this.cborMapper = cborMapper;
+	}
+
+	@Override
+	public boolean canDecode(ResolvableType elementType, MimeType mimeType) {
+		return mimeType != null
+				&& PriceFormats.APPLICATION_CBOR.isCompatibleWith(mimeType)
+				&& cborMapper.canDeserialize(javaType(elementType));
+	}
+
+	@Override
+	public Flux<Object> decode(Publisher<DataBuffer> inputStream,
+	                           ResolvableType elementType,
+	                           MimeType mimeType,
+	                           Map<String, Object> hints) {
+		final ObjectReader reader = cborMapper.readerFor(javaType(elementType));
+		return DataBufferUtils.join(inputStream).flatMapIterable(body -> {
+			try (InputStream in = body.asInputStream(); MappingIterator<Object> values = reader.readValues(in)) {
+				return values.readAll();
+			} catch (IOException e) {
+				throw new DecodingException("Could not read CBOR: " + e.getMessage(), e);
+			} finally {
+				DataBufferUtils.release(body);
+			}
+		});
+	}
+
+	@Override
+	public Mono<Object> decodeToMono(Publisher<DataBuffer> inputStream,
+	                                 ResolvableType elementType,
+	                                 MimeType mimeType,
+	                                 Map<String, Object> hints) {
+		final ObjectReader reader = cborMapper.readerFor(javaType(elementType));
+		return DataBufferUtils.join(inputStream).map(body -> {
+			try (InputStream in = body.asInputStream()) {
+				return reader.readValue(in);
+			} catch (IOException e) {
+				throw new DecodingException("Could not read CBOR: " + e.getMessage(), e);
+			} finally {
+				DataBufferUtils.release(body);
+			}
+		});
+	}
+
+	@Override
+	public List<MimeType> getDecodableMimeTypes() {
+		return Collections.singletonList(PriceFormats.APPLICATION_CBOR);
+	}
+
+	private JavaType javaType(ResolvableType type) {
+		return cborMapper.getTypeFactory().constructType(type.getType());
+	}
+}
@@ -0,0 +1,30 @@
+package priceserver.rest;
+
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import priceserver.service.impl.AdmissionControl;
+
+import javax.servlet.http.HttpServletRequest;
+import java.net.InetSocketAddress;
+
+/**
+ * Names the client a request comes from, for admission control: the X-Client-Id header if it has one, or else the
+ * address it came from.
+ */
+final class ClientIds {
+	private ClientIds() {
+	}
+
+	static String of(HttpServletRequest request) {
+		final String client = request.getHeader(AdmissionControl.CLIENT_HEADER);
+		return client != null && !client.isEmpty() ? client : request.getRemoteAddr();
+	}
+
+	static String of(ServerHttpRequest request) {
+		final String client = request.getHeaders().getFirst(AdmissionControl.CLIENT_HEADER);
+		if (client != null && !client.isEmpty()) {
+			return client;
+		}
+		final InetSocketAddress address = request.getRemoteAddress();
+		return address == null ? "unknown" : address.getHostString();
+	}
+}
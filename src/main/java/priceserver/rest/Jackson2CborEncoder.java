@@ -0,0 +1,13 @@
+package priceserver.rest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.http.codec.json.AbstractJackson2Encoder;
+
+/**
+ * Writes CBOR on the reactive stack, which Spring only has a servlet converter for.
+ */
+class Jackson2CborEncoder extends AbstractJackson2Encoder {
+	Jackson2CborEncoder(ObjectMapper cborMapper) {
+		super(cborMapper, PriceFormats.APPLICATION_CBOR);
+	}
+}
@@ -0,0 +1,44 @@
+package priceserver.rest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import net.jcip.annotations.ThreadSafe;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.stereotype.Component;
+
+/**
+ * The ObjectMappers for each format prices are streamed in or out in, for the endpoints that drive the Jackson
+ * streaming API themselves rather than going through Spring's converters.  Spring picks up the Smile and CBOR
+ * converters on its own; prices are written the way each format wants by {@link priceserver.domain.Price}.
+ */
+@Component
+@ThreadSafe
+class PriceFormats {
+	static final MediaType APPLICATION_SMILE = MediaType.valueOf(PriceMediaTypes.APPLICATION_SMILE_VALUE);
+	static final MediaType APPLICATION_CBOR = MediaType.valueOf(PriceMediaTypes.APPLICATION_CBOR_VALUE);
+
+	private final ObjectMapper json;
+	private final ObjectMapper smile = Jackson2ObjectMapperBuilder.smile().build();
+	private final ObjectMapper cbor = Jackson2ObjectMapperBuilder.cbor().build();
+
+	PriceFormats(ObjectMapper objectMapper) {
+		this.json = objectMapper;
+	}
+
+	/**
+	 * @return The mapper for the media type, JSON for anything that is not Smile or CBOR
+	 */
+	ObjectMapper mapperFor(MediaType mediaType) {
+		if (mediaType != null && APPLICATION_SMILE.includes(mediaType)) {
+			return smile;
+		}
+		if (mediaType != null && APPLICATION_CBOR.includes(mediaType)) {
+			return cbor;
+		}
+		return json;
+	}
+
+	ObjectMapper cbor() {
+		return cbor;
+	}
+}
@@ -0,0 +1,15 @@
+package priceserver.rest;
+
+/**
+ * Media types the REST endpoints accept or produce on top of the ones Spring already knows about.
+ */
+final class PriceMediaTypes {
+	static final String APPLICATION_NDJSON_VALUE = "application/x-ndjson";
+
+	//The media types Spring's own Smile and CBOR converters go by
+	static final String APPLICATION_SMILE_VALUE = "application/x-jackson-smile";
+	static final String APPLICATION_CBOR_VALUE = "application/cbor";
+
+	private PriceMediaTypes() {
+	}
+}
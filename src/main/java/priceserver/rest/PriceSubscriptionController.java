@@ -0,0 +1,185 @@
+package priceserver.rest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import priceserver.domain.Price;
+import priceserver.service.PriceSubscription;
+import priceserver.service.PricerService;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Streams the changes to a set of prices as server-sent events, each event holding the latest price of every id
+ * changed since the last one was sent.
+ *
+ * Events are written by a few delivery threads of our own, so a commit only ever has to hand a subscription over to
+ * them.  A subscriber that reads slowly holds up a delivery thread while its event is written, but its changes keep
+ * being conflated meanwhile, so it never has more than one price per id waiting.
+ *
+ * A subscriber whose event takes longer than the write timeout to go out is dropped.  Its subscription is closed at
+ * once, and the delivery pool takes on an extra thread for as long as the write stays stuck, so that the other
+ * subscribers never have fewer delivery threads between them.  The connection is completed once the write comes back,
+ * which the container's own write timeout makes sure of.
+ */
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+class PriceSubscriptionController {
+	private static final Logger log = LoggerFactory.getLogger(PriceSubscriptionController.class);
+
+	static final String EVENT_NAME = "prices";
+
+	private final PricerService pricerService;
+	private final long timeoutMs;
+	private final long writeTimeoutNanos;
+	private final ThreadPoolExecutor delivery;
+	private final ScheduledExecutorService watchdog;
+
+	//The event each delivery thread is writing, if any
+	private final ConcurrentMap<Thread, Send> sending = new ConcurrentHashMap<>();
+
+	PriceSubscriptionController(PricerService pricerService,
+	                            @Value("${priceserver.subscriptions.timeout-ms:1800000}") long timeoutMs,
+	                            @Value("${priceserver.subscriptions.delivery-threads:4}") int deliveryThreads,
+	                            @Value("${priceserver.subscriptions.write-timeout-ms:10000}") long writeTimeoutMs) {
+		this.pricerService = pricerService;
+		this.timeoutMs = timeoutMs;
+		this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(writeTimeoutMs);
+		final AtomicInteger count = new AtomicInteger();
+		this.delivery = (ThreadPoolExecutor) Executors.newFixedThreadPool(deliveryThreads, runnable -> {
+			final Thread thread = new Thread(runnable, "subscription-delivery-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "subscription-watchdog");
+			thread.setDaemon(true);
+			return thread;
+		});
+		final long checkEveryMs = Math.max(10L, writeTimeoutMs / 4);
+		watchdog.scheduleWithFixedDelay(this::dropStalledSubscribers,
+		                                checkEveryMs,
+		                                checkEveryMs,
+		                                TimeUnit.MILLISECONDS);
+	}
+
+	@RequestMapping(value = "/prices/subscribe",
+	                method = RequestMethod.GET,
+	                produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	SseEmitter subscribe(@RequestParam long[] ids) {
+		final SseEmitter emitter = new SseEmitter(timeoutMs);
+		final AtomicReference<PriceSubscription> subscription = new AtomicReference<>();
+		final Runnable deliver = () -> deliver(subscription.get(), emitter);
+		subscription.set(pricerService.subscribe(ids, () -> delivery.execute(deliver)));
+		emitter.onCompletion(subscription.get()::close);
+		emitter.onTimeout(subscription.get()::close);
+		log.debug("Subscribed to {} prices", ids.length);
+		//Sends the prices the subscription starts with, after which commits ask for delivery themselves
+		delivery.execute(deliver);
+		return emitter;
+	}
+
+	private void deliver(PriceSubscription subscription, SseEmitter emitter) {
+		final Thread thread = Thread.currentThread();
+		try {
+			for (List<Price> prices = subscription.poll(); !prices.isEmpty(); prices = subscription.poll()) {
+				final Send send = new Send(subscription);
+				final boolean inTime;
+				sending.put(thread, send);
+				try {
+					emitter.send(SseEmitter.event().name(EVENT_NAME).data(prices, MediaType.APPLICATION_JSON));
+				} finally {
+					sending.remove(thread);
+					inTime = send.finish();
+				}
+				if (!inTime) {
+					throw new IOException("Timed out writing to the subscriber");
+				}
+			}
+		} catch (IOException | IllegalStateException e) {
+			//The subscriber has gone, is too slow, or the emitter has already been completed
+			log.debug("Dropping subscription: {}", e.toString());
+			subscription.close();
+			emitter.completeWithError(e);
+		}
+	}
+
+	private void dropStalledSubscribers() {
+		final long now = System.nanoTime();
+		for (Send send : sending.values()) {
+			if (now - send.startNanos > writeTimeoutNanos && send.stall()) {
+				log.info("Dropping a subscriber that has not taken an event for {} ms",
+				         TimeUnit.NANOSECONDS.toMillis(now - send.startNanos));
+				send.subscription.close();
+				//Stands in for the delivery thread stuck in the write until it comes back
+				resizeDelivery(1);
+			}
+		}
+	}
+
+	private synchronized void resizeDelivery(int change) {
+		//The maximum can never be below the core size, so grow the maximum first and shrink it last
+		if (change > 0) {
+			delivery.setMaximumPoolSize(delivery.getMaximumPoolSize() + change);
+			delivery.setCorePoolSize(delivery.getCorePoolSize() + change);
+		} else {
+			delivery.setCorePoolSize(delivery.getCorePoolSize() + change);
+			delivery.setMaximumPoolSize(delivery.getMaximumPoolSize() + change);
+		}
+	}
+
+	@PreDestroy
+	void shutdown() {
+		watchdog.shutdownNow();
+		delivery.shutdownNow();
+	}
+
+	/**
+	 * An event being written, which either finishes in time or is found stalled by the watchdog, never both.
+	 */
+	private final class Send {
+		private static final int SENDING = 0;
+		private static final int FINISHED = 1;
+		private static final int STALLED = 2;
+
+		private final PriceSubscription subscription;
+		private final long startNanos = System.nanoTime();
+		private final AtomicInteger state = new AtomicInteger(SENDING);
+
+		private Send(PriceSubscription subscription) {
+			this.subscription = subscription;
+		}
+
+		/**
+		 * @return False if the write was found stalled first, in which case the extra delivery thread goes again
+		 */
+		private boolean finish() {
+			if (state.compareAndSet(SENDING, FINISHED)) {
+				return true;
+			}
+			resizeDelivery(-1);
+			return false;
+		}
+
+		private boolean stall() {
+			return state.compareAndSet(SENDING, STALLED);
+		}
+	}
+}
@@ -1,23 +1,145 @@
 package priceserver.rest;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 import priceserver.domain.Price;
+import priceserver.domain.PriceQueryResult;
 import priceserver.service.PricerService;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.ZonedDateTime;
+
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 @RestController
 class PricesRestController {
 	private final PricerService pricerService;
+	private final PriceFormats formats;
 
-	public PricesRestController(PricerService pricerService) {
+	public PricesRestController(PricerService pricerService, PriceFormats formats) {
 		this.pricerService = pricerService;
+		this.formats = formats;
 	}
 
+	/**
+	 * The price's epoch is its ETag, so a client that sends it back in If-None-Match is answered 304 without the
+	 * price being written until it changes.
+	 */
 	@RequestMapping(value = "/prices/{id}", method = RequestMethod.GET)
-	Price getLatest(@PathVariable long id) {
-		return pricerService.latestPrice(id);
+	ResponseEntity<Price> getLatest(@PathVariable long id) {
+		final Price price = pricerService.latestPrice(id);
+		return ResponseEntity.ok().eTag(Long.toString(price.getEpoch())).body(price);
+	}
+
+	/**
+	 * @param asOf An ISO date-time, such as 2018-06-01T12:00:00.5Z
+	 */
+	@RequestMapping(value = "/prices/{id}", method = RequestMethod.GET, params = "asOf")
+	Price getAsOf(@PathVariable long id,
+	              @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime asOf) {
+		return pricerService.priceAsOf(id, Price.toEpochNanos(asOf));
+	}
+
+	@RequestMapping(value = "/prices/query", method = RequestMethod.POST)
+	PriceQueryResult query(@RequestBody long[] ids) {
+		return pricerService.latestPrices(ids);
+	}
+
+	/**
+	 * Only the prices changed since the epoch, which is usually the epoch of the client's last query.
+	 */
+	@RequestMapping(value = "/prices/query", method = RequestMethod.POST, params = "changedSince")
+	PriceQueryResult queryChanged(@RequestBody long[] ids, @RequestParam long changedSince) {
+		return pricerService.pricesChangedSince(ids, changedSince);
+	}
+
+	/**
+	 * Streams the whole book as a JSON array.  Prices are written straight from the store to the response as they are
+	 * visited, so the book is never copied into memory.
+	 *
+	 * The ETag is the epoch of the last commit published before the book is read, so the book is not sent again
+	 * until there has been another commit.  With changedSince only the prices changed since that epoch are sent.
+	 */
+	@RequestMapping(value = "/prices", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+	ResponseEntity<StreamingResponseBody> getAll(@RequestParam(defaultValue = "0") long changedSince) {
+		return ResponseEntity.ok()
+		                     .contentType(MediaType.APPLICATION_JSON_UTF8)
+		                     .eTag(Long.toString(pricerService.epoch()))
+		                     .body(out -> writeBook(out, MediaType.APPLICATION_JSON, true, changedSince));
 	}
 
+	/**
+	 * Streams the whole book as newline delimited JSON, one price per line.
+	 */
+	@RequestMapping(value = "/prices", method = RequestMethod.GET, produces = PriceMediaTypes.APPLICATION_NDJSON_VALUE)
+	ResponseEntity<StreamingResponseBody> getAllAsNdJson(@RequestParam(defaultValue = "0") long changedSince) {
+		return ResponseEntity.ok()
+		                     .contentType(MediaType.valueOf(PriceMediaTypes.APPLICATION_NDJSON_VALUE))
+		                     .eTag(Long.toString(pricerService.epoch()))
+		                     .body(out -> writeBook(out, MediaType.APPLICATION_JSON, false, changedSince));
+	}
+
+	/**
+	 * Streams the whole book as a Smile array.
+	 */
+	@RequestMapping(value = "/prices", method = RequestMethod.GET, produces = PriceMediaTypes.APPLICATION_SMILE_VALUE)
+	ResponseEntity<StreamingResponseBody> getAllAsSmile(@RequestParam(defaultValue = "0") long changedSince) {
+		return binaryBook(PriceFormats.APPLICATION_SMILE, changedSince);
+	}
+
+	/**
+	 * Streams the whole book as a CBOR array.
+	 */
+	@RequestMapping(value = "/prices", method = RequestMethod.GET, produces = PriceMediaTypes.APPLICATION_CBOR_VALUE)
+	ResponseEntity<StreamingResponseBody> getAllAsCbor(@RequestParam(defaultValue = "0") long changedSince) {
+		return binaryBook(PriceFormats.APPLICATION_CBOR, changedSince);
+	}
+
+	private ResponseEntity<StreamingResponseBody> binaryBook(MediaType format, long changedSince) {
+		return ResponseEntity.ok()
+		                     .contentType(format)
+		                     .eTag(Long.toString(pricerService.epoch()))
+		                     .body(out -> writeBook(out, format, true, changedSince));
+	}
+
+	private void writeBook(OutputStream out, MediaType format, boolean asArray, long changedSince)
+			throws IOException {
+		final JsonGenerator generator = formats.mapperFor(format).getFactory().createGenerator(out);
+		generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+		if (asArray) {
+			generator.writeStartArray();
+		}
+		try {
+			pricerService.forEachLatestPrice(price -> {
+				if (price.getEpoch() <= changedSince) {
+					return;
+				}
+				try {
+					generator.writeObject(price);
+					if (!asArray) {
+						generator.writeRaw('\n');
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		if (asArray) {
+			generator.writeEndArray();
+		}
+		generator.close();
+	}
 }
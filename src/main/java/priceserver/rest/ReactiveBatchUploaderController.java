@@ -0,0 +1,205 @@
+package priceserver.rest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import priceserver.domain.CommitTicket;
+import priceserver.domain.Price;
+import priceserver.service.PricerService;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The batch endpoints of {@link BatchUploaderRestController} for the reactive stack.
+ *
+ * Uploads are decoded off the wire a price at a time and merged into the batch a chunk at a time.  Only one chunk is
+ * asked for beyond the one being merged, so a client sending faster than the batch can take its prices is held back
+ * by the connection rather than by the heap.  Merging, committing and anything else that may touch the batch cache
+ * runs off the event loop, as the cache can go to disk.  CBOR is the exception, being read whole before it is decoded
+ * by {@link BufferedCborDecoder}.
+ */
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+class ReactiveBatchUploaderController {
+	private static final Logger log = LoggerFactory.getLogger(ReactiveBatchUploaderController.class);
+
+	private static final long MAX_WAIT_MS = 60_000L;
+
+	private final PricerService pricerService;
+	private final int chunkSize;
+	private final Scheduler mergeScheduler;
+
+	ReactiveBatchUploaderController(PricerService pricerService,
+	                                @Value("${priceserver.upload.chunk-size:1000}") int chunkSize,
+	                                @Value("${priceserver.upload.merge-threads:4}") int mergeThreads) {
+		this.pricerService = pricerService;
+		this.chunkSize = chunkSize;
+		final AtomicInteger count = new AtomicInteger();
+		this.mergeScheduler = Schedulers.fromExecutorService(Executors.newFixedThreadPool(mergeThreads, runnable -> {
+			final Thread thread = new Thread(runnable, "upload-merge-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}));
+	}
+
+	@RequestMapping(value = "/batches/create", method = RequestMethod.POST, produces = "application/json")
+	Mono<Long> create(ServerHttpRequest request) {
+		final String client = ClientIds.of(request);
+		return blocking(() -> {
+			final long batchId = pricerService.createBatch(client).getId();
+			log.info("Batch {} has been created", batchId);
+			return batchId;
+		});
+	}
+
+	@RequestMapping(value = "/batches/{id}/upload",
+	                method = RequestMethod.POST,
+	                consumes = {MediaType.APPLICATION_JSON_VALUE,
+	                            PriceMediaTypes.APPLICATION_NDJSON_VALUE,
+	                            PriceMediaTypes.APPLICATION_SMILE_VALUE,
+	                            PriceMediaTypes.APPLICATION_CBOR_VALUE})
+	Mono<Void> upload(@PathVariable long id,
+	                  @RequestParam(required = false) Integer chunk,
+	                  @RequestBody(required = false) Flux<Price> prices) {
+		log.info("Receiving streamed update for batch {}", id);
+		if (chunk == null) {
+			return mergeAll(id, prices);
+		}
+		//A numbered chunk the batch already has is skipped, one uploaded in full is counted, and one that fails or
+		//whose client goes away is given up to be sent again
+		return blocking(() -> pricerService.startChunk(id, chunk)).flatMap(first -> {
+			if (!first) {
+				log.info("Skipping chunk {} of batch {}, which has already been received", chunk, id);
+				return Mono.empty();
+			}
+			return mergeAll(id, prices).doOnSuccess(ignored -> pricerService.finishChunk(id, chunk))
+			                           .doOnError(e -> pricerService.abandonChunk(id, chunk))
+			                           .doOnCancel(() -> pricerService.abandonChunk(id, chunk));
+		});
+	}
+
+	@RequestMapping(value = "/batches/{id}/commit", method = RequestMethod.POST)
+	Mono<Void> commit(@PathVariable long id, @RequestParam(required = false) Integer expectedChunks) {
+		return blocking(() -> {
+			log.info("About to commit batch {}", id);
+			expectChunks(id, expectedChunks);
+			pricerService.commit(id);
+			log.info("Batch {} now commited", id);
+			return id;
+		}).then();
+	}
+
+	@RequestMapping(value = "/batches/{id}/commit", method = RequestMethod.POST, params = "epoch")
+	Mono<Void> commitAs(@PathVariable long id,
+	                    @RequestParam long epoch,
+	                    @RequestParam(required = false) Integer expectedChunks) {
+		return blocking(() -> {
+			log.info("About to commit batch {} as epoch {}", id, epoch);
+			expectChunks(id, expectedChunks);
+			pricerService.commit(id, epoch);
+			log.info("Batch {} now commited", id);
+			return id;
+		}).then();
+	}
+
+	@RequestMapping(value = "/batches/{id}/prepare", method = RequestMethod.POST)
+	Mono<Void> prepare(@PathVariable long id, @RequestParam(required = false) Integer expectedChunks) {
+		return blocking(() -> {
+			log.info("About to prepare batch {}", id);
+			expectChunks(id, expectedChunks);
+			pricerService.prepare(id);
+			log.info("Batch {} now prepared", id);
+			return id;
+		}).then();
+	}
+
+	@RequestMapping(value = "/batches/{id}/commit", method = RequestMethod.POST, params = "async=true")
+	Mono<ResponseEntity<CommitTicket>> commitAsync(@PathVariable long id,
+	                                               @RequestParam(required = false) Integer expectedChunks) {
+		return blocking(() -> {
+			log.info("About to commit batch {} in the background", id);
+			expectChunks(id, expectedChunks);
+			return ResponseEntity.accepted()
+			                     .location(URI.create("/batches/" + id + "/commit"))
+			                     .body(pricerService.commitAsync(id));
+		});
+	}
+
+	/**
+	 * With waitMs the answer is held back until the commit finishes or the wait is up, whichever is sooner.
+	 */
+	@RequestMapping(value = "/batches/{id}/commit", method = RequestMethod.GET)
+	Mono<CommitTicket> commitStatus(@PathVariable long id, @RequestParam(defaultValue = "0") long waitMs) {
+		final CompletableFuture<CommitTicket> status = pricerService.commitStatus(id);
+		final CommitTicket pending = CommitTicket.pending(id);
+		if (waitMs <= 0) {
+			return Mono.just(status.getNow(pending));
+		}
+		return Mono.fromFuture(status).timeout(Duration.ofMillis(Math.min(waitMs, MAX_WAIT_MS)), Mono.just(pending));
+	}
+
+	@RequestMapping(value = "/batches/{id}/cancel", method = RequestMethod.POST)
+	Mono<Void> cancel(@PathVariable long id) {
+		return blocking(() -> {
+			log.info("About to cancel batch {}", id);
+			pricerService.cancel(id);
+			log.info("Batch {} now cancelled", id);
+			return id;
+		}).then();
+	}
+
+	private Mono<Void> mergeAll(long batchId, Flux<Price> prices) {
+		return prices.buffer(chunkSize)
+		             .concatMap(chunk -> merge(batchId, chunk), 1)
+		             .reduce(0, Integer::sum)
+		             //An empty upload is still handed over, so that an unknown batch id fails as it would otherwise
+		             .flatMap(count -> count == 0 ? merge(batchId, Collections.emptyList()) : Mono.just(count))
+		             .doOnNext(count -> log.info("Batch {} now updated with {} prices", batchId, count))
+		             .then();
+	}
+
+	private Mono<Integer> merge(long batchId, List<Price> chunk) {
+		return Mono.fromCallable(() -> {
+			log.debug("Merging chunk of {} prices into batch {}", chunk.size(), batchId);
+			pricerService.upload(batchId, chunk);
+			return chunk.size();
+		}).subscribeOn(mergeScheduler);
+	}
+
+	private void expectChunks(long id, Integer expectedChunks) {
+		if (expectedChunks != null) {
+			pricerService.expectChunks(id, expectedChunks);
+		}
+	}
+
+	private static <T> Mono<T> blocking(Callable<T> work) {
+		return Mono.fromCallable(work).subscribeOn(Schedulers.elastic());
+	}
+
+	@PreDestroy
+	void shutdown() {
+		mergeScheduler.dispose();
+	}
+}
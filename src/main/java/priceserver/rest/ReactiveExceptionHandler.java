@@ -0,0 +1,52 @@
+package priceserver.rest;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.server.ResponseStatusException;
+import priceserver.exceptions.NotLeaderException;
+import priceserver.exceptions.TooManyRequestsException;
+import reactor.core.publisher.Mono;
+
+/**
+ * The reactive stack's counterpart of {@link RestResponseExceptionResolver}.  Spring Boot's reactive error handling
+ * does not look at {@link ResponseStatus} on an exception, so the status is carried over to a
+ * ResponseStatusException, which it does understand.  Spring Boot logs the failure either way.  A write sent to a
+ * follower is redirected to the leader, and a request over an admission limit is told when to come back, as on the
+ * servlet stack.
+ */
+@RestControllerAdvice
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+class ReactiveExceptionHandler {
+	@ExceptionHandler
+	Mono<Void> handle(RuntimeException e) {
+		final ResponseStatus status = AnnotatedElementUtils.findMergedAnnotation(e.getClass(), ResponseStatus.class);
+		if (status == null) {
+			return Mono.error(e);
+		}
+		return Mono.error(new ResponseStatusException(status.code(), e.getMessage(), e));
+	}
+
+	@ExceptionHandler
+	ResponseEntity<Void> redirect(NotLeaderException e, ServerHttpRequest request) {
+		final String query = request.getURI().getRawQuery();
+		return ResponseEntity.status(HttpStatus.TEMPORARY_REDIRECT)
+		                     .header(HttpHeaders.LOCATION, e.getLeaderUrl()
+		                                                   + request.getURI().getRawPath()
+		                                                   + (query == null ? "" : "?" + query))
+		                     .build();
+	}
+
+	@ExceptionHandler
+	ResponseEntity<Void> tooManyRequests(TooManyRequestsException e) {
+		return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+		                     .header(HttpHeaders.RETRY_AFTER, Long.toString(e.getRetryAfterSeconds()))
+		                     .build();
+	}
+}
@@ -0,0 +1,312 @@
+package priceserver.rest;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import priceserver.domain.Price;
+import priceserver.domain.PriceQueryResult;
+import priceserver.service.PriceSubscription;
+import priceserver.service.PricerService;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The read endpoints of {@link PricesRestController} for the reactive stack.  Looking a price up never blocks, so
+ * single and multi-id reads are answered straight from the event loop without a thread per request.
+ */
+@RestController
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+class ReactivePricesController {
+	private static final byte[] ARRAY_START = {'['};
+	private static final byte[] ARRAY_END = {']'};
+	private static final byte[] SEPARATOR = {','};
+	private static final byte[] NEW_LINE = {'\n'};
+
+	private final PricerService pricerService;
+	private final ObjectMapper objectMapper;
+	private final PriceFormats formats;
+
+	ReactivePricesController(PricerService pricerService, ObjectMapper objectMapper, PriceFormats formats) {
+		this.pricerService = pricerService;
+		this.objectMapper = objectMapper;
+		this.formats = formats;
+	}
+
+	@RequestMapping(value = "/prices/{id}", method = RequestMethod.GET)
+	ResponseEntity<Price> getLatest(@PathVariable long id) {
+		final Price price = pricerService.latestPrice(id);
+		return ResponseEntity.ok().eTag(Long.toString(price.getEpoch())).body(price);
+	}
+
+	/**
+	 * @param asOf An ISO date-time, such as 2018-06-01T12:00:00.5Z
+	 */
+	@RequestMapping(value = "/prices/{id}", method = RequestMethod.GET, params = "asOf")
+	Price getAsOf(@PathVariable long id,
+	              @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime asOf) {
+		return pricerService.priceAsOf(id, Price.toEpochNanos(asOf));
+	}
+
+	@RequestMapping(value = "/prices/query", method = RequestMethod.POST)
+	PriceQueryResult query(@RequestBody long[] ids) {
+		return pricerService.latestPrices(ids);
+	}
+
+	@RequestMapping(value = "/prices/query", method = RequestMethod.POST, params = "changedSince")
+	PriceQueryResult queryChanged(@RequestBody long[] ids, @RequestParam long changedSince) {
+		return pricerService.pricesChangedSince(ids, changedSince);
+	}
+
+	/**
+	 * Streams the whole book as a JSON array, encoding each price as the client asks for more.  Spring's own JSON
+	 * encoder would collect a Flux into a list before writing it.  The ETag and changedSince work as they do in
+	 * {@link PricesRestController}.
+	 */
+	@RequestMapping(value = "/prices", method = RequestMethod.GET, produces = MediaType.APPLICATION_JSON_VALUE)
+	ResponseEntity<Flux<DataBuffer>> getAll(ServerHttpResponse response,
+	                                        @RequestParam(defaultValue = "0") long changedSince) {
+		final DataBufferFactory buffers = response.bufferFactory();
+		final Flux<Price> book = latestPrices(changedSince);
+		final Flux<DataBuffer> prices = book.index()
+		                                    .map(indexed -> json(buffers,
+		                                                         indexed.getT1() == 0 ? null : SEPARATOR,
+		                                                         indexed.getT2(),
+		                                                         null));
+		return ResponseEntity.ok()
+		                     .contentType(MediaType.APPLICATION_JSON_UTF8)
+		                     .eTag(Long.toString(pricerService.epoch()))
+		                     .body(Flux.concat(Mono.fromSupplier(() -> buffers.wrap(ARRAY_START)),
+		                                       prices,
+		                                       Mono.fromSupplier(() -> buffers.wrap(ARRAY_END))));
+	}
+
+	/**
+	 * Streams the whole book as newline delimited JSON, one price per line.
+	 */
+	@RequestMapping(value = "/prices", method = RequestMethod.GET, produces = PriceMediaTypes.APPLICATION_NDJSON_VALUE)
+	ResponseEntity<Flux<DataBuffer>> getAllAsNdJson(ServerHttpResponse response,
+	                                                @RequestParam(defaultValue = "0") long changedSince) {
+		final DataBufferFactory buffers = response.bufferFactory();
+		return ResponseEntity.ok()
+		                     .contentType(MediaType.valueOf(PriceMediaTypes.APPLICATION_NDJSON_VALUE))
+		                     .eTag(Long.toString(pricerService.epoch()))
+		                     .body(latestPrices(changedSince).map(price -> json(buffers, null, price, NEW_LINE)));
+	}
+
+	/**
+	 * Streams the whole book as a Smile array.
+	 */
+	@RequestMapping(value = "/prices", method = RequestMethod.GET, produces = PriceMediaTypes.APPLICATION_SMILE_VALUE)
+	ResponseEntity<Flux<DataBuffer>> getAllAsSmile(ServerHttpResponse response,
+	                                               @RequestParam(defaultValue = "0") long changedSince) {
+		return binaryBook(response.bufferFactory(), PriceFormats.APPLICATION_SMILE, changedSince);
+	}
+
+	/**
+	 * Streams the whole book as a CBOR array.
+	 */
+	@RequestMapping(value = "/prices", method = RequestMethod.GET, produces = PriceMediaTypes.APPLICATION_CBOR_VALUE)
+	ResponseEntity<Flux<DataBuffer>> getAllAsCbor(ServerHttpResponse response,
+	                                              @RequestParam(defaultValue = "0") long changedSince) {
+		return binaryBook(response.bufferFactory(), PriceFormats.APPLICATION_CBOR, changedSince);
+	}
+
+	/**
+	 * Unlike JSON, a binary array cannot be pieced together from prices encoded one by one: Smile has a header and
+	 * refers back to names it has already written.  So one generator writes the whole array, and whatever it has
+	 * written is handed on after each price.
+	 */
+	private ResponseEntity<Flux<DataBuffer>> binaryBook(DataBufferFactory buffers, MediaType format, long changedSince) {
+		final Flux<DataBuffer> body = Flux.defer(() -> {
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final JsonGenerator generator;
+			try {
+				generator = formats.mapperFor(format).getFactory().createGenerator(out);
+				generator.writeStartArray();
+			} catch (IOException e) {
+				return Flux.error(e);
+			}
+			final Flux<DataBuffer> prices = latestPrices(changedSince).map(price -> {
+				try {
+					generator.writeObject(price);
+					generator.flush();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return drain(buffers, out);
+			});
+			return Flux.concat(prices, Mono.fromSupplier(() -> {
+				try {
+					generator.writeEndArray();
+					generator.close();
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return drain(buffers, out);
+			}));
+		});
+		return ResponseEntity.ok()
+		                     .contentType(format)
+		                     .eTag(Long.toString(pricerService.epoch()))
+		                     .body(body);
+	}
+
+	private static DataBuffer drain(DataBufferFactory buffers, ByteArrayOutputStream out) {
+		final DataBuffer buffer = buffers.wrap(out.toByteArray());
+		out.reset();
+		return buffer;
+	}
+
+	/**
+	 * The changes to a set of prices as server-sent events, as {@link PriceSubscriptionController} sends them.  Events
+	 * are only taken from the subscription as the client asks for them, so a client reading slowly leaves its changes
+	 * to be conflated in the subscription rather than queued up here.
+	 */
+	@RequestMapping(value = "/prices/subscribe",
+	                method = RequestMethod.GET,
+	                produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	Flux<ServerSentEvent<List<Price>>> subscribe(@RequestParam long[] ids) {
+		return Flux.create(sink -> {
+			final AtomicReference<PriceSubscription> subscription = new AtomicReference<>();
+			final AtomicInteger drains = new AtomicInteger();
+			final Runnable drain = () -> {
+				//Only one thread drains at a time, and a drain asked for meanwhile makes it go round again
+				if (drains.getAndIncrement() != 0) {
+					return;
+				}
+				do {
+					while (sink.requestedFromDownstream() > 0L && !sink.isCancelled()) {
+						final List<Price> prices = subscription.get().poll();
+						if (prices.isEmpty()) {
+							break;
+						}
+						sink.next(ServerSentEvent.builder(prices)
+						                         .event(PriceSubscriptionController.EVENT_NAME)
+						                         .build());
+					}
+				} while (drains.decrementAndGet() != 0);
+			};
+			//Commits only hand the drain over, rather than encode events on the committing thread
+			subscription.set(pricerService.subscribe(ids, () -> Schedulers.parallel().schedule(drain)));
+			sink.onRequest(requested -> drain.run());
+			sink.onDispose(subscription.get()::close);
+			//Sends the prices the subscription starts with, if they have been asked for already
+			drain.run();
+		});
+	}
+
+	/**
+	 * The store can only push the book at us, so the visit runs on a thread of its own and waits whenever the client
+	 * has not asked for more, rather than buffering the book in memory.
+	 */
+	private Flux<Price> latestPrices(long changedSince) {
+		return Flux.<Price>create(sink -> {
+			final Demand demand = new Demand(sink);
+			sink.onRequest(requested -> demand.changed());
+			sink.onDispose(demand::changed);
+			try {
+				pricerService.forEachLatestPrice(price -> {
+					if (price.getEpoch() <= changedSince) {
+						return;
+					}
+					demand.await();
+					sink.next(price);
+				});
+				sink.complete();
+			} catch (CancellationException e) {
+				//The client went away, there is no one left to tell
+			} catch (RuntimeException e) {
+				sink.error(e);
+			}
+			//Requests must not queue up behind the visit on its own thread, or it would wait for them forever
+		}).subscribeOn(Schedulers.elastic(), false);
+	}
+
+	private DataBuffer json(DataBufferFactory buffers, byte[] before, Price price, byte[] after) {
+		final byte[] json;
+		try {
+			json = objectMapper.writeValueAsBytes(price);
+		} catch (JsonProcessingException e) {
+			throw new UncheckedIOException(e);
+		}
+		final int length = json.length + (before == null ? 0 : before.length) + (after == null ? 0 : after.length);
+		final DataBuffer buffer = buffers.allocateBuffer(length);
+		if (before != null) {
+			buffer.write(before);
+		}
+		buffer.write(json);
+		if (after != null) {
+			buffer.write(after);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Holds up the thread visiting the book until the client has asked for another price, or has gone away.
+	 */
+	private static final class Demand {
+		private final FluxSink<Price> sink;
+		private final Lock lock = new ReentrantLock();
+		private final Condition changed = lock.newCondition();
+
+		private Demand(FluxSink<Price> sink) {
+			this.sink = sink;
+		}
+
+		private void await() {
+			lock.lock();
+			try {
+				while (sink.requestedFromDownstream() == 0L && !sink.isCancelled()) {
+					//Timed in case a request lands between the check and the wait
+					changed.await(10, TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CancellationException("Interrupted while waiting for the client");
+			} finally {
+				lock.unlock();
+			}
+			if (sink.isCancelled()) {
+				throw new CancellationException();
+			}
+		}
+
+		private void changed() {
+			lock.lock();
+			try {
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package priceserver.rest;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerCodecConfigurer;
+import org.springframework.http.codec.json.Jackson2JsonDecoder;
+import org.springframework.web.reactive.config.WebFluxConfigurer;
+
+/**
+ * Sets up the reactive stack, used when spring.main.web-application-type=reactive.
+ */
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+class ReactiveWebConfiguration implements WebFluxConfigurer {
+	private final ObjectMapper objectMapper;
+	private final PriceFormats formats;
+
+	ReactiveWebConfiguration(ObjectMapper objectMapper, PriceFormats formats) {
+		this.objectMapper = objectMapper;
+		this.formats = formats;
+	}
+
+	/**
+	 * Tomcat is on the classpath for the servlet stack, and Spring Boot would otherwise pick it over Netty.
+	 */
+	@Bean
+	NettyReactiveWebServerFactory nettyReactiveWebServerFactory() {
+		return new NettyReactiveWebServerFactory();
+	}
+
+	/**
+	 * Spring's JSON decoder does not take newline delimited JSON on its own.  Each line is decoded as soon as it has
+	 * arrived, just as the elements of a JSON array are.  Smile comes with Spring, but CBOR has to be added.
+	 */
+	@Override
+	public void configureHttpMessageCodecs(ServerCodecConfigurer configurer) {
+		configurer.customCodecs()
+		          .decoder(new Jackson2JsonDecoder(objectMapper,
+		                                           MediaType.valueOf(PriceMediaTypes.APPLICATION_NDJSON_VALUE)));
+		configurer.customCodecs().decoder(new BufferedCborDecoder(formats.cbor()));
+		configurer.customCodecs().encoder(new Jackson2CborEncoder(formats.cbor()));
+	}
+}
@@ -1,13 +1,19 @@
 package priceserver.rest;
 
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.core.Ordered;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Component;
 import org.springframework.web.servlet.ModelAndView;
 import org.springframework.web.servlet.mvc.support.DefaultHandlerExceptionResolver;
+import priceserver.exceptions.NotLeaderException;
+import priceserver.exceptions.TooManyRequestsException;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 @Component
 public class RestResponseExceptionResolver extends DefaultHandlerExceptionResolver {
 	public RestResponseExceptionResolver() {
@@ -19,6 +25,22 @@ public class RestResponseExceptionResolver extends DefaultHandlerExceptionResolv
 	                                     HttpServletResponse response,
 	                                     Object handler,
 	                                     Exception ex) {
+		if (ex instanceof NotLeaderException) {
+			//Not a failure, the client is sent on to the leader with the same method and body
+			final String query = request.getQueryString();
+			response.setStatus(HttpStatus.TEMPORARY_REDIRECT.value());
+			response.setHeader(HttpHeaders.LOCATION, ((NotLeaderException) ex).getLeaderUrl()
+			                                         + request.getRequestURI()
+			                                         + (query == null ? "" : "?" + query));
+			return new ModelAndView();
+		}
+		if (ex instanceof TooManyRequestsException) {
+			//Not a failure either, the client is to send the request again later
+			response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+			response.setHeader(HttpHeaders.RETRY_AFTER,
+			                   Long.toString(((TooManyRequestsException) ex).getRetryAfterSeconds()));
+			return new ModelAndView();
+		}
 		logger.error("Got exception whilst processing request", ex);
 		return super.resolveException(request, response, handler, ex);
 	}
@@ -0,0 +1,134 @@
+package priceserver.rest;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectReader;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+import org.springframework.stereotype.Component;
+import priceserver.domain.Price;
+import priceserver.service.PricerService;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses an upload with the Jackson streaming parser and feeds it into the batch a chunk at a time, so the whole
+ * upload never has to sit on the heap.  Both a JSON array of prices and newline delimited JSON (one price per line)
+ * are accepted, as are arrays or sequences of prices in Smile and CBOR.
+ *
+ * Chunks are merged into the batch on a separate pool while the next chunk is parsed off the wire.  At most two chunks
+ * per upload are held at any one time: the one being merged and the one being parsed.
+ *
+ * If the upload fails part way through, the chunks already merged stay in the batch.  As merging only ever keeps the
+ * latest price for an id, the client can safely send the whole upload again.
+ */
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@Component
+@ThreadSafe
+class StreamingPriceUploader {
+	private static final Logger log = LoggerFactory.getLogger(StreamingPriceUploader.class);
+
+	private final PricerService pricerService;
+	private final PriceFormats formats;
+	private final int chunkSize;
+	private final ExecutorService mergeExecutor;
+
+	StreamingPriceUploader(PricerService pricerService,
+	                       PriceFormats formats,
+	                       @Value("${priceserver.upload.chunk-size:1000}") int chunkSize,
+	                       @Value("${priceserver.upload.merge-threads:4}") int mergeThreads) {
+		this.pricerService = pricerService;
+		this.formats = formats;
+		this.chunkSize = chunkSize;
+		this.mergeExecutor = Executors.newFixedThreadPool(mergeThreads, new MergeThreadFactory());
+	}
+
+	/**
+	 * @return The number of prices read from the stream
+	 */
+	int upload(long batchId, MediaType contentType, InputStream body) throws IOException {
+		final ObjectReader reader = formats.mapperFor(contentType).readerFor(Price.class);
+		int count = 0;
+		CompletableFuture<Void> previousMerge = CompletableFuture.completedFuture(null);
+		List<Price> chunk = new ArrayList<>(chunkSize);
+
+		try (MappingIterator<Price> prices = reader.readValues(body)) {
+			while (prices.hasNextValue()) {
+				chunk.add(prices.nextValue());
+				count++;
+				if (chunk.size() == chunkSize) {
+					awaitMerge(previousMerge);
+					previousMerge = merge(batchId, chunk);
+					chunk = new ArrayList<>(chunkSize);
+				}
+			}
+		} catch (JsonProcessingException e) {
+			awaitMerge(previousMerge);
+			throw new HttpMessageNotReadableException("Could not parse prices for batch " + batchId, e);
+		} finally {
+			//However the upload ends, nothing may still be merging into the batch once the request has finished
+			awaitQuietly(previousMerge);
+		}
+
+		awaitMerge(previousMerge);
+		//An empty upload is still handed over, so that an unknown batch id fails as it would for a non-empty one
+		if (!chunk.isEmpty() || count == 0) {
+			pricerService.upload(batchId, chunk);
+		}
+		return count;
+	}
+
+	private CompletableFuture<Void> merge(long batchId, List<Price> chunk) {
+		log.debug("Merging chunk of {} prices into batch {}", chunk.size(), batchId);
+		return CompletableFuture.runAsync(() -> pricerService.upload(batchId, chunk), mergeExecutor);
+	}
+
+	private static void awaitMerge(CompletableFuture<Void> merge) {
+		try {
+			merge.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Waits for the merge without throwing its failure, which would hide the one the upload is already failing with.
+	 */
+	private static void awaitQuietly(CompletableFuture<Void> merge) {
+		merge.handle((ignored, failure) -> null).join();
+	}
+
+	@PreDestroy
+	void shutdown() {
+		mergeExecutor.shutdown();
+	}
+
+	private static final class MergeThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			final Thread thread = new Thread(runnable, "upload-merge-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
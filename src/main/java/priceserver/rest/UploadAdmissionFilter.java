@@ -0,0 +1,73 @@
+package priceserver.rest;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpRequestDecorator;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import org.springframework.web.util.pattern.PathPattern;
+import org.springframework.web.util.pattern.PathPatternParser;
+import priceserver.exceptions.TooManyRequestsException;
+import priceserver.service.impl.AdmissionControl;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * The reactive stack's counterpart of {@link UploadAdmissionServletFilter}.  An upload turned away before it starts
+ * is answered here, as a failure in a filter never reaches {@link ReactiveExceptionHandler}.  One that goes over a
+ * limit part way through fails its body with a {@link TooManyRequestsException}, which does reach it.
+ */
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@Component
+class UploadAdmissionFilter implements WebFilter {
+	private static final PathPattern UPLOAD = new PathPatternParser().parse("/batches/{id}/upload");
+
+	private final AdmissionControl admission;
+
+	UploadAdmissionFilter(AdmissionControl admission) {
+		this.admission = admission;
+	}
+
+	@Override
+	public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+		final ServerHttpRequest request = exchange.getRequest();
+		if (request.getMethod() != HttpMethod.POST || !UPLOAD.matches(request.getPath().pathWithinApplication())) {
+			return chain.filter(exchange);
+		}
+		final long bytes = Math.max(0L, request.getHeaders().getContentLength());
+		final AdmissionControl.UploadPermit permit;
+		try {
+			permit = admission.admitUpload(ClientIds.of(request), bytes);
+		} catch (TooManyRequestsException e) {
+			final ServerHttpResponse response = exchange.getResponse();
+			response.setStatusCode(HttpStatus.TOO_MANY_REQUESTS);
+			response.getHeaders().set(HttpHeaders.RETRY_AFTER, Long.toString(e.getRetryAfterSeconds()));
+			return response.setComplete();
+		}
+		final ServerHttpRequest counted = new ServerHttpRequestDecorator(request) {
+			@Override
+			public Flux<DataBuffer> getBody() {
+				return super.getBody().doOnNext(buffer -> count(permit, buffer));
+			}
+		};
+		return chain.filter(exchange.mutate().request(counted).build()).doFinally(signal -> permit.run());
+	}
+
+	private static void count(AdmissionControl.UploadPermit permit, DataBuffer buffer) {
+		try {
+			permit.read(buffer.readableByteCount());
+		} catch (TooManyRequestsException e) {
+			//Never passed on, so never released downstream
+			DataBufferUtils.release(buffer);
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package priceserver.rest;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.web.filter.OncePerRequestFilter;
+import priceserver.exceptions.TooManyRequestsException;
+import priceserver.service.impl.AdmissionControl;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Admits each upload before its body is read, counts its bytes as they are read, and gives back what it took once
+ * the request is over.  An upload turned away before it starts is answered here, as a filter is outside the
+ * dispatcher.  One that goes over a limit part way through fails with a {@link TooManyRequestsException} from the
+ * read, which goes back as 429 with a Retry-After.
+ */
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@Component
+class UploadAdmissionServletFilter extends OncePerRequestFilter {
+	private static final String UPLOAD = "/batches/*/upload";
+	private static final AntPathMatcher PATHS = new AntPathMatcher();
+
+	private final AdmissionControl admission;
+
+	UploadAdmissionServletFilter(AdmissionControl admission) {
+		this.admission = admission;
+	}
+
+	@Override
+	protected boolean shouldNotFilter(HttpServletRequest request) {
+		final String path = request.getRequestURI().substring(request.getContextPath().length());
+		return !HttpMethod.POST.matches(request.getMethod()) || !PATHS.match(UPLOAD, path);
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+			throws ServletException, IOException {
+		final long bytes = Math.max(0L, request.getContentLengthLong());
+		final AdmissionControl.UploadPermit permit;
+		try {
+			permit = admission.admitUpload(ClientIds.of(request), bytes);
+		} catch (TooManyRequestsException e) {
+			response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+			response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(e.getRetryAfterSeconds()));
+			return;
+		}
+		try {
+			chain.doFilter(new CountedRequest(request, permit), response);
+		} finally {
+			permit.run();
+		}
+	}
+
+	private static final class CountedRequest extends HttpServletRequestWrapper {
+		private final AdmissionControl.UploadPermit permit;
+		private ServletInputStream body;
+
+		private CountedRequest(HttpServletRequest request, AdmissionControl.UploadPermit permit) {
+			super(request);
+			this.permit = permit;
+		}
+
+		@Override
+		public ServletInputStream getInputStream() throws IOException {
+			if (body == null) {
+				body = new CountedInputStream(super.getInputStream(), permit);
+			}
+			return body;
+		}
+	}
+
+	private static final class CountedInputStream extends ServletInputStream {
+		private final ServletInputStream body;
+		private final AdmissionControl.UploadPermit permit;
+
+		private CountedInputStream(ServletInputStream body, AdmissionControl.UploadPermit permit) {
+			this.body = body;
+			this.permit = permit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int read = body.read();
+			if (read >= 0) {
+				permit.read(1L);
+			}
+			return read;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			final int read = body.read(buffer, offset, length);
+			if (read > 0) {
+				permit.read(read);
+			}
+			return read;
+		}
+
+		@Override
+		public boolean isFinished() {
+			return body.isFinished();
+		}
+
+		@Override
+		public boolean isReady() {
+			return body.isReady();
+		}
+
+		@Override
+		public void setReadListener(ReadListener listener) {
+			body.setReadListener(listener);
+		}
+
+		@Override
+		public void close() throws IOException {
+			body.close();
+		}
+	}
+}
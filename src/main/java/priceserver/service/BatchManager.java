@@ -6,7 +6,7 @@ import priceserver.domain.Price;
 import java.util.List;
 
 public interface BatchManager {
-	Batch create();
+	Batch create(String client);
 
 	void upload(long batchId, List<Price> prices);
 }
@@ -0,0 +1,49 @@
+package priceserver.service;
+
+import priceserver.domain.Price;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Records every commit before it becomes visible, so that the book can be rebuilt when the server restarts.
+ *
+ * Appending and waiting for the append to be durable are separate steps so that several commits can share the cost
+ * of one flush to disk.  How durable an append is once {@link #awaitDurable(long)} returns depends on the
+ * implementation and its configuration.
+ */
+public interface CommitJournal {
+	/**
+	 * Appends a commit to the journal.  Calls must be made in epoch order.
+	 * @return The position just after the commit, to pass to {@link #awaitDurable(long)}
+	 */
+	long append(long epoch, Collection<Price> prices);
+
+	/**
+	 * Records that the commit appended under the epoch was never published, so that replay skips it.  Its epoch is
+	 * still counted as used.
+	 * @return The position just after the record, to pass to {@link #awaitDurable(long)}
+	 */
+	long abort(long epoch);
+
+	/**
+	 * Blocks until everything up to the position has been made as durable as the journal is configured for.
+	 */
+	void awaitDurable(long position);
+
+	/**
+	 * Feeds every recorded commit to the replayer, oldest first.
+	 * @return The epoch of the last commit replayed, or zero if there were none
+	 */
+	long replay(Replayer replayer);
+
+	/**
+	 * Lets the journal drop commits up to and including the epoch, once they are safely in a snapshot.  Journals may
+	 * keep some of them, so replay can still feed commits up to the epoch.
+	 */
+	void discardUpTo(long epoch);
+
+	interface Replayer {
+		void replay(long epoch, List<Price> prices);
+	}
+}
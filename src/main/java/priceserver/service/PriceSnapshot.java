@@ -0,0 +1,34 @@
+package priceserver.service;
+
+import priceserver.domain.Price;
+
+/**
+ * A read-only copy of the book as it was at some epoch, sorted by id.  Every commit up to and including the epoch is
+ * in the snapshot; commits after it may be partly in it, which is harmless as replaying them keeps the latest price.
+ */
+public interface PriceSnapshot {
+	long epoch();
+
+	/**
+	 * @return The highest epoch of any price in the snapshot, which is after {@link #epoch()} if it holds part of a
+	 * later commit
+	 */
+	long highestEpoch();
+
+	int size();
+
+	/**
+	 * @return The price for the id, or null if it is not in the snapshot
+	 */
+	Price get(long id);
+
+	/**
+	 * @param index Position in id order, from zero to size() - 1
+	 */
+	Price priceAt(int index);
+
+	/**
+	 * Same as priceAt(index).getId(), without reading the rest of the price.
+	 */
+	long idAt(int index);
+}
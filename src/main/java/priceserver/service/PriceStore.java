@@ -0,0 +1,83 @@
+package priceserver.service;
+
+import priceserver.domain.Price;
+
+import java.util.Collection;
+import java.util.function.Consumer;
+
+/**
+ * The store holding the latest committed price for every instrument.  Which implementation is used is decided by
+ * the <code>priceserver.store</code> property so that the memory layout can be tuned for the size of the book.
+ *
+ * Each commit is published as a single epoch: a reader sees either every price from a commit or none of them.
+ * Lookups must never block, even while a commit is in progress.  Commits may be called from several threads at once.
+ */
+public interface PriceStore {
+	/**
+	 * @return The latest published price for the id, or null if no price has been committed for it
+	 */
+	Price get(long id);
+
+	/**
+	 * Merges the prices into the store, keeping whichever of the new and existing price is the latest, and publishes
+	 * them all at once under the given epoch.
+	 * @param epoch Must be greater than the epoch of every earlier commit
+	 * @see priceserver.domain.LatestPriceFinder
+	 */
+	void commit(long epoch, Collection<Price> prices);
+
+	/**
+	 * @return The epoch of the last published commit, zero if nothing has been committed yet
+	 */
+	long epoch();
+
+	/**
+	 * Visits the price of every id as of the last epoch published when the visit starts.  This does not block
+	 * commits, but prices they publish while the visit is in progress are not seen.  While a snapshot is still
+	 * loading, an id committed during the visit may be visited twice.
+	 */
+	void forEach(Consumer<Price> action);
+
+	/**
+	 * @return The book as of the last published epoch, which later commits do not change
+	 */
+	View view();
+
+	/**
+	 * Serves every id that has not been committed since straight from the snapshot, while the snapshot is copied into
+	 * the store in the background.  Commits merge against the snapshot's prices as if they were in the store.  Must
+	 * be called before the first commit, and sets the epoch to the snapshot's.
+	 */
+	void loadLazily(PriceSnapshot snapshot);
+
+	/**
+	 * @return The number of prices held in memory, which leaves out any not yet copied from a loading snapshot
+	 */
+	int size();
+
+	/**
+	 * @return An estimate of the heap taken by the prices held in memory, leaving out the store's own tables
+	 */
+	long bytes();
+
+	/**
+	 * The book pinned at one published epoch, so that many prices read through it all come from the same epoch even
+	 * while commits carry on.  Meant to be used for one read, as it holds on to what every later commit replaced.
+	 */
+	interface View {
+		/**
+		 * @return The epoch the view is pinned at
+		 */
+		long epoch();
+
+		/**
+		 * @return The price the id had at the view's epoch, or null if it had none
+		 */
+		Price get(long id);
+
+		/**
+		 * Visits the price every id had at the view's epoch.
+		 */
+		void forEach(Consumer<Price> action);
+	}
+}
@@ -0,0 +1,29 @@
+package priceserver.service;
+
+import priceserver.domain.Price;
+
+import java.util.List;
+
+/**
+ * Follows the prices of a set of ids as commits change them.  Changes are conflated: however many commits change an
+ * id before the subscriber gets round to polling, it only sees the latest price for it.  A subscriber that falls
+ * behind therefore costs at most one price per id it follows, and never holds up a commit.
+ *
+ * A subscription starts out with the current price of each of its ids pending, as if they had all just changed.  The
+ * subscriber is told of changes only once it has polled the subscription empty, so there is only ever one thread
+ * draining it as long as the subscriber drains it once to start with and then only when told to.
+ *
+ * @see PricerService#subscribe(long[], Runnable)
+ */
+public interface PriceSubscription extends AutoCloseable {
+	/**
+	 * @return The latest price of every id changed since the last poll, empty once there are no more
+	 */
+	List<Price> poll();
+
+	/**
+	 * Stops following the prices.  Changes pending are dropped.
+	 */
+	@Override
+	void close();
+}
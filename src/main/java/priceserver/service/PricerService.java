@@ -1,19 +1,116 @@
 package priceserver.service;
 
 import priceserver.domain.Batch;
+import priceserver.domain.CommitTicket;
 import priceserver.domain.Price;
+import priceserver.domain.PriceQueryResult;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public interface PricerService {
-	Batch createBatch();
+	/**
+	 * @param client Who the batch is opened for, which it counts against while it is open
+	 * @throws priceserver.exceptions.TooManyRequestsException If the client, or every client between them, already
+	 * has as many batches open as it may
+	 */
+	Batch createBatch(String client);
 
 	void upload(long batchId, List<Price> prices);
 
+	/**
+	 * Claims a client's chunk sequence number before the chunk is uploaded, so that a chunk sent again after its
+	 * response was lost is only merged once.  The claim is then finished or abandoned.
+	 * @return False if the batch has already received the chunk, in which case it should not be uploaded again
+	 * @throws priceserver.exceptions.ChunkInProgressException If the chunk is still being uploaded by another request
+	 */
+	boolean startChunk(long batchId, int chunk);
+
+	/**
+	 * Counts a claimed chunk as received, once all of it has been uploaded.
+	 */
+	void finishChunk(long batchId, int chunk);
+
+	/**
+	 * Gives up the claim on a chunk whose upload failed, so that it can be sent again.
+	 */
+	void abandonChunk(long batchId, int chunk);
+
+	/**
+	 * Makes committing or preparing the batch fail unless this many different chunks have been received.  A batch
+	 * failing the check is left open for the missing chunks to be sent.
+	 */
+	void expectChunks(long batchId, int count);
+
 	void commit(long batchId);
 
+	/**
+	 * Closes the batch and sets its prices aside, so that committing it later cannot fail for anything wrong with the
+	 * batch.  The first phase of a commit spanning several partitions.  A prepared batch is held, through a restart
+	 * if the journal is enabled, until it is committed or cancelled or it reaches the prepared max age.
+	 */
+	void prepare(long batchId);
+
+	/**
+	 * Commits the batch, prepared or not, under the given epoch instead of the next one.  The second phase of a
+	 * commit spanning several partitions, each publishing its part of the batch under the same epoch.  Asking again
+	 * once a prepared batch has been committed under the epoch is answered as if it had just been.
+	 * @throws priceserver.exceptions.EpochOutOfOrderException If the epoch is not after every epoch already handed out
+	 */
+	void commit(long batchId, long epoch);
+
+	/**
+	 * Closes the batch straight away, so that no more uploads are accepted, and publishes it in the background.
+	 * @return A PENDING ticket for the commit, which can be followed with {@link #commitStatus(long)}
+	 */
+	CommitTicket commitAsync(long batchId);
+
+	/**
+	 * @return The ticket for a commit made with {@link #commitAsync(long)}, completing once the commit has been
+	 * published or has failed
+	 */
+	CompletableFuture<CommitTicket> commitStatus(long batchId);
+
 	void cancel(long batchId);
 
 	Price latestPrice(long id);
 
+	/**
+	 * @param timestamp Nanoseconds since the epoch
+	 * @return The price that was the latest at the time, as far back as the history goes
+	 */
+	Price priceAsOf(long id, long timestamp);
+
+	/**
+	 * Looks up many prices in one go.  Unlike {@link #latestPrice(long)} a missing price does not fail the lookup.
+	 * Every price is read as of the epoch in the result, even if commits are published during the lookup.
+	 */
+	PriceQueryResult latestPrices(long[] ids);
+
+	/**
+	 * Like {@link #latestPrices(long[])}, but leaves out the prices not changed since the epoch.  Ids left out for
+	 * being unchanged are not reported as missing.
+	 */
+	PriceQueryResult pricesChangedSince(long[] ids, long epoch);
+
+	/**
+	 * @return The epoch of the last published commit, which every price changed by it or earlier commits is stamped
+	 * with at most
+	 */
+	long epoch();
+
+	/**
+	 * Visits the latest price of every instrument without copying the book first.  Every price visited is as of the
+	 * epoch published when the visit starts, later commits are left out.
+	 */
+	void forEachLatestPrice(Consumer<Price> action);
+
+	/**
+	 * Follows the prices of the ids as commits publish them.
+	 * @param onChange Run when the subscription has changes pending after being polled empty.  It is run on the
+	 *                 committing thread, so it must hand the polling off rather than poll itself
+	 */
+	PriceSubscription subscribe(long[] ids, Runnable onChange);
+
 }
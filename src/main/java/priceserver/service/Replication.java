@@ -0,0 +1,58 @@
+package priceserver.service;
+
+import priceserver.domain.Price;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Spreads the book across several servers, one leader taking every write and any number of followers serving reads
+ * from a copy of its book.  Which part a server plays is set by the <code>priceserver.replication.role</code>
+ * property; a standalone server plays both.
+ *
+ * The leader hands every commit it publishes to its followers, in epoch order, and each follower applies them to its
+ * own book in the same order.  A follower therefore always holds the leader's book as of some earlier epoch, never a
+ * mix of commits the leader did not have at once.
+ */
+public interface Replication {
+	/**
+	 * Starts replicating, once the book has been recovered and before any requests are served.
+	 */
+	void start(ReplicatedBook book);
+
+	/**
+	 * Called with every commit the book publishes, in epoch order and before the next one is published.
+	 */
+	void published(long epoch, Collection<Price> prices);
+
+	/**
+	 * @throws priceserver.exceptions.NotLeaderException If batches have to be uploaded and committed elsewhere
+	 */
+	void checkWritable();
+
+	/**
+	 * @throws priceserver.exceptions.ReplicaBehindException If the book is too far behind the leader's to be read
+	 */
+	void checkReadable();
+
+	/**
+	 * The book being replicated, as replication sees it.
+	 */
+	interface ReplicatedBook {
+		/**
+		 * @return The epoch of the last commit published
+		 */
+		long epoch();
+
+		/**
+		 * Visits the latest price of every instrument, as {@link PriceStore#forEach(Consumer)} does.
+		 */
+		void forEach(Consumer<Price> action);
+
+		/**
+		 * Publishes a commit made on the leader, under the leader's epoch.  Called in epoch order.
+		 */
+		void apply(long epoch, List<Price> prices);
+	}
+}
@@ -0,0 +1,173 @@
+package priceserver.service.impl;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import priceserver.exceptions.TooManyRequestsException;
+
+/**
+ * Turns work away, rather than queueing it, once it would go over a limit: on uploads in progress, on the bytes of
+ * the uploads in progress, on the bytes staged in open batches, and on open batches, each limited both in total and
+ * for any one client.  A burst from one feed is answered 429 with a Retry-After while the other feeds carry on, and
+ * the server never takes on more than it can hold.  Limiting what each feed has staged keeps one feed from filling
+ * the staging cache and getting other feeds' batches evicted.
+ *
+ * Clients name themselves with the X-Client-Id header, or are known by their address.  The name is taken on trust,
+ * as it is only there to keep well-behaved feeds from crowding each other out.
+ *
+ * Commits, cancels and reads are never limited.  An upload is refused before its body is read, so refused uploads do
+ * not hold on to request threads, and with the upload limit below the number of request threads commits always have
+ * threads of their own to run on.  Its bytes are taken up front by its Content-Length, and as they are read beyond
+ * that, so that an upload without a length is limited too, failing part way through once it goes over.
+ */
+@Component
+@ThreadSafe
+public class AdmissionControl {
+	private static final Logger log = LoggerFactory.getLogger(AdmissionControl.class);
+
+	public static final String CLIENT_HEADER = "X-Client-Id";
+
+	private final ClientQuota uploads;
+	private final ClientQuota uploadBytes;
+	private final ClientQuota stagedBytes;
+	private final ClientQuota batches;
+	private final long retryAfterSeconds;
+
+	/**
+	 * Every limit can be set to 0 for none.
+	 * @param maxUploadBytes Counted from each upload's Content-Length, and from its bytes as they are read beyond that
+	 * @param maxStagedBytes Counted as the prices are staged, by their size once written out of the heap
+	 */
+	public AdmissionControl(@Value("${priceserver.admission.max-uploads:64}") long maxUploads,
+	                        @Value("${priceserver.admission.max-uploads-per-client:16}") long maxUploadsPerClient,
+	                        @Value("${priceserver.admission.max-upload-bytes:268435456}") long maxUploadBytes,
+	                        @Value("${priceserver.admission.max-upload-bytes-per-client:67108864}")
+			                        long maxUploadBytesPerClient,
+	                        @Value("${priceserver.admission.max-staged-bytes:2147483648}") long maxStagedBytes,
+	                        @Value("${priceserver.admission.max-staged-bytes-per-client:536870912}")
+			                        long maxStagedBytesPerClient,
+	                        @Value("${priceserver.admission.max-open-batches:${priceserver.batches.max-open:10000}}")
+			                        long maxOpenBatches,
+	                        @Value("${priceserver.admission.max-open-batches-per-client:1000}")
+			                        long maxOpenBatchesPerClient,
+	                        @Value("${priceserver.admission.retry-after-seconds:1}") long retryAfterSeconds,
+	                        MeterRegistry registry) {
+		this.uploads = new ClientQuota("uploads", maxUploads, maxUploadsPerClient, registry);
+		this.uploadBytes = new ClientQuota("upload.bytes", maxUploadBytes, maxUploadBytesPerClient, registry);
+		this.stagedBytes = new ClientQuota("staged.bytes", maxStagedBytes, maxStagedBytesPerClient, registry);
+		this.batches = new ClientQuota("batches", maxOpenBatches, maxOpenBatchesPerClient, registry);
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	public static AdmissionControl unlimited() {
+		return new AdmissionControl(0L, 0L, 0L, 0L, 0L, 0L, 0L, 0L, 1L, new SimpleMeterRegistry());
+	}
+
+	/**
+	 * @param bytes The upload's length, or 0 if it is not known
+	 * @return Told of the upload's bytes as they are read, and run once the upload has finished, however it finished,
+	 * to give back what it took
+	 * @throws TooManyRequestsException If the upload would take the server or the client over a limit
+	 */
+	public UploadPermit admitUpload(String client, long bytes) {
+		if (!uploads.tryAcquire(client, 1L)) {
+			throw refused("uploads in progress", client);
+		}
+		if (!uploadBytes.tryAcquire(client, bytes)) {
+			uploads.release(client, 1L);
+			throw refused("upload bytes in progress", client);
+		}
+		return new UploadPermit(client, bytes);
+	}
+
+	/**
+	 * Counts prices about to be staged in one of the client's batches, until {@link #unstaged(String, long)}.
+	 * @throws TooManyRequestsException If the prices would take the server or the client over a limit
+	 */
+	public void stage(String client, long bytes) {
+		if (!stagedBytes.tryAcquire(client, bytes)) {
+			throw refused("staged bytes", client);
+		}
+	}
+
+	/**
+	 * Gives back what was staged in one of the client's batches, once it has been committed or thrown away.
+	 */
+	public void unstaged(String client, long bytes) {
+		stagedBytes.release(client, bytes);
+	}
+
+	/**
+	 * Counts a batch about to be opened by the client, until {@link #batchClosed(String)}.
+	 * @throws TooManyRequestsException If the batch would take the server or the client over a limit
+	 */
+	public void admitBatch(String client) {
+		if (!batches.tryAcquire(client, 1L)) {
+			throw refused("open batches", client);
+		}
+	}
+
+	/**
+	 * Called once for each admitted batch, when it is committed, cancelled or dropped.
+	 */
+	public void batchClosed(String client) {
+		batches.release(client, 1L);
+	}
+
+	/**
+	 * What an upload in progress has taken, which grows as more of it is read than its length said.
+	 */
+	@ThreadSafe
+	public final class UploadPermit implements Runnable {
+		private final String client;
+		@GuardedBy("this")
+		private long taken;
+		@GuardedBy("this")
+		private long read;
+		@GuardedBy("this")
+		private boolean released;
+
+		private UploadPermit(String client, long taken) {
+			this.client = client;
+			this.taken = taken;
+		}
+
+		/**
+		 * Counts bytes of the upload as they are read, taking more once past what was taken for its length.
+		 * @throws TooManyRequestsException If the bytes would take the server or the client over a limit
+		 */
+		public synchronized void read(long bytes) {
+			read += bytes;
+			if (read <= taken || released) {
+				return;
+			}
+			if (!uploadBytes.tryAcquire(client, read - taken)) {
+				throw refused("upload bytes in progress", client);
+			}
+			taken = read;
+		}
+
+		/**
+		 * Gives back what the upload took, however many times it is called.
+		 */
+		@Override
+		public synchronized void run() {
+			if (released) {
+				return;
+			}
+			released = true;
+			uploadBytes.release(client, taken);
+			uploads.release(client, 1L);
+		}
+	}
+
+	private TooManyRequestsException refused(String resource, String client) {
+		log.debug("Turned away a request from {} over the limit on {}", client, resource);
+		return new TooManyRequestsException("Too many " + resource + ", try again later", retryAfterSeconds);
+	}
+}
@@ -0,0 +1,84 @@
+package priceserver.service.impl;
+
+import net.jcip.annotations.ThreadSafe;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * Runs commits in the background for callers that do not want to wait for them, and keeps track of each one by
+ * batch id so that it can be polled.  A finished commit is remembered for the retention period and then forgotten.
+ *
+ * Commits run on a few threads of their own, rather than the callers', so that they can share a journal flush just
+ * as concurrent synchronous commits do.  They are still published in epoch order.
+ */
+@Component
+@ThreadSafe
+public class AsyncCommits implements AutoCloseable {
+	private final ConcurrentMap<Long, CompletableFuture<Long>> commits = new ConcurrentHashMap<>();
+	private final ExecutorService committers;
+	private final ScheduledExecutorService forgetter;
+	private final long retentionMs;
+
+	public AsyncCommits(@Value("${priceserver.commit.async-threads:2}") int threads,
+	                    @Value("${priceserver.commit.ticket-retention-ms:600000}") long retentionMs) {
+		final AtomicInteger count = new AtomicInteger();
+		this.committers = Executors.newFixedThreadPool(threads, runnable -> {
+			final Thread thread = new Thread(runnable, "async-commit-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.forgetter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "async-commit-forgetter");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.retentionMs = retentionMs;
+	}
+
+	/**
+	 * @param batchId Must not have been submitted before, which closing the batch first guarantees
+	 * @param commit  Publishes the batch, returning its epoch
+	 * @return Completes with the epoch once the batch is published
+	 */
+	CompletableFuture<Long> submit(long batchId, LongSupplier commit) {
+		final CompletableFuture<Long> future = new CompletableFuture<>();
+		//Tracked before it can run, so it can be polled as soon as the caller has the ticket
+		commits.put(batchId, future);
+		future.whenComplete((epoch, failure) -> forgetter.schedule(() -> commits.remove(batchId, future),
+		                                                           retentionMs,
+		                                                           TimeUnit.MILLISECONDS));
+		committers.execute(() -> {
+			try {
+				future.complete(commit.getAsLong());
+			} catch (RuntimeException | Error e) {
+				future.completeExceptionally(e);
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * @return The commit of the batch, or null if it was never submitted or has been forgotten
+	 */
+	CompletableFuture<Long> get(long batchId) {
+		return commits.get(batchId);
+	}
+
+	@PreDestroy
+	@Override
+	public void close() {
+		committers.shutdown();
+		forgetter.shutdown();
+	}
+}
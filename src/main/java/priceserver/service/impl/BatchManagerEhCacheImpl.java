@@ -2,23 +2,46 @@ package priceserver.service.impl;
 
 import priceserver.domain.Batch;
 import priceserver.domain.Price;
+import priceserver.domain.PriceShards;
+import priceserver.domain.ShardedPrices;
 import priceserver.service.BatchManager;
 import priceserver.exceptions.BatchNotFoundException;
+import priceserver.exceptions.IncompleteBatchException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import net.jcip.annotations.ThreadSafe;
 import org.ehcache.Cache;
-import org.ehcache.CacheManager;
+import org.ehcache.PersistentCacheManager;
 import org.ehcache.config.CacheConfiguration;
 import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.CacheEventListenerConfigurationBuilder;
 import org.ehcache.config.builders.CacheManagerBuilder;
+import org.ehcache.config.builders.ExpiryPolicyBuilder;
 import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.ehcache.config.units.MemoryUnit;
+import org.ehcache.event.CacheEvent;
+import org.ehcache.event.CacheEventListener;
+import org.ehcache.event.EventType;
+import org.ehcache.expiry.ExpiryPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
 import javax.validation.constraints.NotNull;
-import java.util.Collection;
+import java.io.File;
+import java.time.Duration;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * This implementation uses an EHCache as a source of batches.  This is because we will likely want to tune how this
@@ -26,41 +49,178 @@ import java.util.concurrent.atomic.AtomicLong;
  * keep batches around for some times, but tune when they get evicted.  In a real production system I would put
  * this configuration in an XML file somewhere, but for this exercise I have just used code to create it.
  *
+ * There are two caches.  The batches themselves are small and stay on the heap, expiring once they have been idle
+ * for too long or have been open for too long.  The prices uploaded to them are staged as serialized chunks in a
+ * second cache, limited in bytes, that overflows from the heap to off-heap memory and then to disk.  If a chunk has
+ * to be evicted from the disk tier its batch is thrown away, so uploads to it and commits of it fail with a
+ * {@link BatchNotFoundException} rather than committing half a batch.
+ *
+ * Open batches are also tracked by id outside the cache, as the cache cannot be counted or walked without
+ * touching the batches' expiry.  As ids are handed out in order, the first is always the oldest.  The cache only
+ * expires a batch when it is next looked up, so one a client has given up on would never go, and would hold its
+ * client's open batch slot for good.  A background sweep walks the open batches instead and drops those past their
+ * idle timeout or maximum age.
+ *
  * The implementation is thread safe, and any locking is only dictated by the cache provider.  There is locking
  * going on at the batch level.
  * @see Batch
+ * @see CachedPriceStaging
  */
 @Component
 @ThreadSafe
-public class BatchManagerEhCacheImpl implements BatchManager {
+public class BatchManagerEhCacheImpl implements BatchManager, AutoCloseable {
 	private static final Logger log = LoggerFactory.getLogger(BatchManagerEhCacheImpl.class);
 
+	private final PersistentCacheManager cacheManager;
+
 	private final Cache<Long, Batch> ongoingBatches;
 
+	private final Cache<Long, Price[]> stagedChunks;
+
 	private final AtomicLong nextIdHolder = new AtomicLong(1);
 
+	private final ConcurrentSkipListMap<Long, Batch> openBatches = new ConcurrentSkipListMap<>();
+
+	private final PriceShards shards;
+
+	private final PayloadPool payloads;
+
+	private final AdmissionControl admission;
+
+	private final long idleTimeoutNanos;
+
+	private final long maxAgeNanos;
+
+	private final ScheduledExecutorService sweeper;
 
-	public BatchManagerEhCacheImpl() {
-		final CacheConfiguration<Long, Batch> cacheConfiguration =
+	private final DistributionSummary receivedPrices;
+
+	private final DistributionSummary committedPrices;
+
+	private final DistributionSummary keptRatio;
+
+	private final Counter expiredBatches;
+
+	private final Counter evictedBatches;
+
+	private final Counter evictedChunks;
+
+	public BatchManagerEhCacheImpl(@Value("${priceserver.batches.max-open:10000}") long maxOpenBatches,
+	                               @Value("${priceserver.batches.heap-mb:64}") long heapMb,
+	                               @Value("${priceserver.batches.offheap-mb:256}") long offHeapMb,
+	                               @Value("${priceserver.batches.disk-mb:2048}") long diskMb,
+	                               @Value("${priceserver.batches.directory:batches}") String directory,
+	                               @Value("${priceserver.batches.idle-timeout-ms:600000}") long idleTimeoutMs,
+	                               @Value("${priceserver.batches.max-age-ms:3600000}") long maxAgeMs,
+	                               @Value("${priceserver.store.shards:16}") int shards,
+	                               PayloadPool payloads,
+	                               AdmissionControl admission,
+	                               MeterRegistry registry) {
+		this.shards = new PriceShards(shards);
+		this.payloads = payloads;
+		this.admission = admission;
+		final Duration idleTimeout = Duration.ofMillis(idleTimeoutMs);
+		final Duration maxAge = Duration.ofMillis(maxAgeMs);
+		this.idleTimeoutNanos = idleTimeout.toNanos();
+		this.maxAgeNanos = maxAge.toNanos();
+		final CacheEventListener<Long, Batch> batchDropped = this::batchDropped;
+		final CacheEventListener<Long, Price[]> chunkEvicted = this::chunkEvicted;
+
+		final CacheConfiguration<Long, Batch> batchConfiguration =
 				CacheConfigurationBuilder.newCacheConfigurationBuilder(Long.class,
 				                                                       Batch.class,
-				                                                       ResourcePoolsBuilder.heap(10000))
+				                                                       ResourcePoolsBuilder.heap(maxOpenBatches))
+				                         .withExpiry(new BatchExpiry(idleTimeout, maxAge))
+				                         .add(CacheEventListenerConfigurationBuilder
+						                              .newEventListenerConfiguration(batchDropped,
+						                                                             EventType.EXPIRED,
+						                                                             EventType.EVICTED)
+						                              .asynchronous()
+						                              .unordered())
+				                         .build();
+
+		final CacheConfiguration<Long, Price[]> chunkConfiguration =
+				CacheConfigurationBuilder.newCacheConfigurationBuilder(
+						Long.class,
+						Price[].class,
+						ResourcePoolsBuilder.newResourcePoolsBuilder()
+						                    .heap(heapMb, MemoryUnit.MB)
+						                    .offheap(offHeapMb, MemoryUnit.MB)
+						                    .disk(diskMb, MemoryUnit.MB, false))
+				                         .withValueSerializer(new PriceChunkSerializer(payloads))
+				                         //Chunks can never outlive their batch, so this only catches any left behind
+				                         .withExpiry(ExpiryPolicyBuilder.timeToLiveExpiration(maxAge))
+				                         .withSizeOfMaxObjectGraph(Integer.MAX_VALUE)
+				                         .add(CacheEventListenerConfigurationBuilder
+						                              .newEventListenerConfiguration(chunkEvicted,
+						                                                             EventType.EVICTED)
+						                              .asynchronous()
+						                              .unordered())
 				                         .build();
 
-		final CacheManager cacheManager = CacheManagerBuilder.newCacheManagerBuilder()
-		                                                .withCache("batches", cacheConfiguration).build();
+		cacheManager = CacheManagerBuilder.newCacheManagerBuilder()
+		                                  .with(CacheManagerBuilder.persistence(new File(directory)))
+		                                  .withCache("batches", batchConfiguration)
+		                                  .withCache("stagedChunks", chunkConfiguration)
+		                                  .build();
 
 		cacheManager.init();
 
 		ongoingBatches = cacheManager.getCache("batches", Long.class, Batch.class);
+		stagedChunks = cacheManager.getCache("stagedChunks", Long.class, Price[].class);
+		log.info("Staging batches in {}MB heap, {}MB off-heap and {}MB disk", heapMb, offHeapMb, diskMb);
+
+		Gauge.builder("priceserver.batches.open", openBatches, Map::size)
+		     .description("Batches created but not yet committed, cancelled or dropped")
+		     .register(registry);
+		Gauge.builder("priceserver.batches.oldest.age", this, BatchManagerEhCacheImpl::oldestAgeSeconds)
+		     .description("Age of the oldest open batch")
+		     .baseUnit("seconds")
+		     .register(registry);
+		receivedPrices = DistributionSummary.builder("priceserver.batches.prices.received")
+		                                    .description("Prices uploaded to each committed batch")
+		                                    .baseUnit("prices")
+		                                    .register(registry);
+		committedPrices = DistributionSummary.builder("priceserver.batches.prices.committed")
+		                                     .description("Prices left in each committed batch once only the " +
+				                                                  "latest for each id is kept")
+		                                     .baseUnit("prices")
+		                                     .register(registry);
+		keptRatio = DistributionSummary.builder("priceserver.batches.dedup.ratio")
+		                               .description("Fraction of the prices uploaded to a batch that are committed")
+		                               .publishPercentiles(0.01, 0.5, 0.99)
+		                               .register(registry);
+		expiredBatches = registry.counter("priceserver.batches.dropped", "reason", "expired");
+		evictedBatches = registry.counter("priceserver.batches.dropped", "reason", "evicted");
+		evictedChunks = registry.counter("priceserver.batches.chunks.evicted");
+
+		//Often enough that no batch outlives its timeout by more than a quarter
+		final long sweepIntervalMs = Math.max(10L, Math.min(idleTimeoutMs, maxAgeMs) / 4);
+		sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			final Thread thread = new Thread(runnable, "batch-sweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		sweeper.scheduleWithFixedDelay(this::dropExpiredBatches,
+		                               sweepIntervalMs,
+		                               sweepIntervalMs,
+		                               TimeUnit.MILLISECONDS);
 	}
 
 
+	/**
+	 * @throws priceserver.exceptions.TooManyRequestsException If the client, or every client between them, already
+	 * has as many batches open as it may
+	 */
 	@Override
-	public Batch create() {
-		final Batch batch = new Batch(nextIdHolder.getAndIncrement());
+	public Batch create(String client) {
+		admission.admitBatch(client);
+		final long id = nextIdHolder.getAndIncrement();
+		final Batch batch = new Batch(id, new CachedPriceStaging(id, stagedChunks, payloads, client, admission),
+		                              client);
 		//Batch is completely new and we guarantee that the id is unique, so we can just put the batch in the cache
 		ongoingBatches.put(batch.getId(), batch);
+		openBatches.put(batch.getId(), batch);
 
 		log.info("New batch created {}", batch.getId());
 		return batch;
@@ -74,24 +234,209 @@ public class BatchManagerEhCacheImpl implements BatchManager {
 		batch.upload(prices);
 	}
 
+	/**
+	 * @return False if the batch has already received the chunk
+	 */
+	public boolean startChunk(long batchId, int chunk) {
+		return safeGetBatch(batchId).startChunk(chunk);
+	}
+
+	/**
+	 * Counts the chunk as received, unless the batch has gone in the meantime.
+	 */
+	public void finishChunk(long batchId, int chunk) {
+		final Batch batch = getBatch(batchId);
+		if (batch != null) {
+			batch.finishChunk(chunk);
+		}
+	}
+
+	/**
+	 * Lets the chunk be sent again, unless the batch has gone in the meantime.
+	 */
+	public void abandonChunk(long batchId, int chunk) {
+		final Batch batch = getBatch(batchId);
+		if (batch != null) {
+			batch.abandonChunk(chunk);
+		}
+	}
+
+	public void expectChunks(long batchId, int count) {
+		safeGetBatch(batchId).expectChunks(count);
+	}
+
+	/**
+	 * Numbers new batches after the id, so they cannot be mistaken for batches kept from before a restart.
+	 */
+	public void startIdsAfter(long batchId) {
+		nextIdHolder.accumulateAndGet(batchId + 1, Math::max);
+	}
+
 	@NotNull
 	private Batch safeGetBatch(long batchId) {
-		final Batch batch = ongoingBatches.get(batchId);
+		final Batch batch = getBatch(batchId);
 		if (batch == null) {
 			throw new BatchNotFoundException(batchId);
 		}
 		return batch;
 	}
 
-	public Collection<Price> closeBatch(long batchId) {
+	/**
+	 * Looks up the batch, restarting its idle timeout as looking it up in the cache does.
+	 */
+	private Batch getBatch(long batchId) {
+		final Batch batch = ongoingBatches.get(batchId);
+		if (batch != null) {
+			batch.touch();
+		}
+		return batch;
+	}
+
+	/**
+	 * @return The batch's prices, split into the same shards as the book
+	 */
+	public ShardedPrices closeBatch(long batchId) {
 		final Batch batch = safeGetBatch(batchId);
-		final Collection<Price> prices = batch.closeAndGetPrices();
+		final ShardedPrices prices;
+		try {
+			prices = batch.closeAndGetPrices(shards);
+		} catch (IncompleteBatchException e) {
+			//Left open for the missing chunks
+			throw e;
+		} catch (RuntimeException | Error e) {
+			//Closed for good however it failed, so it no longer counts against its client
+			ongoingBatches.remove(batchId);
+			forget(batchId);
+			throw e;
+		}
 		//The above call ensures that the batch is closed and can no longer be modified
 		//So we can remove it now with out fear of other threads being involved
 		//Does not matter if remove is called multiple times.
 		ongoingBatches.remove(batchId);
+		forget(batchId);
+
+		final long received = batch.getReceivedCount();
+		receivedPrices.record(received);
+		committedPrices.record(prices.size());
+		if (received > 0) {
+			keptRatio.record((double) prices.size() / received);
+		}
 		return prices;
 	}
 
+	/**
+	 * Closes the batch without reading back what was uploaded to it.
+	 */
+	public void discardBatch(long batchId) {
+		final Batch batch = safeGetBatch(batchId);
+		batch.discard();
+		ongoingBatches.remove(batchId);
+		forget(batchId);
+	}
+
+	@PreDestroy
+	@Override
+	public void close() {
+		sweeper.shutdownNow();
+		cacheManager.close();
+	}
 
+	private void batchDropped(CacheEvent<? extends Long, ? extends Batch> event) {
+		if (forget(event.getKey())) {
+			log.info("Batch {} was {} before it was committed", event.getKey(), event.getType());
+			(event.getType() == EventType.EXPIRED ? expiredBatches : evictedBatches).increment();
+		}
+		event.getOldValue().discard();
+	}
+
+	/**
+	 * Drops the open batches past their idle timeout or maximum age that the cache has not yet expired.
+	 */
+	private void dropExpiredBatches() {
+		try {
+			for (Batch batch : openBatches.values()) {
+				if (batch.getIdleNanos() < idleTimeoutNanos && batch.getAgeNanos() < maxAgeNanos) {
+					continue;
+				}
+				ongoingBatches.remove(batch.getId(), batch);
+				if (forget(batch.getId())) {
+					log.info("Batch {} expired before it was committed", batch.getId());
+					expiredBatches.increment();
+				}
+				batch.discard();
+			}
+		} catch (RuntimeException e) {
+			//Thrown from the scheduler's thread it would stop any further sweeps
+			log.warn("Could not drop expired batches", e);
+		}
+	}
+
+	private void chunkEvicted(CacheEvent<? extends Long, ? extends Price[]> event) {
+		evictedChunks.increment();
+		final long batchId = CachedPriceStaging.batchIdOf(event.getKey());
+		final Batch batch = ongoingBatches.get(batchId);
+		if (batch != null) {
+			ongoingBatches.remove(batchId);
+			if (forget(batchId)) {
+				log.warn("Batch {} has been evicted as its prices no longer fit", batchId);
+				evictedBatches.increment();
+			}
+			batch.discard();
+		}
+	}
+
+	/**
+	 * Stops counting the batch as open, against its client too, however many times it is called.
+	 * @return True the first time only
+	 */
+	private boolean forget(long batchId) {
+		final Batch batch = openBatches.remove(batchId);
+		if (batch == null) {
+			return false;
+		}
+		admission.batchClosed(batch.getClient());
+		return true;
+	}
+
+	private double oldestAgeSeconds() {
+		final Map.Entry<Long, Batch> oldest = openBatches.firstEntry();
+		return oldest == null ? 0.0 : oldest.getValue().getAgeNanos() / 1e9;
+	}
+
+	/**
+	 * Expires a batch when it has not been touched for the idle timeout, or once it reaches the maximum age however
+	 * busy it is.
+	 */
+	private static final class BatchExpiry implements ExpiryPolicy<Long, Batch> {
+		private final Duration idleTimeout;
+		private final Duration maxAge;
+
+		private BatchExpiry(Duration idleTimeout, Duration maxAge) {
+			this.idleTimeout = idleTimeout;
+			this.maxAge = maxAge;
+		}
+
+		@Override
+		public Duration getExpiryForCreation(Long id, Batch batch) {
+			return remaining(batch);
+		}
+
+		@Override
+		public Duration getExpiryForAccess(Long id, Supplier<? extends Batch> batch) {
+			return remaining(batch.get());
+		}
+
+		@Override
+		public Duration getExpiryForUpdate(Long id, Supplier<? extends Batch> oldBatch, Batch newBatch) {
+			return remaining(newBatch);
+		}
+
+		private Duration remaining(Batch batch) {
+			final Duration untilMaxAge = maxAge.minusNanos(batch.getAgeNanos());
+			if (untilMaxAge.isNegative()) {
+				return Duration.ZERO;
+			}
+			return untilMaxAge.compareTo(idleTimeout) < 0 ? untilMaxAge : idleTimeout;
+		}
+	}
 }
@@ -0,0 +1,138 @@
+package priceserver.service.impl;
+
+import net.jcip.annotations.ThreadSafe;
+import org.ehcache.Cache;
+import priceserver.domain.LatestPriceFinder;
+import priceserver.domain.Price;
+import priceserver.domain.PriceShards;
+import priceserver.domain.PriceStaging;
+import priceserver.domain.ShardedPrices;
+import priceserver.exceptions.BatchNotFoundException;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stages each upload to a batch as its own chunk in a cache, so that the cache can move staged prices off the heap
+ * and on to disk.  Only whole chunks are written, so an upload never has to read back what was uploaded before it.
+ * Prices for the same id in different chunks are only reduced to the latest when the batch is drained.
+ *
+ * Chunks are keyed by the batch id in the upper bits and the chunk's sequence number within the batch in the lower
+ * {@value #SEQUENCE_BITS}.  If the cache has lost any chunk the whole batch is gone.  A chunk the cache failed to take
+ * leaves a gap in the sequence numbers that is skipped, as its upload failed and can be sent again.
+ *
+ * Payloads are interned as the chunk is staged, so that the chunks kept on the heap share them.
+ *
+ * Each chunk counts against the batch's client's staged bytes, by its size once written out, until the batch is
+ * drained or discarded.  A chunk that would take the client over its limit is refused before it is staged.
+ */
+@ThreadSafe
+class CachedPriceStaging implements PriceStaging {
+	static final int SEQUENCE_BITS = 24;
+
+	private final long batchId;
+	private final Cache<Long, Price[]> chunks;
+	private final PayloadPool payloads;
+	private final String client;
+	private final AdmissionControl admission;
+	private final AtomicInteger chunkCount = new AtomicInteger();
+	private final AtomicLong stagedBytes = new AtomicLong();
+
+	//Sequence numbers taken by chunks the cache failed to take
+	private final Set<Integer> gaps = ConcurrentHashMap.newKeySet();
+
+	CachedPriceStaging(long batchId,
+	                   Cache<Long, Price[]> chunks,
+	                   PayloadPool payloads,
+	                   String client,
+	                   AdmissionControl admission) {
+		this.batchId = batchId;
+		this.chunks = chunks;
+		this.payloads = payloads;
+		this.client = client;
+		this.admission = admission;
+	}
+
+	static long chunkKey(long batchId, int sequence) {
+		return batchId << SEQUENCE_BITS | sequence;
+	}
+
+	static long batchIdOf(long chunkKey) {
+		return chunkKey >>> SEQUENCE_BITS;
+	}
+
+	@Override
+	public void stage(List<Price> prices) {
+		if (prices.isEmpty()) {
+			return;
+		}
+		final Price[] chunk = new Price[prices.size()];
+		for (int i = 0; i < chunk.length; i++) {
+			chunk[i] = payloads.intern(prices.get(i));
+		}
+		final int bytes = PriceChunkSerializer.sizeOf(chunk);
+		//Taken before the chunk is numbered, so a refused chunk leaves no gap in the batch
+		admission.stage(client, bytes);
+		final int sequence = chunkCount.getAndIncrement();
+		try {
+			if (sequence >= 1 << SEQUENCE_BITS) {
+				throw new IllegalStateException("Batch " + batchId + " has had too many uploads");
+			}
+			chunks.put(chunkKey(batchId, sequence), chunk);
+		} catch (RuntimeException | Error e) {
+			gaps.add(sequence);
+			admission.unstaged(client, bytes);
+			throw e;
+		}
+		stagedBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Reduces the chunks to the latest price for each id in a map per shard, so the shards come out ready made.
+	 */
+	@Override
+	public ShardedPrices drain(PriceShards shards) {
+		final int count = chunkCount.get();
+		final List<Map<Long, Price>> latestPrices = new ArrayList<>(shards.count());
+		for (int shard = 0; shard < shards.count(); shard++) {
+			latestPrices.add(new HashMap<>());
+		}
+		for (int sequence = 0; sequence < count; sequence++) {
+			if (gaps.contains(sequence)) {
+				continue;
+			}
+			final Price[] chunk = chunks.get(chunkKey(batchId, sequence));
+			if (chunk == null) {
+				//Evicted or expired, half a batch must never be committed
+				discard();
+				throw new BatchNotFoundException(batchId);
+			}
+			for (Price price : chunk) {
+				latestPrices.get(shards.shardOf(price.getId())).compute(price.getId(), new LatestPriceFinder(price));
+			}
+		}
+		discard();
+		final List<Collection<Price>> buckets = new ArrayList<>(shards.count());
+		latestPrices.forEach(shard -> buckets.add(shard.values()));
+		return new ShardedPrices(shards, buckets);
+	}
+
+	@Override
+	public void discard() {
+		final int count = Math.min(chunkCount.get(), 1 << SEQUENCE_BITS);
+		for (int sequence = 0; sequence < count; sequence++) {
+			chunks.remove(chunkKey(batchId, sequence));
+		}
+		final long bytes = stagedBytes.getAndSet(0L);
+		if (bytes > 0) {
+			admission.unstaged(client, bytes);
+		}
+	}
+}
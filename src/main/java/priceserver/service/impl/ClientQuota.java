@@ -0,0 +1,113 @@
+package priceserver.service.impl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps how much of one resource, such as uploads in progress, is in use at once, both in all and by any one client.
+ * Taking some either fits under both limits or fails straight away, as nothing waits for it to be given back.
+ *
+ * The total is a single counter taken with a compare-and-set.  Each client's share is a map entry updated with
+ * compute, and dropped once it is back to nothing, so clients that come and go leave nothing behind.  Whatever is
+ * asked for is let in when nothing is in use, so a single request bigger than a limit still gets through on its own.
+ */
+@ThreadSafe
+final class ClientQuota {
+	private static final long NO_LIMIT = 0L;
+
+	private final long limit;
+	private final long perClientLimit;
+	private final AtomicLong used = new AtomicLong();
+	private final ConcurrentMap<String, Long> usedByClient = new ConcurrentHashMap<>();
+	private final Counter rejected;
+
+	/**
+	 * @param limit          The most in use in all, or 0 for no limit
+	 * @param perClientLimit The most in use by any one client, or 0 for no limit
+	 */
+	ClientQuota(String resource, long limit, long perClientLimit, MeterRegistry registry) {
+		this.limit = limit;
+		this.perClientLimit = perClientLimit;
+
+		Gauge.builder("priceserver.admission.limit", this, quota -> quota.limit)
+		     .description("The most of a resource that can be in use at once, 0 meaning no limit")
+		     .tags("resource", resource, "scope", "total")
+		     .register(registry);
+		Gauge.builder("priceserver.admission.limit", this, quota -> quota.perClientLimit)
+		     .description("The most of a resource that can be in use at once, 0 meaning no limit")
+		     .tags("resource", resource, "scope", "client")
+		     .register(registry);
+		Gauge.builder("priceserver.admission.used", used, AtomicLong::get)
+		     .description("How much of a resource is in use")
+		     .tags("resource", resource, "scope", "total")
+		     .register(registry);
+		Gauge.builder("priceserver.admission.used", this, ClientQuota::busiestClient)
+		     .description("How much of a resource is in use")
+		     .tags("resource", resource, "scope", "busiest-client")
+		     .register(registry);
+		Gauge.builder("priceserver.admission.clients", usedByClient, Map::size)
+		     .description("Clients using some of a resource")
+		     .tags("resource", resource)
+		     .register(registry);
+		rejected = Counter.builder("priceserver.admission.rejected")
+		                  .description("Requests turned away as they would have gone over a limit")
+		                  .tags("resource", resource)
+		                  .register(registry);
+	}
+
+	/**
+	 * @return False, having taken nothing, if either limit would be passed
+	 */
+	boolean tryAcquire(String client, long amount) {
+		if (!reserveTotal(amount)) {
+			rejected.increment();
+			return false;
+		}
+		final boolean[] admitted = new boolean[1];
+		usedByClient.compute(client, (key, current) -> {
+			final long was = current == null ? 0L : current;
+			admitted[0] = fits(was, amount, perClientLimit);
+			return admitted[0] ? Long.valueOf(was + amount) : current;
+		});
+		if (!admitted[0]) {
+			used.addAndGet(-amount);
+			rejected.increment();
+		}
+		return admitted[0];
+	}
+
+	void release(String client, long amount) {
+		usedByClient.computeIfPresent(client, (key, current) -> current == amount ? null : current - amount);
+		used.addAndGet(-amount);
+	}
+
+	private boolean reserveTotal(long amount) {
+		long current;
+		do {
+			current = used.get();
+			if (!fits(current, amount, limit)) {
+				return false;
+			}
+		} while (!used.compareAndSet(current, current + amount));
+		return true;
+	}
+
+	private static boolean fits(long used, long amount, long limit) {
+		return limit == NO_LIMIT || used == 0L || used + amount <= limit;
+	}
+
+	private double busiestClient() {
+		long busiest = 0L;
+		for (long clientUsed : usedByClient.values()) {
+			busiest = Math.max(busiest, clientUsed);
+		}
+		return busiest;
+	}
+}
@@ -0,0 +1,156 @@
+package priceserver.service.impl;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The router's log of the commits it has decided to make, written before any partition is asked to commit its part,
+ * so that a router restarted part way through the second phase finishes the commits it had begun rather than leave
+ * them made on only some partitions.
+ *
+ * Each decision is a line giving its epoch, the router's batch and, for each partition holding a part, the
+ * partition's URL and its batch.  Each commit made on every partition is a line giving its epoch.  A line cut short
+ * by a crash was never acted on, so is ignored.  The log is emptied whenever no decision is left unfinished, and
+ * rewritten with only the unfinished ones when it is opened.
+ */
+@ThreadSafe
+final class CommitDecisions implements AutoCloseable {
+	private static final String DECIDED = "COMMIT";
+	private static final String FINISHED = "DONE";
+
+	@GuardedBy("this")
+	private final SortedMap<Long, Decision> unfinished = new TreeMap<>();
+	@GuardedBy("this")
+	private final FileChannel log;
+
+	CommitDecisions(Path file) throws IOException {
+		if (file.getParent() != null) {
+			Files.createDirectories(file.getParent());
+		}
+		if (Files.exists(file)) {
+			read(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+		}
+		//Rewritten alongside and moved into place, so a crash cannot lose the unfinished decisions
+		final Path rewritten = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(rewritten,
+		                                            StandardOpenOption.CREATE,
+		                                            StandardOpenOption.TRUNCATE_EXISTING,
+		                                            StandardOpenOption.WRITE)) {
+			for (Decision decision : unfinished.values()) {
+				append(channel, decision.toString());
+			}
+			channel.force(true);
+		}
+		Files.move(rewritten, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		this.log = FileChannel.open(file, StandardOpenOption.WRITE);
+	}
+
+	private void read(String contents) {
+		int start = 0;
+		for (int end = contents.indexOf('\n'); end >= 0; end = contents.indexOf('\n', start)) {
+			final String[] fields = contents.substring(start, end).split(" ");
+			start = end + 1;
+			if (fields[0].equals(DECIDED)) {
+				final Map<String, Long> parts = new LinkedHashMap<>();
+				for (int i = 3; i + 1 < fields.length; i += 2) {
+					parts.put(fields[i], Long.parseLong(fields[i + 1]));
+				}
+				final Decision decision = new Decision(Long.parseLong(fields[1]), Long.parseLong(fields[2]), parts);
+				unfinished.put(decision.epoch, decision);
+			} else if (fields[0].equals(FINISHED)) {
+				unfinished.remove(Long.parseLong(fields[1]));
+			}
+		}
+	}
+
+	/**
+	 * Records the decision durably, before any partition is asked to commit.
+	 */
+	synchronized void decided(Decision decision) {
+		try {
+			append(log, decision.toString());
+			log.force(false);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not record the commit of batch " + decision.batchId, e);
+		}
+		unfinished.put(decision.epoch, decision);
+	}
+
+	/**
+	 * Records that every partition has committed its part, so the decision need not be acted on again.  Failing to
+	 * only means the commit is finished again after a restart, which the partitions answer as already made.
+	 */
+	synchronized void finished(long epoch) {
+		unfinished.remove(epoch);
+		try {
+			if (unfinished.isEmpty()) {
+				log.truncate(0L);
+			} else {
+				append(log, FINISHED + " " + epoch);
+			}
+			log.force(false);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not record that epoch " + epoch + " is committed", e);
+		}
+	}
+
+	/**
+	 * @return The decisions not yet made on every partition, oldest first
+	 */
+	synchronized List<Decision> unfinished() {
+		return new ArrayList<>(unfinished.values());
+	}
+
+	private static void append(FileChannel channel, String line) throws IOException {
+		final ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+		channel.position(channel.size());
+		while (bytes.hasRemaining()) {
+			channel.write(bytes);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		log.close();
+	}
+
+	/**
+	 * A commit the router has decided to make: the epoch it is made under, and the partitions' batches holding it.
+	 */
+	static final class Decision {
+		final long epoch;
+		final long batchId;
+		//The partitions' batches by the partitions' URLs, which name them across restarts
+		final Map<String, Long> parts;
+
+		Decision(long epoch, long batchId, Map<String, Long> parts) {
+			this.epoch = epoch;
+			this.batchId = batchId;
+			this.parts = Collections.unmodifiableMap(parts);
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder line = new StringBuilder(DECIDED).append(' ').append(epoch).append(' ').append(batchId);
+			parts.forEach((node, partId) -> line.append(' ').append(node).append(' ').append(partId));
+			return line.toString();
+		}
+	}
+}
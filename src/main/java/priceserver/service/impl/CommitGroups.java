@@ -0,0 +1,280 @@
+package priceserver.service.impl;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import priceserver.domain.LatestPriceFinder;
+import priceserver.domain.Price;
+import priceserver.domain.PriceShards;
+import priceserver.domain.ShardedPrices;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes commits arriving together as one, so that a burst of small commits from many feeds costs one journal
+ * write, one merge into the book and one epoch rather than one of each per batch.
+ *
+ * Commits queue up for a single committer thread, which takes every commit waiting, up to the size limits, while it
+ * publishes the group before.  So a lone commit is not held back, and groups grow as commits arrive faster than they
+ * can be published one by one.  A window can be set to hold each group open for longer.
+ *
+ * A group's batches are merged in the order they arrived, an instrument in more than one taking the price the
+ * {@link LatestPriceFinder} would have kept had they been committed one after the other.  Every batch in the group is
+ * published under the group's epoch.  A group that fails is published again batch by batch, so each caller is told of
+ * its own batch's success or failure rather than failing with one bad batch.  A price superseded within the group is
+ * not published, so is not kept in the history, as with one uploaded twice to the same batch.
+ */
+@Component
+@ThreadSafe
+public class CommitGroups implements AutoCloseable {
+	/**
+	 * Publishes a group's merged prices, returning their epoch.
+	 */
+	interface Publisher {
+		long publish(List<Long> batchIds, Collection<Price> prices);
+	}
+
+	private static final Logger log = LoggerFactory.getLogger(CommitGroups.class);
+
+	//Queued by close to wake the committer, which is not interrupted in case it is writing the journal
+	private static final PendingCommit STOP = new PendingCommit(-1L, Collections.<Price>emptyList());
+
+	private final BlockingQueue<PendingCommit> queue = new LinkedBlockingQueue<>();
+	private final long windowNanos;
+	private final int maxBatches;
+	private final int maxPrices;
+	private final DistributionSummary groupBatches;
+	private final DistributionSummary groupPrices;
+	private final Thread committer;
+	private volatile Publisher publisher;
+	private volatile boolean closed;
+
+	/**
+	 * @param windowMicros How long a group waits for more commits after its first, 0 to take only those already waiting
+	 * @param maxBatches   Most commits in one group, 1 to publish every commit on its own
+	 * @param maxPrices    No more commits join a group once it holds this many prices
+	 */
+	public CommitGroups(@Value("${priceserver.commit.group.window-us:0}") long windowMicros,
+	                    @Value("${priceserver.commit.group.max-batches:64}") int maxBatches,
+	                    @Value("${priceserver.commit.group.max-prices:100000}") int maxPrices,
+	                    MeterRegistry registry) {
+		this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+		this.maxBatches = Math.max(1, maxBatches);
+		this.maxPrices = maxPrices;
+		this.groupBatches = DistributionSummary.builder("priceserver.commit.group.batches")
+		                                       .description("Batches published together as one commit")
+		                                       .baseUnit("batches")
+		                                       .register(registry);
+		this.groupPrices = DistributionSummary.builder("priceserver.commit.group.prices")
+		                                      .description("Prices published by one commit, after merging its batches")
+		                                      .baseUnit("prices")
+		                                      .register(registry);
+		this.committer = new Thread(this::commitGroups, "group-commit");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	/**
+	 * Sets what the groups are published with, before the first commit.
+	 */
+	void publishWith(Publisher publisher) {
+		this.publisher = publisher;
+	}
+
+	/**
+	 * Waits for the closed batch to be published as part of the next group.
+	 * @return The epoch the batch was published under
+	 */
+	long commit(long batchId, Collection<Price> prices) {
+		final PendingCommit commit = new PendingCommit(batchId, prices);
+		queue.add(commit);
+		if (closed && queue.remove(commit)) {
+			//The committer may already have failed what was queued and gone
+			commit.result.completeExceptionally(shuttingDown());
+		}
+		try {
+			return commit.result.join();
+		} catch (CompletionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw e;
+		}
+	}
+
+	private void commitGroups() {
+		try {
+			while (!closed) {
+				final List<PendingCommit> group = nextGroup();
+				if (!group.isEmpty()) {
+					publish(group);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			failQueued();
+		}
+	}
+
+	/**
+	 * Blocks for the first commit, then takes those waiting behind it until the window closes or the group is full.
+	 * @return Empty if woken to stop
+	 */
+	private List<PendingCommit> nextGroup() throws InterruptedException {
+		final PendingCommit first = queue.take();
+		if (first == STOP) {
+			return Collections.emptyList();
+		}
+		final List<PendingCommit> group = new ArrayList<>();
+		group.add(first);
+		int prices = first.prices.size();
+		final long deadline = System.nanoTime() + windowNanos;
+		while (group.size() < maxBatches && prices < maxPrices) {
+			final long remaining = deadline - System.nanoTime();
+			final PendingCommit next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+			if (next == null || next == STOP) {
+				break;
+			}
+			group.add(next);
+			prices += next.prices.size();
+		}
+		return group;
+	}
+
+	/**
+	 * Publishes the group as one, or if that fails, each of its batches on its own in the order they arrived, so that
+	 * one batch that cannot be published does not fail the others with it.
+	 */
+	private void publish(List<PendingCommit> group) {
+		final List<Long> batchIds = new ArrayList<>(group.size());
+		for (PendingCommit commit : group) {
+			batchIds.add(commit.batchId);
+		}
+		try {
+			final Collection<Price> merged = merge(group);
+			groupBatches.record(group.size());
+			groupPrices.record(merged.size());
+			final long epoch = publisher.publish(batchIds, merged);
+			for (PendingCommit commit : group) {
+				commit.result.complete(epoch);
+			}
+		} catch (RuntimeException | Error e) {
+			if (group.size() == 1) {
+				group.get(0).result.completeExceptionally(e);
+				return;
+			}
+			log.warn("Group of batches {} could not be published together, publishing them one by one: {}",
+			         batchIds, e.getMessage());
+			for (PendingCommit commit : group) {
+				publish(Collections.singletonList(commit));
+			}
+		}
+	}
+
+	/**
+	 * Merges the batches shard by shard when they are sharded, as closed batches are, so the book can still merge
+	 * each shard on its own.
+	 */
+	static Collection<Price> merge(List<PendingCommit> group) {
+		if (group.size() == 1) {
+			return group.get(0).prices;
+		}
+		final PriceShards shards = shardsOf(group);
+		if (shards == null) {
+			final List<Collection<Price>> batches = new ArrayList<>(group.size());
+			for (PendingCommit commit : group) {
+				batches.add(commit.prices);
+			}
+			return mergeInTurn(batches);
+		}
+		final List<ShardedPrices> sharded = new ArrayList<>(group.size());
+		for (PendingCommit commit : group) {
+			sharded.add(ShardedPrices.of(shards, commit.prices));
+		}
+		final List<Collection<Price>> buckets = new ArrayList<>(shards.count());
+		for (int shard = 0; shard < shards.count(); shard++) {
+			final List<Collection<Price>> batches = new ArrayList<>(sharded.size());
+			for (ShardedPrices prices : sharded) {
+				batches.add(prices.shard(shard));
+			}
+			buckets.add(mergeInTurn(batches));
+		}
+		return new ShardedPrices(shards, buckets);
+	}
+
+	private static Collection<Price> mergeInTurn(List<Collection<Price>> batches) {
+		int size = 0;
+		for (Collection<Price> batch : batches) {
+			size += batch.size();
+		}
+		final Map<Long, Price> merged = new HashMap<>(size * 4 / 3 + 1);
+		//A closed batch holds one price per id, so only the batches after the first can clash
+		for (Price price : batches.get(0)) {
+			merged.put(price.getId(), price);
+		}
+		for (Collection<Price> batch : batches.subList(1, batches.size())) {
+			for (Price price : batch) {
+				merged.compute(price.getId(), new LatestPriceFinder(price));
+			}
+		}
+		return new ArrayList<>(merged.values());
+	}
+
+	private static PriceShards shardsOf(List<PendingCommit> group) {
+		for (PendingCommit commit : group) {
+			if (commit.prices instanceof ShardedPrices) {
+				return ((ShardedPrices) commit.prices).getShards();
+			}
+		}
+		return null;
+	}
+
+	private void failQueued() {
+		PendingCommit commit;
+		while ((commit = queue.poll()) != null) {
+			commit.result.completeExceptionally(shuttingDown());
+		}
+	}
+
+	private static IllegalStateException shuttingDown() {
+		return new IllegalStateException("The server is shutting down");
+	}
+
+	@PreDestroy
+	@Override
+	public void close() {
+		closed = true;
+		queue.add(STOP);
+	}
+
+	static final class PendingCommit {
+		final long batchId;
+		final Collection<Price> prices;
+		final CompletableFuture<Long> result = new CompletableFuture<>();
+
+		PendingCommit(long batchId, Collection<Price> prices) {
+			this.batchId = batchId;
+			this.prices = prices;
+		}
+	}
+}
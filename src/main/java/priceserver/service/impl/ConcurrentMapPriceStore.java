@@ -0,0 +1,62 @@
+package priceserver.service.impl;
+
+import net.jcip.annotations.ThreadSafe;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import priceserver.domain.PriceShards;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Store backed by a ConcurrentHashMap.  Simple and well understood, but every entry costs a boxed Long key and a map
+ * node on top of the price itself, and every lookup boxes the id.  Each shard of the book has a map of its own.
+ */
+@Component
+@ThreadSafe
+@ConditionalOnProperty(name = "priceserver.store", havingValue = "concurrent-map", matchIfMissing = true)
+public class ConcurrentMapPriceStore extends VersionedPriceStore {
+	private final PriceShards shards;
+	private final ConcurrentHashMap<Long, Object>[] currentPrices;
+
+	public ConcurrentMapPriceStore(@Value("${priceserver.store.shards:16}") int shards,
+	                               @Value("${priceserver.commit.merge-parallelism:4}") int mergeParallelism,
+	                               PriceHistory history,
+	                               PayloadPool payloads) {
+		super(new PriceShards(shards), mergeParallelism, history, payloads);
+		this.shards = shards();
+		@SuppressWarnings("unchecked")
+		final ConcurrentHashMap<Long, Object>[] maps = new ConcurrentHashMap[shards];
+		for (int i = 0; i < maps.length; i++) {
+			maps[i] = new ConcurrentHashMap<>(Math.max(16, 10000 / shards));
+		}
+		this.currentPrices = maps;
+	}
+
+	@Override
+	Object slot(long id) {
+		return currentPrices[shards.shardOf(id)].get(id);
+	}
+
+	@Override
+	void putSlot(long id, Object slot) {
+		currentPrices[shards.shardOf(id)].put(id, slot);
+	}
+
+	@Override
+	void forEachSlot(Consumer<Object> action) {
+		for (ConcurrentHashMap<Long, Object> shard : currentPrices) {
+			shard.values().forEach(action);
+		}
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (ConcurrentHashMap<Long, Object> shard : currentPrices) {
+			size += shard.size();
+		}
+		return size;
+	}
+}
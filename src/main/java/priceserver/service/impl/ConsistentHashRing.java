@@ -0,0 +1,82 @@
+package priceserver.service.impl;
+
+import net.jcip.annotations.Immutable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assigns instrument ids to nodes by consistent hashing.  Each node is placed at many points around a ring of 64 bit
+ * hashes, and an id belongs to the node at the first point at or after the id's hash, wrapping round at the end.
+ *
+ * Adding a node only takes over the stretches of the ring just before its own points, so the only ids that move are
+ * the ones that move to the new node, about 1/n of them with n nodes, and every other id stays where it was.  The
+ * points of a node depend only on its name, so every router given the same nodes agrees on where each id lives,
+ * whatever order the nodes are listed in.
+ */
+@Immutable
+public final class ConsistentHashRing<N> {
+	private final TreeMap<Long, N> points = new TreeMap<>();
+	private final List<N> nodes;
+
+	/**
+	 * @param nodes        Named by their toString(), which must differ between nodes
+	 * @param virtualNodes Points per node, more of which spread the ids more evenly
+	 */
+	public ConsistentHashRing(List<N> nodes, int virtualNodes) {
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("The ring needs at least one node");
+		}
+		this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+		for (N node : nodes) {
+			final String name = node.toString();
+			for (int i = 0; i < virtualNodes; i++) {
+				final long point = hash(name + '#' + i);
+				final N clash = points.put(point, node);
+				//Vanishingly unlikely, but resolved the same way whatever order the nodes came in
+				if (clash != null && clash.toString().compareTo(name) < 0) {
+					points.put(point, clash);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The node holding the instrument
+	 */
+	public N nodeFor(long id) {
+		final Map.Entry<Long, N> point = points.ceilingEntry(mix(id));
+		return point != null ? point.getValue() : points.firstEntry().getValue();
+	}
+
+	public List<N> nodes() {
+		return nodes;
+	}
+
+	/**
+	 * FNV-1a over the name's UTF-8 bytes, then mixed so that names differing only in their last characters still
+	 * land far apart.
+	 */
+	private static long hash(String name) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return mix(hash);
+	}
+
+	/**
+	 * The finaliser of SplitMix64, which spreads consecutive ids evenly around the ring.
+	 */
+	private static long mix(long value) {
+		long z = value + 0x9e3779b97f4a7c15L;
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
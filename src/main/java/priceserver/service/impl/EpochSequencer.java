@@ -0,0 +1,82 @@
+package priceserver.service.impl;
+
+import net.jcip.annotations.ThreadSafe;
+import priceserver.exceptions.EpochOutOfOrderException;
+
+/**
+ * Hands out commit epochs and makes sure commits are published in epoch order, even though the work between taking
+ * an epoch and publishing it (such as waiting for the journal) is done concurrently.
+ */
+@ThreadSafe
+class EpochSequencer {
+	private long lastIssued;
+	private long lastPublished;
+
+	/**
+	 * Starts numbering after the given epoch, for example the last one replayed from the journal.
+	 */
+	synchronized void startAfter(long epoch) {
+		lastIssued = epoch;
+		lastPublished = epoch;
+	}
+
+	/**
+	 * Must be called while holding whatever lock orders the epochs, such as the journal append.
+	 */
+	synchronized long next() {
+		return ++lastIssued;
+	}
+
+	/**
+	 * Hands out the given epoch instead of the next one, such as one handed out by the router for a commit spanning
+	 * several partitions.  Waits for every epoch already handed out to be published first, so that the epochs skipped
+	 * are never waited for.  Must be called while holding whatever lock orders the epochs.
+	 * @throws EpochOutOfOrderException If the epoch is not after every epoch already handed out
+	 */
+	synchronized long jumpTo(long epoch) {
+		awaitPublished(lastIssued);
+		if (epoch <= lastIssued) {
+			throw new EpochOutOfOrderException(epoch, lastIssued);
+		}
+		lastIssued = epoch;
+		lastPublished = epoch - 1;
+		return epoch;
+	}
+
+	/**
+	 * @return The last epoch published
+	 */
+	synchronized long lastPublished() {
+		return lastPublished;
+	}
+
+	/**
+	 * Blocks until every earlier epoch has been published.  Waiting cannot be interrupted, as giving up would hold up
+	 * every later epoch.
+	 */
+	synchronized void awaitTurn(long epoch) {
+		awaitPublished(epoch - 1);
+	}
+
+	private void awaitPublished(long epoch) {
+		boolean interrupted = false;
+		while (lastPublished != epoch) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Lets the next epoch go.  Must be called once for every epoch handed out, even if publishing it failed.
+	 */
+	synchronized void published(long epoch) {
+		lastPublished = epoch;
+		notifyAll();
+	}
+}
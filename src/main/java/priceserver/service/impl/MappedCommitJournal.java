@@ -0,0 +1,467 @@
+package priceserver.service.impl;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import priceserver.domain.Price;
+import priceserver.service.CommitJournal;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal written to memory-mapped segment files in a directory.  Each segment is named after the
+ * first epoch written to it, and a new one is started when the current one is full.
+ *
+ * Every commit is written as one record:
+ * <pre>
+ *   int  length of the body
+ *   int  CRC32 of the body
+ *   body: long epoch, int price count, then for each price: long id, long timestamp, int payload length, payload
+ * </pre>
+ * A commit that was appended but never published is followed by an abort record, a body of just its epoch and a
+ * price count of -1.  Replay looks for aborts first, then skips the commits they name.
+ *
+ * A length of zero marks the end of a segment.  A record with a bad checksum, or one that runs off the end of the
+ * segment, is a write that was torn by a crash; replay stops there and new records overwrite it.
+ *
+ * Segments are only ever deleted whole, once every commit in them is covered by a snapshot.
+ *
+ * How durable a commit is when {@link #awaitDurable(long)} returns is set by the {@link Durability}.  In GROUP mode
+ * a commit that arrives while another thread is flushing waits for that flush to finish, and if the flush already
+ * covered its record it returns straight away, so commits arriving together share one fsync.
+ */
+@Component
+@ThreadSafe
+@ConditionalOnProperty(name = "priceserver.journal.enabled", havingValue = "true")
+public class MappedCommitJournal implements CommitJournal, AutoCloseable {
+	private static final Logger log = LoggerFactory.getLogger(MappedCommitJournal.class);
+
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final int HEADER_BYTES = 8;
+	private static final int BODY_HEADER_BYTES = 12;
+	private static final int PRICE_HEADER_BYTES = 20;
+	//The price count of an abort record
+	private static final int ABORTED = -1;
+
+	public enum Durability {
+		/** Every commit waits for its own fsync. */
+		SYNC,
+		/** Every commit waits for an fsync covering it, shared with any commits that arrived at the same time. */
+		GROUP,
+		/** Commits do not wait; the journal is flushed in the background at a fixed interval. */
+		ASYNC
+	}
+
+	private final Path directory;
+	private final int segmentSize;
+	private final Durability durability;
+	private final ScheduledExecutorService asyncFlusher;
+
+	private final Object appendLock = new Object();
+	private final Object syncLock = new Object();
+
+	@GuardedBy("appendLock")
+	private Segment current;
+
+	@GuardedBy("appendLock")
+	private long nextPosition;
+
+	private volatile long durablePosition;
+
+	public MappedCommitJournal(@Value("${priceserver.journal.directory:journal}") String directory,
+	                           @Value("${priceserver.journal.segment-size:67108864}") int segmentSize,
+	                           @Value("${priceserver.journal.durability:GROUP}") Durability durability,
+	                           @Value("${priceserver.journal.async-flush-interval-ms:100}") long asyncFlushIntervalMs)
+			throws IOException {
+		this.directory = Paths.get(directory);
+		this.segmentSize = segmentSize;
+		this.durability = durability;
+		Files.createDirectories(this.directory);
+
+		if (durability == Durability.ASYNC) {
+			asyncFlusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				final Thread thread = new Thread(runnable, "journal-flusher");
+				thread.setDaemon(true);
+				return thread;
+			});
+			asyncFlusher.scheduleWithFixedDelay(this::flushInBackground,
+			                                    asyncFlushIntervalMs,
+			                                    asyncFlushIntervalMs,
+			                                    TimeUnit.MILLISECONDS);
+		} else {
+			asyncFlusher = null;
+		}
+		log.info("Journalling commits to {} with {} durability", this.directory.toAbsolutePath(), durability);
+	}
+
+	@Override
+	public long replay(Replayer replayer) {
+		synchronized (appendLock) {
+			if (current != null) {
+				throw new IllegalStateException("Journal has already been replayed");
+			}
+			try {
+				long lastEpoch = 0L;
+				long basePosition = 0L;
+				final List<Segment> segments = new ArrayList<>();
+				for (Path path : segmentFiles()) {
+					final Segment segment = Segment.open(path, basePosition);
+					segments.add(segment);
+					basePosition += segment.buffer.capacity();
+				}
+				//An abort comes after the commit it names, maybe in a later segment, so they are all found first
+				final Set<Long> aborted = new HashSet<>();
+				for (Segment segment : segments) {
+					findAborts(segment, aborted);
+				}
+				for (int i = 0; i < segments.size(); i++) {
+					final Segment segment = segments.get(i);
+					final ReplayedSegment replayed = replaySegment(segment, lastEpoch, aborted, replayer);
+					final boolean last = i == segments.size() - 1;
+					if (replayed.torn && !last) {
+						//Segments are flushed before the next is started, so only the last can have a torn write
+						throw new IllegalStateException(
+								"Journal segment " + segment.path + " is corrupt at offset " + replayed.end);
+					}
+					lastEpoch = replayed.lastEpoch;
+					if (last) {
+						//Carry on appending to the last segment, wiping out anything after the last good record
+						segment.clearFrom(replayed.end);
+						current = segment;
+						nextPosition = segment.basePosition + replayed.end;
+					}
+				}
+				if (current == null) {
+					current = Segment.create(segmentPath(lastEpoch + 1), 0L, segmentSize);
+					nextPosition = 0L;
+				}
+				durablePosition = nextPosition;
+				log.info("Replayed {} journal segments up to epoch {}, skipping {} aborted commits",
+				         segments.size(), lastEpoch, aborted.size());
+				return lastEpoch;
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not replay journal in " + directory, e);
+			}
+		}
+	}
+
+	@Override
+	public long append(long epoch, Collection<Price> prices) {
+		long length = BODY_HEADER_BYTES;
+		for (Price price : prices) {
+			length += PRICE_HEADER_BYTES + price.getPayloadBytes().length;
+		}
+		if (length > Integer.MAX_VALUE - HEADER_BYTES - 4) {
+			throw new IllegalArgumentException("Commit " + epoch + " is too big to journal at " + length + " bytes");
+		}
+		return write(epoch, (int) length, prices);
+	}
+
+	@Override
+	public long abort(long epoch) {
+		return write(epoch, BODY_HEADER_BYTES, null);
+	}
+
+	/**
+	 * @param prices Null for an abort record
+	 */
+	private long write(long epoch, int bodyLength, Collection<Price> prices) {
+		synchronized (appendLock) {
+			if (current == null) {
+				throw new IllegalStateException("Journal must be replayed before it is appended to");
+			}
+			int offset = (int) (nextPosition - current.basePosition);
+			//Always leave room for the zero length that marks the end of the segment
+			final int recordLength = HEADER_BYTES + bodyLength;
+			if (offset + recordLength + 4 > current.buffer.capacity()) {
+				roll(epoch, recordLength + 4);
+				offset = 0;
+			}
+
+			final MappedByteBuffer buffer = current.buffer;
+			buffer.position(offset + HEADER_BYTES);
+			buffer.putLong(epoch);
+			buffer.putInt(prices == null ? ABORTED : prices.size());
+			if (prices != null) {
+				for (Price price : prices) {
+					final byte[] payload = price.getPayloadBytes();
+					buffer.putLong(price.getId());
+					buffer.putLong(price.getTimestamp());
+					buffer.putInt(payload.length);
+					buffer.put(payload);
+				}
+			}
+
+			//The length goes in last, so that the record only exists once it is complete
+			buffer.putInt(offset + 4, checksum(buffer, offset + HEADER_BYTES, bodyLength));
+			buffer.putInt(offset, bodyLength);
+
+			nextPosition = current.basePosition + offset + recordLength;
+			return nextPosition;
+		}
+	}
+
+	@Override
+	public void awaitDurable(long position) {
+		switch (durability) {
+			case SYNC:
+				synchronized (syncLock) {
+					flush();
+				}
+				break;
+			case GROUP:
+				if (durablePosition >= position) {
+					return;
+				}
+				synchronized (syncLock) {
+					//Another thread may have flushed our record while we were waiting for the lock
+					if (durablePosition < position) {
+						flush();
+					}
+				}
+				break;
+			case ASYNC:
+				break;
+			default:
+				throw new IllegalStateException("Unknown durability " + durability);
+		}
+	}
+
+	@Override
+	public void discardUpTo(long epoch) {
+		final Path currentPath;
+		synchronized (appendLock) {
+			if (current == null) {
+				return;
+			}
+			currentPath = current.path;
+		}
+		try {
+			final List<Path> segments = segmentFiles();
+			//A segment ends where the next begins, so it can go once the next one starts at or before epoch + 1
+			for (int i = 0; i + 1 < segments.size() && !segments.get(i).equals(currentPath); i++) {
+				if (firstEpoch(segments.get(i + 1)) > epoch + 1) {
+					break;
+				}
+				Files.delete(segments.get(i));
+				log.info("Discarded journal segment {}", segments.get(i));
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not discard journal segments in " + directory, e);
+		}
+	}
+
+	@PreDestroy
+	@Override
+	public void close() {
+		if (asyncFlusher != null) {
+			asyncFlusher.shutdown();
+		}
+		synchronized (syncLock) {
+			flush();
+		}
+	}
+
+	@GuardedBy("syncLock")
+	private void flush() {
+		final Segment segment;
+		final long end;
+		synchronized (appendLock) {
+			segment = current;
+			end = nextPosition;
+		}
+		if (segment != null && end > durablePosition) {
+			segment.buffer.force();
+			durablePosition = end;
+		}
+	}
+
+	private void flushInBackground() {
+		try {
+			synchronized (syncLock) {
+				flush();
+			}
+		} catch (RuntimeException e) {
+			log.error("Could not flush journal", e);
+		}
+	}
+
+	@GuardedBy("appendLock")
+	private void roll(long firstEpoch, int minimumSize) {
+		final Segment full = current;
+		//Everything in the old segment must be on disk before anything in the new one is reported durable
+		full.buffer.force();
+		final long basePosition = full.basePosition + full.buffer.capacity();
+		try {
+			current = Segment.create(segmentPath(firstEpoch), basePosition, Math.max(segmentSize, minimumSize));
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not create new journal segment in " + directory, e);
+		}
+		nextPosition = basePosition;
+		log.info("Rolled journal over to {}", current.path);
+	}
+
+	/**
+	 * Adds the epochs of the segment's abort records to the set.  Only abort records are checksummed, the rest being
+	 * skipped over by their length, and the scan stops at anything that cannot be a record.
+	 */
+	private static void findAborts(Segment segment, Set<Long> aborted) {
+		final MappedByteBuffer buffer = segment.buffer;
+		int offset = 0;
+		while (offset + HEADER_BYTES <= buffer.capacity()) {
+			final int bodyLength = buffer.getInt(offset);
+			if (bodyLength < BODY_HEADER_BYTES || offset + HEADER_BYTES + bodyLength > buffer.capacity()) {
+				return;
+			}
+			if (bodyLength == BODY_HEADER_BYTES
+					&& buffer.getInt(offset + HEADER_BYTES + 8) == ABORTED
+					&& buffer.getInt(offset + 4) == checksum(buffer, offset + HEADER_BYTES, bodyLength)) {
+				aborted.add(buffer.getLong(offset + HEADER_BYTES));
+			}
+			offset += HEADER_BYTES + bodyLength;
+		}
+	}
+
+	private ReplayedSegment replaySegment(Segment segment, long lastEpoch, Set<Long> aborted, Replayer replayer) {
+		final MappedByteBuffer buffer = segment.buffer;
+		int offset = 0;
+		while (offset + HEADER_BYTES <= buffer.capacity()) {
+			final int bodyLength = buffer.getInt(offset);
+			if (bodyLength == 0) {
+				return new ReplayedSegment(lastEpoch, offset, false);
+			}
+			if (bodyLength < BODY_HEADER_BYTES
+					|| offset + HEADER_BYTES + bodyLength > buffer.capacity()
+					|| buffer.getInt(offset + 4) != checksum(buffer, offset + HEADER_BYTES, bodyLength)) {
+				log.warn("Torn record found at offset {} of {}", offset, segment.path);
+				return new ReplayedSegment(lastEpoch, offset, true);
+			}
+
+			buffer.position(offset + HEADER_BYTES);
+			final long epoch = buffer.getLong();
+			final int count = buffer.getInt();
+			//An aborted commit's epoch was used up all the same, so it is never handed out again
+			if (count != ABORTED && epoch > lastEpoch) {
+				if (aborted.contains(epoch)) {
+					log.info("Skipping aborted commit {}", epoch);
+				} else {
+					replayer.replay(epoch, readPrices(buffer, count));
+				}
+				lastEpoch = epoch;
+			}
+			offset += HEADER_BYTES + bodyLength;
+		}
+		return new ReplayedSegment(lastEpoch, offset, false);
+	}
+
+	private static List<Price> readPrices(ByteBuffer buffer, int count) {
+		final List<Price> prices = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			final long id = buffer.getLong();
+			final long timestamp = buffer.getLong();
+			final byte[] payload = new byte[buffer.getInt()];
+			buffer.get(payload);
+			prices.add(new Price(id, timestamp, payload));
+		}
+		return prices;
+	}
+
+	private List<Path> segmentFiles() throws IOException {
+		final List<Path> segments = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			files.forEach(segments::add);
+		}
+		//Names are zero padded epochs, so they sort in the order they were written
+		segments.sort(null);
+		return segments;
+	}
+
+	private Path segmentPath(long firstEpoch) {
+		return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstEpoch, SEGMENT_SUFFIX));
+	}
+
+	private static long firstEpoch(Path segment) {
+		final String name = segment.getFileName().toString();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	private static int checksum(ByteBuffer buffer, int offset, int length) {
+		final ByteBuffer body = buffer.duplicate();
+		body.limit(offset + length).position(offset);
+		final CRC32 crc = new CRC32();
+		crc.update(body);
+		return (int) crc.getValue();
+	}
+
+	private static final class Segment {
+		private final Path path;
+		private final MappedByteBuffer buffer;
+		private final long basePosition;
+
+		private Segment(Path path, MappedByteBuffer buffer, long basePosition) {
+			this.path = path;
+			this.buffer = buffer;
+			this.basePosition = basePosition;
+		}
+
+		private static Segment create(Path path, long basePosition, int size) throws IOException {
+			try (FileChannel channel = FileChannel.open(path,
+			                                            StandardOpenOption.CREATE_NEW,
+			                                            StandardOpenOption.READ,
+			                                            StandardOpenOption.WRITE)) {
+				return new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, size), basePosition);
+			}
+		}
+
+		private static Segment open(Path path, long basePosition) throws IOException {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+				return new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()), basePosition);
+			}
+		}
+
+		private void clearFrom(int offset) {
+			final byte[] zeros = new byte[64 * 1024];
+			buffer.position(offset);
+			while (buffer.hasRemaining()) {
+				buffer.put(zeros, 0, Math.min(zeros.length, buffer.remaining()));
+			}
+			buffer.force();
+		}
+	}
+
+	private static final class ReplayedSegment {
+		private final long lastEpoch;
+		private final int end;
+		private final boolean torn;
+
+		private ReplayedSegment(long lastEpoch, int end, boolean torn) {
+			this.lastEpoch = lastEpoch;
+			this.end = end;
+			this.torn = torn;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package priceserver.service.impl;
+
+import net.jcip.annotations.ThreadSafe;
+import priceserver.domain.Price;
+import priceserver.service.PriceSnapshot;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * A snapshot file that is memory-mapped rather than read in, so that it can be served from as soon as it is opened.
+ * Pages are only read from disk as they are touched.
+ *
+ * The file is laid out as:
+ * <pre>
+ *   header:   int magic, int version, long epoch, long highest epoch of any price, int count, int unused
+ *   index:    count entries sorted by id, each: long id, long timestamp, long epoch, int payload offset, int length
+ *   payloads: every payload, one after the other
+ * </pre>
+ * Lookups binary search the fixed width index, so only the index pages they touch and one payload are read.  As the
+ * file is mapped in one go it is limited to 2GB.
+ */
+@ThreadSafe
+class MappedPriceSnapshot implements PriceSnapshot {
+	private static final int MAGIC = 0x50524353;
+	private static final int VERSION = 2;
+	private static final int HEADER_BYTES = 32;
+	private static final int ENTRY_BYTES = 32;
+
+	private final Path path;
+	private final ByteBuffer buffer;
+	private final long epoch;
+	private final long highestEpoch;
+	private final int count;
+
+	private MappedPriceSnapshot(Path path, ByteBuffer buffer) {
+		this.path = path;
+		this.buffer = buffer;
+		if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+			throw new IllegalStateException(path + " is not a version " + VERSION + " price snapshot");
+		}
+		this.epoch = buffer.getLong(8);
+		this.highestEpoch = buffer.getLong(16);
+		this.count = buffer.getInt(24);
+	}
+
+	static MappedPriceSnapshot open(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new MappedPriceSnapshot(path, buffer);
+		}
+	}
+
+	/**
+	 * Writes the prices to a temporary file and then moves it into place, so a snapshot file is always complete.
+	 * @param prices Must be sorted by id, with no id appearing twice
+	 */
+	static void write(Path path, long epoch, List<Price> prices) throws IOException {
+		long size = HEADER_BYTES + (long) ENTRY_BYTES * prices.size();
+		long highestEpoch = epoch;
+		for (Price price : prices) {
+			size += price.getPayloadBytes().length;
+			highestEpoch = Math.max(highestEpoch, price.getEpoch());
+		}
+		if (size > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Snapshot of " + prices.size() + " prices would be " + size + " bytes");
+		}
+
+		final Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary),
+		                                                                          1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(epoch);
+			out.writeLong(highestEpoch);
+			out.writeInt(prices.size());
+			out.writeInt(0);
+
+			int payloadOffset = HEADER_BYTES + ENTRY_BYTES * prices.size();
+			for (Price price : prices) {
+				final int length = price.getPayloadBytes().length;
+				out.writeLong(price.getId());
+				out.writeLong(price.getTimestamp());
+				out.writeLong(price.getEpoch());
+				out.writeInt(payloadOffset);
+				out.writeInt(length);
+				payloadOffset += length;
+			}
+			for (Price price : prices) {
+				out.write(price.getPayloadBytes());
+			}
+		}
+		try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+			channel.force(true);
+		}
+		Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	@Override
+	public long epoch() {
+		return epoch;
+	}
+
+	@Override
+	public long highestEpoch() {
+		return highestEpoch;
+	}
+
+	@Override
+	public int size() {
+		return count;
+	}
+
+	@Override
+	public Price get(long id) {
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			final long middleId = idAt(middle);
+			if (middleId < id) {
+				low = middle + 1;
+			} else if (middleId > id) {
+				high = middle - 1;
+			} else {
+				return priceAt(middle);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public Price priceAt(int index) {
+		final int entry = entryOffset(index);
+		final byte[] payload = new byte[buffer.getInt(entry + 28)];
+		//Absolute bulk gets only arrived in Java 13, so read through a duplicate to keep this thread safe
+		final ByteBuffer payloadBuffer = buffer.duplicate();
+		payloadBuffer.position(buffer.getInt(entry + 24));
+		payloadBuffer.get(payload);
+		return new Price(buffer.getLong(entry), buffer.getLong(entry + 8), payload, buffer.getLong(entry + 16));
+	}
+
+	@Override
+	public long idAt(int index) {
+		return buffer.getLong(entryOffset(index));
+	}
+
+	private static int entryOffset(int index) {
+		return HEADER_BYTES + ENTRY_BYTES * index;
+	}
+
+	@Override
+	public String toString() {
+		return "MappedPriceSnapshot{" +
+				"path=" + path +
+				", epoch=" + epoch +
+				", highestEpoch=" + highestEpoch +
+				", count=" + count +
+				'}';
+	}
+}
@@ -0,0 +1,40 @@
+package priceserver.service.impl;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import priceserver.domain.Price;
+import priceserver.service.CommitJournal;
+
+import java.util.Collection;
+
+/**
+ * Used when journalling is switched off.  Nothing is recorded, so every price is lost when the server stops.
+ */
+@Component
+@ConditionalOnProperty(name = "priceserver.journal.enabled", havingValue = "false", matchIfMissing = true)
+public class NoCommitJournal implements CommitJournal {
+	@Override
+	public long append(long epoch, Collection<Price> prices) {
+		return 0L;
+	}
+
+	@Override
+	public long abort(long epoch) {
+		return 0L;
+	}
+
+	@Override
+	public void awaitDurable(long position) {
+		//Nothing to wait for
+	}
+
+	@Override
+	public long replay(Replayer replayer) {
+		return 0L;
+	}
+
+	@Override
+	public void discardUpTo(long epoch) {
+		//Nothing to discard
+	}
+}
@@ -0,0 +1,205 @@
+package priceserver.service.impl;
+
+import net.jcip.annotations.ThreadSafe;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import priceserver.domain.PriceShards;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Store keyed directly on the primitive id using open addressing with linear probing.  Each entry costs one slot in
+ * a long array and one in a reference array, so there are no boxed keys or map nodes for the GC to trace.
+ *
+ * Each shard of the book has a table of its own.  Readers never lock.  There is only ever one writer of a shard (see
+ * {@link VersionedPriceStore}), and it publishes a new entry by setting its value before its key, so any reader that
+ * finds the key is guaranteed to see the value.  Entries are never removed, which is what makes this safe.  When a
+ * table fills up a bigger one is built on the side and swapped in with a single volatile write, so readers always
+ * see a complete table, and readers of the other shards are not held up by the copy.
+ *
+ * Because an empty slot is marked by a key of zero, the slot for id zero is kept in its own field.
+ */
+@Component
+@ThreadSafe
+@ConditionalOnProperty(name = "priceserver.store", havingValue = "open-addressing")
+public class OpenAddressingPriceStore extends VersionedPriceStore {
+	private static final long EMPTY = 0L;
+	private static final int MAXIMUM_CAPACITY = 1 << 30;
+
+	private final PriceShards shards;
+	private final Shard[] tables;
+	private volatile Object zeroIdSlot;
+
+	public OpenAddressingPriceStore(@Value("${priceserver.store.initial-capacity:16384}") int initialCapacity,
+	                                @Value("${priceserver.store.shards:16}") int shards,
+	                                @Value("${priceserver.commit.merge-parallelism:4}") int mergeParallelism,
+	                                PriceHistory history,
+	                                PayloadPool payloads) {
+		super(new PriceShards(shards), mergeParallelism, history, payloads);
+		this.shards = shards();
+		this.tables = new Shard[shards];
+		for (int i = 0; i < tables.length; i++) {
+			tables[i] = new Shard(tableSizeFor(initialCapacity / shards));
+		}
+	}
+
+	@Override
+	Object slot(long id) {
+		if (id == EMPTY) {
+			return zeroIdSlot;
+		}
+		final Table current = tables[shards.shardOf(id)].table;
+		int slot = current.slotFor(id);
+		while (true) {
+			final long key = current.keys.get(slot);
+			if (key == id) {
+				return current.values.get(slot);
+			}
+			if (key == EMPTY) {
+				return null;
+			}
+			slot = current.next(slot);
+		}
+	}
+
+	@Override
+	void putSlot(long id, Object value) {
+		if (id == EMPTY) {
+			zeroIdSlot = value;
+			return;
+		}
+
+		final Shard shard = tables[shards.shardOf(id)];
+		Table current = shard.table;
+		int slot = current.slotFor(id);
+		while (true) {
+			final long key = current.keys.get(slot);
+			if (key == id) {
+				current.values.set(slot, value);
+				return;
+			}
+			if (key == EMPTY) {
+				break;
+			}
+			slot = current.next(slot);
+		}
+
+		if (current.isFullAfterAdding(shard.size + 1)) {
+			current = shard.resize(current);
+			slot = current.freeSlotFor(id);
+		}
+		//Value first, then key, see class comment
+		current.values.set(slot, value);
+		current.keys.set(slot, id);
+		shard.size++;
+	}
+
+	@Override
+	void forEachSlot(Consumer<Object> action) {
+		final Object zeroId = zeroIdSlot;
+		if (zeroId != null) {
+			action.accept(zeroId);
+		}
+		for (Shard shard : tables) {
+			final Table current = shard.table;
+			final int capacity = current.keys.length();
+			for (int i = 0; i < capacity; i++) {
+				if (current.keys.get(i) != EMPTY) {
+					action.accept(current.values.get(i));
+				}
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		int size = zeroIdSlot == null ? 0 : 1;
+		for (Shard shard : tables) {
+			size += shard.size;
+		}
+		return size;
+	}
+
+	private static int tableSizeFor(int capacity) {
+		int n = Integer.highestOneBit(Math.max(capacity, 16) - 1) << 1;
+		return Math.min(n, MAXIMUM_CAPACITY);
+	}
+
+	private static final class Shard {
+		private volatile Table table;
+		private volatile int size;
+
+		private Shard(int capacity) {
+			table = new Table(capacity);
+		}
+
+		private Table resize(Table old) {
+			final int capacity = old.keys.length();
+			if (capacity == MAXIMUM_CAPACITY) {
+				throw new IllegalStateException("Price store shard cannot grow beyond " + MAXIMUM_CAPACITY + " slots");
+			}
+			final Table bigger = new Table(capacity << 1);
+			for (int i = 0; i < capacity; i++) {
+				final long key = old.keys.get(i);
+				if (key != EMPTY) {
+					final int slot = bigger.freeSlotFor(key);
+					bigger.values.set(slot, old.values.get(i));
+					bigger.keys.set(slot, key);
+				}
+			}
+			table = bigger;
+			return bigger;
+		}
+	}
+
+	private static final class Table {
+		private final AtomicLongArray keys;
+		private final AtomicReferenceArray<Object> values;
+		private final int mask;
+		private final int threshold;
+
+		private Table(int capacity) {
+			keys = new AtomicLongArray(capacity);
+			values = new AtomicReferenceArray<>(capacity);
+			mask = capacity - 1;
+			//Keep the load factor at 2/3 so that probe sequences stay short
+			threshold = (int) (capacity * 2L / 3);
+		}
+
+		private int slotFor(long id) {
+			return mix(id) & mask;
+		}
+
+		private int next(int slot) {
+			return (slot + 1) & mask;
+		}
+
+		private int freeSlotFor(long id) {
+			int slot = slotFor(id);
+			while (keys.get(slot) != EMPTY) {
+				slot = next(slot);
+			}
+			return slot;
+		}
+
+		private boolean isFullAfterAdding(int newSize) {
+			return newSize > threshold;
+		}
+
+		/**
+		 * Instrument ids are often sequential, so spread the bits (the murmur3 finaliser) before masking.
+		 */
+		private static int mix(long id) {
+			long h = id;
+			h ^= h >>> 33;
+			h *= 0xff51afd7ed558ccdL;
+			h ^= h >>> 33;
+			h *= 0xc4ceb9fe1a85ec53L;
+			h ^= h >>> 33;
+			return (int) h;
+		}
+	}
+}
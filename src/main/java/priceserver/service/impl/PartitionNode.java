@@ -0,0 +1,143 @@
+package priceserver.service.impl;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.RestTemplate;
+import priceserver.domain.Price;
+import priceserver.domain.PriceQueryResult;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * One partition as the router sees it: a price server holding some of the instruments, reached through the same REST
+ * endpoints clients use.  Requests and responses are always JSON, whatever else the two ends could speak.  Failures
+ * are left to the router to make sense of, as it knows which of its batches a request was for.
+ */
+final class PartitionNode {
+	private static final long NANOS_PER_SECOND = 1_000_000_000L;
+	private static final MediaType NDJSON = MediaType.valueOf("application/x-ndjson");
+
+	private final String url;
+	private final RestTemplate rest;
+	private final ObjectReader priceReader;
+
+	/**
+	 * @param url The node's REST endpoints, without a trailing slash
+	 */
+	PartitionNode(String url, RestTemplate rest, ObjectReader priceReader) {
+		this.url = url;
+		this.rest = rest;
+		this.priceReader = priceReader;
+	}
+
+	/**
+	 * @param client The router's client, which the node counts the batch against rather than the router
+	 */
+	long createBatch(String client) {
+		return rest.exchange(url + "/batches/create", HttpMethod.POST, json(null, client), Long.class).getBody();
+	}
+
+	void upload(long batchId, List<Price> prices, String client) {
+		rest.exchange(url + "/batches/" + batchId + "/upload", HttpMethod.POST, json(prices, client), Void.class);
+	}
+
+	void prepare(long batchId) {
+		rest.exchange(url + "/batches/" + batchId + "/prepare", HttpMethod.POST, json(null), Void.class);
+	}
+
+	void commit(long batchId, long epoch) {
+		rest.exchange(url + "/batches/" + batchId + "/commit?epoch=" + epoch, HttpMethod.POST, json(null), Void.class);
+	}
+
+	void cancel(long batchId) {
+		rest.exchange(url + "/batches/" + batchId + "/cancel", HttpMethod.POST, json(null), Void.class);
+	}
+
+	/**
+	 * @return The price, or null if the node has none for the id
+	 */
+	Price latestPrice(long id) {
+		return getIfFound(url + "/prices/" + id);
+	}
+
+	/**
+	 * @param timestamp Nanoseconds since the epoch
+	 * @return The price, or null if the node has none for the id at the time
+	 */
+	Price priceAsOf(long id, long timestamp) {
+		final Instant asOf = Instant.ofEpochSecond(Math.floorDiv(timestamp, NANOS_PER_SECOND),
+		                                           Math.floorMod(timestamp, NANOS_PER_SECOND));
+		return getIfFound(url + "/prices/" + id + "?asOf=" + asOf);
+	}
+
+	PriceQueryResult query(long[] ids, long changedSince) {
+		return rest.exchange(url + "/prices/query?changedSince=" + changedSince,
+		                     HttpMethod.POST,
+		                     json(ids),
+		                     PriceQueryResult.class)
+		           .getBody();
+	}
+
+	/**
+	 * @return The epoch of the last commit the node published
+	 */
+	long epoch() {
+		return query(new long[0], 0L).getEpoch();
+	}
+
+	/**
+	 * Streams the node's whole book to the action, as newline delimited JSON, without holding it in memory.
+	 */
+	void forEach(Consumer<Price> action) {
+		rest.execute(url + "/prices",
+		             HttpMethod.GET,
+		             request -> request.getHeaders().setAccept(Collections.singletonList(NDJSON)),
+		             response -> {
+			             try (MappingIterator<Price> prices = priceReader.readValues(response.getBody())) {
+				             prices.forEachRemaining(action);
+			             }
+			             return null;
+		             });
+	}
+
+	private Price getIfFound(String priceUrl) {
+		try {
+			return rest.exchange(priceUrl, HttpMethod.GET, json(null), Price.class).getBody();
+		} catch (HttpClientErrorException e) {
+			if (e.getStatusCode() == HttpStatus.NOT_FOUND) {
+				return null;
+			}
+			throw e;
+		}
+	}
+
+	private static <T> HttpEntity<T> json(T body) {
+		return json(body, null);
+	}
+
+	private static <T> HttpEntity<T> json(T body, String client) {
+		final HttpHeaders headers = new HttpHeaders();
+		headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+		if (body != null) {
+			headers.setContentType(MediaType.APPLICATION_JSON);
+		}
+		if (client != null) {
+			headers.set(AdmissionControl.CLIENT_HEADER, client);
+		}
+		return new HttpEntity<>(body, headers);
+	}
+
+	@Override
+	public String toString() {
+		return url;
+	}
+}
@@ -0,0 +1,832 @@
+package priceserver.service.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+import priceserver.domain.Batch;
+import priceserver.domain.ChunkClaims;
+import priceserver.domain.CommitTicket;
+import priceserver.domain.Price;
+import priceserver.domain.PriceQueryResult;
+import priceserver.exceptions.BatchAlreadyCommitted;
+import priceserver.exceptions.BatchNotFoundException;
+import priceserver.exceptions.ChunkInProgressException;
+import priceserver.exceptions.CommitNotFoundException;
+import priceserver.exceptions.IncompleteBatchException;
+import priceserver.exceptions.InvalidChunkException;
+import priceserver.exceptions.NotRoutedException;
+import priceserver.exceptions.PartitionUnavailableException;
+import priceserver.exceptions.PriceNotFoundException;
+import priceserver.exceptions.TooManyRequestsException;
+import priceserver.service.PriceSubscription;
+import priceserver.service.PricerService;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Serves the book spread across several price servers, the partitions, each holding the instruments a consistent
+ * hash ring gives it.  The router holds no prices itself: every request is passed on to the partitions it concerns,
+ * in parallel where there are several.
+ *
+ * A batch is a batch on each partition its prices are uploaded to, created the first time one of them is, and each
+ * upload is split between them.  Closing the batch waits for the uploads under way to finish and refuses any more, so
+ * no part is created on a partition after the others have been prepared.  Committing it takes two phases.  First
+ * every partition prepares its part, closing the batch and setting its prices aside, and if any of them cannot the
+ * others are cancelled and the commit fails having changed nothing.  A prepared part is journalled on its partition,
+ * so survives the partition restarting.  Then the router records its decision to commit in its own log, and every
+ * partition commits its part under the same epoch, handed out by the router, so epochs mean the same on every
+ * partition and a query fanned out with changedSince misses nothing.  A partition that cannot be reached, or fails,
+ * is asked again until it commits its part, which it answers as already made if it was, and a router restarted part
+ * way through finishes the commits in its log before serving.  The second phase is taken by one commit at a time, in
+ * epoch order, as a partition can only publish epochs in order, so later commits wait for a partition that is down.
+ *
+ * Batches prepared and then neither committed nor cancelled are forgotten after the prepared max age, as are their
+ * parts on the partitions, which count the age from later than the router does so are never dropped first.
+ *
+ * Numbered chunks are counted on the router, as each is split between the partitions, which only ever see it as
+ * plain uploads.
+ *
+ * Only one router may take writes, as each hands out its own epochs.  Subscriptions are not routed, as the events of
+ * several partitions cannot be merged into one stream without reordering them.
+ */
+@Service
+@ThreadSafe
+@ConditionalOnProperty(name = "priceserver.partitioning.router", havingValue = "true")
+public class PartitionRouter implements PricerService {
+	private static final Logger log = LoggerFactory.getLogger(PartitionRouter.class);
+
+	//Asks publish for the next epoch, rather than one handed out by another router
+	private static final long NEXT_EPOCH = 0L;
+
+	//How long to wait before asking a partition again to commit its part, doubling each time
+	private static final long MIN_RETRY_MS = 100L;
+	private static final long MAX_RETRY_MS = 5_000L;
+
+	private enum State { OPEN, CLOSING, PREPARED, CLOSED }
+
+	private final ConsistentHashRing<PartitionNode> ring;
+
+	private final ExecutorService fanOut;
+
+	private final AsyncCommits asyncCommits;
+
+	private final long maxAgeMs;
+
+	private final long preparedMaxAgeMs;
+
+	private final CommitDecisions decisions;
+
+	private final Map<String, PartitionNode> nodesByUrl = new HashMap<>();
+
+	private final ConcurrentMap<Long, RoutedBatch> batches = new ConcurrentHashMap<>();
+
+	private final AtomicLong nextBatchId = new AtomicLong(1);
+
+	private final EpochSequencer epochSequencer = new EpochSequencer();
+
+	//Makes sure epochs are taken in the order they are handed out
+	private final Object commitOrderLock = new Object();
+
+	private final Counter aborted;
+
+	private final Counter incomplete;
+
+	private volatile boolean closed;
+
+	/**
+	 * @param nodes        The partitions' REST endpoints, such as http://localhost:8081
+	 * @param virtualNodes Points each partition has on the ring
+	 * @param threads      Requests to the partitions made at once
+	 * @param decisionLog  The file the router records its commit decisions in
+	 */
+	public PartitionRouter(@Value("${priceserver.partitioning.nodes}") String[] nodes,
+	                       @Value("${priceserver.partitioning.virtual-nodes:256}") int virtualNodes,
+	                       @Value("${priceserver.partitioning.threads:16}") int threads,
+	                       @Value("${priceserver.partitioning.timeout-ms:30000}") int timeoutMs,
+	                       @Value("${priceserver.batches.max-age-ms:3600000}") long maxAgeMs,
+	                       @Value("${priceserver.batches.prepared-max-age-ms:86400000}") long preparedMaxAgeMs,
+	                       @Value("${priceserver.partitioning.decision-log:commit-decisions.log}") String decisionLog,
+	                       RestTemplateBuilder restTemplateBuilder,
+	                       ObjectMapper objectMapper,
+	                       AsyncCommits asyncCommits,
+	                       MeterRegistry registry) throws IOException {
+		final RestTemplate rest = restTemplateBuilder.setConnectTimeout(timeoutMs)
+		                                             .setReadTimeout(timeoutMs)
+		                                             .build();
+		final List<PartitionNode> partitions = new ArrayList<>(nodes.length);
+		for (String node : nodes) {
+			final String url = node.trim();
+			final PartitionNode partition = new PartitionNode(url.endsWith("/") ? url.substring(0, url.length() - 1)
+			                                                                    : url,
+			                                                  rest,
+			                                                  objectMapper.readerFor(Price.class));
+			partitions.add(partition);
+			nodesByUrl.put(partition.toString(), partition);
+		}
+		this.ring = new ConsistentHashRing<>(partitions, virtualNodes);
+		final AtomicInteger threadCount = new AtomicInteger();
+		this.fanOut = Executors.newFixedThreadPool(threads, runnable -> {
+			final Thread thread = new Thread(runnable, "partition-router-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.asyncCommits = asyncCommits;
+		this.maxAgeMs = maxAgeMs;
+		this.preparedMaxAgeMs = preparedMaxAgeMs;
+		this.decisions = new CommitDecisions(Paths.get(decisionLog));
+
+		aborted = Counter.builder("priceserver.partitions.commits.aborted")
+		                 .description("Commits cancelled on every partition as one of them could not prepare its part")
+		                 .register(registry);
+		incomplete = Counter.builder("priceserver.partitions.commits.incomplete")
+		                    .description("Parts of decided commits lost by their partitions before they were made")
+		                    .register(registry);
+		Gauge.builder("priceserver.partitions", ring, r -> r.nodes().size())
+		     .description("Partitions the book is spread across")
+		     .register(registry);
+		Gauge.builder("priceserver.partitions.batches.open", batches, Map::size)
+		     .description("Batches open on the router")
+		     .register(registry);
+		Gauge.builder("priceserver.book.epoch", epochSequencer, EpochSequencer::lastPublished)
+		     .description("Epoch of the last published commit")
+		     .register(registry);
+	}
+
+	/**
+	 * Carries on numbering epochs after the last one any partition has published or the router had decided on, and
+	 * finishes the commits decided on before a restart, before any requests are served.
+	 */
+	@PostConstruct
+	void start() {
+		long lastEpoch = 0L;
+		for (long epoch : onEach(ring.nodes(), node -> call(node, 0L, node::epoch)).values()) {
+			lastEpoch = Math.max(lastEpoch, epoch);
+		}
+		final List<CommitDecisions.Decision> unfinished = decisions.unfinished();
+		for (CommitDecisions.Decision decision : unfinished) {
+			lastEpoch = Math.max(lastEpoch, decision.epoch);
+		}
+		epochSequencer.startAfter(lastEpoch);
+		for (CommitDecisions.Decision decision : unfinished) {
+			log.warn("Finishing the commit of batch {} as epoch {}, begun before a restart", decision.batchId,
+			         decision.epoch);
+			commitParts(decision);
+			finished(decision);
+		}
+		log.info("Routing to {} partitions from epoch {}", ring.nodes().size(), lastEpoch);
+	}
+
+	@Override
+	public Batch createBatch(String client) {
+		expireOldBatches();
+		final RoutedBatch batch = new RoutedBatch(nextBatchId.getAndIncrement(), client);
+		batches.put(batch.id, batch);
+		log.info("New batch created {}", batch.id);
+		return new Batch(batch.id);
+	}
+
+	@Override
+	public void upload(long batchId, List<Price> prices) {
+		final RoutedBatch batch = batches.get(batchId);
+		if (batch == null || !batch.enterUpload()) {
+			throw new BatchNotFoundException(batchId);
+		}
+		try {
+			final Map<PartitionNode, List<Price>> parts = new HashMap<>();
+			for (Price price : prices) {
+				parts.computeIfAbsent(ring.nodeFor(price.getId()), node -> new ArrayList<>()).add(price);
+			}
+			onEach(parts.keySet(), node -> call(node, batchId, () -> {
+				node.upload(batch.on(node), parts.get(node), batch.client);
+				return null;
+			}));
+		} finally {
+			batch.exitUpload();
+		}
+	}
+
+	@Override
+	public boolean startChunk(long batchId, int chunk) {
+		if (chunk < 0) {
+			throw new InvalidChunkException(batchId, "chunk", chunk);
+		}
+		switch (openBatch(batchId).chunks.claim(chunk)) {
+			case RECEIVED:
+				return false;
+			case IN_PROGRESS:
+				throw new ChunkInProgressException(batchId, chunk);
+			default:
+				return true;
+		}
+	}
+
+	@Override
+	public void finishChunk(long batchId, int chunk) {
+		final RoutedBatch batch = batches.get(batchId);
+		if (batch != null) {
+			batch.chunks.finish(chunk);
+		}
+	}
+
+	@Override
+	public void abandonChunk(long batchId, int chunk) {
+		final RoutedBatch batch = batches.get(batchId);
+		if (batch != null) {
+			batch.chunks.abandon(chunk);
+		}
+	}
+
+	@Override
+	public void expectChunks(long batchId, int count) {
+		if (count < 0) {
+			throw new InvalidChunkException(batchId, "expectedChunks", count);
+		}
+		openBatch(batchId).expectedChunks = count;
+	}
+
+	@Override
+	public void commit(long batchId) {
+		commit(batchId, NEXT_EPOCH);
+	}
+
+	@Override
+	public void prepare(long batchId) {
+		final RoutedBatch batch = batches.get(batchId);
+		checkChunks(batch);
+		if (batch == null || batch.close(State.PREPARED) != State.OPEN) {
+			throw new BatchNotFoundException(batchId);
+		}
+		prepare(batch);
+	}
+
+	@Override
+	public void commit(long batchId, long epoch) {
+		log.info("Committing {}", batchId);
+		final RoutedBatch batch = batches.get(batchId);
+		checkChunks(batch);
+		final State was = batch == null ? null : batch.close(State.CLOSED);
+		if (was == State.PREPARED) {
+			publish(batch, epoch);
+		} else if (was == State.OPEN) {
+			prepare(batch);
+			publish(batch, epoch);
+		} else {
+			throw new BatchNotFoundException(batchId);
+		}
+	}
+
+	@Override
+	public CommitTicket commitAsync(long batchId) {
+		log.info("Committing {} in the background", batchId);
+		//Closed here so that an unknown or committed batch fails the request, and later uploads are refused at once
+		final RoutedBatch batch = batches.get(batchId);
+		checkChunks(batch);
+		final State was = batch == null ? null : batch.close(State.CLOSED);
+		if (was != State.OPEN && was != State.PREPARED) {
+			throw new BatchNotFoundException(batchId);
+		}
+		asyncCommits.submit(batchId, () -> {
+			if (was == State.OPEN) {
+				prepare(batch);
+			}
+			return publish(batch, NEXT_EPOCH);
+		});
+		return CommitTicket.pending(batchId);
+	}
+
+	@Override
+	public CompletableFuture<CommitTicket> commitStatus(long batchId) {
+		final CompletableFuture<Long> commit = asyncCommits.get(batchId);
+		if (commit == null) {
+			throw new CommitNotFoundException(batchId);
+		}
+		return commit.handle((epoch, failure) -> {
+			if (failure == null) {
+				return CommitTicket.committed(batchId, epoch);
+			}
+			final Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+			return CommitTicket.failed(batchId, String.valueOf(cause.getMessage()));
+		});
+	}
+
+	@Override
+	public void cancel(long batchId) {
+		log.info("Cancelling batch {}", batchId);
+		final RoutedBatch batch = batches.get(batchId);
+		final State was = batch == null ? null : batch.close(State.CLOSED);
+		if (was != State.OPEN && was != State.PREPARED) {
+			throw new BatchNotFoundException(batchId);
+		}
+		batches.remove(batchId, batch);
+		cancelParts(batch);
+		log.info("Batch {} cancelled", batchId);
+	}
+
+	/**
+	 * The first phase: every partition the batch was uploaded to closes its part and sets it aside.  If any of them
+	 * cannot, every part is cancelled and the batch is no more.
+	 */
+	private void prepare(RoutedBatch batch) {
+		batch.preparingAt = System.currentTimeMillis();
+		try {
+			onEach(batch.parts.keySet(), node -> call(node, batch.id, () -> {
+				node.prepare(batch.partOn(node));
+				return null;
+			}));
+		} catch (RuntimeException e) {
+			log.warn("Batch {} could not be prepared on every partition, cancelling it: {}", batch.id, e.getMessage());
+			aborted.increment();
+			batches.remove(batch.id, batch);
+			cancelParts(batch);
+			throw e;
+		}
+	}
+
+	/**
+	 * The second phase: the decision to commit is recorded, and then every partition commits its prepared part under
+	 * the same epoch, in epoch order with every other commit.  If the decision cannot be recorded the batch is
+	 * cancelled as if it could not be prepared.
+	 * @return The epoch the batch was published under
+	 */
+	private long publish(RoutedBatch batch, long requestedEpoch) {
+		batches.remove(batch.id, batch);
+		final long epoch;
+		synchronized (commitOrderLock) {
+			epoch = requestedEpoch == NEXT_EPOCH ? epochSequencer.next() : epochSequencer.jumpTo(requestedEpoch);
+		}
+		epochSequencer.awaitTurn(epoch);
+		try {
+			final Map<String, Long> parts = new LinkedHashMap<>();
+			for (PartitionNode node : batch.parts.keySet()) {
+				parts.put(node.toString(), batch.partOn(node));
+			}
+			final CommitDecisions.Decision decision = new CommitDecisions.Decision(epoch, batch.id, parts);
+			try {
+				decisions.decided(decision);
+			} catch (RuntimeException e) {
+				log.warn("Batch {} could not be committed as epoch {}, cancelling it: {}", batch.id, epoch,
+				         e.getMessage());
+				aborted.increment();
+				cancelParts(batch);
+				throw e;
+			}
+			commitParts(decision);
+			finished(decision);
+		} finally {
+			epochSequencer.published(epoch);
+		}
+		log.info("Batch {} is now committed as epoch {} on {} partitions", batch.id, epoch, batch.parts.size());
+		return epoch;
+	}
+
+	/**
+	 * Asks every partition to commit its part of a decided commit, and asks those that fail again, backing off, until
+	 * each has.  A partition that no longer has its part is given up on, as nothing can bring the part back.  Waiting
+	 * cannot be interrupted, as giving up would let later epochs reach a partition before this one.
+	 * @throws PartitionUnavailableException If the router is shutting down first, leaving the rest to a restart
+	 */
+	private void commitParts(CommitDecisions.Decision decision) {
+		final Map<PartitionNode, Long> remaining = new LinkedHashMap<>();
+		decision.parts.forEach((url, partId) -> {
+			final PartitionNode node = nodesByUrl.get(url);
+			if (node == null) {
+				log.error("Partition {} is no longer routed to, batch {} is committed as epoch {} without its part",
+				          url, decision.batchId, decision.epoch);
+				incomplete.increment();
+			} else {
+				remaining.put(node, partId);
+			}
+		});
+		long retryMs = MIN_RETRY_MS;
+		boolean interrupted = false;
+		while (true) {
+			final Map<PartitionNode, RuntimeException> failures = onEach(remaining.keySet(), node -> {
+				try {
+					call(node, decision.batchId, () -> {
+						node.commit(remaining.get(node), decision.epoch);
+						return null;
+					});
+					return null;
+				} catch (RuntimeException e) {
+					return e;
+				}
+			});
+			RuntimeException failure = null;
+			for (Map.Entry<PartitionNode, RuntimeException> answer : failures.entrySet()) {
+				if (answer.getValue() == null) {
+					remaining.remove(answer.getKey());
+				} else if (answer.getValue() instanceof BatchNotFoundException) {
+					log.error("Partition {} has lost its part of batch {}, which is committed as epoch {} without it",
+					          answer.getKey(), decision.batchId, decision.epoch);
+					incomplete.increment();
+					remaining.remove(answer.getKey());
+				} else if (failure == null) {
+					failure = answer.getValue();
+				}
+			}
+			if (remaining.isEmpty()) {
+				break;
+			}
+			if (closed) {
+				throw new PartitionUnavailableException("Batch " + decision.batchId + " is not yet committed on "
+				                                        + remaining.keySet() + ", which a restart will finish",
+				                                        failure);
+			}
+			log.warn("Batch {} is not yet committed as epoch {} on {}, trying again in {}ms: {}", decision.batchId,
+			         decision.epoch, remaining.keySet(), retryMs, failure.getMessage());
+			try {
+				Thread.sleep(retryMs);
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+			retryMs = Math.min(retryMs * 2, MAX_RETRY_MS);
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void finished(CommitDecisions.Decision decision) {
+		try {
+			decisions.finished(decision.epoch);
+		} catch (RuntimeException e) {
+			//The partitions answer the commit as already made when it is finished again after a restart
+			log.warn("Could not record that batch {} is committed: {}", decision.batchId, e.getMessage());
+		}
+	}
+
+	/**
+	 * Cancels the batch on every partition it was created on, as far as they can be reached.  Parts left behind
+	 * expire on their partitions.
+	 */
+	private void cancelParts(RoutedBatch batch) {
+		try {
+			onEach(batch.parts.keySet(), node -> call(node, batch.id, () -> {
+				node.cancel(batch.partOn(node));
+				return null;
+			}));
+		} catch (RuntimeException e) {
+			log.warn("Batch {} could not be cancelled on every partition: {}", batch.id, e.getMessage());
+		}
+	}
+
+	/**
+	 * Fails the commit of an open batch that has not received the chunks the client said it sent, leaving it open.
+	 */
+	private static void checkChunks(RoutedBatch batch) {
+		if (batch == null || batch.state.get() != State.OPEN) {
+			return;
+		}
+		final int expected = batch.expectedChunks;
+		final int received = batch.chunks.received();
+		if (expected != RoutedBatch.ANY_CHUNKS && received != expected) {
+			throw new IncompleteBatchException(batch.id, received, expected);
+		}
+	}
+
+	private RoutedBatch openBatch(long batchId) {
+		final RoutedBatch batch = batches.get(batchId);
+		if (batch == null || batch.state.get() != State.OPEN) {
+			throw new BatchNotFoundException(batchId);
+		}
+		return batch;
+	}
+
+
+	/**
+	 * Forgets batches left open, or prepared and not committed or cancelled, for longer than a partition would keep
+	 * them.  A prepared batch is closed first, so it cannot be committed at the same time.
+	 */
+	private void expireOldBatches() {
+		final long now = System.currentTimeMillis();
+		batches.values().removeIf(batch -> {
+			if (batch.state.get() == State.OPEN) {
+				return batch.createdAt < now - maxAgeMs;
+			}
+			if (batch.preparingAt < now - preparedMaxAgeMs && batch.state.compareAndSet(State.PREPARED, State.CLOSED)) {
+				log.warn("Batch {} was prepared and neither committed nor cancelled in time, forgetting it", batch.id);
+				return true;
+			}
+			return false;
+		});
+	}
+
+	@Override
+	public Price latestPrice(long id) {
+		final PartitionNode node = ring.nodeFor(id);
+		final Price price = call(node, 0L, () -> node.latestPrice(id));
+		if (price == null) {
+			throw new PriceNotFoundException(id);
+		}
+		return price;
+	}
+
+	@Override
+	public Price priceAsOf(long id, long timestamp) {
+		final PartitionNode node = ring.nodeFor(id);
+		final Price price = call(node, 0L, () -> node.priceAsOf(id, timestamp));
+		if (price == null) {
+			throw new PriceNotFoundException(id);
+		}
+		return price;
+	}
+
+	@Override
+	public PriceQueryResult latestPrices(long[] ids) {
+		return lookUp(ids, 0L);
+	}
+
+	@Override
+	public PriceQueryResult pricesChangedSince(long[] ids, long epoch) {
+		return lookUp(ids, epoch);
+	}
+
+	@Override
+	public long epoch() {
+		return epochSequencer.lastPublished();
+	}
+
+	private PriceQueryResult lookUp(long[] ids, long changedSince) {
+		//Read first, so that a commit published during the lookup is after it, and not missed by the next one.  Each
+		//partition reads its ids as of one epoch, but the partitions are not pinned at the same one
+		final long epoch = epochSequencer.lastPublished();
+		final Map<PartitionNode, long[]> idsByNode = splitByNode(ids);
+		final Map<PartitionNode, PriceQueryResult> results =
+				onEach(idsByNode.keySet(), node -> call(node, 0L, () -> node.query(idsByNode.get(node), changedSince)));
+		final List<Price> prices = new ArrayList<>(ids.length);
+		long[] missing = new long[0];
+		for (PriceQueryResult result : results.values()) {
+			prices.addAll(result.getPrices());
+			final int missingCount = missing.length;
+			missing = Arrays.copyOf(missing, missingCount + result.getMissing().length);
+			System.arraycopy(result.getMissing(), 0, missing, missingCount, result.getMissing().length);
+		}
+		log.debug("Looked up {} prices on {} partitions, {} missing", ids.length, results.size(), missing.length);
+		return new PriceQueryResult(prices, missing, epoch);
+	}
+
+	/**
+	 * Counts the ids each node holds first, so that each node's ids are copied straight into an array of their own.
+	 */
+	private Map<PartitionNode, long[]> splitByNode(long[] ids) {
+		final PartitionNode[] owners = new PartitionNode[ids.length];
+		final Map<PartitionNode, int[]> counts = new HashMap<>();
+		for (int i = 0; i < ids.length; i++) {
+			owners[i] = ring.nodeFor(ids[i]);
+			counts.computeIfAbsent(owners[i], node -> new int[1])[0]++;
+		}
+		final Map<PartitionNode, long[]> idsByNode = new HashMap<>();
+		final Map<PartitionNode, int[]> filled = new HashMap<>();
+		counts.forEach((node, count) -> {
+			idsByNode.put(node, new long[count[0]]);
+			filled.put(node, new int[1]);
+		});
+		for (int i = 0; i < ids.length; i++) {
+			idsByNode.get(owners[i])[filled.get(owners[i])[0]++] = ids[i];
+		}
+		return idsByNode;
+	}
+
+	/**
+	 * Streams each partition's book in turn, so the action is only ever called from one thread at a time.  Each book
+	 * is read as of the epoch its partition had published when its turn came.
+	 */
+	@Override
+	public void forEachLatestPrice(Consumer<Price> action) {
+		for (PartitionNode node : ring.nodes()) {
+			call(node, 0L, () -> {
+				node.forEach(action);
+				return null;
+			});
+		}
+	}
+
+	@Override
+	public PriceSubscription subscribe(long[] ids, Runnable onChange) {
+		throw new NotRoutedException("Subscriptions are not routed, subscribe to the partitions holding the ids");
+	}
+
+	/**
+	 * Runs the request on every node at once, and waits for all of them to finish before failing with the first
+	 * failure, so that no request is still running once the caller moves on.
+	 * @return Each node's answer
+	 */
+	private <T> Map<PartitionNode, T> onEach(Iterable<PartitionNode> nodes, Function<PartitionNode, T> request) {
+		final Map<PartitionNode, CompletableFuture<T>> requests = new LinkedHashMap<>();
+		for (PartitionNode node : nodes) {
+			requests.put(node, CompletableFuture.supplyAsync(() -> request.apply(node), fanOut));
+		}
+		final Map<PartitionNode, T> answers = new LinkedHashMap<>();
+		RuntimeException failure = null;
+		for (Map.Entry<PartitionNode, CompletableFuture<T>> entry : requests.entrySet()) {
+			try {
+				answers.put(entry.getKey(), entry.getValue().join());
+			} catch (CompletionException e) {
+				if (failure == null) {
+					failure = e.getCause() instanceof RuntimeException
+					          ? (RuntimeException) e.getCause()
+					          : e;
+				}
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return answers;
+	}
+
+	/**
+	 * Makes a request of a partition, turning its failures into the ones the router's own clients should see.
+	 * @param batchId The router's batch the request is for, if any
+	 */
+	private static <T> T call(PartitionNode node, long batchId, Supplier<T> request) {
+		try {
+			return request.get();
+		} catch (HttpStatusCodeException e) {
+			if (e.getStatusCode() == HttpStatus.NOT_FOUND && batchId != 0L) {
+				throw new BatchNotFoundException(batchId);
+			}
+			if (e.getStatusCode() == HttpStatus.GONE && batchId != 0L) {
+				throw new BatchAlreadyCommitted(batchId);
+			}
+			if (e.getStatusCode() == HttpStatus.TOO_MANY_REQUESTS) {
+				final String retryAfter = e.getResponseHeaders().getFirst(HttpHeaders.RETRY_AFTER);
+				throw new TooManyRequestsException("Partition " + node + " is too busy, try again later",
+				                                   retryAfter == null ? 1L : Long.parseLong(retryAfter));
+			}
+			throw new PartitionUnavailableException("Partition " + node + " answered " + e.getStatusCode() + ": "
+			                                        + e.getResponseBodyAsString(), e);
+		} catch (RestClientException e) {
+			throw new PartitionUnavailableException("Partition " + node + " could not be reached: " + e.getMessage(),
+			                                        e);
+		}
+	}
+
+	@PreDestroy
+	void close() throws IOException {
+		closed = true;
+		fanOut.shutdownNow();
+		decisions.close();
+	}
+
+	/**
+	 * A batch on the router, and the batches on the partitions its prices have been uploaded to.
+	 */
+	private final class RoutedBatch {
+		private static final int ANY_CHUNKS = -1;
+
+		private final long id;
+		//Passed on to the partitions, which limit the batches and uploads of each client
+		private final String client;
+		private final long createdAt = System.currentTimeMillis();
+		private final AtomicReference<State> state = new AtomicReference<>(State.OPEN);
+		//Uploads under way, which closing waits for so that no part is created once the others are prepared
+		private final AtomicInteger uploads = new AtomicInteger();
+		//Created on each partition by the first upload to need it, which later uploads wait on
+		private final ConcurrentMap<PartitionNode, CompletableFuture<Long>> parts = new ConcurrentHashMap<>();
+		private final ChunkClaims chunks = new ChunkClaims();
+		//When the first phase began, which partitions count a prepared part's age from later
+		private volatile long preparingAt;
+		private volatile int expectedChunks = ANY_CHUNKS;
+
+		private RoutedBatch(long id, String client) {
+			this.id = id;
+			this.client = client;
+		}
+
+		/**
+		 * Counts an upload in, after which the batch cannot finish closing until it is counted out.  Counting in before
+		 * looking at the state means an upload either sees the batch closing or is waited for.
+		 * @return False if the batch is no longer open, in which case the upload is not counted
+		 */
+		private boolean enterUpload() {
+			uploads.incrementAndGet();
+			if (state.get() != State.OPEN) {
+				exitUpload();
+				return false;
+			}
+			return true;
+		}
+
+		private void exitUpload() {
+			if (uploads.decrementAndGet() == 0) {
+				synchronized (this) {
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * @return The batch's id on the partition, creating it there if need be, which only an upload counted in may do
+		 */
+		private long on(PartitionNode node) {
+			CompletableFuture<Long> part = parts.get(node);
+			if (part == null) {
+				final State current = state.get();
+				if (current != State.OPEN && current != State.CLOSING) {
+					throw new BatchNotFoundException(id);
+				}
+				final CompletableFuture<Long> created = new CompletableFuture<>();
+				part = parts.putIfAbsent(node, created);
+				if (part == null) {
+					part = created;
+					try {
+						created.complete(node.createBatch(client));
+					} catch (RuntimeException e) {
+						created.completeExceptionally(e);
+					}
+				}
+			}
+			return join(part);
+		}
+
+		/**
+		 * @return The batch's id on a partition an upload has already created it on
+		 */
+		private long partOn(PartitionNode node) {
+			return join(parts.get(node));
+		}
+
+		private long join(CompletableFuture<Long> part) {
+			try {
+				return part.join();
+			} catch (CompletionException e) {
+				throw (RuntimeException) e.getCause();
+			}
+		}
+
+		/**
+		 * Closes an open batch by way of CLOSING, waiting there for the uploads under way to finish, so that every
+		 * part it will ever have has been created by the time it is prepared or cancelled.
+		 * @return The state the batch was in before, which only closes it if it was open, or prepared and now closed
+		 */
+		private State close(State to) {
+			while (true) {
+				final State was = state.get();
+				if (was == State.OPEN) {
+					if (state.compareAndSet(State.OPEN, State.CLOSING)) {
+						awaitUploads();
+						state.set(to);
+						return was;
+					}
+				} else if (was == State.PREPARED && to == State.CLOSED) {
+					if (state.compareAndSet(State.PREPARED, State.CLOSED)) {
+						return was;
+					}
+				} else {
+					return was;
+				}
+			}
+		}
+
+		private void awaitUploads() {
+			boolean interrupted = false;
+			synchronized (this) {
+				while (uploads.get() != 0) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
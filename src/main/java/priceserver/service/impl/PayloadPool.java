@@ -0,0 +1,169 @@
+package priceserver.service.impl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import net.jcip.annotations.ThreadSafe;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import priceserver.domain.Price;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets prices with identical payloads share a single copy of it, in the book, its history and the batches staged on
+ * the heap.  Many instruments carry the same payload, such as a quote template or a status blob, and each copy read
+ * off the wire would otherwise be kept separately.
+ *
+ * The pool is keyed by the payload's content and only holds weak references to the payloads, so it never keeps a
+ * payload alive: once the last price holding it has been replaced the payload is collected, and its entry swept out
+ * of the pool by the next intern.  Each distinct payload costs a map node and a weak reference, about 80 bytes, so
+ * the pool only pays off when most payloads are duplicates, and is off unless asked for.
+ */
+@Component
+@ThreadSafe
+public class PayloadPool {
+	private static final int ARRAY_HEADER_BYTES = 16;
+
+	private final boolean enabled;
+
+	//Each entry is its own key, see PooledPayload
+	private final ConcurrentHashMap<Object, PooledPayload> pool = new ConcurrentHashMap<>();
+
+	private final ReferenceQueue<byte[]> collected = new ReferenceQueue<>();
+
+	private final Counter shared;
+
+	public PayloadPool(@Value("${priceserver.payloads.dedup:false}") boolean enabled, MeterRegistry registry) {
+		this.enabled = enabled;
+		Gauge.builder("priceserver.payloads.pooled", pool, ConcurrentHashMap::size)
+		     .description("Distinct payloads in the payload pool")
+		     .register(registry);
+		shared = Counter.builder("priceserver.payloads.shared")
+		                .description("Payload bytes not kept because an identical payload already was")
+		                .baseUnit("bytes")
+		                .register(registry);
+	}
+
+	public static PayloadPool disabled() {
+		return new PayloadPool(false, new SimpleMeterRegistry());
+	}
+
+	/**
+	 * @return The pooled copy of the payload, or the payload itself if there is none, in which case it becomes the
+	 * pooled copy.  The payload must not be changed afterwards, which Price already asks of it.
+	 */
+	public byte[] intern(byte[] payload) {
+		if (!enabled) {
+			return payload;
+		}
+		expungeCollected();
+		final Lookup lookup = new Lookup(payload);
+		final PooledPayload found = pool.get(lookup);
+		final byte[] pooled = found == null ? null : found.get();
+		if (pooled != null) {
+			return share(payload, pooled);
+		}
+		final PooledPayload added = new PooledPayload(payload, lookup.hash, collected);
+		final PooledPayload raced = pool.putIfAbsent(added, added);
+		//Entries whose payload has been collected never match, so only a live one can have raced us
+		final byte[] racedPayload = raced == null ? null : raced.get();
+		return racedPayload == null ? payload : share(payload, racedPayload);
+	}
+
+	/**
+	 * @return The price with its payload interned, or the price itself if its payload is the pooled copy already
+	 */
+	public Price intern(Price price) {
+		final byte[] payload = price.getPayloadBytes();
+		final byte[] pooled = intern(payload);
+		return pooled == payload ? price : new Price(price.getId(), price.getTimestamp(), pooled, price.getEpoch());
+	}
+
+	/**
+	 * @return Distinct payloads in the pool, counting any collected but not swept out yet
+	 */
+	public int size() {
+		return pool.size();
+	}
+
+	private byte[] share(byte[] payload, byte[] pooled) {
+		if (pooled != payload) {
+			shared.increment((ARRAY_HEADER_BYTES + payload.length + 7) & ~7);
+		}
+		return pooled;
+	}
+
+	private void expungeCollected() {
+		Reference<? extends byte[]> reference;
+		while ((reference = collected.poll()) != null) {
+			pool.remove(reference, reference);
+		}
+	}
+
+	/**
+	 * A weak reference to a payload, used as the map's key as well as its value.  It equals another entry or a lookup
+	 * holding the same content, as long as its payload has not been collected, after which it only equals itself.
+	 */
+	private static final class PooledPayload extends WeakReference<byte[]> {
+		private final int hash;
+
+		private PooledPayload(byte[] payload, int hash, ReferenceQueue<byte[]> collected) {
+			super(payload, collected);
+			this.hash = hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			final byte[] payload = get();
+			if (payload == null) {
+				return false;
+			}
+			if (o instanceof PooledPayload) {
+				final byte[] other = ((PooledPayload) o).get();
+				return other != null && Arrays.equals(payload, other);
+			}
+			return o instanceof Lookup && Arrays.equals(payload, ((Lookup) o).payload);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/**
+	 * Looks a payload up by content without creating a weak reference for it.
+	 */
+	private static final class Lookup {
+		private final byte[] payload;
+		private final int hash;
+
+		private Lookup(byte[] payload) {
+			this.payload = payload;
+			this.hash = Arrays.hashCode(payload);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (o instanceof PooledPayload) {
+				final byte[] pooled = ((PooledPayload) o).get();
+				return pooled != null && Arrays.equals(payload, pooled);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
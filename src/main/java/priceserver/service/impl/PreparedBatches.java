@@ -0,0 +1,312 @@
+package priceserver.service.impl;
+
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import priceserver.domain.Price;
+import priceserver.exceptions.BatchAlreadyCommitted;
+import priceserver.exceptions.EpochOutOfOrderException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Batches prepared for a commit spanning several partitions, held until the router commits or cancels them.  With
+ * the journal enabled, each is written to a file of its own in the journal's directory before the prepare is
+ * answered, so that a part the router has been told is prepared survives a restart.
+ *
+ * A part's file starts with the epoch it is being committed under, zero until the router commits it, followed by its
+ * prices.  The epoch is written before the commit is journalled, so a restart can tell from the journal whether the
+ * commit was made.  Once it has been, the file is cut down to the epoch alone, so that a router asking again, having
+ * lost the answer, is told the commit was made rather than that the batch is unknown.
+ *
+ * A part neither committed nor cancelled within the max age is taken to have been given up by its router and
+ * dropped, as is the record of a committed part once it is as old.  One whose commit has started is never dropped.
+ */
+@Component
+@ThreadSafe
+public class PreparedBatches {
+	private static final Logger log = LoggerFactory.getLogger(PreparedBatches.class);
+
+	private static final String SUFFIX = ".prepared";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+	private static final int EPOCH_BYTES = 8;
+	//The epoch of a part not being committed yet
+	private static final long NO_EPOCH = 0L;
+
+	//Null when parts are only held in memory
+	private final Path directory;
+	private final long maxAgeMs;
+	private final PriceChunkSerializer serializer;
+	private final ConcurrentMap<Long, Part> parts = new ConcurrentHashMap<>();
+	private final ConcurrentMap<Long, CommittedPart> committed = new ConcurrentHashMap<>();
+
+	/**
+	 * @param durable  Whether to write the parts to disk, which is only worth it if the journal is
+	 * @param maxAgeMs How long a part is held for its router to commit or cancel it
+	 */
+	public PreparedBatches(@Value("${priceserver.journal.enabled:false}") boolean durable,
+	                       @Value("${priceserver.journal.directory:journal}") String journalDirectory,
+	                       @Value("${priceserver.batches.prepared-max-age-ms:86400000}") long maxAgeMs,
+	                       PayloadPool payloads) throws IOException {
+		this.directory = durable ? Files.createDirectories(Paths.get(journalDirectory, "prepared")) : null;
+		this.maxAgeMs = maxAgeMs;
+		this.serializer = new PriceChunkSerializer(payloads);
+	}
+
+	/**
+	 * @return Prepared parts held only in memory, for tests and benchmarks
+	 */
+	public static PreparedBatches inMemory() {
+		try {
+			return new PreparedBatches(false, "", Long.MAX_VALUE, PayloadPool.disabled());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Reads back the parts prepared before a restart, and the record of those committed.  A part whose commit was
+	 * journalled before the restart is taken as committed.
+	 * @param lastEpoch The last epoch recovered from the journal
+	 * @return The highest batch id any of them has, so that new batches are numbered after them, or zero
+	 */
+	long recover(long lastEpoch) {
+		if (directory == null) {
+			return 0L;
+		}
+		long highestId = 0L;
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				final String name = file.getFileName().toString();
+				if (!name.endsWith(SUFFIX)) {
+					//Written by a prepare that was never answered
+					Files.delete(file);
+					continue;
+				}
+				final long batchId = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+				highestId = Math.max(highestId, batchId);
+				final long preparedAt = Files.getLastModifiedTime(file).toMillis();
+				final ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(file));
+				final long epoch = contents.getLong();
+				if (epoch != NO_EPOCH && (epoch <= lastEpoch || !contents.hasRemaining())) {
+					if (contents.hasRemaining()) {
+						truncate(file);
+					}
+					committed.put(batchId, new CommittedPart(epoch, preparedAt));
+				} else {
+					parts.put(batchId, new Part(Arrays.asList(serializer.read(contents)), epoch, preparedAt));
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not read the prepared batches in " + directory, e);
+		}
+		log.info("Recovered {} prepared batches and {} committed", parts.size(), committed.size());
+		return highestId;
+	}
+
+	/**
+	 * Holds the closed batch's prices until it is committed or cancelled, written to disk first if durable.
+	 */
+	void prepare(long batchId, Collection<Price> prices) {
+		expire();
+		if (directory != null) {
+			final Path temporary = directory.resolve(batchId + TEMPORARY_SUFFIX);
+			final ByteBuffer contents = serializer.serialize(prices.toArray(new Price[0]));
+			try (FileChannel channel = FileChannel.open(temporary,
+			                                            StandardOpenOption.CREATE,
+			                                            StandardOpenOption.TRUNCATE_EXISTING,
+			                                            StandardOpenOption.WRITE)) {
+				writeFully(channel, (ByteBuffer) ByteBuffer.allocate(EPOCH_BYTES).putLong(NO_EPOCH).flip());
+				writeFully(channel, contents);
+				channel.force(true);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not write prepared batch " + batchId, e);
+			}
+			try {
+				Files.move(temporary, file(batchId), StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Could not write prepared batch " + batchId, e);
+			}
+		}
+		parts.put(batchId, new Part(prices, NO_EPOCH, System.currentTimeMillis()));
+	}
+
+	boolean contains(long batchId) {
+		return parts.containsKey(batchId);
+	}
+
+	/**
+	 * Starts committing a prepared part under the router's epoch, recording the epoch first if durable.  The part is
+	 * held until {@link #committed(long)}.
+	 * @return The part's prices, or null if the batch is not prepared
+	 * @throws BatchAlreadyCommitted If the part is being committed by another request
+	 * @throws EpochOutOfOrderException If the part was being committed under another epoch before a restart
+	 */
+	Collection<Price> startCommit(long batchId, long epoch) {
+		final Part part = parts.get(batchId);
+		if (part == null) {
+			return null;
+		}
+		if (part.epoch != NO_EPOCH && part.epoch != epoch) {
+			throw new EpochOutOfOrderException(epoch, part.epoch);
+		}
+		if (!part.taken.compareAndSet(false, true)) {
+			throw new BatchAlreadyCommitted(batchId);
+		}
+		if (directory != null && part.epoch == NO_EPOCH) {
+			try (FileChannel channel = FileChannel.open(file(batchId), StandardOpenOption.WRITE)) {
+				writeFully(channel, (ByteBuffer) ByteBuffer.allocate(EPOCH_BYTES).putLong(epoch).flip());
+				channel.force(true);
+			} catch (IOException e) {
+				part.taken.set(false);
+				throw new UncheckedIOException("Could not record the epoch of prepared batch " + batchId, e);
+			}
+		}
+		part.epoch = epoch;
+		return part.prices;
+	}
+
+	/**
+	 * Lets the part be committed again after an attempt that published nothing.
+	 */
+	void release(long batchId) {
+		final Part part = parts.get(batchId);
+		if (part != null) {
+			part.taken.set(false);
+		}
+	}
+
+	/**
+	 * Lets go of a part whose commit has been published, keeping a record of the epoch it was committed under.
+	 */
+	void committed(long batchId) {
+		final Part part = parts.remove(batchId);
+		if (part == null) {
+			return;
+		}
+		committed.put(batchId, new CommittedPart(part.epoch, System.currentTimeMillis()));
+		if (directory != null) {
+			try {
+				truncate(file(batchId));
+			} catch (IOException e) {
+				//Read back as committed after a restart all the same, as its epoch is in the journal
+				log.warn("Could not cut prepared batch {} down once committed: {}", batchId, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return The epoch the batch was committed under as a prepared part, or zero if it was not
+	 */
+	long committedAs(long batchId) {
+		final CommittedPart part = committed.get(batchId);
+		return part == null ? NO_EPOCH : part.epoch;
+	}
+
+	/**
+	 * Takes back a part to be committed in the usual way, or cancelled.
+	 * @return The part's prices, or null if the batch is not prepared
+	 * @throws BatchAlreadyCommitted If the part is being committed under the router's epoch
+	 */
+	Collection<Price> remove(long batchId) {
+		final Part part = parts.get(batchId);
+		if (part == null) {
+			return null;
+		}
+		if (!part.taken.compareAndSet(false, true)) {
+			throw new BatchAlreadyCommitted(batchId);
+		}
+		parts.remove(batchId, part);
+		delete(batchId);
+		return part.prices;
+	}
+
+	/**
+	 * Drops the parts, and the records of committed parts, older than the max age.
+	 */
+	private void expire() {
+		final long oldest = System.currentTimeMillis() - maxAgeMs;
+		for (Map.Entry<Long, Part> entry : parts.entrySet()) {
+			final Part part = entry.getValue();
+			if (part.preparedAt < oldest && part.epoch == NO_EPOCH && part.taken.compareAndSet(false, true)) {
+				log.warn("Prepared batch {} was neither committed nor cancelled in time, dropping it", entry.getKey());
+				parts.remove(entry.getKey(), part);
+				delete(entry.getKey());
+			}
+		}
+		for (Map.Entry<Long, CommittedPart> entry : committed.entrySet()) {
+			if (entry.getValue().committedAt < oldest && committed.remove(entry.getKey(), entry.getValue())) {
+				delete(entry.getKey());
+			}
+		}
+	}
+
+	private Path file(long batchId) {
+		return directory.resolve(batchId + SUFFIX);
+	}
+
+	private void delete(long batchId) {
+		if (directory == null) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(file(batchId));
+		} catch (IOException e) {
+			log.warn("Could not delete prepared batch {}: {}", batchId, e.getMessage());
+		}
+	}
+
+	private static void truncate(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(EPOCH_BYTES);
+			channel.force(true);
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	private static final class Part {
+		private final Collection<Price> prices;
+		private final long preparedAt;
+		//Set by the first request to commit or cancel the part, so only one of them does
+		private final AtomicBoolean taken = new AtomicBoolean();
+		private volatile long epoch;
+
+		private Part(Collection<Price> prices, long epoch, long preparedAt) {
+			this.prices = prices;
+			this.epoch = epoch;
+			this.preparedAt = preparedAt;
+		}
+	}
+
+	private static final class CommittedPart {
+		private final long epoch;
+		private final long committedAt;
+
+		private CommittedPart(long epoch, long committedAt) {
+			this.epoch = epoch;
+			this.committedAt = committedAt;
+		}
+	}
+}
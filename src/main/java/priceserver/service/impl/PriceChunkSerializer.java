@@ -0,0 +1,66 @@
+package priceserver.service.impl;
+
+import org.ehcache.spi.serialization.Serializer;
+import priceserver.domain.Price;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Writes a chunk of staged prices as: int count, then for each price: long id, long timestamp, int payload length,
+ * payload.  Staged prices have not been committed yet, so they have no epoch to write.  Payloads read back from
+ * off-heap or disk are interned again, as they are read into prices that may go on to the book.
+ */
+class PriceChunkSerializer implements Serializer<Price[]> {
+	private static final int PRICE_HEADER_BYTES = 20;
+
+	private final PayloadPool payloads;
+
+	PriceChunkSerializer(PayloadPool payloads) {
+		this.payloads = payloads;
+	}
+
+	/**
+	 * @return How many bytes the chunk takes once written out
+	 */
+	static int sizeOf(Price[] prices) {
+		int size = 4;
+		for (Price price : prices) {
+			size += PRICE_HEADER_BYTES + price.getPayloadBytes().length;
+		}
+		return size;
+	}
+
+	@Override
+	public ByteBuffer serialize(Price[] prices) {
+		final ByteBuffer buffer = ByteBuffer.allocate(sizeOf(prices));
+		buffer.putInt(prices.length);
+		for (Price price : prices) {
+			final byte[] payload = price.getPayloadBytes();
+			buffer.putLong(price.getId());
+			buffer.putLong(price.getTimestamp());
+			buffer.putInt(payload.length);
+			buffer.put(payload);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	@Override
+	public Price[] read(ByteBuffer binary) {
+		final Price[] prices = new Price[binary.getInt()];
+		for (int i = 0; i < prices.length; i++) {
+			final long id = binary.getLong();
+			final long timestamp = binary.getLong();
+			final byte[] payload = new byte[binary.getInt()];
+			binary.get(payload);
+			prices[i] = new Price(id, timestamp, payloads.intern(payload));
+		}
+		return prices;
+	}
+
+	@Override
+	public boolean equals(Price[] prices, ByteBuffer binary) {
+		return Arrays.equals(prices, read(binary));
+	}
+}
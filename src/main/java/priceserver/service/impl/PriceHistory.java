@@ -0,0 +1,259 @@
+package priceserver.service.impl;
+
+import net.jcip.annotations.ThreadSafe;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import priceserver.domain.Price;
+import priceserver.domain.PriceShards;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Keeps the last few published versions of every instrument, so that the price as of some time in the past can be
+ * looked up.  Only prices that made it into the book are kept: a price that arrived older than the one it would have
+ * replaced was never the latest, so it never was the price as of any time.  The history lives in memory only and
+ * starts empty, apart from any journal replayed at startup.
+ *
+ * Each instrument's versions are held in a {@link VersionRing} no deeper than the maximum depth.  On top of that the
+ * history as a whole is kept within a memory limit, by evicting the versions recorded longest ago first.  To do that
+ * cheaply every version recorded is queued by id, and when the limit is passed the oldest version of the id at the
+ * head of the queue is evicted.  Entries whose version has since gone to the depth limit are skipped, and swept out
+ * when they start to outnumber the live ones.
+ *
+ * The history is split into shards like the book, each guarded by a StampedLock.  Versions are recorded by the thread
+ * publishing a shard's prices, while lookups read optimistically and only take the read lock if a version was
+ * recorded in the same shard while they were looking.
+ */
+@Component
+@ThreadSafe
+public class PriceHistory {
+	private static final int COMPACT_SLACK = 1024;
+
+	private final PriceShards shards;
+	private final int maxDepth;
+	private final long maxBytesPerShard;
+	private final Shard[] historyShards;
+
+	/**
+	 * @param maxDepth Versions kept per instrument, zero to keep no history at all
+	 * @param maxMb    Memory all the versions together may take, zero for no limit beyond the depth
+	 */
+	public PriceHistory(@Value("${priceserver.store.shards:16}") int shards,
+	                    @Value("${priceserver.history.depth:32}") int maxDepth,
+	                    @Value("${priceserver.history.max-mb:256}") long maxMb) {
+		this.shards = new PriceShards(shards);
+		this.maxDepth = maxDepth;
+		this.maxBytesPerShard = maxMb * 1024 * 1024 / shards;
+		this.historyShards = new Shard[shards];
+		for (int i = 0; i < shards; i++) {
+			historyShards[i] = new Shard();
+		}
+	}
+
+	public static PriceHistory disabled() {
+		return new PriceHistory(1, 0, 0);
+	}
+
+	boolean isEnabled() {
+		return maxDepth > 0;
+	}
+
+	/**
+	 * Records a price just published in the book.  Prices for the same id must be recorded in the order they were
+	 * published, which they are as each shard of the book has one writer at a time.
+	 */
+	void record(Price price) {
+		if (!isEnabled()) {
+			return;
+		}
+		final Shard shard = historyShards[shards.shardOf(price.getId())];
+		final long stamp = shard.lock.writeLock();
+		try {
+			shard.record(price);
+		} finally {
+			shard.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @param timestamp Nanoseconds since the epoch
+	 * @return The version that was the latest at the time, or null if no version that old is retained
+	 */
+	public Price asOf(long id, long timestamp) {
+		if (!isEnabled()) {
+			return null;
+		}
+		final Shard shard = historyShards[shards.shardOf(id)];
+		final long optimistic = shard.lock.tryOptimisticRead();
+		if (optimistic != 0L) {
+			try {
+				final Price price = shard.asOf(id, timestamp);
+				if (shard.lock.validate(optimistic)) {
+					return price;
+				}
+			} catch (RuntimeException e) {
+				//Read the ring part way through a change, which the read lock below will not
+			}
+		}
+		final long stamp = shard.lock.readLock();
+		try {
+			return shard.asOf(id, timestamp);
+		} finally {
+			shard.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return Versions held across every instrument
+	 */
+	public long versions() {
+		long versions = 0;
+		for (Shard shard : historyShards) {
+			versions += shard.versions;
+		}
+		return versions;
+	}
+
+	/**
+	 * @return An estimate of the heap taken by the versions held
+	 */
+	public long bytes() {
+		long bytes = 0;
+		for (Shard shard : historyShards) {
+			bytes += shard.bytes;
+		}
+		return bytes;
+	}
+
+	private final class Shard {
+		private final StampedLock lock = new StampedLock();
+		private final ConcurrentHashMap<Long, VersionRing> rings = new ConcurrentHashMap<>();
+		private final EvictionQueue evictionQueue = new EvictionQueue();
+
+		//Only written under the write lock
+		private volatile long versions;
+		private volatile long bytes;
+
+		private void record(Price price) {
+			final VersionRing ring = rings.computeIfAbsent(price.getId(), id -> new VersionRing(maxDepth));
+			if (ring.size() > 0 && ring.newestTimestamp() >= price.getTimestamp()) {
+				return;
+			}
+			final long before = ring.bytes();
+			final int sizeBefore = ring.size();
+			ring.add(price, maxDepth);
+			versions += ring.size() - sizeBefore;
+			bytes += ring.bytes() - before;
+
+			if (maxBytesPerShard > 0) {
+				evictionQueue.add(price.getId(), price.getTimestamp());
+				while (bytes > maxBytesPerShard && evictionQueue.size() > 0) {
+					evictOldest();
+				}
+				if (evictionQueue.size() > 2 * versions + COMPACT_SLACK) {
+					evictionQueue.removeIf(this::isGone);
+				}
+			}
+		}
+
+		private void evictOldest() {
+			final long id = evictionQueue.headId();
+			final long timestamp = evictionQueue.headTimestamp();
+			evictionQueue.removeHead();
+			if (isGone(id, timestamp)) {
+				return;
+			}
+			final VersionRing ring = rings.get(id);
+			final long before = ring.bytes();
+			ring.evictOldest();
+			versions--;
+			bytes += ring.bytes() - before;
+			if (ring.size() == 0) {
+				rings.remove(id);
+			}
+		}
+
+		/**
+		 * @return Whether the version has already been evicted for being past the maximum depth
+		 */
+		private boolean isGone(long id, long timestamp) {
+			final VersionRing ring = rings.get(id);
+			return ring == null || ring.size() == 0 || ring.oldestTimestamp() > timestamp;
+		}
+
+		private Price asOf(long id, long timestamp) {
+			final VersionRing ring = rings.get(id);
+			return ring == null ? null : ring.asOf(id, timestamp);
+		}
+	}
+
+	/**
+	 * A queue of (id, timestamp) pairs in two growable ring arrays, so that queuing a version does not allocate.
+	 */
+	private static final class EvictionQueue {
+		private long[] ids = new long[16];
+		private long[] timestamps = new long[16];
+		private int head;
+		private int size;
+
+		private int size() {
+			return size;
+		}
+
+		private void add(long id, long timestamp) {
+			if (size == ids.length) {
+				resize(ids.length << 1);
+			}
+			final int tail = (head + size) & (ids.length - 1);
+			ids[tail] = id;
+			timestamps[tail] = timestamp;
+			size++;
+		}
+
+		private long headId() {
+			return ids[head];
+		}
+
+		private long headTimestamp() {
+			return timestamps[head];
+		}
+
+		private void removeHead() {
+			head = (head + 1) & (ids.length - 1);
+			size--;
+		}
+
+		private void removeIf(VersionTest gone) {
+			int kept = 0;
+			for (int i = 0; i < size; i++) {
+				final int slot = (head + i) & (ids.length - 1);
+				if (!gone.test(ids[slot], timestamps[slot])) {
+					final int to = (head + kept) & (ids.length - 1);
+					ids[to] = ids[slot];
+					timestamps[to] = timestamps[slot];
+					kept++;
+				}
+			}
+			size = kept;
+		}
+
+		private void resize(int capacity) {
+			final long[] newIds = new long[capacity];
+			final long[] newTimestamps = new long[capacity];
+			for (int i = 0; i < size; i++) {
+				final int slot = (head + i) & (ids.length - 1);
+				newIds[i] = ids[slot];
+				newTimestamps[i] = timestamps[slot];
+			}
+			ids = newIds;
+			timestamps = newTimestamps;
+			head = 0;
+		}
+	}
+
+	@FunctionalInterface
+	private interface VersionTest {
+		boolean test(long id, long timestamp);
+	}
+}
@@ -0,0 +1,194 @@
+package priceserver.service.impl;
+
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import priceserver.domain.LatestPriceFinder;
+import priceserver.domain.Price;
+import priceserver.service.CommitJournal;
+import priceserver.service.PriceSnapshot;
+import priceserver.service.PriceStore;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically writes the whole book to a snapshot file, so that a restart only has to map the snapshot and replay
+ * the journal written since, rather than every commit ever made.  Once a snapshot is in place the journal is told it
+ * can discard what the snapshot covers.
+ *
+ * The book is read while commits carry on, so the snapshot is fuzzy: it holds every commit up to the epoch read
+ * before it started, and maybe some after.  Replaying those later commits on top again is harmless, as a commit never
+ * replaces a price with an older one.  The highest epoch of any price in it is kept as well, so that a restart with
+ * no journal to replay never hands out an epoch a price in the book already has.
+ */
+@Component
+@ThreadSafe
+public class PriceSnapshotter implements AutoCloseable {
+	private static final Logger log = LoggerFactory.getLogger(PriceSnapshotter.class);
+
+	private static final String SNAPSHOT_PREFIX = "snapshot-";
+	private static final String SNAPSHOT_SUFFIX = ".snap";
+
+	private final PriceStore store;
+	private final CommitJournal journal;
+	private final boolean enabled;
+	private final Path directory;
+	private final long intervalSeconds;
+	private final ScheduledExecutorService scheduler;
+
+	//Only used by the thread taking snapshots
+	private long lastSnapshotEpoch;
+
+	public PriceSnapshotter(PriceStore store,
+	                        CommitJournal journal,
+	                        @Value("${priceserver.snapshot.enabled:false}") boolean enabled,
+	                        @Value("${priceserver.snapshot.directory:snapshots}") String directory,
+	                        @Value("${priceserver.snapshot.interval-seconds:300}") long intervalSeconds)
+			throws IOException {
+		this.store = store;
+		this.journal = journal;
+		this.enabled = enabled;
+		this.directory = Paths.get(directory);
+		this.intervalSeconds = intervalSeconds;
+		if (enabled) {
+			Files.createDirectories(this.directory);
+			scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				final Thread thread = new Thread(runnable, "price-snapshotter");
+				thread.setDaemon(true);
+				return thread;
+			});
+		} else {
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * @return The most recent snapshot, or null if there is none or snapshots are switched off
+	 */
+	public PriceSnapshot openLatest() {
+		if (!enabled) {
+			return null;
+		}
+		try {
+			final List<Path> snapshots = snapshotFiles();
+			if (snapshots.isEmpty()) {
+				return null;
+			}
+			final PriceSnapshot snapshot = MappedPriceSnapshot.open(snapshots.get(snapshots.size() - 1));
+			lastSnapshotEpoch = snapshot.epoch();
+			log.info("Opened {}", snapshot);
+			return snapshot;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not open snapshot in " + directory, e);
+		}
+	}
+
+	/**
+	 * Starts taking snapshots every interval.  Called once the book has been recovered.
+	 */
+	public void start() {
+		if (enabled) {
+			scheduler.scheduleWithFixedDelay(this::snapshotInBackground,
+			                                 intervalSeconds,
+			                                 intervalSeconds,
+			                                 TimeUnit.SECONDS);
+			log.info("Snapshotting the book to {} every {} seconds", directory.toAbsolutePath(), intervalSeconds);
+		}
+	}
+
+	/**
+	 * Writes a snapshot now, unless nothing has been committed since the last one.
+	 * @return The epoch the snapshot covers
+	 */
+	public synchronized long snapshot() throws IOException {
+		//Read before the book, so the snapshot holds at least everything up to it
+		final long epoch = store.epoch();
+		if (epoch == lastSnapshotEpoch) {
+			return epoch;
+		}
+
+		final long start = System.nanoTime();
+		final List<Price> prices = new ArrayList<>(store.size());
+		store.forEach(prices::add);
+		prices.sort(Comparator.comparingLong(Price::getId));
+		final List<Price> latest = latestOfEachId(prices);
+
+		final Path path = snapshotPath(epoch);
+		MappedPriceSnapshot.write(path, epoch, latest);
+		lastSnapshotEpoch = epoch;
+		log.info("Wrote {} prices up to epoch {} to {} in {} ms",
+		         latest.size(),
+		         epoch,
+		         path,
+		         (System.nanoTime() - start) / 1_000_000);
+
+		for (Path older : snapshotFiles()) {
+			if (!older.equals(path)) {
+				Files.delete(older);
+			}
+		}
+		journal.discardUpTo(epoch);
+		return epoch;
+	}
+
+	@PreDestroy
+	@Override
+	public void close() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+		}
+	}
+
+	private void snapshotInBackground() {
+		try {
+			snapshot();
+		} catch (IOException | RuntimeException e) {
+			log.error("Could not snapshot the book", e);
+		}
+	}
+
+	/**
+	 * The store can visit an id twice while it is still loading a snapshot of its own, so keep the newer of the two.
+	 */
+	private static List<Price> latestOfEachId(List<Price> sortedPrices) {
+		final List<Price> latest = new ArrayList<>(sortedPrices.size());
+		for (Price price : sortedPrices) {
+			final int last = latest.size() - 1;
+			if (last >= 0 && latest.get(last).getId() == price.getId()) {
+				latest.set(last, new LatestPriceFinder(price).apply(price.getId(), latest.get(last)));
+			} else {
+				latest.add(price);
+			}
+		}
+		return latest;
+	}
+
+	private List<Path> snapshotFiles() throws IOException {
+		final List<Path> snapshots = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+		                                                            SNAPSHOT_PREFIX + "*" + SNAPSHOT_SUFFIX)) {
+			files.forEach(snapshots::add);
+		}
+		//Names are zero padded epochs, so the last is the newest
+		snapshots.sort(null);
+		return snapshots;
+	}
+
+	private Path snapshotPath(long epoch) {
+		return directory.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, epoch, SNAPSHOT_SUFFIX));
+	}
+}
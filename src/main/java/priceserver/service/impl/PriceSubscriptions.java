@@ -0,0 +1,170 @@
+package priceserver.service.impl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import net.jcip.annotations.ThreadSafe;
+import org.springframework.stereotype.Component;
+import priceserver.domain.Price;
+import priceserver.service.PriceStore;
+import priceserver.service.PriceSubscription;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongFunction;
+
+/**
+ * Hands the prices each commit publishes to the subscriptions following their ids.
+ *
+ * Subscriptions are indexed by id, so a commit only looks at the ids someone follows, and a commit made while nobody
+ * is subscribed costs nothing.  Each subscription keeps a map of the latest price pending for each of its ids, which
+ * commits only ever put into: they never wait for a subscriber to take the prices out.
+ */
+@Component
+@ThreadSafe
+public class PriceSubscriptions {
+	//Copied on write, as subscribing is rare next to publishing
+	private final ConcurrentHashMap<Long, Subscription[]> byId = new ConcurrentHashMap<>();
+
+	private final AtomicInteger active = new AtomicInteger();
+
+	private final Counter conflated;
+
+	public PriceSubscriptions(MeterRegistry registry) {
+		Gauge.builder("priceserver.subscriptions.active", active, AtomicInteger::get)
+		     .description("Open price subscriptions")
+		     .register(registry);
+		conflated = Counter.builder("priceserver.subscriptions.conflated")
+		                   .description("Price changes replaced by a later one before the subscriber polled them")
+		                   .register(registry);
+	}
+
+	/**
+	 * @param current Looks up the current price of an id, to start the subscription off with
+	 */
+	PriceSubscription subscribe(long[] ids, Runnable onChange, LongFunction<Price> current) {
+		final long[] distinct = Arrays.stream(ids).distinct().toArray();
+		final Subscription subscription = new Subscription(distinct, onChange);
+		for (long id : distinct) {
+			byId.merge(id, new Subscription[]{subscription}, PriceSubscriptions::concat);
+		}
+		active.incrementAndGet();
+		//Indexed first, so that a commit in between is either seen here or offered once indexed
+		for (long id : distinct) {
+			final Price price = current.apply(id);
+			if (price != null) {
+				subscription.offer(price);
+			}
+		}
+		return subscription;
+	}
+
+	/**
+	 * Offers the subscribers of each price that changed under the epoch its new version.  Must be called in epoch
+	 * order, before any later commit is published, so that the store still holds the prices as of the epoch.
+	 */
+	void publish(long epoch, Collection<Price> prices, PriceStore store) {
+		if (byId.isEmpty()) {
+			return;
+		}
+		for (Price price : prices) {
+			final Subscription[] subscriptions = byId.get(price.getId());
+			if (subscriptions == null) {
+				continue;
+			}
+			final Price published = store.get(price.getId());
+			//Otherwise the id already had a newer price, and nothing changed
+			if (published.getEpoch() == epoch) {
+				for (Subscription subscription : subscriptions) {
+					subscription.offer(published);
+				}
+			}
+		}
+	}
+
+	private void unsubscribe(Subscription subscription) {
+		for (long id : subscription.ids) {
+			byId.computeIfPresent(id, (key, subscriptions) -> {
+				final Subscription[] remaining = Arrays.stream(subscriptions)
+				                                       .filter(s -> s != subscription)
+				                                       .toArray(Subscription[]::new);
+				return remaining.length == 0 ? null : remaining;
+			});
+		}
+		active.decrementAndGet();
+	}
+
+	private static Subscription[] concat(Subscription[] subscriptions, Subscription[] added) {
+		final Subscription[] all = Arrays.copyOf(subscriptions, subscriptions.length + added.length);
+		System.arraycopy(added, 0, all, subscriptions.length, added.length);
+		return all;
+	}
+
+	private final class Subscription implements PriceSubscription {
+		private final long[] ids;
+		private final Runnable onChange;
+		private final Map<Long, Price> pending = new ConcurrentHashMap<>();
+
+		//Set while the subscriber has yet to poll the subscription empty, so it is not told of changes twice
+		private final AtomicBoolean undrained = new AtomicBoolean(true);
+		private final AtomicBoolean closed = new AtomicBoolean();
+
+		private Subscription(long[] ids, Runnable onChange) {
+			this.ids = ids;
+			this.onChange = onChange;
+		}
+
+		private void offer(Price price) {
+			//The price a subscription starts with can race a commit, which must not be overwritten by it
+			pending.merge(price.getId(), price, (older, newer) -> {
+				conflated.increment();
+				return newer.getEpoch() >= older.getEpoch() ? newer : older;
+			});
+			if (!closed.get() && undrained.compareAndSet(false, true)) {
+				onChange.run();
+			}
+		}
+
+		@Override
+		public List<Price> poll() {
+			List<Price> prices = drain();
+			if (prices.isEmpty()) {
+				undrained.set(false);
+				//A change offered after the drain and before the flag was cleared would otherwise go untold
+				if (!pending.isEmpty() && undrained.compareAndSet(false, true)) {
+					prices = drain();
+				}
+			}
+			return prices;
+		}
+
+		private List<Price> drain() {
+			if (pending.isEmpty()) {
+				return Collections.emptyList();
+			}
+			final List<Price> prices = new ArrayList<>(pending.size());
+			for (Long id : pending.keySet()) {
+				final Price price = pending.remove(id);
+				if (price != null) {
+					prices.add(price);
+				}
+			}
+			return prices;
+		}
+
+		@Override
+		public void close() {
+			if (closed.compareAndSet(false, true)) {
+				unsubscribe(this);
+				pending.clear();
+			}
+		}
+	}
+}
@@ -1,63 +1,531 @@
 package priceserver.service.impl;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import priceserver.domain.Batch;
-import priceserver.domain.LatestPriceFinder;
+import priceserver.domain.CommitTicket;
 import priceserver.domain.Price;
+import priceserver.domain.PriceQueryResult;
+import priceserver.exceptions.BatchAlreadyCommitted;
+import priceserver.exceptions.CommitNotFoundException;
 import priceserver.exceptions.PriceNotFoundException;
+import priceserver.exceptions.ServerHaltedException;
+import priceserver.service.CommitJournal;
+import priceserver.service.PriceSnapshot;
+import priceserver.service.PriceStore;
+import priceserver.service.PriceSubscription;
 import priceserver.service.PricerService;
+import priceserver.service.Replication;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
 import javax.validation.constraints.NotNull;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 @Service
+@ConditionalOnProperty(name = "priceserver.partitioning.router", havingValue = "false", matchIfMissing = true)
 public class PricerServiceImpl implements PricerService {
 	private static final Logger log = LoggerFactory.getLogger(PricerServiceImpl.class);
+
+	//Asks publish for the next epoch, rather than one handed out by the router
+	private static final long NEXT_EPOCH = 0L;
 	private final BatchManagerEhCacheImpl batchManager;
 
-	private final ConcurrentHashMap<Long, Price> currentPrices = new ConcurrentHashMap<>(10000);
+	private final PriceStore currentPrices;
+
+	private final CommitJournal journal;
+
+	private final PriceSnapshotter snapshotter;
+
+	private final AsyncCommits asyncCommits;
+
+	private final CommitGroups commitGroups;
+
+	private final PriceHistory history;
+
+	private final PriceSubscriptions subscriptions;
+
+	private final Replication replication;
+
+	private final EpochSequencer epochSequencer = new EpochSequencer();
+
+	//Closed batches waiting for the second phase of a commit
+	private final PreparedBatches prepared;
+
+	//Makes sure epochs are written to the journal in the order they are handed out
+	private final Object journalOrderLock = new Object();
+
+	//Set once a commit fails part way through being published, after which nothing more is served
+	private volatile ServerHaltedException halted;
+
+	private final Timer uploadTimer;
+
+	private final Timer commitTimer;
 
-	public PricerServiceImpl(@NotNull BatchManagerEhCacheImpl batchManager) {
+	//Looked up once here, so that counting a read allocates nothing
+	private final Counter readHits;
+
+	private final Counter readMisses;
+
+	public PricerServiceImpl(@NotNull BatchManagerEhCacheImpl batchManager,
+	                         @NotNull PriceStore currentPrices,
+	                         @NotNull CommitJournal journal,
+	                         @NotNull PreparedBatches prepared,
+	                         @NotNull PriceSnapshotter snapshotter,
+	                         @NotNull AsyncCommits asyncCommits,
+	                         @NotNull CommitGroups commitGroups,
+	                         @NotNull PriceHistory history,
+	                         @NotNull PriceSubscriptions subscriptions,
+	                         @NotNull Replication replication,
+	                         @NotNull MeterRegistry registry) {
 		this.batchManager = batchManager;
+		this.currentPrices = currentPrices;
+		this.journal = journal;
+		this.prepared = prepared;
+		this.snapshotter = snapshotter;
+		this.asyncCommits = asyncCommits;
+		this.commitGroups = commitGroups;
+		this.history = history;
+		this.subscriptions = subscriptions;
+		this.replication = replication;
+
+		uploadTimer = Timer.builder("priceserver.upload")
+		                   .description("Time to stage one upload, or one chunk of a streamed upload, into its batch")
+		                   .publishPercentileHistogram()
+		                   .register(registry);
+		commitTimer = Timer.builder("priceserver.commit")
+		                   .description("Time from closing a batch to its prices being published")
+		                   .publishPercentileHistogram()
+		                   .register(registry);
+		readHits = registry.counter("priceserver.reads", "result", "hit");
+		readMisses = registry.counter("priceserver.reads", "result", "miss");
+		Gauge.builder("priceserver.book.size", currentPrices, PriceStore::size)
+		     .description("Prices held in memory")
+		     .baseUnit("prices")
+		     .register(registry);
+		Gauge.builder("priceserver.book.bytes", currentPrices, PriceStore::bytes)
+		     .description("Estimated heap taken by the prices held in memory")
+		     .baseUnit("bytes")
+		     .register(registry);
+		Gauge.builder("priceserver.book.epoch", currentPrices, PriceStore::epoch)
+		     .description("Epoch of the last published commit")
+		     .register(registry);
+		Gauge.builder("priceserver.history.versions", history, PriceHistory::versions)
+		     .description("Past versions of prices held in memory")
+		     .baseUnit("prices")
+		     .register(registry);
+		Gauge.builder("priceserver.history.bytes", history, PriceHistory::bytes)
+		     .description("Estimated heap taken by the past versions of prices")
+		     .baseUnit("bytes")
+		     .register(registry);
+		commitGroups.publishWith((batchIds, prices) -> publish(batchIds, prices, NEXT_EPOCH));
+	}
+
+	/**
+	 * Rebuilds the book from the latest snapshot and the journal written since, before any requests are served.  The
+	 * snapshot is served from straight away while it loads in the background.  Batches prepared before the restart
+	 * are read back to be committed or cancelled.  Replication starts from the book recovered.
+	 */
+	@PostConstruct
+	void recover() {
+		final PriceSnapshot snapshot = snapshotter.openLatest();
+		final long snapshotEpoch = snapshot == null ? 0L : snapshot.epoch();
+		if (snapshot != null) {
+			currentPrices.loadLazily(snapshot);
+		}
+		final long journalEpoch = journal.replay((epoch, prices) -> {
+			if (epoch > snapshotEpoch) {
+				currentPrices.commit(epoch, prices);
+			}
+		});
+		long lastEpoch = Math.max(snapshotEpoch, journalEpoch);
+		final long highestEpoch = snapshot == null ? 0L : snapshot.highestEpoch();
+		if (highestEpoch > lastEpoch) {
+			//Part of a commit after the snapshot's epoch, with no journal to finish it.  The book moves on to an epoch
+			//of its own, so that neither new commits nor what was read before the restart are taken for what it holds
+			lastEpoch = highestEpoch + 1;
+			currentPrices.commit(lastEpoch, Collections.emptyList());
+		}
+		epochSequencer.startAfter(lastEpoch);
+		batchManager.startIdsAfter(prepared.recover(lastEpoch));
+		snapshotter.start();
+		log.info("Recovered up to epoch {}, snapshot at epoch {}", lastEpoch, snapshotEpoch);
+		replication.start(new Replication.ReplicatedBook() {
+			@Override
+			public long epoch() {
+				return currentPrices.epoch();
+			}
+
+			@Override
+			public void forEach(Consumer<Price> action) {
+				currentPrices.forEach(action);
+			}
+
+			@Override
+			public void apply(long epoch, List<Price> prices) {
+				applyReplicated(epoch, prices);
+			}
+		});
 	}
 
 	@Override
-	public Batch createBatch() {
-		return batchManager.create();
+	public Batch createBatch(String client) {
+		checkWritable();
+		return batchManager.create(client);
 	}
 
 	@Override
 	public void upload(long batchId, List<Price> prices)  {
-		batchManager.upload(batchId, prices);
+		checkWritable();
+		final long start = System.nanoTime();
+		try {
+			batchManager.upload(batchId, prices);
+		} finally {
+			uploadTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	@Override
+	public boolean startChunk(long batchId, int chunk) {
+		checkWritable();
+		return batchManager.startChunk(batchId, chunk);
+	}
+
+	@Override
+	public void finishChunk(long batchId, int chunk) {
+		batchManager.finishChunk(batchId, chunk);
+	}
+
+	@Override
+	public void abandonChunk(long batchId, int chunk) {
+		batchManager.abandonChunk(batchId, chunk);
+	}
+
+	@Override
+	public void expectChunks(long batchId, int count) {
+		checkWritable();
+		//A prepared batch has already been closed, and so checked, for good
+		if (prepared.contains(batchId)) {
+			throw new BatchAlreadyCommitted(batchId);
+		}
+		batchManager.expectChunks(batchId, count);
 	}
 
 	@Override
 	public void commit(long batchId) {
-		log.info("Committing {}", batchId);
-		final Collection<Price> batchPrices = batchManager.closeBatch(batchId);
+		commit(batchId, NEXT_EPOCH);
+	}
+
+	@Override
+	public void prepare(long batchId) {
+		checkWritable();
+		log.info("Preparing {}", batchId);
+		prepared.prepare(batchId, batchManager.closeBatch(batchId));
+	}
+
+	@Override
+	public void commit(long batchId, long epoch) {
+		checkWritable();
+		final long start = System.nanoTime();
+		try {
+			log.info("Committing {}", batchId);
+			if (epoch == NEXT_EPOCH) {
+				commitGroups.commit(batchId, closeBatch(batchId));
+			} else {
+				commitAs(batchId, epoch);
+			}
+		} finally {
+			commitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Publishes the batch under the router's epoch alone, already ordered by the router.  A prepared batch is held
+	 * until it is published, and asking again once it has been is answered as if it had just been, so the router can
+	 * go on asking until it hears back.
+	 */
+	private void commitAs(long batchId, long epoch) {
+		if (prepared.committedAs(batchId) == epoch) {
+			log.info("Batch {} has already been committed as epoch {}", batchId, epoch);
+			return;
+		}
+		final Collection<Price> preparedPrices = prepared.startCommit(batchId, epoch);
+		if (preparedPrices == null) {
+			publish(Collections.singletonList(batchId), batchManager.closeBatch(batchId), epoch);
+			return;
+		}
+		try {
+			publish(Collections.singletonList(batchId), preparedPrices, epoch);
+		} catch (RuntimeException | Error e) {
+			//Unless the server has halted, nothing was published, so the router may ask again
+			if (halted == null) {
+				prepared.release(batchId);
+			}
+			throw e;
+		}
+		prepared.committed(batchId);
+	}
+
+	/**
+	 * @return The prices of the batch, whether it was prepared or is still open
+	 */
+	private Collection<Price> closeBatch(long batchId) {
+		final Collection<Price> preparedPrices = prepared.remove(batchId);
+		return preparedPrices != null ? preparedPrices : batchManager.closeBatch(batchId);
+	}
+
+	@Override
+	public CommitTicket commitAsync(long batchId) {
+		checkWritable();
+		final long start = System.nanoTime();
+		log.info("Committing {} in the background", batchId);
+		//Closed here so that an unknown or committed batch fails the request, and later uploads are refused at once
+		final Collection<Price> batchPrices = closeBatch(batchId);
+		asyncCommits.submit(batchId, () -> {
+			try {
+				return commitGroups.commit(batchId, batchPrices);
+			} finally {
+				commitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			}
+		});
+		return CommitTicket.pending(batchId);
+	}
+
+	@Override
+	public CompletableFuture<CommitTicket> commitStatus(long batchId) {
+		checkWritable();
+		final CompletableFuture<Long> commit = asyncCommits.get(batchId);
+		if (commit == null) {
+			throw new CommitNotFoundException(batchId);
+		}
+		return commit.handle((epoch, failure) -> {
+			if (failure == null) {
+				return CommitTicket.committed(batchId, epoch);
+			}
+			final Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+			return CommitTicket.failed(batchId, String.valueOf(cause.getMessage()));
+		});
+	}
+
+	/**
+	 * Journals the closed batches' prices and publishes them, in epoch order with every other commit.
+	 *
+	 * A commit under the router's epoch has been decided on by the router, which goes on asking for it until it is
+	 * made, so it is never aborted.  If it cannot be published the server halts instead, and once restarted publishes
+	 * it from the journal, or from its prepared part when the router asks again.
+	 * @param batchIds       The batches the prices were merged from, more than one for a group commit
+	 * @param requestedEpoch The epoch to publish under, or NEXT_EPOCH
+	 * @return The epoch the prices were published under
+	 */
+	private long publish(List<Long> batchIds, Collection<Price> batchPrices, long requestedEpoch) {
+		final boolean decided = requestedEpoch != NEXT_EPOCH;
+		final long epoch;
+		final long journalPosition;
+		synchronized (journalOrderLock) {
+			epoch = requestedEpoch == NEXT_EPOCH ? epochSequencer.next() : epochSequencer.jumpTo(requestedEpoch);
+			try {
+				journalPosition = journal.append(epoch, batchPrices);
+			} catch (RuntimeException e) {
+				//Let later epochs through, this one will never be published
+				epochSequencer.awaitTurn(epoch);
+				epochSequencer.published(epoch);
+				if (decided) {
+					halt(epoch, e);
+				}
+				throw e;
+			}
+		}
+
+		//Waiting for the journal is done outside the lock so that concurrent commits can share a flush
+		RuntimeException journalFailure = null;
+		try {
+			journal.awaitDurable(journalPosition);
+		} catch (RuntimeException e) {
+			journalFailure = e;
+		}
 
-		batchPrices.forEach(price -> currentPrices.compute(price.getId(), new LatestPriceFinder(price)));
-		log.info("Batch {} is now committed", batchId);
+		epochSequencer.awaitTurn(epoch);
+		try {
+			if (journalFailure != null) {
+				if (decided) {
+					halt(epoch, journalFailure);
+				} else {
+					abort(epoch, journalFailure);
+				}
+				throw journalFailure;
+			}
+			try {
+				currentPrices.commit(epoch, batchPrices);
+				//Still our turn, so subscribers and followers see commits in order, each exactly as it was published
+				subscriptions.publish(epoch, batchPrices, currentPrices);
+				replication.published(epoch, batchPrices);
+			} catch (RuntimeException | Error e) {
+				//Part of the commit may be in the book already, and the followers never got it, so stop here
+				if (!decided) {
+					abort(epoch, e);
+				}
+				halt(epoch, e);
+				throw e;
+			}
+		} finally {
+			epochSequencer.published(epoch);
+		}
+		log.info("Batches {} are now committed as epoch {}", batchIds, epoch);
+		return epoch;
+	}
+
+	/**
+	 * Marks a journalled commit that failed as aborted, so that it does not come back when the journal is replayed.
+	 * If even that fails, the commit could come back, so the server halts rather than carry on with a book that would
+	 * differ after a restart.
+	 */
+	private void abort(long epoch, Throwable failure) {
+		try {
+			journal.awaitDurable(journal.abort(epoch));
+			log.warn("Aborted the commit of epoch {}", epoch, failure);
+		} catch (RuntimeException e) {
+			failure.addSuppressed(e);
+			halt(epoch, failure);
+		}
+	}
+
+	private void halt(long epoch, Throwable failure) {
+		if (halted == null) {
+			halted = new ServerHaltedException(epoch, failure);
+			//A snapshot of the book as it is now could bring the failed commit back
+			snapshotter.close();
+			log.error("Halting after failing to publish epoch {}, restart the server to recover", epoch, failure);
+		}
+	}
+
+	private void checkWritable() {
+		if (halted != null) {
+			throw halted;
+		}
+		replication.checkWritable();
+	}
+
+	private void checkReadable() {
+		if (halted != null) {
+			throw halted;
+		}
+		replication.checkReadable();
+	}
+
+	/**
+	 * Journals and publishes a commit the leader has published, under the leader's epoch.  Only called by the one
+	 * thread applying the leader's commits in order, and only on a follower, which takes no commits of its own.
+	 */
+	private void applyReplicated(long epoch, List<Price> prices) {
+		final long journalPosition;
+		synchronized (journalOrderLock) {
+			journalPosition = journal.append(epoch, prices);
+		}
+		journal.awaitDurable(journalPosition);
+		currentPrices.commit(epoch, prices);
+		subscriptions.publish(epoch, prices, currentPrices);
+		epochSequencer.startAfter(epoch);
+		log.debug("Applied the leader's epoch {}, {} prices", epoch, prices.size());
 	}
 
 	@Override
 	public void cancel(long batchId) {
+		checkWritable();
 		log.info("Cancelling batch {}", batchId);
-		batchManager.closeBatch(batchId);
+		if (prepared.remove(batchId) == null) {
+			batchManager.discardBatch(batchId);
+		}
 		log.info("Batch {} cancelled", batchId);
 	}
 
 	@Override
 	public Price latestPrice(long id) {
+		checkReadable();
 		final Price price = currentPrices.get(id);
-		log.trace("Latest price for {} is {}", id, price);
+		if (log.isTraceEnabled()) {
+			log.trace("Latest price for {} is {}", id, price);
+		}
 		if (price == null) {
+			readMisses.increment();
 			throw new PriceNotFoundException(id);
 		}
+		readHits.increment();
 		return price;
 	}
+
+	@Override
+	public Price priceAsOf(long id, long timestamp) {
+		checkReadable();
+		final Price price = history.asOf(id, timestamp);
+		if (price == null) {
+			throw new PriceNotFoundException(id);
+		}
+		return price;
+	}
+
+	@Override
+	public PriceQueryResult latestPrices(long[] ids) {
+		return lookUp(ids, 0L);
+	}
+
+	@Override
+	public PriceQueryResult pricesChangedSince(long[] ids, long epoch) {
+		return lookUp(ids, epoch);
+	}
+
+	@Override
+	public long epoch() {
+		return currentPrices.epoch();
+	}
+
+	private PriceQueryResult lookUp(long[] ids, long changedSince) {
+		checkReadable();
+		//Every price is read as of this one epoch, so a commit published during the lookup is left for the next one
+		final PriceStore.View book = currentPrices.view();
+		final long epoch = book.epoch();
+		final List<Price> prices = new ArrayList<>(ids.length);
+		long[] missing = new long[0];
+		int missingCount = 0;
+		for (long id : ids) {
+			final Price price = book.get(id);
+			if (price != null) {
+				if (price.getEpoch() > changedSince) {
+					prices.add(price);
+				}
+			} else {
+				if (missingCount == missing.length) {
+					missing = Arrays.copyOf(missing, Math.max(16, missingCount * 2));
+				}
+				missing[missingCount++] = id;
+			}
+		}
+		readHits.increment(ids.length - missingCount);
+		readMisses.increment(missingCount);
+		log.debug("Looked up {} prices, {} missing, {} changed", ids.length, missingCount, prices.size());
+		return new PriceQueryResult(prices, Arrays.copyOf(missing, missingCount), epoch);
+	}
+
+	@Override
+	public void forEachLatestPrice(Consumer<Price> action) {
+		checkReadable();
+		currentPrices.forEach(action);
+	}
+
+	@Override
+	public PriceSubscription subscribe(long[] ids, Runnable onChange) {
+		return subscriptions.subscribe(ids, onChange, currentPrices::get);
+	}
 }
@@ -0,0 +1,221 @@
+package priceserver.service.impl;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import priceserver.domain.Price;
+import priceserver.exceptions.NotLeaderException;
+import priceserver.exceptions.ReplicaBehindException;
+import priceserver.service.Replication;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Keeps the book a copy of the leader's, by applying the commits the leader streams to it, and serves reads from it.
+ * Writes are turned away with the leader's address.
+ *
+ * The lag reported and bounded is how long ago the leader published the oldest commit the book does not have yet.
+ * The leader sends the time it published each commit along with it.  Once the book has applied a commit, it is taken
+ * to be as old as that commit until it catches up with the leader's epoch, as told by the frame the commit came in,
+ * which overstates the lag by at most the time to the leader's next commit.  Once caught up, it is as old as the last
+ * frame received, so the lag grows without bound if the leader goes quiet for longer than a heartbeat.  The publish
+ * times are the leader's clock, so the lag is only as good as the two clocks agree.
+ *
+ * Reads are refused once the lag passes max-lag-ms, rather than answered from a book that may be any age, and are
+ * refused until the first commit, book or heartbeat has told the follower how old its book is.
+ */
+@Component
+@ThreadSafe
+@ConditionalOnProperty(name = "priceserver.replication.role", havingValue = "follower")
+public class ReplicationFollower implements Replication {
+	private static final Logger log = LoggerFactory.getLogger(ReplicationFollower.class);
+
+	private static final int CONNECT_TIMEOUT_MS = 5_000;
+	private static final long RECONNECT_DELAY_MS = 1_000;
+	//Heartbeats missed before the leader is taken to be gone
+	private static final int MISSED_HEARTBEATS = 5;
+
+	private final String leaderHost;
+	private final int leaderPort;
+	private final String leaderUrl;
+	private final long maxLagMs;
+	private final long heartbeatMs;
+
+	//Only written by the replication thread, but read by every request
+	private volatile long appliedEpoch;
+	private volatile long leaderEpoch;
+	//When the oldest commit not yet applied was published, or the book was last known to be up to date
+	private volatile long behindSince;
+	private volatile boolean lagKnown;
+
+	private volatile Socket socket;
+	private volatile boolean closed;
+
+	/**
+	 * @param leader    The leader's replication port, as host:port
+	 * @param leaderUrl The leader's REST endpoints, that writes are redirected to
+	 * @param maxLagMs  How long the book can go without catching up with the leader before reads are refused
+	 */
+	public ReplicationFollower(@Value("${priceserver.replication.leader:localhost:7070}") String leader,
+	                           @Value("${priceserver.replication.leader-url:http://localhost:8080}") String leaderUrl,
+	                           @Value("${priceserver.replication.max-lag-ms:5000}") long maxLagMs,
+	                           @Value("${priceserver.replication.heartbeat-ms:1000}") long heartbeatMs,
+	                           MeterRegistry registry) {
+		final int colon = leader.lastIndexOf(':');
+		if (colon < 0) {
+			throw new IllegalArgumentException("The leader must be given as host:port, not " + leader);
+		}
+		this.leaderHost = leader.substring(0, colon);
+		this.leaderPort = Integer.parseInt(leader.substring(colon + 1));
+		this.leaderUrl = leaderUrl.endsWith("/") ? leaderUrl.substring(0, leaderUrl.length() - 1) : leaderUrl;
+		this.maxLagMs = maxLagMs;
+		this.heartbeatMs = heartbeatMs;
+		Gauge.builder("priceserver.replication.lag", this, f -> f.lagKnown ? f.lagMs() : Double.NaN)
+		     .description("Time since the leader published the oldest commit not yet applied")
+		     .baseUnit("milliseconds")
+		     .register(registry);
+		Gauge.builder("priceserver.replication.epochs.behind", this, f -> f.leaderEpoch - f.appliedEpoch)
+		     .description("Commits the leader had published when it last sent anything, that are not applied yet")
+		     .register(registry);
+	}
+
+	@Override
+	public void start(ReplicatedBook book) {
+		appliedEpoch = book.epoch();
+		final Thread replicator = new Thread(() -> replicate(book), "replication-follower");
+		replicator.setDaemon(true);
+		replicator.start();
+		log.info("Following the leader at {}:{} from epoch {}", leaderHost, leaderPort, appliedEpoch);
+	}
+
+	@Override
+	public void published(long epoch, Collection<Price> prices) {
+		//Only ever the commits applied from the leader
+	}
+
+	@Override
+	public void checkWritable() {
+		throw new NotLeaderException(leaderUrl);
+	}
+
+	@Override
+	public void checkReadable() {
+		if (!lagKnown) {
+			throw new ReplicaBehindException();
+		}
+		final long lagMs = lagMs();
+		if (lagMs > maxLagMs) {
+			throw new ReplicaBehindException(lagMs);
+		}
+	}
+
+	/**
+	 * @return Milliseconds since the leader published the oldest commit not yet applied, once that is known
+	 */
+	private long lagMs() {
+		return Math.max(0L, System.currentTimeMillis() - behindSince);
+	}
+
+	private void replicate(ReplicatedBook book) {
+		while (!closed) {
+			try (Socket connection = new Socket()) {
+				socket = connection;
+				connection.connect(new InetSocketAddress(leaderHost, leaderPort), CONNECT_TIMEOUT_MS);
+				connection.setTcpNoDelay(true);
+				connection.setSoTimeout((int) (heartbeatMs * MISSED_HEARTBEATS));
+				final DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+				out.writeLong(appliedEpoch);
+				out.flush();
+				log.info("Connected to the leader at {}:{}", leaderHost, leaderPort);
+				final InputStream stream = new BufferedInputStream(connection.getInputStream());
+				readFrames(book, new DataInputStream(stream));
+			} catch (IOException | RuntimeException e) {
+				if (!closed) {
+					log.warn("Lost the leader at {}:{}, reconnecting: {}", leaderHost, leaderPort, e.toString());
+				}
+			}
+			pause();
+		}
+	}
+
+	private void readFrames(ReplicatedBook book, DataInputStream in) throws IOException {
+		while (!closed) {
+			final byte type = in.readByte();
+			final long sentAtEpoch = in.readLong();
+			//Publish time of what the frame brings the book up to, if anything
+			long publishedAt = 0L;
+			switch (type) {
+				case ReplicationFrames.COMMIT:
+					final long epoch = in.readLong();
+					publishedAt = in.readLong();
+					apply(book, epoch, ReplicationFrames.readPrices(in));
+					break;
+				case ReplicationFrames.BOOK:
+					final long bookEpoch = in.readLong();
+					publishedAt = in.readLong();
+					final List<Price> prices = ReplicationFrames.readBook(in);
+					log.info("Received the leader's book of {} prices at epoch {}", prices.size(), bookEpoch);
+					apply(book, bookEpoch, prices);
+					break;
+				case ReplicationFrames.HEARTBEAT:
+					break;
+				default:
+					throw new IOException("Unknown frame type " + type);
+			}
+			leaderEpoch = sentAtEpoch;
+			if (appliedEpoch >= sentAtEpoch) {
+				behindSince = System.currentTimeMillis();
+				lagKnown = true;
+			} else if (publishedAt != 0L) {
+				//The next commit the book lacks was published after this one, so this bounds the lag from above
+				behindSince = publishedAt;
+				lagKnown = true;
+			}
+		}
+	}
+
+	private void apply(ReplicatedBook book, long epoch, List<Price> prices) {
+		//Epochs can skip a commit that failed on the leader, and a reconnect can resend one already applied
+		if (epoch <= appliedEpoch) {
+			return;
+		}
+		book.apply(epoch, prices);
+		appliedEpoch = epoch;
+	}
+
+	private void pause() {
+		try {
+			Thread.sleep(RECONNECT_DELAY_MS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			closed = true;
+		}
+	}
+
+	@PreDestroy
+	void close() {
+		closed = true;
+		final Socket connection = socket;
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (IOException e) {
+				log.debug("Could not close the connection to the leader: {}", e.toString());
+			}
+		}
+	}
+}
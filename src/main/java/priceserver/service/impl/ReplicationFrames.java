@@ -0,0 +1,104 @@
+package priceserver.service.impl;
+
+import priceserver.domain.Price;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The frames the leader sends its followers.  Once connected, a follower sends the epoch its book is at as a long,
+ * and from then on only reads.  Every frame starts with a byte giving its type and a long giving the leader's epoch
+ * when the frame was sent, which is how the follower knows how far behind it is:
+ * <pre>
+ *   COMMIT:    long epoch, long published at, then the prices
+ *   BOOK:      long epoch, long published at, then the prices in chunks, each an int count and that many prices,
+ *              ending with a count of 0
+ *   HEARTBEAT: nothing more, sent when there has been nothing else to send for a while
+ * </pre>
+ * Published at is the leader's clock in milliseconds since the epoch when it published the commit, or the last commit
+ * in the book, from which the follower works out its lag.
+ * The prices of a commit are an int count, then for each price: long id, long timestamp, int payload length, payload,
+ * as in the journal.  A BOOK frame carries the leader's whole book as of its epoch, for a follower too far behind to
+ * catch up commit by commit.
+ */
+final class ReplicationFrames {
+	static final byte COMMIT = 1;
+	static final byte BOOK = 2;
+	static final byte HEARTBEAT = 3;
+
+	static final int BOOK_CHUNK = 10_000;
+
+	private static final int PRICE_HEADER_BYTES = 20;
+
+	private ReplicationFrames() {
+	}
+
+	/**
+	 * @return The body of a COMMIT frame, encoded once however many followers it is sent to
+	 */
+	static byte[] commitBody(long epoch, long publishedAt, Collection<Price> prices) {
+		int size = 20;
+		for (Price price : prices) {
+			size += PRICE_HEADER_BYTES + price.getPayloadBytes().length;
+		}
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(size);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeLong(epoch);
+			out.writeLong(publishedAt);
+			writePrices(out, prices);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	static void writeHeader(DataOutputStream out, byte type, long leaderEpoch) throws IOException {
+		out.writeByte(type);
+		out.writeLong(leaderEpoch);
+	}
+
+	static void writePrices(DataOutputStream out, Collection<Price> prices) throws IOException {
+		out.writeInt(prices.size());
+		for (Price price : prices) {
+			final byte[] payload = price.getPayloadBytes();
+			out.writeLong(price.getId());
+			out.writeLong(price.getTimestamp());
+			out.writeInt(payload.length);
+			out.write(payload);
+		}
+	}
+
+	static List<Price> readPrices(DataInputStream in) throws IOException {
+		final int count = in.readInt();
+		final List<Price> prices = new ArrayList<>(count);
+		readPrices(in, count, prices);
+		return prices;
+	}
+
+	/**
+	 * Reads the chunks of a BOOK frame up to the empty one ending it.
+	 */
+	static List<Price> readBook(DataInputStream in) throws IOException {
+		final List<Price> prices = new ArrayList<>();
+		for (int count = in.readInt(); count > 0; count = in.readInt()) {
+			readPrices(in, count, prices);
+		}
+		return prices;
+	}
+
+	private static void readPrices(DataInputStream in, int count, List<Price> prices) throws IOException {
+		for (int i = 0; i < count; i++) {
+			final long id = in.readLong();
+			final long timestamp = in.readLong();
+			final byte[] payload = new byte[in.readInt()];
+			in.readFully(payload);
+			prices.add(new Price(id, timestamp, payload));
+		}
+	}
+}
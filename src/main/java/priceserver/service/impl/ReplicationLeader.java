@@ -0,0 +1,367 @@
+package priceserver.service.impl;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import priceserver.domain.Price;
+import priceserver.service.Replication;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Takes every write, and streams each commit it publishes to the followers connected to its replication port.
+ *
+ * Each follower has a queue of the frames waiting to be sent to it and a thread of its own sending them, so a slow
+ * follower never holds up a commit or the other followers.  The last few commits are kept encoded, so that a follower
+ * reconnecting after a short break is sent just the commits it missed.  One that has missed more than that is sent
+ * the whole book as of the last commit published, followed by every commit after it.  A follower whose queue fills up
+ * is treated the same way: the commits queued for it are dropped for the whole book.  Both the commits kept and each
+ * follower's queue are limited in encoded bytes as well as in commits, so a few huge commits cannot pin the heap.
+ *
+ * The book is visited without holding up commits, so it may also hold prices from commits after its epoch.  Those
+ * are left out, as the follower is sent their commits anyway, and a follower only ever reads from a book that has
+ * caught up with some epoch the leader had.
+ */
+@Component
+@ThreadSafe
+@ConditionalOnProperty(name = "priceserver.replication.role", havingValue = "leader")
+public class ReplicationLeader implements Replication {
+	private static final Logger log = LoggerFactory.getLogger(ReplicationLeader.class);
+
+	private static final int HELLO_TIMEOUT_MS = 10_000;
+
+	private final ServerSocket serverSocket;
+	private final int backlogSize;
+	private final long backlogBytes;
+	private final int maxPending;
+	private final long maxPendingBytes;
+	private final long heartbeatMs;
+
+	//Commits published and the followers sent them are only ever changed together, so no follower misses a commit
+	@GuardedBy("this")
+	private final ArrayDeque<Commit> backlog = new ArrayDeque<>();
+
+	@GuardedBy("this")
+	private long backlogBytesUsed;
+
+	//Only written while holding the lock, but read by the senders for every frame
+	private volatile long lastPublished;
+
+	@GuardedBy("this")
+	private long lastPublishedAt;
+
+	private final Set<Follower> followers = new CopyOnWriteArraySet<>();
+	private final AtomicInteger followerCount = new AtomicInteger();
+
+	private final Counter bookSyncs;
+
+	private volatile ReplicatedBook book;
+	private volatile boolean closed;
+
+	/**
+	 * @param port        Followers connect to it, 0 for any free port
+	 * @param backlogSize     Commits kept for followers that reconnect, beyond which they are sent the whole book
+	 * @param backlogBytes    Encoded bytes of the commits kept, the oldest going first once over
+	 * @param maxPending      Frames a follower can fall behind by before it is sent the whole book instead
+	 * @param maxPendingBytes Encoded bytes of the commits a follower can fall behind by, likewise
+	 */
+	public ReplicationLeader(@Value("${priceserver.replication.port:7070}") int port,
+	                         @Value("${priceserver.replication.backlog:1024}") int backlogSize,
+	                         @Value("${priceserver.replication.backlog-bytes:67108864}") long backlogBytes,
+	                         @Value("${priceserver.replication.max-pending:4096}") int maxPending,
+	                         @Value("${priceserver.replication.max-pending-bytes:268435456}") long maxPendingBytes,
+	                         @Value("${priceserver.replication.heartbeat-ms:1000}") long heartbeatMs,
+	                         MeterRegistry registry) throws IOException {
+		this.serverSocket = new ServerSocket(port);
+		this.backlogSize = backlogSize;
+		this.backlogBytes = backlogBytes;
+		this.maxPending = maxPending;
+		this.maxPendingBytes = maxPendingBytes;
+		this.heartbeatMs = heartbeatMs;
+		Gauge.builder("priceserver.replication.followers", followers, Set::size)
+		     .description("Followers connected to the leader")
+		     .register(registry);
+		bookSyncs = Counter.builder("priceserver.replication.book.syncs")
+		                   .description("Followers sent the whole book, having missed too many commits to catch up")
+		                   .register(registry);
+	}
+
+	/**
+	 * @return The port followers connect to
+	 */
+	public int port() {
+		return serverSocket.getLocalPort();
+	}
+
+	@Override
+	public void start(ReplicatedBook book) {
+		this.book = book;
+		synchronized (this) {
+			lastPublished = book.epoch();
+			lastPublishedAt = System.currentTimeMillis();
+		}
+		final Thread acceptor = new Thread(this::accept, "replication-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		log.info("Leading replication on port {} from epoch {}", port(), book.epoch());
+	}
+
+	@Override
+	public synchronized void published(long epoch, Collection<Price> prices) {
+		final long publishedAt = System.currentTimeMillis();
+		final Commit commit = new Commit(epoch, ReplicationFrames.commitBody(epoch, publishedAt, prices));
+		if (backlogSize > 0 && commit.body.length <= backlogBytes) {
+			while (backlog.size() >= backlogSize || backlogBytesUsed + commit.body.length > backlogBytes) {
+				backlogBytesUsed -= backlog.removeFirst().body.length;
+			}
+			backlog.addLast(commit);
+			backlogBytesUsed += commit.body.length;
+		} else {
+			//The commits kept have to run up to the last, so a commit too big to keep takes the rest with it
+			backlog.clear();
+			backlogBytesUsed = 0L;
+		}
+		lastPublished = epoch;
+		lastPublishedAt = publishedAt;
+		for (Follower follower : followers) {
+			follower.offer(commit);
+		}
+	}
+
+	@Override
+	public void checkWritable() {
+		//The leader takes every write
+	}
+
+	@Override
+	public void checkReadable() {
+		//The leader's book is the one followers catch up with
+	}
+
+	private void accept() {
+		while (!closed) {
+			try {
+				final Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				socket.setSoTimeout(HELLO_TIMEOUT_MS);
+				final long followerEpoch = new DataInputStream(socket.getInputStream()).readLong();
+				register(new Follower(socket, followerCount.incrementAndGet()), followerEpoch);
+			} catch (IOException e) {
+				if (!closed) {
+					log.warn("Could not accept a follower: {}", e.toString());
+				}
+			}
+		}
+	}
+
+	private synchronized void register(Follower follower, long followerEpoch) {
+		if (followerEpoch > lastPublished) {
+			log.error("{} is at epoch {}, ahead of the leader at {}, and has to be restarted with an empty book",
+			          follower, followerEpoch, lastPublished);
+			follower.close();
+			return;
+		}
+		final Commit oldest = backlog.peekFirst();
+		if (followerEpoch == lastPublished) {
+			log.info("{} is up to date at epoch {}", follower, followerEpoch);
+		} else if (oldest != null && oldest.epoch <= followerEpoch + 1) {
+			log.info("{} is at epoch {}, sending it the commits up to {}", follower, followerEpoch, lastPublished);
+			for (Commit commit : backlog) {
+				if (commit.epoch > followerEpoch) {
+					follower.offer(commit);
+				}
+			}
+		} else {
+			log.info("{} is at epoch {}, sending it the whole book at epoch {}",
+			         follower, followerEpoch, lastPublished);
+			follower.syncBook();
+		}
+		followers.add(follower);
+		follower.start();
+	}
+
+	@PreDestroy
+	void close() {
+		closed = true;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			log.warn("Could not close the replication port: {}", e.toString());
+		}
+		followers.forEach(Follower::close);
+	}
+
+	private static final class Commit {
+		private final long epoch;
+		private final byte[] body;
+
+		private Commit(long epoch, byte[] body) {
+			this.epoch = epoch;
+			this.body = body;
+		}
+	}
+
+	private static final class BookSync {
+		private final long epoch;
+		private final long publishedAt;
+
+		private BookSync(long epoch, long publishedAt) {
+			this.epoch = epoch;
+			this.publishedAt = publishedAt;
+		}
+	}
+
+	private final class Follower {
+		private final Socket socket;
+		private final int number;
+		private final BlockingQueue<Object> pending = new ArrayBlockingQueue<>(maxPending);
+		//Encoded bytes of the commits queued, each taken off by whichever of the sender or syncBook dequeues it
+		private final AtomicLong pendingBytes = new AtomicLong();
+		private volatile boolean disconnected;
+
+		private Follower(Socket socket, int number) {
+			this.socket = socket;
+			this.number = number;
+		}
+
+		private void start() {
+			final Thread sender = new Thread(this::send, "replication-follower-" + number);
+			sender.setDaemon(true);
+			sender.start();
+		}
+
+		/**
+		 * Called holding the leader's lock, like {@link #syncBook()}.
+		 */
+		private void offer(Commit commit) {
+			if (pendingBytes.get() + commit.body.length > maxPendingBytes || !pending.offer(commit)) {
+				log.warn("{} has fallen {} commits behind, sending it the whole book instead",
+				         this, pending.size());
+				syncBook();
+				return;
+			}
+			pendingBytes.addAndGet(commit.body.length);
+		}
+
+		/**
+		 * Drops every commit queued and queues the whole book as of the last commit published in their place.
+		 */
+		private void syncBook() {
+			final List<Object> dropped = new ArrayList<>(pending.size());
+			pending.drainTo(dropped);
+			for (Object frame : dropped) {
+				dequeued(frame);
+			}
+			bookSyncs.increment();
+			pending.offer(new BookSync(lastPublished, lastPublishedAt));
+		}
+
+		private void dequeued(Object frame) {
+			if (frame instanceof Commit) {
+				pendingBytes.addAndGet(-((Commit) frame).body.length);
+			}
+		}
+
+		private void send() {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+				socket.setSoTimeout(0);
+				while (!disconnected) {
+					final Object frame = pending.poll(heartbeatMs, TimeUnit.MILLISECONDS);
+					dequeued(frame);
+					if (frame == null) {
+						ReplicationFrames.writeHeader(out, ReplicationFrames.HEARTBEAT, lastPublished);
+					} else if (frame instanceof Commit) {
+						ReplicationFrames.writeHeader(out, ReplicationFrames.COMMIT, lastPublished);
+						out.write(((Commit) frame).body);
+					} else {
+						sendBook(out, (BookSync) frame);
+					}
+					//Frames already waiting go out together
+					if (pending.isEmpty()) {
+						out.flush();
+					}
+				}
+			} catch (IOException | UncheckedIOException e) {
+				if (!disconnected) {
+					log.info("{} disconnected: {}", this, e.toString());
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} finally {
+				close();
+			}
+		}
+
+		private void sendBook(DataOutputStream out, BookSync sync) throws IOException {
+			final long epoch = sync.epoch;
+			ReplicationFrames.writeHeader(out, ReplicationFrames.BOOK, lastPublished);
+			out.writeLong(epoch);
+			out.writeLong(sync.publishedAt);
+			final List<Price> chunk = new ArrayList<>(ReplicationFrames.BOOK_CHUNK);
+			book.forEach(price -> {
+				//Later commits are queued behind the book, see class comment
+				if (price.getEpoch() > epoch) {
+					return;
+				}
+				chunk.add(price);
+				if (chunk.size() == ReplicationFrames.BOOK_CHUNK) {
+					writeChunk(out, chunk);
+				}
+			});
+			writeChunk(out, chunk);
+			out.writeInt(0);
+		}
+
+		private void writeChunk(DataOutputStream out, List<Price> chunk) {
+			if (chunk.isEmpty()) {
+				return;
+			}
+			try {
+				ReplicationFrames.writePrices(out, chunk);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			chunk.clear();
+		}
+
+		private void close() {
+			disconnected = true;
+			followers.remove(this);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				log.debug("Could not close {}: {}", this, e.toString());
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Follower " + number + " at " + socket.getRemoteSocketAddress();
+		}
+	}
+}
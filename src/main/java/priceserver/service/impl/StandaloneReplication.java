@@ -0,0 +1,35 @@
+package priceserver.service.impl;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import priceserver.domain.Price;
+import priceserver.service.Replication;
+
+import java.util.Collection;
+
+/**
+ * Used when the server runs on its own, taking writes and serving reads with nobody to replicate to.
+ */
+@Component
+@ConditionalOnProperty(name = "priceserver.replication.role", havingValue = "standalone", matchIfMissing = true)
+public class StandaloneReplication implements Replication {
+	@Override
+	public void start(ReplicatedBook book) {
+		//Nothing to start
+	}
+
+	@Override
+	public void published(long epoch, Collection<Price> prices) {
+		//Nobody to tell
+	}
+
+	@Override
+	public void checkWritable() {
+		//Always the leader
+	}
+
+	@Override
+	public void checkReadable() {
+		//Never behind
+	}
+}
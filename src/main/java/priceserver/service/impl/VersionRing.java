@@ -0,0 +1,249 @@
+package priceserver.service.impl;
+
+import net.jcip.annotations.NotThreadSafe;
+import priceserver.domain.Price;
+
+/**
+ * The retained versions of one instrument, oldest first, in a ring that grows up to the maximum depth and then
+ * overwrites its oldest version.  Versions are only ever added newer than the last, so the ring is always sorted by
+ * timestamp and can be binary searched.
+ *
+ * Rather than a long per version, timestamps are kept as int nanosecond offsets from a base: the timestamp of the
+ * oldest version when the offsets were last worked out.  An instrument ticking faster than every couple of seconds
+ * therefore costs four bytes a timestamp.  Once the versions span too long for that even after moving the base up to
+ * the oldest, the offsets are widened to longs for good.  Epochs are kept as int offsets from a base of their own in
+ * the same way, rebased or widened when an instrument goes billions of commits between versions.
+ */
+@NotThreadSafe
+final class VersionRing {
+	private static final int INITIAL_CAPACITY = 4;
+	private static final int ARRAY_HEADER_BYTES = 16;
+
+	private long baseTimestamp;
+	private int[] timestampOffsets;
+	private long[] wideTimestampOffsets;
+	private long baseEpoch;
+	private int[] epochOffsets;
+	private long[] wideEpochOffsets;
+	private byte[][] payloads;
+	private int head;
+	private int count;
+	private long payloadBytes;
+
+	VersionRing(int maxDepth) {
+		final int capacity = Math.min(INITIAL_CAPACITY, maxDepth);
+		timestampOffsets = new int[capacity];
+		epochOffsets = new int[capacity];
+		payloads = new byte[capacity][];
+	}
+
+	int size() {
+		return count;
+	}
+
+	/**
+	 * @return Timestamp of the oldest version retained, only valid when there is one
+	 */
+	long oldestTimestamp() {
+		return timestamp(0);
+	}
+
+	/**
+	 * @return Timestamp of the newest version retained, only valid when there is one
+	 */
+	long newestTimestamp() {
+		return timestamp(count - 1);
+	}
+
+	/**
+	 * Adds a version newer than every one retained, evicting the oldest if the ring is already at the maximum depth.
+	 */
+	void add(Price price, int maxDepth) {
+		if (count == capacity()) {
+			if (count < maxDepth) {
+				grow(Math.min(count << 1, maxDepth));
+			} else {
+				evictOldest();
+			}
+		}
+		if (count == 0) {
+			baseTimestamp = price.getTimestamp();
+			baseEpoch = price.getEpoch();
+		}
+		fitOffsets(price.getTimestamp());
+		fitEpochOffsets(price.getEpoch());
+
+		final int slot = slot(count);
+		if (wideTimestampOffsets != null) {
+			wideTimestampOffsets[slot] = price.getTimestamp() - baseTimestamp;
+		} else {
+			timestampOffsets[slot] = (int) (price.getTimestamp() - baseTimestamp);
+		}
+		if (wideEpochOffsets != null) {
+			wideEpochOffsets[slot] = price.getEpoch() - baseEpoch;
+		} else {
+			epochOffsets[slot] = (int) (price.getEpoch() - baseEpoch);
+		}
+		payloads[slot] = price.getPayloadBytes();
+		payloadBytes += bytesOf(price.getPayloadBytes());
+		count++;
+	}
+
+	void evictOldest() {
+		payloadBytes -= bytesOf(payloads[head]);
+		payloads[head] = null;
+		head = (head + 1) % capacity();
+		count--;
+	}
+
+	/**
+	 * @return An estimate of the heap taken by the versions held, counting their payloads even though the newest
+	 * shares its payload with the book
+	 */
+	long bytes() {
+		//An offset, an epoch offset and a compressed reference per version
+		return count * ((wideTimestampOffsets != null ? 8L : 4L) + (wideEpochOffsets != null ? 8L : 4L) + 4L)
+				+ payloadBytes;
+	}
+
+	/**
+	 * @return The newest version at or before the timestamp, or null if every version retained is after it
+	 */
+	Price asOf(long id, long timestamp) {
+		int low = 0;
+		int high = count - 1;
+		int found = -1;
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			if (timestamp(middle) <= timestamp) {
+				found = middle;
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		if (found < 0) {
+			return null;
+		}
+		final int slot = slot(found);
+		return new Price(id, timestamp(found), payloads[slot], epoch(found));
+	}
+
+	private long timestamp(int index) {
+		final int slot = slot(index);
+		return baseTimestamp + (wideTimestampOffsets != null ? wideTimestampOffsets[slot] : timestampOffsets[slot]);
+	}
+
+	private long epoch(int index) {
+		final int slot = slot(index);
+		return baseEpoch + (wideEpochOffsets != null ? wideEpochOffsets[slot] : epochOffsets[slot]);
+	}
+
+	private int slot(int index) {
+		return (head + index) % capacity();
+	}
+
+	private int capacity() {
+		return payloads.length;
+	}
+
+	/**
+	 * Makes sure the timestamp's offset can be stored, first by moving the base up to the oldest version and then by
+	 * widening the offsets.
+	 */
+	private void fitOffsets(long timestamp) {
+		if (wideTimestampOffsets != null || fitsInt(timestamp - baseTimestamp)) {
+			return;
+		}
+		if (count > 0 && fitsInt(timestamp - oldestTimestamp())) {
+			rebase();
+		} else {
+			widen();
+		}
+	}
+
+	private void rebase() {
+		final long oldest = oldestTimestamp();
+		for (int i = 0; i < count; i++) {
+			final int slot = slot(i);
+			timestampOffsets[slot] = (int) (baseTimestamp + timestampOffsets[slot] - oldest);
+		}
+		baseTimestamp = oldest;
+	}
+
+	/**
+	 * As {@link #fitOffsets(long)}, for the epoch offsets.
+	 */
+	private void fitEpochOffsets(long epoch) {
+		if (wideEpochOffsets != null || fitsInt(epoch - baseEpoch)) {
+			return;
+		}
+		if (count > 0 && fitsInt(epoch - epoch(0))) {
+			rebaseEpochs();
+		} else {
+			widenEpochs();
+		}
+	}
+
+	private void rebaseEpochs() {
+		final long oldest = epoch(0);
+		for (int i = 0; i < count; i++) {
+			final int slot = slot(i);
+			epochOffsets[slot] = (int) (baseEpoch + epochOffsets[slot] - oldest);
+		}
+		baseEpoch = oldest;
+	}
+
+	private void widenEpochs() {
+		wideEpochOffsets = new long[capacity()];
+		for (int slot = 0; slot < capacity(); slot++) {
+			wideEpochOffsets[slot] = epochOffsets[slot];
+		}
+		epochOffsets = null;
+	}
+
+	private void widen() {
+		wideTimestampOffsets = new long[capacity()];
+		for (int slot = 0; slot < capacity(); slot++) {
+			wideTimestampOffsets[slot] = timestampOffsets[slot];
+		}
+		timestampOffsets = null;
+	}
+
+	private void grow(int capacity) {
+		final int[] offsets = timestampOffsets == null ? null : new int[capacity];
+		final long[] wideOffsets = wideTimestampOffsets == null ? null : new long[capacity];
+		final int[] epochs = epochOffsets == null ? null : new int[capacity];
+		final long[] wideEpochs = wideEpochOffsets == null ? null : new long[capacity];
+		final byte[][] grown = new byte[capacity][];
+		for (int i = 0; i < count; i++) {
+			final int slot = slot(i);
+			if (offsets != null) {
+				offsets[i] = timestampOffsets[slot];
+			} else {
+				wideOffsets[i] = wideTimestampOffsets[slot];
+			}
+			if (epochs != null) {
+				epochs[i] = epochOffsets[slot];
+			} else {
+				wideEpochs[i] = wideEpochOffsets[slot];
+			}
+			grown[i] = payloads[slot];
+		}
+		timestampOffsets = offsets;
+		wideTimestampOffsets = wideOffsets;
+		epochOffsets = epochs;
+		wideEpochOffsets = wideEpochs;
+		payloads = grown;
+		head = 0;
+	}
+
+	private static long bytesOf(byte[] payload) {
+		//Objects are padded to a multiple of eight bytes
+		return (ARRAY_HEADER_BYTES + payload.length + 7) & ~7;
+	}
+
+	private static boolean fitsInt(long offset) {
+		return offset >= Integer.MIN_VALUE && offset <= Integer.MAX_VALUE;
+	}
+}
@@ -0,0 +1,488 @@
+package priceserver.service.impl;
+
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import priceserver.domain.LatestPriceFinder;
+import priceserver.domain.Price;
+import priceserver.domain.PriceShards;
+import priceserver.domain.ShardedPrices;
+import priceserver.service.PriceSnapshot;
+import priceserver.service.PriceStore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Implements the epoch publishing of a PriceStore on top of a simple slot per id, leaving the subclasses to decide
+ * how slots are laid out in memory.
+ *
+ * A slot normally holds the committed Price.  While a commit is in progress, each price it changes is staged as a
+ * {@link Pending} slot holding both the new and the old price, and pointing at the commit's {@link Publication}.
+ * Once every price is staged a single volatile write marks the publication as published, which switches every
+ * reader over to the new prices at once.  The pending slots are then collapsed back to plain prices.  Readers
+ * therefore never lock and never wait for a commit; they at most have to look one step further into the slot.
+ *
+ * Publications are chained in epoch order, and each keeps its pending slots and so the prices it replaced.  A
+ * {@link View} holds on to the publication it is pinned at, and with it every later one, so a price published after
+ * the view's epoch can be traced back to the one it replaced.  Only views and the latest publication keep them alive.
+ *
+ * Commits are serialised with each other.  The book is split into {@link PriceShards}, and within a commit each
+ * shard is staged and collapsed by one thread, so there is only ever one writer of a shard's slots.  Big commits
+ * work on their shards in parallel across a fork-join pool, while the one publication they share still switches
+ * readers over all at once.  Readers of a shard that a commit does not touch never see any of its pending slots.
+ *
+ * A store started from a snapshot treats an empty slot as holding the snapshot's price for that id, until a
+ * background thread has copied the snapshot into the slots.  The copy goes through the commit lock a chunk at a time,
+ * as readers cannot fill slots themselves without becoming a second writer.
+ *
+ * Every price put in the book has its payload interned in the {@link PayloadPool}, so that instruments with the same
+ * payload share it.  The bytes reported still count a shared payload once for every price holding it.
+ */
+@ThreadSafe
+abstract class VersionedPriceStore implements PriceStore {
+	private static final Logger log = LoggerFactory.getLogger(VersionedPriceStore.class);
+
+	private static final int SNAPSHOT_LOAD_CHUNK = 10_000;
+
+	//Commits smaller than this are merged on the committing thread, as handing out the shards would cost more
+	private static final int PARALLEL_MERGE_THRESHOLD = 8192;
+
+	//With compressed oops: a Price is a 12 byte header, three longs and a reference, and an array header is 16 bytes
+	private static final int PRICE_BYTES = 40;
+	private static final int ARRAY_HEADER_BYTES = 16;
+
+	private final Object commitLock = new Object();
+
+	//Only written while holding the commit lock
+	private volatile long epoch;
+
+	//Only written while holding the commit lock
+	private volatile long bytes;
+
+	//Only written while holding the commit lock
+	private volatile Publication latest = Publication.root(0L);
+
+	//Set until the snapshot has been copied into the slots
+	private volatile PriceSnapshot snapshot;
+
+	//Stops the snapshot loader filling slots while forEach is looking at both the slots and the snapshot
+	private final ReadWriteLock snapshotLoadLock = new ReentrantReadWriteLock();
+
+	private final PriceShards shards;
+
+	//Null when commits are merged entirely on the committing thread
+	private final ForkJoinPool mergePool;
+
+	private final PriceHistory history;
+
+	private final PayloadPool payloads;
+
+	/**
+	 * @param mergeParallelism How many threads merge the shards of a big commit, one to do it all on the committing
+	 *                         thread
+	 * @param history          Given every price as it is published
+	 * @param payloads         Interns the payload of every price put in the book
+	 */
+	VersionedPriceStore(PriceShards shards, int mergeParallelism, PriceHistory history, PayloadPool payloads) {
+		this.shards = shards;
+		this.history = history;
+		this.payloads = payloads;
+		mergePool = mergeParallelism > 1 ? new ForkJoinPool(mergeParallelism, pool -> {
+			final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("commit-merge-" + thread.getPoolIndex());
+			return thread;
+		}, null, false) : null;
+	}
+
+	PriceShards shards() {
+		return shards;
+	}
+
+	/**
+	 * @return The slot for the id, either a Price, a Pending or null if the id has never been committed
+	 */
+	abstract Object slot(long id);
+
+	/**
+	 * Only ever called by one thread at a time for any one shard, but may be called for different shards at once.
+	 * Slots are never removed, only replaced.
+	 */
+	abstract void putSlot(long id, Object slot);
+
+	/**
+	 * Visits every non-empty slot.  May run at the same time as {@link #putSlot(long, Object)}.
+	 */
+	abstract void forEachSlot(Consumer<Object> action);
+
+	@Override
+	public Price get(long id) {
+		final Object slot = slot(id);
+		if (slot == null) {
+			final PriceSnapshot loading = snapshot;
+			if (loading != null) {
+				return loading.get(id);
+			}
+			//The snapshot may have finished loading since the slot was read
+			return resolve(slot(id));
+		}
+		return resolve(slot);
+	}
+
+	@Override
+	public void forEach(Consumer<Price> action) {
+		view().forEach(action);
+	}
+
+	@Override
+	public View view() {
+		final Publication pinned = latest;
+		return new View() {
+			@Override
+			public long epoch() {
+				return pinned.epoch;
+			}
+
+			@Override
+			public Price get(long id) {
+				return asOf(pinned, id, VersionedPriceStore.this.get(id));
+			}
+
+			@Override
+			public void forEach(Consumer<Price> action) {
+				forEachAsOf(pinned, action);
+			}
+		};
+	}
+
+	private void forEachAsOf(Publication pinned, Consumer<Price> action) {
+		final Consumer<Object> resolvingAction = slot -> {
+			final Price price = resolve(slot);
+			if (price != null) {
+				final Price pinnedPrice = asOf(pinned, price.getId(), price);
+				if (pinnedPrice != null) {
+					action.accept(pinnedPrice);
+				}
+			}
+		};
+		if (snapshot == null) {
+			forEachSlot(resolvingAction);
+			return;
+		}
+
+		snapshotLoadLock.readLock().lock();
+		try {
+			//Snapshot prices first, so that an id committed part way through is visited twice rather than missed
+			final PriceSnapshot loading = snapshot;
+			if (loading != null) {
+				for (int i = 0; i < loading.size(); i++) {
+					if (slot(loading.idAt(i)) == null) {
+						action.accept(loading.priceAt(i));
+					}
+				}
+			}
+			forEachSlot(resolvingAction);
+		} finally {
+			snapshotLoadLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void loadLazily(PriceSnapshot loading) {
+		synchronized (commitLock) {
+			if (epoch != 0L || snapshot != null) {
+				throw new IllegalStateException("A snapshot can only be loaded into an empty store");
+			}
+			snapshot = loading;
+			epoch = loading.epoch();
+			latest = Publication.root(epoch);
+		}
+		final Thread loader = new Thread(() -> copySnapshot(loading), "snapshot-loader");
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	@Override
+	public void commit(long next, Collection<Price> prices) {
+		synchronized (commitLock) {
+			if (next <= epoch) {
+				throw new IllegalArgumentException("Epoch " + next + " is not after the current epoch " + epoch);
+			}
+			final ShardedPrices sharded = ShardedPrices.of(shards, prices);
+			final ShardMerge[] merges = new ShardMerge[shards.count()];
+			final Publication publication = new Publication(next, merges);
+			final boolean parallel = sharded.size() >= PARALLEL_MERGE_THRESHOLD;
+
+			forEachShard(parallel, shard -> merges[shard] = stage(sharded.shard(shard), next, publication));
+
+			long stagedBytes = 0;
+			for (ShardMerge merge : merges) {
+				stagedBytes += merge.bytes;
+			}
+
+			//Linked first, so a view pinned before the commit can always find what it replaced
+			latest.next = publication;
+			//This is the point where the whole commit becomes visible
+			publication.published = true;
+			epoch = next;
+			bytes += stagedBytes;
+			latest = publication;
+
+			forEachShard(parallel, shard -> merges[shard].collapse(publication));
+		}
+	}
+
+	/**
+	 * Runs the work for every shard, across the merge pool if asked to and there is one.  Returns once all of them
+	 * are done, so whatever they wrote can be seen by the caller.
+	 */
+	private void forEachShard(boolean parallel, IntConsumer work) {
+		if (parallel && mergePool != null && shards.count() > 1) {
+			mergePool.invoke(new ShardTask(work, 0, shards.count()));
+		} else {
+			for (int shard = 0; shard < shards.count(); shard++) {
+				work.accept(shard);
+			}
+		}
+	}
+
+	@Override
+	public long epoch() {
+		return epoch;
+	}
+
+	@Override
+	public long bytes() {
+		return bytes;
+	}
+
+	/**
+	 * Stages every price of one shard that is newer than the one in the book.
+	 */
+	private ShardMerge stage(Collection<Price> shardPrices, long next, Publication publication) {
+		final ShardMerge merge = new ShardMerge(shardPrices.size());
+		for (Price price : shardPrices) {
+			stage(price, next, publication, merge);
+		}
+		return merge;
+	}
+
+	private void stage(Price price, long next, Publication publication, ShardMerge merge) {
+		final long id = price.getId();
+		final Object slot = slot(id);
+		final PriceSnapshot loading = snapshot;
+		final boolean stagedAlready = slot instanceof Pending && ((Pending) slot).publication == publication;
+		final Price oldPrice;
+		final Price current;
+		if (stagedAlready) {
+			//The same id was in this commit twice, compete against the price staged already
+			oldPrice = ((Pending) slot).oldPrice;
+			current = ((Pending) slot).newPrice;
+		} else if (slot == null && loading != null) {
+			//Not copied over from the snapshot yet, which cannot happen while we hold the commit lock
+			oldPrice = loading.get(id);
+			current = oldPrice;
+		} else {
+			oldPrice = (Price) slot;
+			current = oldPrice;
+		}
+
+		final Price latest = new LatestPriceFinder(price).apply(id, current);
+		if (latest == current) {
+			return;
+		}
+		final Price stamped = new Price(id, latest.getTimestamp(), payloads.intern(latest.getPayloadBytes()), next);
+		final Pending pending = new Pending(stamped, oldPrice, publication);
+		putSlot(id, pending);
+		//A price still in the snapshot is not on the heap, so there is nothing to take off for it
+		merge.bytes += bytesOf(stamped) - (slot == null ? 0L : bytesOf(current));
+		if (!stagedAlready) {
+			merge.staged.add(pending);
+		}
+	}
+
+	private void collapse(long id, Publication publication) {
+		final Object slot = slot(id);
+		if (slot instanceof Pending && ((Pending) slot).publication == publication) {
+			final Price published = ((Pending) slot).newPrice;
+			putSlot(id, published);
+			history.record(published);
+		}
+	}
+
+	private void copySnapshot(PriceSnapshot loading) {
+		final long start = System.nanoTime();
+		for (int from = 0; from < loading.size(); from += SNAPSHOT_LOAD_CHUNK) {
+			final int to = Math.min(loading.size(), from + SNAPSHOT_LOAD_CHUNK);
+			snapshotLoadLock.writeLock().lock();
+			try {
+				synchronized (commitLock) {
+					long loadedBytes = 0;
+					for (int i = from; i < to; i++) {
+						//Anything already in the slot was committed after the snapshot and is newer
+						if (slot(loading.idAt(i)) == null) {
+							final Price price = payloads.intern(loading.priceAt(i));
+							putSlot(price.getId(), price);
+							loadedBytes += bytesOf(price);
+						}
+					}
+					bytes += loadedBytes;
+				}
+			} finally {
+				snapshotLoadLock.writeLock().unlock();
+			}
+		}
+		snapshot = null;
+		log.info("Loaded {} prices from {} in {} ms",
+		         loading.size(),
+		         loading,
+		         (System.nanoTime() - start) / 1_000_000);
+	}
+
+	private static long bytesOf(Price price) {
+		//Objects are padded to a multiple of eight bytes
+		return PRICE_BYTES + ((ARRAY_HEADER_BYTES + price.getPayloadBytes().length + 7) & ~7);
+	}
+
+	/**
+	 * Follows a price published after the pinned publication back through the prices it replaced, to the one the id
+	 * had at the pinned epoch.
+	 */
+	private static Price asOf(Publication pinned, long id, Price price) {
+		Price pinnedPrice = price;
+		while (pinnedPrice != null && pinnedPrice.getEpoch() > pinned.epoch) {
+			final Pending replacing = pinned.later(pinnedPrice.getEpoch()).stagedFor(id);
+			if (replacing == null) {
+				//Loaded from a fuzzy snapshot rather than published, so there is nothing older to go back to
+				return pinnedPrice;
+			}
+			pinnedPrice = replacing.oldPrice;
+		}
+		return pinnedPrice;
+	}
+
+	private static Price resolve(Object slot) {
+		if (slot instanceof Pending) {
+			final Pending pending = (Pending) slot;
+			return pending.publication.published ? pending.newPrice : pending.oldPrice;
+		}
+		return (Price) slot;
+	}
+
+	/**
+	 * What one commit did to one shard.  Written by the thread staging the shard, then read once that has finished.
+	 */
+	private final class ShardMerge {
+		private final List<Pending> staged;
+		private long bytes;
+
+		private ShardMerge(int expected) {
+			staged = new ArrayList<>(expected);
+		}
+
+		private void collapse(Publication publication) {
+			for (Pending pending : staged) {
+				VersionedPriceStore.this.collapse(pending.newPrice.getId(), publication);
+			}
+		}
+	}
+
+	private static final class ShardTask extends RecursiveAction {
+		private final IntConsumer work;
+		private final int from;
+		private final int to;
+
+		private ShardTask(IntConsumer work, int from, int to) {
+			this.work = work;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				work.accept(from);
+				return;
+			}
+			final int middle = (from + to) >>> 1;
+			invokeAll(new ShardTask(work, from, middle), new ShardTask(work, middle, to));
+		}
+	}
+
+	private static final class Publication {
+		private final long epoch;
+
+		//Filled in before the publication is linked to the one before it
+		private final ShardMerge[] merges;
+
+		//The publication after this one, set just before it is published
+		private volatile Publication next;
+
+		private volatile boolean published;
+
+		//Built the first time a view needs it, most publications are never asked
+		private Map<Long, Pending> staged;
+
+		private Publication(long epoch, ShardMerge[] merges) {
+			this.epoch = epoch;
+			this.merges = merges;
+		}
+
+		/**
+		 * The start of the chain, standing for everything the book held before its first commit.
+		 */
+		private static Publication root(long epoch) {
+			final Publication root = new Publication(epoch, new ShardMerge[0]);
+			root.published = true;
+			return root;
+		}
+
+		/**
+		 * @return The publication of the epoch after this one, or an empty one if no commit had that epoch
+		 */
+		private Publication later(long laterEpoch) {
+			Publication later = next;
+			while (later != null && later.epoch < laterEpoch) {
+				later = later.next;
+			}
+			return later != null && later.epoch == laterEpoch ? later : root(laterEpoch);
+		}
+
+		/**
+		 * @return The pending slot this publication staged for the id, or null if it did not change it
+		 */
+		private synchronized Pending stagedFor(long id) {
+			if (staged == null) {
+				staged = new HashMap<>();
+				for (ShardMerge merge : merges) {
+					for (Pending pending : merge.staged) {
+						staged.put(pending.newPrice.getId(), pending);
+					}
+				}
+			}
+			return staged.get(id);
+		}
+	}
+
+	private static final class Pending {
+		private final Price newPrice;
+		private final Price oldPrice;
+		private final Publication publication;
+
+		private Pending(Price newPrice, Price oldPrice, Publication publication) {
+			this.newPrice = newPrice;
+			this.oldPrice = oldPrice;
+			this.publication = publication;
+		}
+	}
+}
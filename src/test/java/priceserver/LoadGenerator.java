@@ -0,0 +1,352 @@
+package priceserver;
+
+import ch.qos.logback.classic.Level;
+import org.HdrHistogram.Histogram;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.web.client.RestTemplateBuilder;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.xml.MappingJackson2XmlHttpMessageConverter;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+import priceserver.domain.Price;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+/**
+ * Drives a running price server through {@link PriceServerConnection} at a fixed request rate, and reports the
+ * throughput and latency percentiles of each endpoint.
+ *
+ * Requests are scheduled at fixed intervals rather than sent as soon as the last one returns.  Latency is measured
+ * from when a request was due to be sent, so a stall in the server shows up in the latency of every request that
+ * should have been sent during it, rather than only the one that was stuck.  This corrects for coordinated
+ * omission; the service time, measured from when the request was actually sent, is reported alongside.
+ *
+ * Start the server first, then for example:
+ * <pre>
+ * mvn -P load test -Dload.args="--port=8080 --scenario=mixed --threads=8 --rate=2000 --duration=60"
+ * </pre>
+ * Options, with their defaults: port=8080, scenario=mixed (upload-heavy, read-heavy, mixed or many-batches),
+ * threads=8, rate=1000 requests per second across all threads, duration=30 seconds, warmup=5 seconds, ids=100000,
+ * prices-per-upload=1000, uploads-per-batch=10, open-batches=1 per thread (many-batches uses 16).
+ */
+public class LoadGenerator {
+	private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+	enum Endpoint {
+		CREATE, UPLOAD, COMMIT, GET, QUERY
+	}
+
+	/**
+	 * How often each thread uploads rather than reads, in percent, and how many batches each thread keeps open.
+	 */
+	enum Scenario {
+		UPLOAD_HEAVY(80, 1),
+		READ_HEAVY(5, 1),
+		MIXED(50, 1),
+		MANY_BATCHES(80, 16);
+
+		private final int uploadPercent;
+		private final int defaultOpenBatches;
+
+		Scenario(int uploadPercent, int defaultOpenBatches) {
+			this.uploadPercent = uploadPercent;
+			this.defaultOpenBatches = defaultOpenBatches;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		final Map<String, String> options = parse(args);
+		final Scenario scenario = Scenario.valueOf(option(options, "scenario", "mixed").toUpperCase().replace('-', '_'));
+		final int port = Integer.parseInt(option(options, "port", "8080"));
+		final int threads = Integer.parseInt(option(options, "threads", "8"));
+		final double rate = Double.parseDouble(option(options, "rate", "1000"));
+		final long durationSeconds = Long.parseLong(option(options, "duration", "30"));
+		final long warmupSeconds = Long.parseLong(option(options, "warmup", "5"));
+		final Settings settings = new Settings(scenario,
+		                                       Integer.parseInt(option(options, "ids", "100000")),
+		                                       Integer.parseInt(option(options, "prices-per-upload", "1000")),
+		                                       Integer.parseInt(option(options, "uploads-per-batch", "10")),
+		                                       Integer.parseInt(option(options, "open-batches",
+		                                                               String.valueOf(scenario.defaultOpenBatches))));
+
+		//The client logs every request at debug otherwise
+		((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+
+		System.out.printf("scenario=%s port=%d threads=%d rate=%.0f/s duration=%ds %s%n",
+		                  scenario, port, threads, rate, durationSeconds, settings);
+		if (warmupSeconds > 0) {
+			run(port, threads, rate, warmupSeconds, settings);
+		}
+		final Results results = run(port, threads, rate, durationSeconds, settings);
+		results.print(durationSeconds);
+	}
+
+	private static Results run(int port, int threads, double rate, long durationSeconds, Settings settings)
+			throws Exception {
+		final ExecutorService exec = Executors.newFixedThreadPool(threads);
+		try {
+			final long intervalNanos = (long) (threads * 1e9 / rate);
+			final long start = System.nanoTime();
+			final long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+			final List<Future<Results>> futures = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				//Stagger the threads so their requests are spread evenly over the interval
+				final long firstRequest = start + intervalNanos * t / threads;
+				futures.add(exec.submit(() -> new Worker(port, settings).run(firstRequest, intervalNanos, end)));
+			}
+			final Results results = new Results();
+			for (Future<Results> future : futures) {
+				results.add(future.get());
+			}
+			return results;
+		} finally {
+			exec.shutdown();
+		}
+	}
+
+	private static Map<String, String> parse(String[] args) {
+		final Map<String, String> options = new HashMap<>();
+		for (String arg : args) {
+			if (!arg.startsWith("--") || !arg.contains("=")) {
+				throw new IllegalArgumentException("Expected --option=value but got " + arg);
+			}
+			options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+		}
+		return options;
+	}
+
+	private static String option(Map<String, String> options, String name, String defaultValue) {
+		return options.getOrDefault(name, defaultValue);
+	}
+
+	private static final class Settings {
+		private final Scenario scenario;
+		private final int ids;
+		private final int pricesPerUpload;
+		private final int uploadsPerBatch;
+		private final int openBatches;
+
+		private Settings(Scenario scenario, int ids, int pricesPerUpload, int uploadsPerBatch, int openBatches) {
+			this.scenario = scenario;
+			this.ids = ids;
+			this.pricesPerUpload = pricesPerUpload;
+			this.uploadsPerBatch = uploadsPerBatch;
+			this.openBatches = openBatches;
+		}
+
+		@Override
+		public String toString() {
+			return "ids=" + ids +
+					" prices-per-upload=" + pricesPerUpload +
+					" uploads-per-batch=" + uploadsPerBatch +
+					" open-batches=" + openBatches;
+		}
+	}
+
+	/**
+	 * Sends one request per interval from a single thread.  Uploads go round the thread's open batches, each of
+	 * which is created on its first upload and committed once it has had all of its uploads.
+	 */
+	private static final class Worker {
+		private final PriceServerConnection connection;
+		private final Settings settings;
+		private final Results results = new Results();
+		private final long[] batchIds;
+		private final int[] uploads;
+		private int nextBatch;
+
+		private Worker(int port, Settings settings) {
+			this.connection = new PriceServerConnection(port, jsonOnly());
+			this.settings = settings;
+			this.batchIds = new long[settings.openBatches];
+			this.uploads = new int[settings.openBatches];
+		}
+
+		/**
+		 * XML would otherwise be sent ahead of JSON, and the reactive front end does not take it.
+		 */
+		private static TestRestTemplate jsonOnly() {
+			final List<HttpMessageConverter<?>> converters =
+					new RestTemplate().getMessageConverters()
+					                  .stream()
+					                  .filter(converter -> !(converter instanceof MappingJackson2XmlHttpMessageConverter))
+					                  .collect(Collectors.toList());
+			return new TestRestTemplate(new RestTemplateBuilder().messageConverters(converters));
+		}
+
+		private Results run(long firstRequest, long intervalNanos, long end) {
+			for (long due = firstRequest; due < end; due += intervalNanos) {
+				final long wait = due - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+				final long sent = System.nanoTime();
+				final Endpoint endpoint;
+				try {
+					if (ThreadLocalRandom.current().nextInt(100) < settings.scenario.uploadPercent) {
+						endpoint = nextBatchRequest();
+					} else {
+						endpoint = read();
+					}
+				} catch (RequestFailed e) {
+					results.recordError(e.endpoint);
+					continue;
+				}
+				final long done = System.nanoTime();
+				results.record(endpoint, done - due, done - sent);
+			}
+			return results;
+		}
+
+		private Endpoint nextBatchRequest() {
+			final int batch = nextBatch;
+			if (batchIds[batch] == 0L) {
+				batchIds[batch] = send(Endpoint.CREATE, connection::createBatch).getBody();
+				uploads[batch] = 0;
+				return Endpoint.CREATE;
+			}
+			nextBatch = (nextBatch + 1) % batchIds.length;
+			if (uploads[batch] == settings.uploadsPerBatch) {
+				final long batchId = batchIds[batch];
+				batchIds[batch] = 0L;
+				send(Endpoint.COMMIT, () -> connection.tryToCommitBatch(batchId));
+				return Endpoint.COMMIT;
+			}
+			uploads[batch]++;
+			final List<Price> prices = prices();
+			send(Endpoint.UPLOAD, () -> connection.uploadBatch(batchIds[batch], prices));
+			return Endpoint.UPLOAD;
+		}
+
+		private Endpoint read() {
+			final ThreadLocalRandom random = ThreadLocalRandom.current();
+			if (random.nextInt(10) == 0) {
+				final long[] ids = random.longs(100, 0, settings.ids).toArray();
+				send(Endpoint.QUERY, () -> connection.queryPrices(ids));
+				return Endpoint.QUERY;
+			}
+			final long id = random.nextInt(settings.ids);
+			//Ids that have not been uploaded yet are a valid answer, not a failure
+			send(Endpoint.GET, () -> connection.getPrice(id), HttpStatus.NOT_FOUND);
+			return Endpoint.GET;
+		}
+
+		private List<Price> prices() {
+			final ThreadLocalRandom random = ThreadLocalRandom.current();
+			return LongStream.range(0, settings.pricesPerUpload)
+			                 .map(i -> random.nextInt(settings.ids))
+			                 .mapToObj(new PriceFactory(ZonedDateTime.now(ZoneOffset.UTC)))
+			                 .collect(Collectors.toList());
+		}
+
+		private static <T> ResponseEntity<T> send(Endpoint endpoint, Supplier<ResponseEntity<T>> request) {
+			return send(endpoint, request, null);
+		}
+
+		/**
+		 * @throws RequestFailed If the request could not be sent, or failed with anything but the accepted status
+		 */
+		private static <T> ResponseEntity<T> send(Endpoint endpoint,
+		                                          Supplier<ResponseEntity<T>> request,
+		                                          HttpStatus acceptedFailure) {
+			final ResponseEntity<T> response;
+			try {
+				response = request.get();
+			} catch (RestClientException e) {
+				throw new RequestFailed(endpoint);
+			}
+			if (!response.getStatusCode().is2xxSuccessful() && response.getStatusCode() != acceptedFailure) {
+				throw new RequestFailed(endpoint);
+			}
+			return response;
+		}
+	}
+
+	private static final class RequestFailed extends RuntimeException {
+		private final Endpoint endpoint;
+
+		private RequestFailed(Endpoint endpoint) {
+			super(null, null, false, false);
+			this.endpoint = endpoint;
+		}
+	}
+
+	/**
+	 * Response time and service time histograms per endpoint, in nanoseconds.
+	 */
+	private static final class Results {
+		private final Map<Endpoint, Histogram> responseTimes = new EnumMap<>(Endpoint.class);
+		private final Map<Endpoint, Histogram> serviceTimes = new EnumMap<>(Endpoint.class);
+		private final Map<Endpoint, Long> errors = new EnumMap<>(Endpoint.class);
+
+		private Results() {
+			for (Endpoint endpoint : Endpoint.values()) {
+				responseTimes.put(endpoint, new Histogram(HIGHEST_TRACKABLE_NANOS, 3));
+				serviceTimes.put(endpoint, new Histogram(HIGHEST_TRACKABLE_NANOS, 3));
+				errors.put(endpoint, 0L);
+			}
+		}
+
+		private void record(Endpoint endpoint, long responseNanos, long serviceNanos) {
+			responseTimes.get(endpoint).recordValue(Math.min(responseNanos, HIGHEST_TRACKABLE_NANOS));
+			serviceTimes.get(endpoint).recordValue(Math.min(serviceNanos, HIGHEST_TRACKABLE_NANOS));
+		}
+
+		private void recordError(Endpoint endpoint) {
+			errors.merge(endpoint, 1L, Long::sum);
+		}
+
+		private void add(Results other) {
+			for (Endpoint endpoint : Endpoint.values()) {
+				responseTimes.get(endpoint).add(other.responseTimes.get(endpoint));
+				serviceTimes.get(endpoint).add(other.serviceTimes.get(endpoint));
+				errors.merge(endpoint, other.errors.get(endpoint), Long::sum);
+			}
+		}
+
+		private void print(long durationSeconds) {
+			System.out.printf("%-7s %9s %7s %9s | %-29s | %-29s%n",
+			                  "", "requests", "errors", "req/s",
+			                  "response ms p50 / p99 / p99.9", "service ms p50 / p99 / p99.9");
+			for (Endpoint endpoint : Endpoint.values()) {
+				final Histogram response = responseTimes.get(endpoint);
+				final Histogram service = serviceTimes.get(endpoint);
+				if (response.getTotalCount() == 0 && errors.get(endpoint) == 0) {
+					continue;
+				}
+				System.out.printf("%-7s %,9d %,7d %,9.1f | %s | %s%n",
+				                  endpoint,
+				                  response.getTotalCount(),
+				                  errors.get(endpoint),
+				                  response.getTotalCount() / (double) durationSeconds,
+				                  percentiles(response),
+				                  percentiles(service));
+			}
+		}
+
+		private static String percentiles(Histogram histogram) {
+			return String.format("%8.2f / %8.2f / %8.2f",
+			                     histogram.getValueAtPercentile(50) / 1e6,
+			                     histogram.getValueAtPercentile(99) / 1e6,
+			                     histogram.getValueAtPercentile(99.9) / 1e6);
+		}
+	}
+}
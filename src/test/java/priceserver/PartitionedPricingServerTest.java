@@ -0,0 +1,148 @@
+package priceserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import priceserver.domain.Price;
+import priceserver.domain.PriceQueryResult;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs two partitions and a router in front of them, each with its own application context and web server, talking
+ * to each other over HTTP just as they would in separate JVMs.
+ */
+class PartitionedPricingServerTest {
+	private final TestRestTemplate testRestTemplate = new TestRestTemplate();
+
+	private final List<ConfigurableApplicationContext> servers = new ArrayList<>();
+
+	private PriceServerConnection[] partitions;
+
+	private PriceServerConnection router;
+
+	@BeforeEach
+	void startServers() {
+		partitions = new PriceServerConnection[2];
+		final String[] urls = new String[partitions.length];
+		for (int i = 0; i < partitions.length; i++) {
+			final int port = start("--priceserver.batches.directory=target/partition-" + i + "-batches");
+			partitions[i] = new PriceServerConnection(port, testRestTemplate);
+			urls[i] = "http://localhost:" + port;
+		}
+		router = new PriceServerConnection(start("--priceserver.partitioning.router=true",
+		                                         "--priceserver.partitioning.nodes=" + String.join(",", urls),
+		                                         "--priceserver.batches.directory=target/router-batches",
+		                                         "--priceserver.partitioning.decision-log=target/router-decisions.log"),
+		                                   testRestTemplate);
+	}
+
+	@AfterEach
+	void stopServers() {
+		servers.forEach(ConfigurableApplicationContext::close);
+	}
+
+	@Test
+	void aBatchCommittedThroughTheRouterIsSplitBetweenThePartitions() {
+		final ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+		final List<Price> prices = LongStream.range(1, 2_001)
+		                                     .mapToObj(new PriceFactory(now))
+		                                     .collect(Collectors.toList());
+		final Long batchId = router.createBatch().getBody();
+		router.uploadBatch(batchId, prices.subList(0, 1_000));
+		router.uploadBatch(batchId, prices.subList(1_000, 2_000));
+		router.commitBatch(batchId);
+
+		final long[] ids = LongStream.range(1, 2_002).toArray();
+		final PriceQueryResult routed = router.queryPrices(ids).getBody();
+		assertEquals(prices, sortedById(routed.getPrices()));
+		assertArrayEquals(new long[]{2_001L}, routed.getMissing());
+		assertEquals(prices.get(41), router.getPrice(42L).getBody());
+		assertEquals(prices, sortedById(Arrays.asList(router.getAllPrices().getBody())));
+
+		//Each partition holds some of the prices and none of the others', all published under the router's epoch
+		int held = 0;
+		for (PriceServerConnection partition : partitions) {
+			final PriceQueryResult result = partition.queryPrices(ids).getBody();
+			assertTrue(result.getPrices().size() > 500, result.toString());
+			assertEquals(routed.getEpoch(), result.getEpoch());
+			held += result.getPrices().size();
+		}
+		assertEquals(prices.size(), held);
+
+		final ZonedDateTime later = now.plusSeconds(1);
+		final Long nextBatchId = router.createBatch().getBody();
+		router.uploadBatch(nextBatchId, Arrays.asList(new Price(7L, later, "seven"), new Price(8L, later, "eight")));
+		router.commitBatch(nextBatchId);
+		final PriceQueryResult changed = router.queryPricesChangedSince(routed.getEpoch(), ids).getBody();
+		assertEquals(Arrays.asList(new Price(7L, later, "seven"), new Price(8L, later, "eight")),
+		             sortedById(changed.getPrices()));
+		assertEquals(routed.getEpoch() + 1, changed.getEpoch());
+	}
+
+	@Test
+	void aCommitThatOnePartitionCannotTakeChangesNoPartition() {
+		final ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+		final List<Price> prices = LongStream.range(1, 1_001)
+		                                     .mapToObj(new PriceFactory(now))
+		                                     .collect(Collectors.toList());
+		final Long batchId = router.createBatch().getBody();
+		router.uploadBatch(batchId, prices);
+		//Each partition has been sent a batch of its own, 1 being the first, which one of them now loses
+		partitions[1].cancelBatch(1L);
+
+		final ResponseEntity<Void> commit = router.tryToCommitBatch(batchId);
+		assertEquals(HttpStatus.NOT_FOUND, commit.getStatusCode());
+		assertEquals(1_000, router.queryPrices(LongStream.range(1, 1_001).toArray()).getBody().getMissing().length);
+		assertEquals(HttpStatus.NOT_FOUND, router.tryToCommitBatch(batchId).getStatusCode());
+	}
+
+	@Test
+	void aPartitionAskedAgainToCommitAPreparedBatchAnswersThatItHasCommittedIt() {
+		final ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+		final PriceServerConnection partition = partitions[0];
+		final Long batchId = partition.createBatch().getBody();
+		partition.uploadBatch(batchId, Arrays.asList(new Price(1L, now, "one")));
+		assertEquals(HttpStatus.OK, partition.prepareBatch(batchId).getStatusCode());
+		final long epoch = partition.queryPrices().getBody().getEpoch() + 5;
+
+		assertEquals(HttpStatus.OK, partition.tryToCommitBatchAs(batchId, epoch).getStatusCode());
+		//As the router would, having lost the answer
+		assertEquals(HttpStatus.OK, partition.tryToCommitBatchAs(batchId, epoch).getStatusCode());
+		assertEquals(epoch, partition.queryPrices(1L).getBody().getEpoch());
+		assertEquals(HttpStatus.NOT_FOUND, partition.tryToCommitBatchAs(batchId, epoch + 1).getStatusCode());
+	}
+
+	/**
+	 * @return The port the server is listening on
+	 */
+	private int start(String... args) {
+		final String[] withPort = Arrays.copyOf(args, args.length + 1);
+		withPort[args.length] = "--server.port=0";
+		final ConfigurableApplicationContext server = new SpringApplicationBuilder(Main.class).run(withPort);
+		servers.add(server);
+		return Integer.parseInt(server.getEnvironment().getProperty("local.server.port"));
+	}
+
+	private static List<Price> sortedById(List<Price> prices) {
+		final List<Price> sorted = new ArrayList<>(prices);
+		sorted.sort(Comparator.comparingLong(Price::getId));
+		return sorted;
+	}
+}
@@ -1,13 +1,32 @@
 package priceserver;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.springframework.http.HttpStatus;
+import priceserver.domain.CommitTicket;
 import priceserver.domain.Price;
+import priceserver.domain.PriceQueryResult;
 import org.springframework.boot.test.web.client.TestRestTemplate;
 import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpMessageConverterExtractor;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.RestTemplate;
 
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.stream.Collectors;
 
 class PriceServerConnection {
 	private final String urlLocalPricingservice;
@@ -19,9 +38,86 @@ class PriceServerConnection {
 	}
 
 	ResponseEntity<Price> getPrice(long priceId) {
-		return template.getForEntity(urlLocalPricingservice + "prices/" + priceId, Price.class);
+		return getIfFound(urlLocalPricingservice + "prices/" + priceId, Price.class);
 	}
 
+	ResponseEntity<Price> getPriceAsOf(long priceId, ZonedDateTime asOf) {
+		return getIfFound(urlLocalPricingservice + "prices/" + priceId + "?asOf=" + asOf.toInstant(), Price.class);
+	}
+
+	ResponseEntity<Price> getPriceIfNoneMatch(long priceId, String eTag) {
+		return getIfFound(urlLocalPricingservice + "prices/" + priceId,
+		                  request -> request.getHeaders().setIfNoneMatch(eTag),
+		                  Price.class);
+	}
+
+	/**
+	 * Reads a price in a binary format, leaving it to the caller to decode
+	 */
+	ResponseEntity<byte[]> getPriceAs(long priceId, MediaType format) {
+		return getIfFound(urlLocalPricingservice + "prices/" + priceId,
+		                  request -> request.getHeaders().setAccept(Collections.singletonList(format)),
+		                  byte[].class);
+	}
+
+	private <T> ResponseEntity<T> getIfFound(String url, Class<T> type) {
+		return getIfFound(url, null, type);
+	}
+
+	/**
+	 * Only reads the body on success, as error bodies are not of the type asked for
+	 */
+	private <T> ResponseEntity<T> getIfFound(String url, RequestCallback requestCallback, Class<T> type) {
+		final RestTemplate restTemplate = template.getRestTemplate();
+		return restTemplate.execute(url, HttpMethod.GET, requestCallback, response -> {
+			if (response.getStatusCode() != HttpStatus.OK) {
+				return new ResponseEntity<>(response.getHeaders(), response.getStatusCode());
+			}
+			final HttpMessageConverterExtractor<T> extractor =
+					new HttpMessageConverterExtractor<>(type, restTemplate.getMessageConverters());
+			return new ResponseEntity<>(extractor.extractData(response), response.getHeaders(), HttpStatus.OK);
+		});
+	}
+
+
+	ResponseEntity<PriceQueryResult> queryPrices(long... priceIds) {
+		return template.postForEntity(urlLocalPricingservice + "prices/query", priceIds, PriceQueryResult.class);
+	}
+
+	ResponseEntity<PriceQueryResult> queryPricesChangedSince(long epoch, long... priceIds) {
+		return template.postForEntity(urlLocalPricingservice + "prices/query?changedSince=" + epoch,
+		                              priceIds,
+		                              PriceQueryResult.class);
+	}
+
+	ResponseEntity<Price[]> getAllPrices() {
+		return template.getForEntity(urlLocalPricingservice + "prices", Price[].class);
+	}
+
+	ResponseEntity<byte[]> getAllPricesAs(MediaType format) {
+		final HttpHeaders headers = new HttpHeaders();
+		headers.setAccept(Collections.singletonList(format));
+		return template.exchange(urlLocalPricingservice + "prices",
+		                         HttpMethod.GET,
+		                         new HttpEntity<>(headers),
+		                         byte[].class);
+	}
+
+	/**
+	 * Opens a server-sent event stream of the changes to the prices
+	 */
+	PriceEvents subscribe(ObjectMapper objectMapper, long... priceIds) throws IOException {
+		final String ids = Arrays.stream(priceIds).mapToObj(Long::toString).collect(Collectors.joining(","));
+		final HttpURLConnection connection =
+				(HttpURLConnection) new URL(urlLocalPricingservice + "prices/subscribe?ids=" + ids).openConnection();
+		connection.setRequestProperty(HttpHeaders.ACCEPT, MediaType.TEXT_EVENT_STREAM_VALUE);
+		connection.setReadTimeout(10_000);
+		return new PriceEvents(connection, objectMapper);
+	}
+
+	ResponseEntity<String> scrapeMetrics() {
+		return template.getForEntity(urlLocalPricingservice + "actuator/prometheus", String.class);
+	}
 
 	ResponseEntity<Void> uploadBatch(Long batchId, List<Price> prices) {
 		return template.exchange(urlLocalPricingservice + "batches/" + batchId + "/upload",
@@ -31,6 +127,34 @@ class PriceServerConnection {
                         );
 	}
 
+	ResponseEntity<Void> uploadChunk(Long batchId, int chunk, List<Price> prices) {
+		return template.exchange(urlLocalPricingservice + "batches/" + batchId + "/upload?chunk=" + chunk,
+		                         HttpMethod.POST,
+		                         new HttpEntity<>(prices),
+		                         Void.class
+		                        );
+	}
+
+	ResponseEntity<Void> uploadBatchAsNdJson(Long batchId, String newlineDelimitedPrices) {
+		final HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(MediaType.valueOf("application/x-ndjson"));
+		return template.exchange(urlLocalPricingservice + "batches/" + batchId + "/upload",
+		                         HttpMethod.POST,
+		                         new HttpEntity<>(newlineDelimitedPrices, headers),
+		                         Void.class
+		                        );
+	}
+
+	ResponseEntity<Void> uploadBatchAs(Long batchId, MediaType format, byte[] encodedPrices) {
+		final HttpHeaders headers = new HttpHeaders();
+		headers.setContentType(format);
+		return template.exchange(urlLocalPricingservice + "batches/" + batchId + "/upload",
+		                         HttpMethod.POST,
+		                         new HttpEntity<>(encodedPrices, headers),
+		                         Void.class
+		                        );
+	}
+
 	void commitBatch(Long batchId) {
 		final ResponseEntity<Void> commitResponse = tryToCommitBatch(batchId);
 		if (commitResponse.getStatusCode() != HttpStatus.OK) {
@@ -46,6 +170,41 @@ class PriceServerConnection {
 		                 );
 	}
 
+	ResponseEntity<Void> tryToCommitBatch(Long batchId, int expectedChunks) {
+		return template.exchange(urlLocalPricingservice + "batches/" + batchId + "/commit?expectedChunks="
+		                         + expectedChunks,
+		                         HttpMethod.POST,
+		                         null,
+		                         Void.class
+		                 );
+	}
+
+	ResponseEntity<Void> prepareBatch(Long batchId) {
+		return template.exchange(urlLocalPricingservice + "batches/" + batchId + "/prepare",
+		                         HttpMethod.POST,
+		                         null,
+		                         Void.class);
+	}
+
+	ResponseEntity<Void> tryToCommitBatchAs(Long batchId, long epoch) {
+		return template.exchange(urlLocalPricingservice + "batches/" + batchId + "/commit?epoch=" + epoch,
+		                         HttpMethod.POST,
+		                         null,
+		                         Void.class);
+	}
+
+	ResponseEntity<CommitTicket> commitBatchAsync(Long batchId) {
+		return template.exchange(urlLocalPricingservice + "batches/" + batchId + "/commit?async=true",
+		                         HttpMethod.POST,
+		                         null,
+		                         CommitTicket.class);
+	}
+
+	ResponseEntity<CommitTicket> getCommitStatus(Long batchId, long waitMs) {
+		return getIfFound(urlLocalPricingservice + "batches/" + batchId + "/commit?waitMs=" + waitMs,
+		                  CommitTicket.class);
+	}
+
 	ResponseEntity<Long> createBatch() {
 		return template.exchange(urlLocalPricingservice + "/batches/create",
 		                         HttpMethod.POST,
@@ -54,6 +213,15 @@ class PriceServerConnection {
 		                                                       );
 	}
 
+	ResponseEntity<Long> createBatchAs(String client) {
+		final HttpHeaders headers = new HttpHeaders();
+		headers.set("X-Client-Id", client);
+		return template.exchange(urlLocalPricingservice + "/batches/create",
+		                         HttpMethod.POST,
+		                         new HttpEntity<>(headers),
+		                         Long.class);
+	}
+
 	public void cancelBatch(long batchId) {
 		template.exchange(urlLocalPricingservice + "batches/" + batchId + "/cancel",
 		                  HttpMethod.POST,
@@ -62,4 +230,34 @@ class PriceServerConnection {
 		                 );
 
 	}
+
+	static class PriceEvents implements AutoCloseable {
+		private final HttpURLConnection connection;
+		private final BufferedReader reader;
+		private final ObjectMapper objectMapper;
+
+		private PriceEvents(HttpURLConnection connection, ObjectMapper objectMapper) throws IOException {
+			this.connection = connection;
+			this.reader = new BufferedReader(new InputStreamReader(connection.getInputStream(),
+			                                                       StandardCharsets.UTF_8));
+			this.objectMapper = objectMapper;
+		}
+
+		/**
+		 * Blocks until the next event arrives
+		 */
+		List<Price> next() throws IOException {
+			for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+				if (line.startsWith("data:")) {
+					return Arrays.asList(objectMapper.readValue(line.substring("data:".length()), Price[].class));
+				}
+			}
+			throw new EOFException("Subscription ended");
+		}
+
+		@Override
+		public void close() {
+			connection.disconnect();
+		}
+	}
 }
@@ -1,5 +1,8 @@
 package priceserver;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -7,16 +10,25 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.web.client.TestRestTemplate;
 import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
 import org.springframework.test.context.junit.jupiter.SpringExtension;
+import priceserver.domain.CommitTicket;
 import priceserver.domain.Price;
+import priceserver.domain.PriceQueryResult;
 
+import java.io.IOException;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -24,13 +36,20 @@ import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.LongStream;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @ExtendWith(SpringExtension.class)
-@SpringBootTest(classes = Main.class, webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@SpringBootTest(classes = Main.class,
+                webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+                properties = "priceserver.admission.max-open-batches-per-client=20")
 class PricingServerTest {
+	private static final MediaType SMILE = MediaType.valueOf("application/x-jackson-smile");
+	private static final MediaType CBOR = MediaType.valueOf("application/cbor");
+
 	private final ExecutorService exec = Executors.newFixedThreadPool(4);
 
 	@LocalServerPort
@@ -39,6 +58,9 @@ class PricingServerTest {
 	@Autowired
 	private TestRestTemplate testRestTemplate;
 
+	@Autowired
+	private ObjectMapper objectMapper;
+
 	private PriceServerConnection priceServerConnection;
 
 	@BeforeEach
@@ -95,6 +117,7 @@ class PricingServerTest {
 		assertTrue(requestedPrice.hasBody());
 
 		assertEquals(originalPrice, requestedPrice.getBody());
+		assertTrue(requestedPrice.getBody().getEpoch() > 0, "Committed price should carry its commit epoch");
 
 		final ResponseEntity<Void> failedUploadBatch =
 				priceServerConnection.uploadBatch(batchId, Collections.singletonList(price(12131232L)));
@@ -106,6 +129,255 @@ class PricingServerTest {
 		assertEquals(HttpStatus.NOT_FOUND, tryToCommitBatch.getStatusCode());
 	}
 
+	@Test
+	void newlineDelimitedUploadIsStreamedIntoTheBatch() throws JsonProcessingException {
+		Long batchId = createAndValidateBatch();
+
+		final List<Price> prices = LongStream.range(50_001, 52_501)
+		                                     .mapToObj(new PriceFactory(ZonedDateTime.now(ZoneOffset.UTC)))
+		                                     .collect(Collectors.toList());
+		final StringBuilder body = new StringBuilder();
+		for (Price price : prices) {
+			body.append(objectMapper.writeValueAsString(price)).append('\n');
+		}
+
+		final ResponseEntity<Void> uploadResponse = priceServerConnection.uploadBatchAsNdJson(batchId, body.toString());
+		assertEquals(HttpStatus.OK, uploadResponse.getStatusCode());
+
+		priceServerConnection.commitBatch(batchId);
+
+		prices.forEach(price -> assertEquals(price, priceServerConnection.getPrice(price.getId()).getBody()));
+	}
+
+	@Test
+	void bulkQueryReturnsFoundPricesAndReportsMissingIdsAndTheBookContainsThemToo() {
+		Long batchId = createAndValidateBatch();
+		final List<Price> prices = LongStream.range(60_001, 60_101)
+		                                     .mapToObj(new PriceFactory(ZonedDateTime.now(ZoneOffset.UTC)))
+		                                     .collect(Collectors.toList());
+		priceServerConnection.uploadBatch(batchId, prices);
+		priceServerConnection.commitBatch(batchId);
+
+		final ResponseEntity<PriceQueryResult> queryResponse =
+				priceServerConnection.queryPrices(60_001L, 60_050L, 70_000L, 60_100L, 70_001L);
+
+		assertEquals(HttpStatus.OK, queryResponse.getStatusCode());
+		assertEquals(Arrays.asList(prices.get(0), prices.get(49), prices.get(99)), queryResponse.getBody().getPrices());
+		assertArrayEquals(new long[]{70_000L, 70_001L}, queryResponse.getBody().getMissing());
+
+		final ResponseEntity<Price[]> bookResponse = priceServerConnection.getAllPrices();
+		assertEquals(HttpStatus.OK, bookResponse.getStatusCode());
+		assertTrue(Arrays.asList(bookResponse.getBody()).containsAll(prices));
+	}
+
+	@Test
+	void earlierVersionsOfAPriceCanBeReadAsOfATime() {
+		final ZonedDateTime first = ZonedDateTime.now(ZoneOffset.UTC).withNano(0);
+		final Price older = new Price(65_001L, first, "older");
+		final Price newer = new Price(65_001L, first.plusMinutes(1), "newer");
+		for (Price price : Arrays.asList(older, newer)) {
+			final Long batchId = createAndValidateBatch();
+			priceServerConnection.uploadBatch(batchId, Collections.singletonList(price));
+			priceServerConnection.commitBatch(batchId);
+		}
+
+		assertEquals(older, priceServerConnection.getPriceAsOf(65_001L, first).getBody());
+		assertEquals(older, priceServerConnection.getPriceAsOf(65_001L, first.plusSeconds(30)).getBody());
+		assertEquals(newer, priceServerConnection.getPriceAsOf(65_001L, first.plusMinutes(2)).getBody());
+		assertEquals(HttpStatus.NOT_FOUND,
+		             priceServerConnection.getPriceAsOf(65_001L, first.minusSeconds(1)).getStatusCode());
+		assertEquals(HttpStatus.NOT_FOUND, priceServerConnection.getPriceAsOf(65_002L, first).getStatusCode());
+	}
+
+	@Test
+	void subscribersGetTheCurrentPricesAndThenEachChange() throws IOException {
+		final ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+		final Price first = new Price(66_001L, now, "first");
+		final Price second = new Price(66_002L, now, "second");
+		commit(first);
+
+		try (PriceServerConnection.PriceEvents events =
+				     priceServerConnection.subscribe(objectMapper, 66_001L, 66_002L)) {
+			assertEquals(Collections.singletonList(first), events.next());
+
+			commit(second, new Price(66_003L, now, "not followed"));
+			assertEquals(Collections.singletonList(second), events.next());
+		}
+	}
+
+	@Test
+	void unchangedPricesAreNotSentAgain() {
+		final ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+		commit(new Price(67_001L, now, "first"), new Price(67_002L, now, "unchanged"));
+
+		final ResponseEntity<Price> read = priceServerConnection.getPrice(67_001L);
+		final String eTag = read.getHeaders().getETag();
+		assertEquals("\"" + read.getBody().getEpoch() + "\"", eTag);
+		final ResponseEntity<Price> notModified = priceServerConnection.getPriceIfNoneMatch(67_001L, eTag);
+		assertEquals(HttpStatus.NOT_MODIFIED, notModified.getStatusCode());
+		assertEquals(eTag, notModified.getHeaders().getETag());
+
+		final long queried = priceServerConnection.queryPrices(67_001L, 67_002L).getBody().getEpoch();
+		final Price second = new Price(67_001L, now.plusSeconds(1), "second");
+		commit(second);
+
+		assertEquals(second, priceServerConnection.getPriceIfNoneMatch(67_001L, eTag).getBody());
+		final PriceQueryResult changed =
+				priceServerConnection.queryPricesChangedSince(queried, 67_001L, 67_002L, 67_003L).getBody();
+		assertEquals(Collections.singletonList(second), changed.getPrices());
+		assertArrayEquals(new long[]{67_003L}, changed.getMissing());
+		assertTrue(changed.getEpoch() > queried);
+		assertEquals(Collections.emptyList(),
+		             priceServerConnection.queryPricesChangedSince(changed.getEpoch(), 67_001L, 67_002L)
+		                                  .getBody()
+		                                  .getPrices());
+	}
+
+	@Test
+	void pricesCanBeUploadedAndReadAsSmileOrCbor() throws IOException {
+		final ObjectMapper smile = Jackson2ObjectMapperBuilder.smile().build();
+		final ObjectMapper cbor = Jackson2ObjectMapperBuilder.cbor().build();
+		final PriceFactory priceFactory = new PriceFactory(ZonedDateTime.now(ZoneOffset.UTC));
+		final List<Price> smilePrices = LongStream.range(68_001, 68_501).mapToObj(priceFactory).collect(Collectors.toList());
+		final List<Price> cborPrices = LongStream.range(68_501, 69_001).mapToObj(priceFactory).collect(Collectors.toList());
+
+		final Long smileBatch = priceServerConnection.createBatch().getBody();
+		assertEquals(HttpStatus.OK,
+		             priceServerConnection.uploadBatchAs(smileBatch, SMILE, smile.writeValueAsBytes(smilePrices))
+		                                  .getStatusCode());
+		priceServerConnection.commitBatch(smileBatch);
+		final Long cborBatch = priceServerConnection.createBatch().getBody();
+		assertEquals(HttpStatus.OK,
+		             priceServerConnection.uploadBatchAs(cborBatch, CBOR, cbor.writeValueAsBytes(cborPrices))
+		                                  .getStatusCode());
+		priceServerConnection.commitBatch(cborBatch);
+
+		final Price expected = cborPrices.get(0);
+		final byte[] encoded = priceServerConnection.getPriceAs(expected.getId(), CBOR).getBody();
+		//The timestamp goes as a number of nanoseconds rather than as an ISO string
+		final JsonNode fields = cbor.readTree(encoded);
+		assertEquals(expected.getTimestamp(), fields.get("timestamp").longValue());
+		assertFalse(fields.has("dateTime"));
+		assertEquals(expected, cbor.readValue(encoded, Price.class));
+		assertEquals(smilePrices.get(0),
+		             smile.readValue(priceServerConnection.getPriceAs(smilePrices.get(0).getId(), SMILE).getBody(),
+		                             Price.class));
+
+		final Set<Price> book = new HashSet<>(Arrays.asList(
+				smile.readValue(priceServerConnection.getAllPricesAs(SMILE).getBody(), Price[].class)));
+		assertTrue(book.containsAll(smilePrices));
+		assertTrue(book.containsAll(cborPrices));
+		assertEquals(book, new HashSet<>(Arrays.asList(
+				cbor.readValue(priceServerConnection.getAllPricesAs(CBOR).getBody(), Price[].class))));
+	}
+
+	@Test
+	void aReplayedChunkIsOnlyMergedOnceAndTheCommitWaitsForEveryChunk() {
+		Long batchId = createAndValidateBatch();
+		final ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+		final List<Price> prices = LongStream.range(71_001, 71_301)
+		                                     .mapToObj(new PriceFactory(now))
+		                                     .collect(Collectors.toList());
+		assertEquals(HttpStatus.OK, priceServerConnection.uploadChunk(batchId, 1, prices.subList(100, 200))
+		                                                 .getStatusCode());
+		assertEquals(HttpStatus.OK, priceServerConnection.uploadChunk(batchId, 0, prices.subList(0, 100))
+		                                                 .getStatusCode());
+		//Sent again as though its answer had been lost, though with later prices that would win if merged
+		final List<Price> replayed = LongStream.range(71_001, 71_101)
+		                                       .mapToObj(new PriceFactory(now.plusSeconds(1)))
+		                                       .collect(Collectors.toList());
+		assertEquals(HttpStatus.OK, priceServerConnection.uploadChunk(batchId, 0, replayed).getStatusCode());
+
+		assertEquals(HttpStatus.CONFLICT, priceServerConnection.tryToCommitBatch(batchId, 3).getStatusCode());
+		assertEquals(HttpStatus.OK, priceServerConnection.uploadChunk(batchId, 2, prices.subList(200, 300))
+		                                                 .getStatusCode());
+		assertEquals(HttpStatus.OK, priceServerConnection.tryToCommitBatch(batchId, 3).getStatusCode());
+
+		assertEquals(prices.get(0), priceServerConnection.getPrice(71_001L).getBody());
+		assertEquals(prices.get(299), priceServerConnection.getPrice(71_300L).getBody());
+	}
+
+	@Test
+	void aNegativeChunkOrChunkCountIsABadRequest() {
+		Long batchId = createAndValidateBatch();
+		final List<Price> prices = Collections.singletonList(price(72_001L));
+		assertEquals(HttpStatus.BAD_REQUEST, priceServerConnection.uploadChunk(batchId, -1, prices).getStatusCode());
+		//-1 would otherwise be taken as no count at all, and the batch committed without any chunk
+		assertEquals(HttpStatus.BAD_REQUEST, priceServerConnection.tryToCommitBatch(batchId, -1).getStatusCode());
+		assertEquals(HttpStatus.BAD_REQUEST, priceServerConnection.tryToCommitBatch(batchId, -2).getStatusCode());
+
+		assertEquals(HttpStatus.OK, priceServerConnection.uploadChunk(batchId, 0, prices).getStatusCode());
+		assertEquals(HttpStatus.OK, priceServerConnection.tryToCommitBatch(batchId, 1).getStatusCode());
+		assertEquals(prices.get(0), priceServerConnection.getPrice(72_001L).getBody());
+	}
+
+	@Test
+	void aClientWithTooManyBatchesOpenIsToldToComeBackLater() {
+		final List<Long> batchIds = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			batchIds.add(priceServerConnection.createBatchAs("greedy-feed").getBody());
+		}
+		final ResponseEntity<Long> refused = priceServerConnection.createBatchAs("greedy-feed");
+		assertEquals(HttpStatus.TOO_MANY_REQUESTS, refused.getStatusCode());
+		assertEquals("1", refused.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+
+		//Other feeds are not held back, and the feed can open another batch once one of its own is committed
+		assertEquals(HttpStatus.OK, priceServerConnection.createBatchAs("other-feed").getStatusCode());
+		priceServerConnection.commitBatch(batchIds.get(0));
+		assertEquals(HttpStatus.OK, priceServerConnection.createBatchAs("greedy-feed").getStatusCode());
+	}
+
+	@Test
+	void asyncCommitIsAcceptedAndCanBeWaitedForUntilThePricesAreVisible() {
+		Long batchId = createAndValidateBatch();
+		final List<Price> prices = LongStream.range(90_001, 90_101)
+		                                     .mapToObj(new PriceFactory(ZonedDateTime.now(ZoneOffset.UTC)))
+		                                     .collect(Collectors.toList());
+		priceServerConnection.uploadBatch(batchId, prices);
+
+		final ResponseEntity<CommitTicket> accepted = priceServerConnection.commitBatchAsync(batchId);
+		assertEquals(HttpStatus.ACCEPTED, accepted.getStatusCode());
+		assertEquals(batchId.longValue(), accepted.getBody().getBatchId());
+		assertEquals("/batches/" + batchId + "/commit", accepted.getHeaders().getLocation().toString());
+		//Closed before the answer comes back, just as a synchronous commit would leave it
+		assertEquals(HttpStatus.NOT_FOUND,
+		             priceServerConnection.uploadBatch(batchId, Collections.singletonList(price(90_001L)))
+		                                  .getStatusCode());
+
+		final ResponseEntity<CommitTicket> status = priceServerConnection.getCommitStatus(batchId, 10_000L);
+		assertEquals(HttpStatus.OK, status.getStatusCode());
+		assertEquals(CommitTicket.Status.COMMITTED, status.getBody().getStatus());
+		final Price committed = priceServerConnection.getPrice(90_050L).getBody();
+		assertEquals(prices.get(49), committed);
+		assertEquals(status.getBody().getEpoch(), committed.getEpoch());
+
+		assertEquals(HttpStatus.NOT_FOUND, priceServerConnection.getCommitStatus(12214242L, 0L).getStatusCode());
+	}
+
+	@Test
+	void commitsAndReadsShowUpInTheScrapedMetrics() {
+		Long batchId = createAndValidateBatch();
+		priceServerConnection.uploadBatch(batchId, Arrays.asList(price(80_001L), price(80_001L), price(80_002L)));
+		priceServerConnection.commitBatch(batchId);
+		priceServerConnection.getPrice(80_001L);
+		priceServerConnection.getPrice(80_003L);
+
+		final ResponseEntity<String> scrape = priceServerConnection.scrapeMetrics();
+		assertEquals(HttpStatus.OK, scrape.getStatusCode());
+		for (String metric : Arrays.asList("priceserver_commit_seconds_count",
+		                                   "priceserver_upload_seconds_bucket",
+		                                   "priceserver_batches_dedup_ratio",
+		                                   "priceserver_batches_open",
+		                                   "priceserver_admission_limit{resource=\"uploads\",scope=\"client\",}",
+		                                   "priceserver_admission_used{resource=\"upload.bytes\",scope=\"total\",}",
+		                                   "priceserver_book_size_prices",
+		                                   "priceserver_book_bytes",
+		                                   "priceserver_reads_total{result=\"hit\",}",
+		                                   "priceserver_reads_total{result=\"miss\",}")) {
+			assertTrue(scrape.getBody().contains(metric), metric + " is missing from the scrape");
+		}
+	}
+
 	@Test
 	void createManyBatchesAndPricesRunConcurrentlyAndEnsureOnlyTheLatestPricesAreSaved() {
 		final BatchUploader batchThatShouldWin = new BatchUploader(7);
@@ -127,8 +399,9 @@ class PricingServerTest {
 		});
 
 		LongStream.range(1, 901).forEach(id -> validateBatch(id, batchThatShouldWin.timeFirstBatch));
-		LongStream.range(901, 1901).forEach(id -> validateBatch(id, batchThatShouldWin.timeSecondBatch));
-		LongStream.range(1901, 2800).forEach(id -> validateBatch(id, batchThatShouldWin.timeThirdBatch));
+		//The second upload stops at 1899, so 1900 onwards only ever had the third upload's price
+		LongStream.range(901, 1900).forEach(id -> validateBatch(id, batchThatShouldWin.timeSecondBatch));
+		LongStream.range(1900, 2800).forEach(id -> validateBatch(id, batchThatShouldWin.timeThirdBatch));
 	}
 
 	private void validateBatch(long id, ZonedDateTime expectedTime) {
@@ -137,6 +410,12 @@ class PricingServerTest {
 		assertEquals(expectedTime.getNano(), priceResponse.getBody().getDateTime().getNano());
 	}
 
+	private void commit(Price... prices) {
+		final Long batchId = createAndValidateBatch();
+		priceServerConnection.uploadBatch(batchId, Arrays.asList(prices));
+		priceServerConnection.commitBatch(batchId);
+	}
+
 	private Long createAndValidateBatch() {
 		final ResponseEntity<Long> batchCreatedResponse = priceServerConnection.createBatch();
 
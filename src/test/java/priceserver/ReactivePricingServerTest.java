@@ -0,0 +1,220 @@
+package priceserver;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import priceserver.domain.CommitTicket;
+import priceserver.domain.Price;
+import priceserver.domain.PriceQueryResult;
+
+import java.io.IOException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the same requests as {@link PricingServerTest} against the WebFlux front end on Netty.
+ */
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(classes = Main.class,
+                webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+                properties = {"spring.main.web-application-type=reactive",
+                              "priceserver.batches.directory=target/reactive-batches"})
+class ReactivePricingServerTest {
+	private static final MediaType SMILE = MediaType.valueOf("application/x-jackson-smile");
+	private static final MediaType CBOR = MediaType.valueOf("application/cbor");
+
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private TestRestTemplate testRestTemplate;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	private PriceServerConnection priceServerConnection;
+
+	@BeforeEach
+	void setUp() {
+		priceServerConnection = new PriceServerConnection(port, testRestTemplate);
+	}
+
+	@Test
+	void uploadedPricesCanBeReadOnceCommittedAndTheBatchIsThenClosed() {
+		final Long batchId = priceServerConnection.createBatch().getBody();
+		final List<Price> prices = LongStream.range(1, 2_501)
+		                                     .mapToObj(new PriceFactory(ZonedDateTime.now(ZoneOffset.UTC)))
+		                                     .collect(Collectors.toList());
+
+		assertEquals(HttpStatus.OK, priceServerConnection.uploadBatch(batchId, prices).getStatusCode());
+		assertEquals(HttpStatus.NOT_FOUND, priceServerConnection.getPrice(1L).getStatusCode());
+
+		priceServerConnection.commitBatch(batchId);
+
+		prices.forEach(price -> assertEquals(price, priceServerConnection.getPrice(price.getId()).getBody()));
+		assertEquals(HttpStatus.NOT_FOUND,
+		             priceServerConnection.uploadBatch(batchId, Collections.singletonList(prices.get(0)))
+		                                  .getStatusCode());
+		assertEquals(HttpStatus.NOT_FOUND, priceServerConnection.tryToCommitBatch(batchId).getStatusCode());
+	}
+
+	@Test
+	void uploadToBatchThatDoesNotExistResultsIn404() {
+		final Price price = new Price(995945949L, ZonedDateTime.now(ZoneOffset.UTC), "dsds");
+		assertEquals(HttpStatus.NOT_FOUND,
+		             priceServerConnection.uploadBatch(12214242L, Collections.singletonList(price)).getStatusCode());
+		assertEquals(HttpStatus.NOT_FOUND,
+		             priceServerConnection.uploadBatch(12214242L, Collections.emptyList()).getStatusCode());
+	}
+
+	@Test
+	void newlineDelimitedUploadIsStreamedIntoTheBatchAndTheBookCanBeQueried() throws JsonProcessingException {
+		final Long batchId = priceServerConnection.createBatch().getBody();
+		final List<Price> prices = LongStream.range(50_001, 52_501)
+		                                     .mapToObj(new PriceFactory(ZonedDateTime.now(ZoneOffset.UTC)))
+		                                     .collect(Collectors.toList());
+		final StringBuilder body = new StringBuilder();
+		for (Price price : prices) {
+			body.append(objectMapper.writeValueAsString(price)).append('\n');
+		}
+
+		assertEquals(HttpStatus.OK,
+		             priceServerConnection.uploadBatchAsNdJson(batchId, body.toString()).getStatusCode());
+		priceServerConnection.commitBatch(batchId);
+
+		final ResponseEntity<PriceQueryResult> query = priceServerConnection.queryPrices(50_001L, 70_000L, 52_500L);
+		assertEquals(Arrays.asList(prices.get(0), prices.get(2_499)), query.getBody().getPrices());
+		assertArrayEquals(new long[]{70_000L}, query.getBody().getMissing());
+
+		final ResponseEntity<Price[]> book = priceServerConnection.getAllPrices();
+		assertEquals(HttpStatus.OK, book.getStatusCode());
+		assertTrue(Arrays.asList(book.getBody()).containsAll(prices));
+	}
+
+	@Test
+	void subscribersGetTheCurrentPricesAndThenEachChange() throws IOException {
+		final ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+		final Price first = new Price(96_001L, now, "first");
+		final Price second = new Price(96_002L, now, "second");
+		commit(first);
+
+		try (PriceServerConnection.PriceEvents events =
+				     priceServerConnection.subscribe(objectMapper, 96_001L, 96_002L)) {
+			assertEquals(Collections.singletonList(first), events.next());
+
+			commit(second, new Price(96_003L, now, "not followed"));
+			assertEquals(Collections.singletonList(second), events.next());
+		}
+	}
+
+	@Test
+	void unchangedPricesAreNotSentAgain() {
+		final ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+		commit(new Price(97_001L, now, "first"), new Price(97_002L, now, "unchanged"));
+
+		final ResponseEntity<Price> read = priceServerConnection.getPrice(97_001L);
+		final String eTag = read.getHeaders().getETag();
+		assertEquals("\"" + read.getBody().getEpoch() + "\"", eTag);
+		final ResponseEntity<Price> notModified = priceServerConnection.getPriceIfNoneMatch(97_001L, eTag);
+		assertEquals(HttpStatus.NOT_MODIFIED, notModified.getStatusCode());
+		assertEquals(eTag, notModified.getHeaders().getETag());
+
+		final long queried = priceServerConnection.queryPrices(97_001L, 97_002L).getBody().getEpoch();
+		final Price second = new Price(97_001L, now.plusSeconds(1), "second");
+		commit(second);
+
+		assertEquals(second, priceServerConnection.getPriceIfNoneMatch(97_001L, eTag).getBody());
+		final PriceQueryResult changed =
+				priceServerConnection.queryPricesChangedSince(queried, 97_001L, 97_002L, 97_003L).getBody();
+		assertEquals(Collections.singletonList(second), changed.getPrices());
+		assertArrayEquals(new long[]{97_003L}, changed.getMissing());
+		assertTrue(changed.getEpoch() > queried);
+		assertEquals(Collections.emptyList(),
+		             priceServerConnection.queryPricesChangedSince(changed.getEpoch(), 97_001L, 97_002L)
+		                                  .getBody()
+		                                  .getPrices());
+	}
+
+	@Test
+	void pricesCanBeUploadedAndReadAsSmileOrCbor() throws IOException {
+		final ObjectMapper smile = Jackson2ObjectMapperBuilder.smile().build();
+		final ObjectMapper cbor = Jackson2ObjectMapperBuilder.cbor().build();
+		final PriceFactory priceFactory = new PriceFactory(ZonedDateTime.now(ZoneOffset.UTC));
+		final List<Price> smilePrices = LongStream.range(98_001, 98_501).mapToObj(priceFactory).collect(Collectors.toList());
+		final List<Price> cborPrices = LongStream.range(98_501, 99_001).mapToObj(priceFactory).collect(Collectors.toList());
+
+		final Long smileBatch = priceServerConnection.createBatch().getBody();
+		assertEquals(HttpStatus.OK,
+		             priceServerConnection.uploadBatchAs(smileBatch, SMILE, smile.writeValueAsBytes(smilePrices))
+		                                  .getStatusCode());
+		priceServerConnection.commitBatch(smileBatch);
+		final Long cborBatch = priceServerConnection.createBatch().getBody();
+		assertEquals(HttpStatus.OK,
+		             priceServerConnection.uploadBatchAs(cborBatch, CBOR, cbor.writeValueAsBytes(cborPrices))
+		                                  .getStatusCode());
+		priceServerConnection.commitBatch(cborBatch);
+
+		final Price expected = cborPrices.get(0);
+		final byte[] encoded = priceServerConnection.getPriceAs(expected.getId(), CBOR).getBody();
+		//The timestamp goes as a number of nanoseconds rather than as an ISO string
+		final JsonNode fields = cbor.readTree(encoded);
+		assertEquals(expected.getTimestamp(), fields.get("timestamp").longValue());
+		assertFalse(fields.has("dateTime"));
+		assertEquals(expected, cbor.readValue(encoded, Price.class));
+		assertEquals(smilePrices.get(0),
+		             smile.readValue(priceServerConnection.getPriceAs(smilePrices.get(0).getId(), SMILE).getBody(),
+		                             Price.class));
+
+		final Set<Price> book = new HashSet<>(Arrays.asList(
+				smile.readValue(priceServerConnection.getAllPricesAs(SMILE).getBody(), Price[].class)));
+		assertTrue(book.containsAll(smilePrices));
+		assertTrue(book.containsAll(cborPrices));
+		assertEquals(book, new HashSet<>(Arrays.asList(
+				cbor.readValue(priceServerConnection.getAllPricesAs(CBOR).getBody(), Price[].class))));
+	}
+
+	@Test
+	void asyncCommitCanBeWaitedForWithoutHoldingAThread() {
+		final Long batchId = priceServerConnection.createBatch().getBody();
+		final Price price = new Price(90_001L, ZonedDateTime.now(ZoneOffset.UTC), "async");
+		priceServerConnection.uploadBatch(batchId, Collections.singletonList(price));
+
+		final ResponseEntity<CommitTicket> accepted = priceServerConnection.commitBatchAsync(batchId);
+		assertEquals(HttpStatus.ACCEPTED, accepted.getStatusCode());
+
+		final ResponseEntity<CommitTicket> status = priceServerConnection.getCommitStatus(batchId, 10_000L);
+		assertEquals(CommitTicket.Status.COMMITTED, status.getBody().getStatus());
+		assertEquals(status.getBody().getEpoch(), priceServerConnection.getPrice(90_001L).getBody().getEpoch());
+		assertEquals(HttpStatus.NOT_FOUND, priceServerConnection.getCommitStatus(12214242L, 0L).getStatusCode());
+	}
+
+	private void commit(Price... prices) {
+		final Long batchId = priceServerConnection.createBatch().getBody();
+		priceServerConnection.uploadBatch(batchId, Arrays.asList(prices));
+		priceServerConnection.commitBatch(batchId);
+	}
+}
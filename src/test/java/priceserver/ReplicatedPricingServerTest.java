@@ -0,0 +1,142 @@
+package priceserver;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.boot.web.server.LocalServerPort;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.context.junit.jupiter.SpringExtension;
+import priceserver.domain.Price;
+import priceserver.service.impl.ReplicationLeader;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs a leader, and a follower of it in the same JVM, each with its own application context, web server and
+ * replication connection, just as they would be in separate JVMs.  The leader keeps no backlog of commits, so the
+ * follower has to be sent the whole book when it connects, and is then sent each commit as it is published.
+ */
+@ExtendWith(SpringExtension.class)
+@SpringBootTest(classes = Main.class,
+                webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT,
+                properties = {"priceserver.replication.role=leader",
+                              "priceserver.replication.port=0",
+                              "priceserver.replication.backlog=0",
+                              "priceserver.replication.heartbeat-ms=100",
+                              "priceserver.batches.directory=target/leader-batches"})
+class ReplicatedPricingServerTest {
+	@LocalServerPort
+	private int port;
+
+	@Autowired
+	private TestRestTemplate testRestTemplate;
+
+	@Autowired
+	private ReplicationLeader leader;
+
+	private PriceServerConnection leaderConnection;
+
+	private ConfigurableApplicationContext follower;
+
+	private PriceServerConnection followerConnection;
+
+	@BeforeEach
+	void setUp() {
+		leaderConnection = new PriceServerConnection(port, testRestTemplate);
+	}
+
+	@AfterEach
+	void stopFollower() {
+		if (follower != null) {
+			follower.close();
+		}
+	}
+
+	@Test
+	void followersServeTheBookAndEveryCommitAfterIt() throws InterruptedException {
+		final ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+		final List<Price> before = commitOnLeader(LongStream.range(1, 1_001), now);
+		startFollower();
+		awaitOnFollower(before.get(before.size() - 1));
+		for (Price price : before) {
+			assertEquals(price, followerConnection.getPrice(price.getId()).getBody());
+		}
+
+		final List<Price> after = commitOnLeader(LongStream.range(501, 1_501), now.plusSeconds(1));
+		awaitOnFollower(after.get(after.size() - 1));
+		for (Price price : after) {
+			assertEquals(price, followerConnection.getPrice(price.getId()).getBody());
+		}
+		assertEquals(before.get(0), followerConnection.getPrice(1L).getBody());
+
+		final String metrics = followerConnection.scrapeMetrics().getBody();
+		assertTrue(metrics.contains("priceserver_replication_lag_milliseconds"), metrics);
+		assertTrue(metrics.contains("priceserver_replication_epochs_behind 0.0"), metrics);
+	}
+
+	@Test
+	void writesSentToAFollowerAreRedirectedToTheLeader() {
+		startFollower();
+
+		final ResponseEntity<Long> create = followerConnection.createBatch();
+		assertEquals(HttpStatus.TEMPORARY_REDIRECT, create.getStatusCode());
+		assertTrue(create.getHeaders().getLocation().toString().startsWith(leaderUrl()),
+		           create.getHeaders().getLocation().toString());
+
+		final ResponseEntity<Void> commit = followerConnection.tryToCommitBatch(42L);
+		assertEquals(HttpStatus.TEMPORARY_REDIRECT, commit.getStatusCode());
+		assertEquals(leaderUrl() + "/batches/42/commit", commit.getHeaders().getLocation().toString());
+	}
+
+	private List<Price> commitOnLeader(LongStream ids, ZonedDateTime time) {
+		final Long batchId = leaderConnection.createBatch().getBody();
+		final List<Price> prices = ids.mapToObj(new PriceFactory(time)).collect(Collectors.toList());
+		leaderConnection.uploadBatch(batchId, prices);
+		leaderConnection.commitBatch(batchId);
+		return prices;
+	}
+
+	private void startFollower() {
+		follower = new SpringApplicationBuilder(Main.class)
+				.run("--server.port=0",
+				     "--priceserver.replication.role=follower",
+				     "--priceserver.replication.leader=localhost:" + leader.port(),
+				     "--priceserver.replication.leader-url=" + leaderUrl(),
+				     "--priceserver.replication.heartbeat-ms=100",
+				     "--priceserver.batches.directory=target/follower-batches");
+		final int followerPort = Integer.parseInt(follower.getEnvironment().getProperty("local.server.port"));
+		followerConnection = new PriceServerConnection(followerPort, testRestTemplate);
+	}
+
+	/**
+	 * Waits for the follower to have applied the commit holding the price
+	 */
+	private void awaitOnFollower(Price price) throws InterruptedException {
+		for (int attempt = 0; attempt < 100; attempt++) {
+			final ResponseEntity<Price> found = followerConnection.getPrice(price.getId());
+			if (found.getStatusCode() == HttpStatus.OK && price.equals(found.getBody())) {
+				return;
+			}
+			Thread.sleep(100);
+		}
+		throw new AssertionError("The follower never caught up with " + price);
+	}
+
+	private String leaderUrl() {
+		return "http://localhost:" + port;
+	}
+}
@@ -0,0 +1,197 @@
+package priceserver.benchmark;
+
+import ch.qos.logback.classic.Level;
+import org.slf4j.LoggerFactory;
+import priceserver.domain.Batch;
+import priceserver.domain.HeapPriceStaging;
+import priceserver.domain.Price;
+import priceserver.domain.PriceShards;
+import priceserver.domain.PriceStaging;
+import priceserver.domain.ShardedPrices;
+import priceserver.exceptions.BatchAlreadyCommitted;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+/**
+ * Measures upload throughput on a single batch with 1, 8 and 32 threads uploading at once, for the Batch as it is
+ * and for a copy of the read/write locked Batch it replaced, followed by how long closing takes while uploads are
+ * still arriving.  Logging is turned down to warnings.  Each upload is a handful of prices, so the cost of getting in to the batch dominates.  The runs
+ * with no staging measure that cost alone.
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:... priceserver.benchmark.BatchContentionBenchmark [milliseconds per run]
+ * </pre>
+ */
+public class BatchContentionBenchmark {
+	private static final int[] UPLOADERS = {1, 8, 32};
+	private static final int PRICES_PER_UPLOAD = 4;
+	private static final PriceShards SHARDS = new PriceShards(16);
+
+	public static void main(String[] args) throws Exception {
+		final long runMillis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+		//Batch logs every upload, which would otherwise be all this measures
+		((ch.qos.logback.classic.Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+		System.out.printf("cpus=%d prices/upload=%d run=%dms%n",
+		                  Runtime.getRuntime().availableProcessors(),
+		                  PRICES_PER_UPLOAD,
+		                  runMillis);
+
+		for (boolean heapStaging : new boolean[]{false, true}) {
+			System.out.println(heapStaging ? "staging on the heap" : "no staging");
+			final Supplier<PriceStaging> newStaging = heapStaging ? HeapPriceStaging::new : NoStaging::new;
+			for (int uploaders : UPLOADERS) {
+				//Once to warm up, once to measure
+				run("lock-free", uploaders, runMillis / 4, () -> new StateMachineBatch(newStaging.get()), false);
+				run("lock-free", uploaders, runMillis, () -> new StateMachineBatch(newStaging.get()), true);
+				run("rw-lock", uploaders, runMillis / 4, () -> new LockingBatch(newStaging.get()), false);
+				run("rw-lock", uploaders, runMillis, () -> new LockingBatch(newStaging.get()), true);
+			}
+		}
+	}
+
+	private static void run(String name,
+	                        int uploaders,
+	                        long runMillis,
+	                        Supplier<UploadTarget> newBatch,
+	                        boolean print) throws Exception {
+		final ExecutorService exec = Executors.newFixedThreadPool(uploaders);
+		try {
+			final UploadTarget batch = newBatch.get();
+			final CountDownLatch start = new CountDownLatch(1);
+			final List<Future<Long>> futures = new ArrayList<>();
+			for (int t = 0; t < uploaders; t++) {
+				final List<Price> prices = prices(t);
+				futures.add(exec.submit(() -> {
+					start.await();
+					long uploads = 0;
+					try {
+						while (true) {
+							batch.upload(prices);
+							uploads++;
+						}
+					} catch (BatchAlreadyCommitted e) {
+						return uploads;
+					}
+				}));
+			}
+
+			start.countDown();
+			TimeUnit.MILLISECONDS.sleep(runMillis);
+			final long closeStart = System.nanoTime();
+			batch.close();
+			final long closeNanos = System.nanoTime() - closeStart;
+
+			long uploads = 0;
+			for (Future<Long> future : futures) {
+				uploads += future.get();
+			}
+			if (print) {
+				System.out.printf("%-9s uploaders=%2d %,14.0f uploads/s  close %,9.1f us%n",
+				                  name,
+				                  uploaders,
+				                  uploads / (runMillis / 1e3),
+				                  closeNanos / 1e3);
+			}
+		} finally {
+			exec.shutdown();
+		}
+	}
+
+	private static List<Price> prices(int thread) {
+		final ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+		return LongStream.range(0, PRICES_PER_UPLOAD)
+		                 .mapToObj(i -> new Price(thread * PRICES_PER_UPLOAD + i, now, "payload"))
+		                 .collect(Collectors.toList());
+	}
+
+	private interface UploadTarget {
+		void upload(List<Price> prices);
+
+		void close();
+	}
+
+	private static final class StateMachineBatch implements UploadTarget {
+		private final Batch batch;
+
+		private StateMachineBatch(PriceStaging staging) {
+			batch = new Batch(1L, staging);
+		}
+
+		@Override
+		public void upload(List<Price> prices) {
+			batch.upload(prices);
+		}
+
+		@Override
+		public void close() {
+			batch.closeAndGetPrices(SHARDS);
+		}
+	}
+
+	/**
+	 * The locking from Batch before it became a state machine, without the logging.
+	 */
+	private static final class LockingBatch implements UploadTarget {
+		private final PriceStaging staging;
+		private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+		private boolean open = true;
+
+		private LockingBatch(PriceStaging staging) {
+			this.staging = staging;
+		}
+
+		@Override
+		public void upload(List<Price> prices) {
+			readWriteLock.readLock().lock();
+			try {
+				if (!open) {
+					throw new BatchAlreadyCommitted(1L);
+				}
+				staging.stage(prices);
+			} finally {
+				readWriteLock.readLock().unlock();
+			}
+		}
+
+		@Override
+		public void close() {
+			readWriteLock.writeLock().lock();
+			try {
+				open = false;
+				staging.drain(SHARDS);
+			} finally {
+				readWriteLock.writeLock().unlock();
+			}
+		}
+	}
+
+	private static final class NoStaging implements PriceStaging {
+		private final Consumer<List<Price>> sink = prices -> {
+		};
+
+		@Override
+		public void stage(List<Price> prices) {
+			sink.accept(prices);
+		}
+
+		@Override
+		public ShardedPrices drain(PriceShards shards) {
+			return ShardedPrices.of(shards, Collections.emptyList());
+		}
+	}
+}
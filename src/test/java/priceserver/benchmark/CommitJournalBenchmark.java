@@ -0,0 +1,98 @@
+package priceserver.benchmark;
+
+import priceserver.domain.Price;
+import priceserver.service.impl.MappedCommitJournal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Measures commit throughput and latency through the journal for each durability mode, with several threads
+ * committing at once the way concurrent HTTP commits would.
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:... priceserver.benchmark.CommitJournalBenchmark [threads] [commits per thread] [prices per commit]
+ * </pre>
+ */
+public class CommitJournalBenchmark {
+	public static void main(String[] args) throws Exception {
+		final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		final int commitsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		final int pricesPerCommit = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+		final ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+		final List<Price> prices = LongStream.range(0, pricesPerCommit)
+		                                     .mapToObj(id -> new Price(id, now, "{\"bid\":101.25,\"ask\":101.75}"))
+		                                     .collect(Collectors.toList());
+
+		System.out.printf("threads=%d commits/thread=%d prices/commit=%d%n", threads, commitsPerThread, pricesPerCommit);
+		for (MappedCommitJournal.Durability durability : MappedCommitJournal.Durability.values()) {
+			run(durability, threads, commitsPerThread, prices);
+		}
+	}
+
+	private static void run(MappedCommitJournal.Durability durability,
+	                        int threads,
+	                        int commitsPerThread,
+	                        List<Price> prices) throws Exception {
+		final Path directory = Files.createTempDirectory("journal-benchmark");
+		final ExecutorService exec = Executors.newFixedThreadPool(threads);
+		try (MappedCommitJournal journal = new MappedCommitJournal(directory.toString(), 64 << 20, durability, 100)) {
+			journal.replay((epoch, replayed) -> {
+			});
+			final AtomicLong epochs = new AtomicLong();
+			final Object orderLock = new Object();
+			final long[] latencies = new long[threads * commitsPerThread];
+
+			final long start = System.nanoTime();
+			final List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				final int thread = t;
+				futures.add(exec.submit(() -> {
+					for (int i = 0; i < commitsPerThread; i++) {
+						final long before = System.nanoTime();
+						final long position;
+						synchronized (orderLock) {
+							position = journal.append(epochs.incrementAndGet(), prices);
+						}
+						journal.awaitDurable(position);
+						latencies[thread * commitsPerThread + i] = System.nanoTime() - before;
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+			final long elapsed = System.nanoTime() - start;
+
+			Arrays.sort(latencies);
+			System.out.printf("%-5s %,10.0f commits/s  mean %8.1f us  p50 %8.1f us  p99 %8.1f us%n",
+			                  durability,
+			                  latencies.length / (elapsed / 1e9),
+			                  Arrays.stream(latencies).average().orElse(0) / 1e3,
+			                  latencies[latencies.length / 2] / 1e3,
+			                  latencies[(int) (latencies.length * 0.99)] / 1e3);
+		} finally {
+			exec.shutdown();
+			try (Stream<Path> files = Files.walk(directory)) {
+				files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+			} catch (IOException e) {
+				System.err.println("Could not clean up " + directory);
+			}
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package priceserver.benchmark;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import priceserver.domain.Price;
+import priceserver.service.impl.OpenAddressingPriceStore;
+import priceserver.service.impl.PayloadPool;
+import priceserver.service.impl.PriceHistory;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures how much heap the payload pool saves on a book where some of the payloads are duplicates, by filling the
+ * same book with and without the pool.  The duplicated payloads are drawn from a handful of quote templates and
+ * status blobs, while the rest are quotes of their own.  Each price gets its own payload instance, as it would when
+ * read off the wire, and only what the store keeps is counted.
+ *
+ * <pre>
+ * java -Xms4g -Xmx4g -cp target/classes:target/test-classes:... priceserver.benchmark.PayloadPoolFootprint 1000000 80
+ * </pre>
+ *
+ * The arguments are the number of prices and the percentage of them carrying a duplicated payload.
+ */
+public class PayloadPoolFootprint {
+	private static final String[] SHARED_PAYLOADS = {
+			"{\"status\":\"HALTED\",\"reason\":\"Trading halted by the exchange\"}",
+			"{\"status\":\"CLOSED\",\"reason\":\"Outside trading hours\"}",
+			"{\"status\":\"STALE\",\"reason\":\"No quote received from the feed\"}",
+			"{\"bid\":null,\"ask\":null,\"source\":\"FEED-A\",\"indicative\":true}",
+			"{\"bid\":null,\"ask\":null,\"source\":\"FEED-B\",\"indicative\":true}",
+			"{\"bid\":100.00,\"ask\":100.00,\"source\":\"PAR\"}"
+	};
+
+	public static void main(String[] args) {
+		final int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		final int duplicatePercent = args.length > 1 ? Integer.parseInt(args[1]) : 80;
+
+		final long withoutPool = retainedBy(PayloadPool.disabled(), count, duplicatePercent);
+		final PayloadPool pool = new PayloadPool(true, new SimpleMeterRegistry());
+		final long withPool = retainedBy(pool, count, duplicatePercent);
+
+		System.out.printf("prices=%d duplicated=%d%% pooled payloads=%d%n", count, duplicatePercent, pool.size());
+		System.out.printf("without pool: %,d bytes (%.1f bytes/price)%n", withoutPool, (double) withoutPool / count);
+		System.out.printf("with pool:    %,d bytes (%.1f bytes/price)%n", withPool, (double) withPool / count);
+		System.out.printf("saved:        %,d bytes (%.1f%%)%n",
+		                  withoutPool - withPool,
+		                  100.0 * (withoutPool - withPool) / withoutPool);
+	}
+
+	/**
+	 * @return The heap kept by a book of the prices, including the pool, once the prices committed are dropped
+	 */
+	private static long retainedBy(PayloadPool pool, int count, int duplicatePercent) {
+		final long baseline = usedHeapAfterGc();
+		final OpenAddressingPriceStore store = new OpenAddressingPriceStore(count * 2, 1, 1,
+		                                                                     PriceHistory.disabled(),
+		                                                                     pool);
+		store.commit(1L, createPrices(count, duplicatePercent));
+		final long retained = usedHeapAfterGc() - baseline;
+		//Keeps the store reachable until it has been measured
+		if (store.size() != count) {
+			throw new IllegalStateException("Expected " + count + " prices, the store has " + store.size());
+		}
+		return retained;
+	}
+
+	private static List<Price> createPrices(int count, int duplicatePercent) {
+		final ZonedDateTime time = ZonedDateTime.now(ZoneOffset.UTC);
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final List<Price> prices = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			final String payload = random.nextInt(100) < duplicatePercent
+			                       ? SHARED_PAYLOADS[random.nextInt(SHARED_PAYLOADS.length)]
+			                       : String.format("{\"bid\":%.2f,\"ask\":%.2f,\"source\":\"FEED-A\",\"seq\":%d}",
+			                                       100 + i % 5000 / 100.0, 100.25 + i % 5000 / 100.0, i);
+			prices.add(new Price(i + 1, time.plusNanos(i), new String(payload.toCharArray())));
+		}
+		return prices;
+	}
+
+	private static long usedHeapAfterGc() {
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+		}
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,69 @@
+package priceserver.benchmark;
+
+import priceserver.domain.Price;
+import priceserver.service.impl.OpenAddressingPriceStore;
+import priceserver.service.impl.PayloadPool;
+import priceserver.service.impl.PriceHistory;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how many bytes each Price keeps resident, and the CPU cost of committing a book of prices over an existing
+ * one.  Each price gets its own date and payload instance, as it would when read off the wire.
+ *
+ * <pre>
+ * java -Xms4g -Xmx4g -cp target/classes:target/test-classes:... priceserver.benchmark.PriceFootprint 1000000
+ * </pre>
+ */
+public class PriceFootprint {
+	private static final String PAYLOAD = "{\"bid\":101.25,\"ask\":101.75,\"source\":\"FEED-A\"}";
+	private static final int COMMIT_ROUNDS = 10;
+
+	public static void main(String[] args) {
+		final int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+		final ZonedDateTime start = ZonedDateTime.now(ZoneOffset.UTC);
+
+		final long baseline = usedHeapAfterGc();
+		List<Price> prices = createPrices(count, start);
+		final long retained = usedHeapAfterGc() - baseline;
+		System.out.printf("prices=%d payload=%d chars%n", prices.size(), PAYLOAD.length());
+		System.out.printf("resident: %,d bytes (%.1f bytes/price)%n", retained, (double) retained / count);
+
+		final OpenAddressingPriceStore store = new OpenAddressingPriceStore(count * 2, 1, 1,
+		                                                                     PriceHistory.disabled(),
+		                                                                     PayloadPool.disabled());
+		store.commit(1L, prices);
+
+		long commitNanos = 0;
+		for (int round = 1; round <= COMMIT_ROUNDS; round++) {
+			//Alternate newer and older books so half the rounds replace every price and half keep them all
+			prices = createPrices(count, round % 2 == 0 ? start.minusHours(round) : start.plusHours(round));
+			final long before = System.nanoTime();
+			store.commit(round + 1L, prices);
+			commitNanos += System.nanoTime() - before;
+		}
+		System.out.printf("commit: %.1f ms per %d prices (%.1f ns/price)%n",
+		                  commitNanos / 1e6 / COMMIT_ROUNDS,
+		                  count,
+		                  (double) commitNanos / COMMIT_ROUNDS / count);
+	}
+
+	private static List<Price> createPrices(int count, ZonedDateTime time) {
+		final List<Price> prices = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			prices.add(new Price(i + 1, time.plusNanos(i), new String(PAYLOAD.toCharArray())));
+		}
+		return prices;
+	}
+
+	private static long usedHeapAfterGc() {
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+		}
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,117 @@
+package priceserver.benchmark;
+
+import priceserver.domain.Price;
+import priceserver.service.PriceStore;
+import priceserver.service.impl.ConcurrentMapPriceStore;
+import priceserver.service.impl.OpenAddressingPriceStore;
+import priceserver.service.impl.PayloadPool;
+import priceserver.service.impl.PriceHistory;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares the heap footprint and GC activity of the PriceStore implementations.  Run each store in its own JVM so
+ * the numbers do not pollute each other, for example:
+ *
+ * <pre>
+ * java -Xms4g -Xmx4g -cp target/classes:target/test-classes:... priceserver.benchmark.PriceStoreFootprint open-addressing 5000000
+ * </pre>
+ *
+ * The retained size reported is the store only; the prices themselves are created up front and held in an array
+ * so that they are excluded.  The store does keep its own epoch-stamped copy of each Price, but those share the date
+ * and payload with the originals.
+ */
+public class PriceStoreFootprint {
+	private static final int READS = 50_000_000;
+
+	public static void main(String[] args) {
+		final String storeType = args.length > 0 ? args[0] : "open-addressing";
+		final int count = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+
+		final ZonedDateTime time = ZonedDateTime.now(ZoneOffset.UTC);
+		final Price[] prices = new Price[count];
+		for (int i = 0; i < count; i++) {
+			prices[i] = new Price(i + 1, time, "payload");
+		}
+
+		final long baseline = usedHeapAfterGc();
+		final GcSnapshot beforeFill = new GcSnapshot();
+
+		final PriceStore store = create(storeType);
+		store.commit(1L, Arrays.asList(prices));
+
+		final GcSnapshot afterFill = new GcSnapshot();
+		final long retained = usedHeapAfterGc() - baseline;
+
+		final GcSnapshot beforeReads = new GcSnapshot();
+		final long start = System.nanoTime();
+		long hits = 0;
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < READS; i++) {
+			if (store.get(random.nextInt(count) + 1) != null) {
+				hits++;
+			}
+		}
+		final long readNanos = System.nanoTime() - start;
+		final GcSnapshot afterReads = new GcSnapshot();
+
+		System.out.printf("store=%s prices=%d%n", storeType, store.size());
+		System.out.printf("retained by store: %,d bytes (%.1f bytes/price)%n", retained, (double) retained / count);
+		System.out.printf("fill:  %s%n", afterFill.minus(beforeFill));
+		System.out.printf("reads: %s, %.1f ns/get, hits=%d%n", afterReads.minus(beforeReads), (double) readNanos / READS, hits);
+	}
+
+	private static PriceStore create(String storeType) {
+		switch (storeType) {
+			case "concurrent-map":
+				return new ConcurrentMapPriceStore(1, 1, PriceHistory.disabled(), PayloadPool.disabled());
+			case "open-addressing":
+				return new OpenAddressingPriceStore(16384, 1, 1, PriceHistory.disabled(), PayloadPool.disabled());
+			default:
+				throw new IllegalArgumentException("Unknown store " + storeType);
+		}
+	}
+
+	private static long usedHeapAfterGc() {
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+		}
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static final class GcSnapshot {
+		private final long collections;
+		private final long millis;
+
+		private GcSnapshot() {
+			long c = 0;
+			long t = 0;
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				c += gc.getCollectionCount();
+				t += gc.getCollectionTime();
+			}
+			collections = c;
+			millis = t;
+		}
+
+		private GcSnapshot(long collections, long millis) {
+			this.collections = collections;
+			this.millis = millis;
+		}
+
+		private GcSnapshot minus(GcSnapshot other) {
+			return new GcSnapshot(collections - other.collections, millis - other.millis);
+		}
+
+		@Override
+		public String toString() {
+			return collections + " collections, " + millis + " ms in GC";
+		}
+	}
+}
@@ -0,0 +1,65 @@
+package priceserver.benchmark.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import priceserver.domain.Batch;
+import priceserver.domain.Price;
+import priceserver.domain.PriceShards;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Uploads a chunk of prices into a new Batch, reported per price.  With unique ids every price adds an entry to the
+ * batch; with duplicates the chunk only covers a hundred ids, so most prices compete with one already staged.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchUploadBenchmark {
+	private static final int PRICES = 10_000;
+	private static final int DUPLICATE_IDS = 100;
+	private static final PriceShards SHARDS = new PriceShards(16);
+
+	@Param({"unique", "duplicates"})
+	public String ids;
+
+	private List<Price> prices;
+
+	@Setup
+	public void createPrices() {
+		BenchmarkLogging.quiet();
+		final ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+		prices = new ArrayList<>(PRICES);
+		for (int i = 0; i < PRICES; i++) {
+			final long id = "unique".equals(ids) ? i : i % DUPLICATE_IDS;
+			//Duplicates arrive in no particular time order, so some replace the staged price and some do not
+			prices.add(new Price(id, now.plusNanos((i * 7919L) % PRICES), "{\"bid\":101.25,\"ask\":101.75}"));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PRICES)
+	public Collection<Price> upload() {
+		final Batch batch = new Batch(1L);
+		batch.upload(prices);
+		return batch.closeAndGetPrices(SHARDS);
+	}
+}
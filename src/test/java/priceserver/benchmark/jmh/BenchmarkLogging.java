@@ -0,0 +1,18 @@
+package priceserver.benchmark.jmh;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Outside of Spring, logback logs everything at debug to the console, which would be most of what the benchmarks
+ * measure.
+ */
+final class BenchmarkLogging {
+	private BenchmarkLogging() {
+	}
+
+	static void quiet() {
+		((Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+	}
+}
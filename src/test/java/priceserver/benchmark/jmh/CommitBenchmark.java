@@ -0,0 +1,126 @@
+package priceserver.benchmark.jmh;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import priceserver.domain.Price;
+import priceserver.service.impl.AdmissionControl;
+import priceserver.service.impl.AsyncCommits;
+import priceserver.service.impl.BatchManagerEhCacheImpl;
+import priceserver.service.impl.CommitGroups;
+import priceserver.service.impl.NoCommitJournal;
+import priceserver.service.impl.OpenAddressingPriceStore;
+import priceserver.service.impl.PayloadPool;
+import priceserver.service.impl.PreparedBatches;
+import priceserver.service.impl.PriceHistory;
+import priceserver.service.impl.PriceSnapshotter;
+import priceserver.service.impl.PriceSubscriptions;
+import priceserver.service.impl.PricerServiceImpl;
+import priceserver.service.impl.StandaloneReplication;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Commits a batch that has already been uploaded, from closing it through to publishing it in the store.  Each
+ * commit is newer than the last, so every price in it replaces the one in the store.  The batch is uploaded in
+ * chunks of a thousand, as a streamed upload would be, before each commit and outside of the measurement.
+ * shards is how many shards the book is split into, and mergeParallelism how many threads merge them; on a machine
+ * with enough cores compare 4, 16 and 64 shards with the parallelism at the core count.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class CommitBenchmark {
+	private static final int CHUNK = 1000;
+
+	@Param({"1000", "100000", "1000000"})
+	public int prices;
+
+	@Param({"1", "4", "16", "64"})
+	public int shards;
+
+	@Param({"1", "4"})
+	public int mergeParallelism;
+
+	private Path directory;
+	private BatchManagerEhCacheImpl batchManager;
+	private PricerServiceImpl pricerService;
+	private ZonedDateTime time;
+	private long batchId;
+
+	@Setup(Level.Trial)
+	public void createService() throws IOException {
+		BenchmarkLogging.quiet();
+		directory = Files.createTempDirectory("commit-benchmark");
+		batchManager = new BatchManagerEhCacheImpl(100, 256, 1024, 4096, directory.toString(), 600_000, 3_600_000,
+		                                           shards,
+		                                           PayloadPool.disabled(),
+		                                           AdmissionControl.unlimited(),
+		                                           new SimpleMeterRegistry());
+		final PriceHistory history = PriceHistory.disabled();
+		final OpenAddressingPriceStore store = new OpenAddressingPriceStore(prices * 2, shards, mergeParallelism,
+		                                                                    history, PayloadPool.disabled());
+		final NoCommitJournal journal = new NoCommitJournal();
+		pricerService = new PricerServiceImpl(batchManager,
+		                                      store,
+		                                      journal,
+		                                      PreparedBatches.inMemory(),
+		                                      new PriceSnapshotter(store, journal, false, directory.toString(), 0),
+		                                      new AsyncCommits(1, 60_000),
+		                                      new CommitGroups(0L, 64, 100_000, new SimpleMeterRegistry()),
+		                                      history,
+		                                      new PriceSubscriptions(new SimpleMeterRegistry()),
+		                                      new StandaloneReplication(),
+		                                      new SimpleMeterRegistry());
+		time = ZonedDateTime.now(ZoneOffset.UTC);
+	}
+
+	@Setup(Level.Invocation)
+	public void uploadBatch() {
+		time = time.plusSeconds(1);
+		batchId = pricerService.createBatch("benchmark").getId();
+		for (int from = 0; from < prices; from += CHUNK) {
+			final List<Price> chunk = new ArrayList<>(CHUNK);
+			for (int id = from; id < Math.min(prices, from + CHUNK); id++) {
+				chunk.add(new Price(id, time, "{\"bid\":101.25,\"ask\":101.75}"));
+			}
+			pricerService.upload(batchId, chunk);
+		}
+	}
+
+	@Benchmark
+	public void commit() {
+		pricerService.commit(batchId);
+	}
+
+	@TearDown(Level.Trial)
+	public void close() throws IOException {
+		batchManager.close();
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+}
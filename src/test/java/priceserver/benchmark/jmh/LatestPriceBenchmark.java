@@ -0,0 +1,112 @@
+package priceserver.benchmark.jmh;
+
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import priceserver.domain.Price;
+import priceserver.service.impl.AdmissionControl;
+import priceserver.service.impl.AsyncCommits;
+import priceserver.service.impl.BatchManagerEhCacheImpl;
+import priceserver.service.impl.CommitGroups;
+import priceserver.service.impl.NoCommitJournal;
+import priceserver.service.impl.OpenAddressingPriceStore;
+import priceserver.service.impl.PayloadPool;
+import priceserver.service.impl.PreparedBatches;
+import priceserver.service.impl.PriceHistory;
+import priceserver.service.impl.PriceSnapshotter;
+import priceserver.service.impl.PriceSubscriptions;
+import priceserver.service.impl.PricerServiceImpl;
+import priceserver.service.impl.StandaloneReplication;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Looks up random prices from a committed book with several readers at once.  Change the number of readers with
+ * JMH's -t option.  The service counts reads into the same registry the server scrapes, and should allocate nothing
+ * per lookup, which <code>-prof gc</code> shows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class LatestPriceBenchmark {
+	@Param({"100000"})
+	public int prices;
+
+	private Path directory;
+	private BatchManagerEhCacheImpl batchManager;
+	private PricerServiceImpl pricerService;
+
+	@Setup
+	public void commitBook() throws IOException {
+		BenchmarkLogging.quiet();
+		directory = Files.createTempDirectory("latest-price-benchmark");
+		final PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+		batchManager = new BatchManagerEhCacheImpl(100, 256, 1024, 4096, directory.toString(), 600_000, 3_600_000, 16,
+		                                           PayloadPool.disabled(),
+		                                           AdmissionControl.unlimited(),
+		                                           registry);
+		final PriceHistory history = PriceHistory.disabled();
+		final OpenAddressingPriceStore store = new OpenAddressingPriceStore(prices * 2, 16, 1, history,
+		                                                                    PayloadPool.disabled());
+		final NoCommitJournal journal = new NoCommitJournal();
+		pricerService = new PricerServiceImpl(batchManager,
+		                                      store,
+		                                      journal,
+		                                      PreparedBatches.inMemory(),
+		                                      new PriceSnapshotter(store, journal, false, directory.toString(), 0),
+		                                      new AsyncCommits(1, 60_000),
+		                                      new CommitGroups(0L, 64, 100_000, registry),
+		                                      history,
+		                                      new PriceSubscriptions(registry),
+		                                      new StandaloneReplication(),
+		                                      registry);
+
+		final ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+		final long batchId = pricerService.createBatch("benchmark").getId();
+		final List<Price> book = new ArrayList<>(prices);
+		for (int id = 0; id < prices; id++) {
+			book.add(new Price(id, now, "{\"bid\":101.25,\"ask\":101.75}"));
+		}
+		pricerService.upload(batchId, book);
+		pricerService.commit(batchId);
+	}
+
+	@Benchmark
+	public Price latestPrice() {
+		return pricerService.latestPrice(ThreadLocalRandom.current().nextInt(prices));
+	}
+
+	@TearDown
+	public void close() throws IOException {
+		batchManager.close();
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+}
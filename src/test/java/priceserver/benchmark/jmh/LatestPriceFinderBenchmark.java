@@ -0,0 +1,56 @@
+package priceserver.benchmark.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import priceserver.domain.LatestPriceFinder;
+import priceserver.domain.Price;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The comparison at the heart of every upload and commit, for a new price that wins, one that loses and one with
+ * nothing to compete against.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LatestPriceFinderBenchmark {
+	private Price older;
+	private Price newer;
+
+	@Setup
+	public void createPrices() {
+		BenchmarkLogging.quiet();
+		final ZonedDateTime now = ZonedDateTime.now(ZoneOffset.UTC);
+		older = new Price(42L, now, "older");
+		newer = new Price(42L, now.plusNanos(1), "newer");
+	}
+
+	@Benchmark
+	public Price newPriceWins() {
+		return new LatestPriceFinder(newer).apply(42L, older);
+	}
+
+	@Benchmark
+	public Price oldPriceWins() {
+		return new LatestPriceFinder(older).apply(42L, newer);
+	}
+
+	@Benchmark
+	public Price noOldPrice() {
+		return new LatestPriceFinder(newer).apply(42L, null);
+	}
+}
@@ -0,0 +1,59 @@
+package priceserver.benchmark.jmh;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import priceserver.domain.Price;
+
+import java.io.IOException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes and reads a single Price as JSON, with an ObjectMapper set up the way Spring sets up the one it uses for
+ * requests and responses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PriceJsonBenchmark {
+	private ObjectWriter writer;
+	private ObjectReader reader;
+	private Price price;
+	private byte[] json;
+
+	@Setup
+	public void createPrice() throws IOException {
+		BenchmarkLogging.quiet();
+		final ObjectMapper objectMapper = Jackson2ObjectMapperBuilder.json().build();
+		writer = objectMapper.writerFor(Price.class);
+		reader = objectMapper.readerFor(Price.class);
+		price = new Price(123456L, ZonedDateTime.now(ZoneOffset.UTC), "{\"bid\":101.25,\"ask\":101.75,\"source\":\"FEED-A\"}");
+		json = writer.writeValueAsBytes(price);
+	}
+
+	@Benchmark
+	public byte[] serialize() throws IOException {
+		return writer.writeValueAsBytes(price);
+	}
+
+	@Benchmark
+	public Price deserialize() throws IOException {
+		return reader.readValue(json);
+	}
+}
@@ -0,0 +1,88 @@
+package priceserver.benchmark.jmh;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import priceserver.domain.Price;
+
+import java.io.IOException;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes and reads a typical upload, a thousand prices ticking a few milliseconds apart, in each of the formats the
+ * server can be sent it in.  The size of the batch in each format is printed at setup, as that is as much the point
+ * as the time taken.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WireFormatBenchmark {
+	private static final int BATCH_SIZE = 1_000;
+
+	@Param({"json", "xml", "smile", "cbor"})
+	private String format;
+
+	private ObjectWriter writer;
+	private ObjectReader reader;
+	private Price[] batch;
+	private byte[] encoded;
+
+	@Setup
+	public void createBatch() throws IOException {
+		BenchmarkLogging.quiet();
+		final ObjectMapper objectMapper = mapperFor(format);
+		writer = objectMapper.writerFor(Price[].class);
+		reader = objectMapper.readerFor(Price[].class);
+		final ZonedDateTime start = ZonedDateTime.now(ZoneOffset.UTC);
+		batch = new Price[BATCH_SIZE];
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			final String payload = String.format("{\"bid\":%.2f,\"ask\":%.2f,\"source\":\"FEED-%c\"}",
+			                                     101.25 + i % 40, 101.75 + i % 40, 'A' + i % 3);
+			batch[i] = new Price(1_000_000L + i, start.plusNanos(i * 3_500_000L), payload);
+		}
+		encoded = writer.writeValueAsBytes(batch);
+		System.out.println(format + ": " + encoded.length + " bytes for " + BATCH_SIZE + " prices");
+	}
+
+	@Benchmark
+	public byte[] serialize() throws IOException {
+		return writer.writeValueAsBytes(batch);
+	}
+
+	@Benchmark
+	public Price[] deserialize() throws IOException {
+		return reader.readValue(encoded);
+	}
+
+	private static ObjectMapper mapperFor(String format) {
+		switch (format) {
+			case "json":
+				return Jackson2ObjectMapperBuilder.json().build();
+			case "xml":
+				return Jackson2ObjectMapperBuilder.xml().build();
+			case "smile":
+				return Jackson2ObjectMapperBuilder.smile().build();
+			case "cbor":
+				return Jackson2ObjectMapperBuilder.cbor().build();
+			default:
+				throw new IllegalArgumentException("Unknown format " + format);
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package priceserver.service.impl;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import priceserver.exceptions.TooManyRequestsException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class AdmissionControlTest {
+	private final MeterRegistry registry = new SimpleMeterRegistry();
+
+	private final AdmissionControl admission = new AdmissionControl(3, 2, 1_000, 600, 1_000, 600, 2, 1, 5, registry);
+
+	@Test
+	void uploadsOverEitherLimitAreTurnedAwayUntilOthersFinish() {
+		final Runnable first = admission.admitUpload("a", 100);
+		admission.admitUpload("a", 100);
+		assertEquals(5L, assertThrows(TooManyRequestsException.class, () -> admission.admitUpload("a", 100))
+				.getRetryAfterSeconds());
+		final Runnable other = admission.admitUpload("b", 100);
+		assertThrows(TooManyRequestsException.class, () -> admission.admitUpload("c", 100));
+
+		first.run();
+		final Runnable third = admission.admitUpload("c", 500);
+		assertEquals(3.0, used("uploads", "total"));
+		assertEquals(700.0, used("upload.bytes", "total"));
+		assertEquals(500.0, used("upload.bytes", "busiest-client"));
+		assertEquals(3.0, clients("uploads"));
+
+		//Over the bytes any one client may have in flight, which gives back the upload it took as well
+		other.run();
+		assertThrows(TooManyRequestsException.class, () -> admission.admitUpload("c", 101));
+		assertEquals(2.0, used("uploads", "total"));
+		third.run();
+		assertEquals(1.0, clients("uploads"));
+		assertEquals(2.0, registry.get("priceserver.admission.rejected").tag("resource", "uploads").counter().count());
+		assertEquals(1.0,
+		             registry.get("priceserver.admission.rejected").tag("resource", "upload.bytes").counter().count());
+	}
+
+	@Test
+	void anUploadBiggerThanTheLimitIsLetInOnItsOwn() {
+		final Runnable huge = admission.admitUpload("a", 10_000);
+		assertThrows(TooManyRequestsException.class, () -> admission.admitUpload("b", 1));
+		huge.run();
+		admission.admitUpload("b", 1).run();
+		assertEquals(0.0, used("upload.bytes", "total"));
+		assertEquals(1_000.0, registry.get("priceserver.admission.limit")
+		                              .tags("resource", "upload.bytes", "scope", "total")
+		                              .gauge()
+		                              .value());
+	}
+
+	@Test
+	void anUploadWithoutALengthIsLimitedByTheBytesReadFromIt() {
+		final AdmissionControl.UploadPermit streamed = admission.admitUpload("a", 0);
+		streamed.read(400);
+		streamed.read(200);
+		assertEquals(600.0, used("upload.bytes", "total"));
+		assertThrows(TooManyRequestsException.class, () -> streamed.read(1));
+
+		//Bytes within the length already taken are not taken again
+		final AdmissionControl.UploadPermit sized = admission.admitUpload("b", 300);
+		sized.read(300);
+		assertEquals(900.0, used("upload.bytes", "total"));
+		streamed.run();
+		streamed.run();
+		sized.run();
+		assertEquals(0.0, used("upload.bytes", "total"));
+		assertEquals(0.0, used("uploads", "total"));
+	}
+
+	@Test
+	void stagedBytesCountUntilTheyAreGivenBack() {
+		admission.stage("a", 500);
+		admission.stage("a", 100);
+		assertThrows(TooManyRequestsException.class, () -> admission.stage("a", 1));
+		admission.stage("b", 300);
+		assertThrows(TooManyRequestsException.class, () -> admission.stage("c", 200));
+		assertEquals(900.0, used("staged.bytes", "total"));
+
+		admission.unstaged("a", 600);
+		admission.stage("c", 200);
+		assertEquals(500.0, used("staged.bytes", "total"));
+	}
+
+	@Test
+	void batchesCountUntilTheyAreClosed() {
+		admission.admitBatch("a");
+		assertThrows(TooManyRequestsException.class, () -> admission.admitBatch("a"));
+		admission.admitBatch("b");
+		assertThrows(TooManyRequestsException.class, () -> admission.admitBatch("c"));
+		admission.batchClosed("a");
+		admission.admitBatch("c");
+		assertEquals(2.0, used("batches", "total"));
+	}
+
+	private double clients(String resource) {
+		return registry.get("priceserver.admission.clients").tag("resource", resource).gauge().value();
+	}
+
+	private double used(String resource, String scope) {
+		return registry.get("priceserver.admission.used").tags("resource", resource, "scope", scope).gauge().value();
+	}
+}
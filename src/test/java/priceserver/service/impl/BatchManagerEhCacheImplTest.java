@@ -0,0 +1,285 @@
+package priceserver.service.impl;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import priceserver.domain.Price;
+import priceserver.domain.ShardedPrices;
+import priceserver.exceptions.BatchNotFoundException;
+import priceserver.exceptions.ChunkInProgressException;
+import priceserver.exceptions.IncompleteBatchException;
+import priceserver.exceptions.TooManyRequestsException;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BatchManagerEhCacheImplTest {
+	private static final ZonedDateTime NOW = ZonedDateTime.now(ZoneOffset.UTC);
+	private static final String CLIENT = "feed";
+
+	private final MeterRegistry registry = new SimpleMeterRegistry();
+
+	private Path directory;
+
+	@BeforeEach
+	void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("batches");
+	}
+
+	@AfterEach
+	void deleteDirectory() throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	void batchesBiggerThanTheHeapTierComeBackWhole() {
+		try (BatchManagerEhCacheImpl batches = open(1, 8, 32, 60_000, 60_000)) {
+			final long batchId = batches.create(CLIENT).getId();
+			final Map<Long, Price> expected = new HashMap<>();
+			for (int upload = 0; upload < 20; upload++) {
+				//Every upload overlaps the last, alternating older and newer prices for the shared ids
+				final ZonedDateTime time = upload % 2 == 0 ? NOW.plusSeconds(upload) : NOW.minusSeconds(upload);
+				final List<Price> prices = prices(upload * 500L, upload * 500L + 1000, time);
+				prices.forEach(price -> expected.merge(price.getId(), price, (old, latest) ->
+						old.getTimestamp() < latest.getTimestamp() ? latest : old));
+				batches.upload(batchId, prices);
+			}
+			assertEquals(1.0, registry.get("priceserver.batches.open").gauge().value());
+
+			final ShardedPrices committed = batches.closeBatch(batchId);
+			assertEquals(expected.size(), committed.size());
+			for (int shard = 0; shard < committed.getShards().count(); shard++) {
+				final int expectedShard = shard;
+				committed.shard(shard).forEach(price ->
+						assertEquals(expectedShard, committed.getShards().shardOf(price.getId())));
+			}
+			assertEquals(0.0, registry.get("priceserver.batches.open").gauge().value());
+			assertEquals(20_000.0, registry.get("priceserver.batches.prices.received").summary().totalAmount());
+			assertEquals(expected.size(), registry.get("priceserver.batches.prices.committed").summary().totalAmount());
+			assertEquals(expected.size() / 20_000.0,
+			             registry.get("priceserver.batches.dedup.ratio").summary().totalAmount(),
+			             1e-9);
+			committed.forEach(price -> assertEquals(expected.get(price.getId()), price));
+			assertThrows(BatchNotFoundException.class, () -> batches.closeBatch(batchId));
+		}
+	}
+
+	@Test
+	void batchesEvictedFromTheDiskTierAreNotFound() {
+		try (BatchManagerEhCacheImpl batches = open(1, 2, 4, 60_000, 60_000)) {
+			final List<Long> batchIds = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				batchIds.add(batches.create(CLIENT).getId());
+			}
+			for (int upload = 0; upload < 50; upload++) {
+				for (long batchId : batchIds) {
+					try {
+						batches.upload(batchId, prices(upload * 1000L, upload * 1000L + 1000, NOW));
+					} catch (BatchNotFoundException e) {
+						//Already evicted
+					}
+				}
+			}
+
+			int notFound = 0;
+			for (long batchId : batchIds) {
+				try {
+					assertEquals(50_000, batches.closeBatch(batchId).size());
+				} catch (BatchNotFoundException e) {
+					notFound++;
+				}
+			}
+			assertTrue(notFound > 0, "Three batches of 50,000 prices cannot all fit in 4MB");
+			assertTrue(registry.get("priceserver.batches.chunks.evicted").counter().count() > 0);
+		}
+	}
+
+	@Test
+	void chunksAreCountedOnceAndAnIncompleteBatchIsLeftOpen() {
+		try (BatchManagerEhCacheImpl batches = open(1, 2, 4, 60_000, 60_000)) {
+			final long batchId = batches.create(CLIENT).getId();
+			for (int chunk = 0; chunk < 5_000; chunk += 2) {
+				assertTrue(batches.startChunk(batchId, chunk));
+				batches.upload(batchId, prices(chunk, chunk + 1, NOW));
+				batches.finishChunk(batchId, chunk);
+			}
+			assertFalse(batches.startChunk(batchId, 4_998));
+			assertTrue(batches.startChunk(batchId, 4_999));
+			//Still being uploaded, so neither counted nor to be sent again yet
+			assertThrows(ChunkInProgressException.class, () -> batches.startChunk(batchId, 4_999));
+			batches.expectChunks(batchId, 2_501);
+			assertThrows(IncompleteBatchException.class, () -> batches.closeBatch(batchId));
+			//Given up when its upload failed, so it is missing until it is sent again
+			batches.abandonChunk(batchId, 4_999);
+
+			assertThrows(IncompleteBatchException.class, () -> batches.closeBatch(batchId));
+			assertTrue(batches.startChunk(batchId, 4_999));
+			batches.upload(batchId, prices(4_999, 5_000, NOW));
+			batches.finishChunk(batchId, 4_999);
+			assertEquals(2_501, batches.closeBatch(batchId).size());
+		}
+	}
+
+	@Test
+	void aBatchFailingItsChunkCheckTakesUploadsAndCanStillBeDiscarded() {
+		final AdmissionControl admission = new AdmissionControl(0, 0, 0, 0, 0, 0, 0, 1, 1, registry);
+		try (BatchManagerEhCacheImpl batches = new BatchManagerEhCacheImpl(100, 1, 2, 4, directory.toString(), 60_000,
+		                                                                   60_000, 16, PayloadPool.disabled(),
+		                                                                   admission, registry)) {
+			final long batchId = batches.create(CLIENT).getId();
+			batches.expectChunks(batchId, 1);
+			assertThrows(IncompleteBatchException.class, () -> batches.closeBatch(batchId));
+			batches.upload(batchId, prices(0, 10, NOW));
+
+			batches.discardBatch(batchId);
+			assertThrows(BatchNotFoundException.class, () -> batches.upload(batchId, prices(0, 10, NOW)));
+			batches.create(CLIENT);
+		}
+	}
+
+	@Test
+	void aClientCanOnlyHaveSoManyBatchesOpen() {
+		final AdmissionControl admission = new AdmissionControl(0, 0, 0, 0, 0, 0, 0, 2, 1, registry);
+		try (BatchManagerEhCacheImpl batches = new BatchManagerEhCacheImpl(100, 1, 2, 4, directory.toString(), 60_000,
+		                                                                   60_000, 16, PayloadPool.disabled(),
+		                                                                   admission, registry)) {
+			final long first = batches.create(CLIENT).getId();
+			final long second = batches.create(CLIENT).getId();
+			assertThrows(TooManyRequestsException.class, () -> batches.create(CLIENT));
+			batches.create("another feed");
+
+			batches.closeBatch(first);
+			batches.discardBatch(second);
+			batches.create(CLIENT);
+			batches.create(CLIENT);
+			assertThrows(TooManyRequestsException.class, () -> batches.create(CLIENT));
+		}
+	}
+
+	@Test
+	void aClientCanOnlyStageSoManyBytesUntilItsBatchesAreClosed() {
+		final AdmissionControl admission = new AdmissionControl(0, 0, 0, 0, 0, 2_000, 0, 0, 1, registry);
+		try (BatchManagerEhCacheImpl batches = new BatchManagerEhCacheImpl(100, 1, 2, 4, directory.toString(), 60_000,
+		                                                                   60_000, 16, PayloadPool.disabled(),
+		                                                                   admission, registry)) {
+			final long first = batches.create(CLIENT).getId();
+			final long second = batches.create(CLIENT).getId();
+			batches.upload(first, prices(0, 10, NOW));
+			batches.upload(second, prices(10, 20, NOW));
+			batches.upload(first, prices(20, 30, NOW));
+			assertThrows(TooManyRequestsException.class, () -> batches.upload(second, prices(30, 40, NOW)));
+			final long other = batches.create("another feed").getId();
+			batches.upload(other, prices(30, 40, NOW));
+
+			//Refused before it was staged, so it takes nothing away from what was
+			assertEquals(20, batches.closeBatch(first).size());
+			batches.upload(second, prices(30, 40, NOW));
+			assertEquals(20, batches.closeBatch(second).size());
+			batches.discardBatch(other);
+			assertEquals(0.0, registry.get("priceserver.admission.used")
+			                          .tags("resource", "staged.bytes", "scope", "total")
+			                          .gauge()
+			                          .value());
+		}
+	}
+
+	@Test
+	void batchesAbandonedByAClientGiveBackItsSlotsOnceTheyExpire() throws InterruptedException {
+		final AdmissionControl admission = new AdmissionControl(0, 0, 0, 0, 0, 0, 0, 2, 1, registry);
+		try (BatchManagerEhCacheImpl batches = new BatchManagerEhCacheImpl(100, 1, 2, 4, directory.toString(), 100,
+		                                                                   60_000, 16, PayloadPool.disabled(),
+		                                                                   admission, registry)) {
+			batches.create(CLIENT);
+			batches.create(CLIENT);
+			assertThrows(TooManyRequestsException.class, () -> batches.create(CLIENT));
+			//Neither is touched again, so only the sweep can see that they have expired
+			Thread.sleep(400);
+
+			batches.create(CLIENT);
+			batches.create(CLIENT);
+			assertThrows(TooManyRequestsException.class, () -> batches.create(CLIENT));
+		}
+	}
+
+	@Test
+	void idleBatchesExpire() throws InterruptedException {
+		try (BatchManagerEhCacheImpl batches = open(1, 2, 4, 100, 60_000)) {
+			final long batchId = batches.create(CLIENT).getId();
+			batches.upload(batchId, prices(0, 10, NOW));
+			Thread.sleep(300);
+			assertThrows(BatchNotFoundException.class, () -> batches.upload(batchId, prices(10, 20, NOW)));
+		}
+	}
+
+	@Test
+	void batchesAbandonedWithoutBeingTouchedAgainAreDropped() throws InterruptedException {
+		try (BatchManagerEhCacheImpl batches = open(1, 2, 4, 100, 60_000)) {
+			final long batchId = batches.create(CLIENT).getId();
+			batches.upload(batchId, prices(0, 10, NOW));
+			final long kept = batches.create(CLIENT).getId();
+			final long deadline = System.nanoTime() + 400_000_000L;
+			while (System.nanoTime() < deadline) {
+				batches.upload(kept, prices(10, 20, NOW));
+				Thread.sleep(20);
+			}
+
+			assertEquals(1.0, registry.get("priceserver.batches.open").gauge().value());
+			assertEquals(1.0, registry.get("priceserver.batches.dropped").tag("reason", "expired").counter().count());
+			assertTrue(registry.get("priceserver.batches.oldest.age").gauge().value() >= 0.4);
+			assertThrows(BatchNotFoundException.class, () -> batches.closeBatch(batchId));
+			assertEquals(10, batches.closeBatch(kept).size());
+		}
+	}
+
+	@Test
+	void busyBatchesStillExpireAtTheirMaximumAge() throws InterruptedException {
+		try (BatchManagerEhCacheImpl batches = open(1, 2, 4, 60_000, 300)) {
+			final long batchId = batches.create(CLIENT).getId();
+			final long deadline = System.nanoTime() + 2_000_000_000L;
+			int uploads = 0;
+			try {
+				while (System.nanoTime() < deadline) {
+					batches.upload(batchId, prices(uploads, uploads + 1, NOW));
+					uploads++;
+					Thread.sleep(20);
+				}
+			} catch (BatchNotFoundException e) {
+				assertTrue(uploads > 1, "Batch should have lived for more than one upload");
+				return;
+			}
+			throw new AssertionError("Batch was still open after " + uploads + " uploads");
+		}
+	}
+
+	private BatchManagerEhCacheImpl open(long heapMb, long offHeapMb, long diskMb, long idleMs, long maxAgeMs) {
+		return new BatchManagerEhCacheImpl(100, heapMb, offHeapMb, diskMb, directory.toString(), idleMs, maxAgeMs, 16,
+		                                   PayloadPool.disabled(), AdmissionControl.unlimited(), registry);
+	}
+
+	private static List<Price> prices(long fromId, long toId, ZonedDateTime time) {
+		final List<Price> prices = new ArrayList<>();
+		for (long id = fromId; id < toId; id++) {
+			prices.add(new Price(id, time, "{\"bid\":101.25,\"ask\":101.75,\"id\":" + id + "}"));
+		}
+		return prices;
+	}
+}
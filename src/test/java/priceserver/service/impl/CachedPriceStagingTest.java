@@ -0,0 +1,82 @@
+package priceserver.service.impl;
+
+import org.ehcache.Cache;
+import org.ehcache.CacheManager;
+import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.CacheManagerBuilder;
+import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import priceserver.domain.Price;
+import priceserver.domain.PriceShards;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CachedPriceStagingTest {
+	private static final ZonedDateTime NOW = ZonedDateTime.now(ZoneOffset.UTC);
+
+	private final CacheManager cacheManager = CacheManagerBuilder.newCacheManagerBuilder().build(true);
+
+	@AfterEach
+	void closeCacheManager() {
+		cacheManager.close();
+	}
+
+	@Test
+	void aChunkTheCacheFailedToTakeDoesNotLoseTheRestOfTheBatch() {
+		final AtomicBoolean failPuts = new AtomicBoolean();
+		final CachedPriceStaging staging = new CachedPriceStaging(1L,
+		                                                          failingPuts(failPuts),
+		                                                          PayloadPool.disabled(),
+		                                                          "feed",
+		                                                          AdmissionControl.unlimited());
+
+		staging.stage(Collections.singletonList(new Price(1L, NOW, "before")));
+		failPuts.set(true);
+		assertThrows(IllegalStateException.class,
+		             () -> staging.stage(Collections.singletonList(new Price(2L, NOW, "failed"))));
+		failPuts.set(false);
+		staging.stage(Collections.singletonList(new Price(3L, NOW, "after")));
+
+		final List<String> drained = staging.drain(new PriceShards(4))
+		                                    .stream()
+		                                    .map(Price::getPayload)
+		                                    .sorted()
+		                                    .collect(Collectors.toList());
+		assertEquals(Arrays.asList("after", "before"), drained);
+	}
+
+	@SuppressWarnings("unchecked")
+	private Cache<Long, Price[]> failingPuts(AtomicBoolean failPuts) {
+		final Cache<Long, Price[]> chunks = cacheManager.createCache(
+				"stagedChunks",
+				CacheConfigurationBuilder.newCacheConfigurationBuilder(Long.class,
+				                                                       Price[].class,
+				                                                       ResourcePoolsBuilder.heap(100)));
+		final InvocationHandler failingPut = (proxy, method, args) -> {
+			if (failPuts.get() && method.getName().equals("put")) {
+				throw new IllegalStateException("Cache is full");
+			}
+			try {
+				return method.invoke(chunks, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		};
+		return (Cache<Long, Price[]>) Proxy.newProxyInstance(Cache.class.getClassLoader(),
+		                                                     new Class<?>[]{Cache.class},
+		                                                     failingPut);
+	}
+}
@@ -0,0 +1,66 @@
+package priceserver.service.impl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CommitDecisionsTest {
+	private Path directory;
+
+	@BeforeEach
+	void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("decisions");
+	}
+
+	@AfterEach
+	void deleteDirectory() throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	void decisionsNotFinishedBeforeARestartAreReadBack() throws IOException {
+		final Path file = directory.resolve("decisions.log");
+		final Map<String, Long> parts = new LinkedHashMap<>();
+		parts.put("http://localhost:8081", 4L);
+		parts.put("http://localhost:8082", 9L);
+		try (CommitDecisions decisions = new CommitDecisions(file)) {
+			decisions.decided(new CommitDecisions.Decision(10L, 1L, parts));
+			decisions.decided(new CommitDecisions.Decision(11L, 2L, parts));
+			decisions.decided(new CommitDecisions.Decision(12L, 3L, parts));
+			decisions.finished(11L);
+		}
+		//Cut short by a crash, so never acted on
+		Files.write(file, "COMMIT 13 4 http://localh".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+		try (CommitDecisions decisions = new CommitDecisions(file)) {
+			final List<CommitDecisions.Decision> unfinished = decisions.unfinished();
+			assertEquals(2, unfinished.size());
+			assertEquals(10L, unfinished.get(0).epoch);
+			assertEquals(1L, unfinished.get(0).batchId);
+			assertEquals(parts, unfinished.get(0).parts);
+			assertEquals(12L, unfinished.get(1).epoch);
+			decisions.finished(10L);
+			decisions.finished(12L);
+		}
+		assertEquals(0L, Files.size(file));
+		try (CommitDecisions decisions = new CommitDecisions(file)) {
+			assertTrue(decisions.unfinished().isEmpty());
+		}
+	}
+}
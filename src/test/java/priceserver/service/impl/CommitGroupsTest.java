@@ -0,0 +1,185 @@
+package priceserver.service.impl;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import priceserver.domain.Price;
+import priceserver.domain.PriceShards;
+import priceserver.domain.ShardedPrices;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CommitGroupsTest {
+	private final MeterRegistry registry = new SimpleMeterRegistry();
+
+	private final CommitGroups groups = new CommitGroups(0L, 64, 100_000, registry);
+
+	private final List<List<Long>> published = new CopyOnWriteArrayList<>();
+
+	private final AtomicLong epochs = new AtomicLong();
+
+	@AfterEach
+	void close() {
+		groups.close();
+	}
+
+	@Test
+	void commitsArrivingWhileAGroupIsPublishedArePublishedTogether() throws Exception {
+		final CountDownLatch publishing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		groups.publishWith((batchIds, prices) -> {
+			published.add(batchIds);
+			publishing.countDown();
+			await(release);
+			return epochs.incrementAndGet();
+		});
+
+		final CompletableFuture<Long> first = commitInBackground(1L);
+		assertTrue(publishing.await(10, TimeUnit.SECONDS));
+		final CompletableFuture<Long> second = commitInBackground(2L);
+		final CompletableFuture<Long> third = commitInBackground(3L);
+		//Nothing to see from outside that both are queued, so give them a moment to get there
+		Thread.sleep(200);
+		release.countDown();
+
+		assertEquals(1L, first.get(10, TimeUnit.SECONDS).longValue());
+		assertEquals(2L, second.get(10, TimeUnit.SECONDS).longValue());
+		assertEquals(2L, third.get(10, TimeUnit.SECONDS).longValue());
+		assertEquals(2, published.size());
+		assertEquals(Arrays.asList(2L, 3L), sorted(published.get(1)));
+		assertEquals(2L, registry.get("priceserver.commit.group.batches").summary().count());
+		assertEquals(3.0, registry.get("priceserver.commit.group.batches").summary().totalAmount());
+	}
+
+	@Test
+	void aFailedGroupFailsEachOfItsCommitsButNotTheNext() {
+		groups.publishWith((batchIds, prices) -> {
+			if (batchIds.contains(1L)) {
+				throw new IllegalStateException("Journal full");
+			}
+			return epochs.incrementAndGet();
+		});
+
+		assertEquals("Journal full",
+		             assertThrows(IllegalStateException.class, () -> groups.commit(1L, prices(1L))).getMessage());
+		assertEquals(1L, groups.commit(2L, prices(2L)));
+	}
+
+	@Test
+	void aGroupThatFailsIsPublishedBatchByBatchSoOnlyTheBadBatchFails() throws Exception {
+		final CountDownLatch publishing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		groups.publishWith((batchIds, prices) -> {
+			published.add(batchIds);
+			publishing.countDown();
+			await(release);
+			if (batchIds.contains(3L)) {
+				throw new IllegalStateException("Too big to journal");
+			}
+			return epochs.incrementAndGet();
+		});
+
+		final CompletableFuture<Long> first = commitInBackground(1L);
+		assertTrue(publishing.await(10, TimeUnit.SECONDS));
+		final CompletableFuture<Long> second = commitInBackground(2L);
+		final CompletableFuture<Long> third = commitInBackground(3L);
+		Thread.sleep(200);
+		release.countDown();
+
+		assertEquals(1L, first.get(10, TimeUnit.SECONDS).longValue());
+		final long secondEpoch = second.get(10, TimeUnit.SECONDS);
+		assertTrue(secondEpoch > 1L);
+		final ExecutionException failed = assertThrows(ExecutionException.class,
+		                                               () -> third.get(10, TimeUnit.SECONDS));
+		assertEquals("Too big to journal", failed.getCause().getMessage());
+		//The group of both, then each on its own
+		assertEquals(4, published.size());
+		assertEquals(Arrays.asList(2L, 3L), sorted(published.get(1)));
+	}
+
+	@Test
+	void clashingPricesAreMergedAsIfTheBatchesWereCommittedInTurn() {
+		final PriceShards shards = new PriceShards(4);
+		final Collection<Price> merged = CommitGroups.merge(Arrays.asList(
+				pending(1L, shards, price(10L, 100L, "first"), price(11L, 100L, "first"), price(12L, 100L, "first")),
+				pending(2L, shards, price(10L, 200L, "newer"), price(11L, 100L, "tied"), price(13L, 100L, "new")),
+				pending(3L, shards, price(12L, 50L, "older"))));
+
+		assertTrue(merged instanceof ShardedPrices);
+		final Map<Long, String> payloads = new HashMap<>();
+		for (Price price : merged) {
+			payloads.put(price.getId(), price.getPayload());
+		}
+		final Map<Long, String> expected = new HashMap<>();
+		expected.put(10L, "newer");
+		expected.put(11L, "first");
+		expected.put(12L, "first");
+		expected.put(13L, "new");
+		assertEquals(expected, payloads);
+	}
+
+	@Test
+	void commitsMadeAfterClosingFail() {
+		groups.publishWith((batchIds, prices) -> epochs.incrementAndGet());
+		groups.close();
+
+		assertThrows(IllegalStateException.class, () -> groups.commit(1L, prices(1L)));
+	}
+
+	private CompletableFuture<Long> commitInBackground(long batchId) {
+		final CompletableFuture<Long> result = new CompletableFuture<>();
+		final Thread thread = new Thread(() -> {
+			try {
+				result.complete(groups.commit(batchId, prices(batchId)));
+			} catch (RuntimeException e) {
+				result.completeExceptionally(e);
+			}
+		});
+		thread.start();
+		return result;
+	}
+
+	private static CommitGroups.PendingCommit pending(long batchId, PriceShards shards, Price... prices) {
+		return new CommitGroups.PendingCommit(batchId, ShardedPrices.of(shards, Arrays.asList(prices)));
+	}
+
+	private static Collection<Price> prices(long id) {
+		return Collections.singletonList(price(id, 1L, "price"));
+	}
+
+	private static Price price(long id, long timestamp, String payload) {
+		return new Price(id, timestamp, payload.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static List<Long> sorted(List<Long> ids) {
+		final List<Long> copy = new ArrayList<>(ids);
+		Collections.sort(copy);
+		return copy;
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await(10, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
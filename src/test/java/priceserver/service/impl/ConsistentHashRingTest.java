@@ -0,0 +1,47 @@
+package priceserver.service.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ConsistentHashRingTest {
+	private static final int IDS = 100_000;
+
+	@Test
+	void idsAreSpreadEvenlyAndTheOrderOfTheNodesDoesNotMatter() {
+		final ConsistentHashRing<String> ring = new ConsistentHashRing<>(Arrays.asList("a", "b", "c", "d"), 256);
+		final ConsistentHashRing<String> reordered = new ConsistentHashRing<>(Arrays.asList("c", "a", "d", "b"), 256);
+
+		final Map<String, Integer> counts = new HashMap<>();
+		for (long id = 1; id <= IDS; id++) {
+			assertEquals(ring.nodeFor(id), reordered.nodeFor(id));
+			counts.merge(ring.nodeFor(id), 1, Integer::sum);
+		}
+		assertEquals(4, counts.size());
+		for (int count : counts.values()) {
+			assertTrue(count > IDS / 4 * 0.8 && count < IDS / 4 * 1.2, counts.toString());
+		}
+	}
+
+	@Test
+	void addingANodeOnlyMovesIdsToTheNewNode() {
+		final ConsistentHashRing<String> before = new ConsistentHashRing<>(Arrays.asList("a", "b", "c", "d"), 256);
+		final ConsistentHashRing<String> after = new ConsistentHashRing<>(Arrays.asList("a", "b", "c", "d", "e"), 256);
+
+		int moved = 0;
+		for (long id = 1; id <= IDS; id++) {
+			final String owner = after.nodeFor(id);
+			if (!owner.equals(before.nodeFor(id))) {
+				assertEquals("e", owner);
+				moved++;
+			}
+		}
+		//A fifth of the ids is the least that can move to balance five nodes
+		assertTrue(moved > IDS / 5 * 0.8 && moved < IDS / 5 * 1.2, Integer.toString(moved));
+	}
+}
@@ -0,0 +1,169 @@
+package priceserver.service.impl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import priceserver.domain.Price;
+import priceserver.service.CommitJournal;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MappedCommitJournalTest {
+	private static final ZonedDateTime NOW = ZonedDateTime.now(ZoneOffset.UTC);
+
+	private Path directory;
+
+	@BeforeEach
+	void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("journal");
+	}
+
+	@AfterEach
+	void deleteDirectory() throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	void commitsAreReplayedInOrderAfterRestart() throws IOException {
+		final List<Price> first = prices(1, 10, "first");
+		final List<Price> second = prices(5, 20, "second");
+
+		try (MappedCommitJournal journal = open(MappedCommitJournal.Durability.GROUP, 4096)) {
+			assertEquals(0L, journal.replay(new Recorder()));
+			journal.awaitDurable(journal.append(1L, first));
+			journal.awaitDurable(journal.append(2L, second));
+		}
+
+		final Recorder recorder = new Recorder();
+		try (MappedCommitJournal journal = open(MappedCommitJournal.Durability.SYNC, 4096)) {
+			assertEquals(2L, journal.replay(recorder));
+			journal.awaitDurable(journal.append(3L, Collections.emptyList()));
+		}
+		assertEquals(Arrays.asList(1L, 2L), recorder.epochs);
+		assertEquals(Arrays.asList(first, second), recorder.commits);
+
+		try (MappedCommitJournal journal = open(MappedCommitJournal.Durability.ASYNC, 4096)) {
+			assertEquals(3L, journal.replay(new Recorder()));
+		}
+	}
+
+	@Test
+	void journalRollsOverToNewSegmentsWhenFull() throws IOException {
+		try (MappedCommitJournal journal = open(MappedCommitJournal.Durability.GROUP, 256)) {
+			journal.replay(new Recorder());
+			for (long epoch = 1; epoch <= 20; epoch++) {
+				journal.awaitDurable(journal.append(epoch, prices(epoch, epoch + 3, "p")));
+			}
+		}
+		assertTrue(segments().size() > 1, "Expected more than one segment");
+
+		final Recorder recorder = new Recorder();
+		try (MappedCommitJournal journal = open(MappedCommitJournal.Durability.GROUP, 256)) {
+			assertEquals(20L, journal.replay(recorder));
+		}
+		assertEquals(LongStream.rangeClosed(1, 20).boxed().collect(Collectors.toList()), recorder.epochs);
+	}
+
+	@Test
+	void tornWriteAtTheEndIsIgnoredAndOverwritten() throws IOException {
+		try (MappedCommitJournal journal = open(MappedCommitJournal.Durability.GROUP, 4096)) {
+			journal.replay(new Recorder());
+			journal.awaitDurable(journal.append(1L, prices(1, 3, "kept")));
+			journal.awaitDurable(journal.append(2L, prices(1, 3, "torn")));
+		}
+
+		//Damage the last byte of the second record's payload, as a crash part way through writing it would
+		final Path segment = segments().get(0);
+		final int recordLength = 8 + 12 + 2 * (20 + "torn".length());
+		try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+			file.seek(2L * recordLength - 1);
+			file.write('X');
+		}
+
+		final Recorder recorder = new Recorder();
+		try (MappedCommitJournal journal = open(MappedCommitJournal.Durability.GROUP, 4096)) {
+			assertEquals(1L, journal.replay(recorder));
+			journal.awaitDurable(journal.append(2L, prices(1, 3, "replacement")));
+		}
+		assertEquals(Collections.singletonList(1L), recorder.epochs);
+
+		final Recorder afterRestart = new Recorder();
+		try (MappedCommitJournal journal = open(MappedCommitJournal.Durability.GROUP, 4096)) {
+			assertEquals(2L, journal.replay(afterRestart));
+		}
+		assertEquals(prices(1, 3, "replacement"), afterRestart.commits.get(1));
+	}
+
+	@Test
+	void abortedCommitsAreSkippedOnReplayWithoutTheirEpochsBeingReused() throws IOException {
+		try (MappedCommitJournal journal = open(MappedCommitJournal.Durability.GROUP, 256)) {
+			journal.replay(new Recorder());
+			journal.awaitDurable(journal.append(1L, prices(1, 3, "kept")));
+			journal.append(2L, prices(1, 3, "failed"));
+			journal.append(3L, prices(4, 12, "after"));
+			//Aborted after a later commit, and in a later segment than the commit it names
+			journal.awaitDurable(journal.abort(2L));
+			journal.awaitDurable(journal.append(4L, prices(5, 6, "last")));
+		}
+		assertTrue(segments().size() > 1, "Expected more than one segment");
+
+		final Recorder recorder = new Recorder();
+		try (MappedCommitJournal journal = open(MappedCommitJournal.Durability.GROUP, 256)) {
+			assertEquals(4L, journal.replay(recorder));
+			journal.awaitDurable(journal.abort(4L));
+		}
+		assertEquals(Arrays.asList(1L, 3L, 4L), recorder.epochs);
+
+		final Recorder afterRestart = new Recorder();
+		try (MappedCommitJournal journal = open(MappedCommitJournal.Durability.GROUP, 256)) {
+			assertEquals(4L, journal.replay(afterRestart));
+		}
+		assertEquals(Arrays.asList(1L, 3L), afterRestart.epochs);
+		assertEquals(prices(1, 3, "kept"), afterRestart.commits.get(0));
+	}
+
+	private MappedCommitJournal open(MappedCommitJournal.Durability durability, int segmentSize) throws IOException {
+		return new MappedCommitJournal(directory.toString(), segmentSize, durability, 10);
+	}
+
+	private List<Path> segments() throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.sorted().collect(Collectors.toList());
+		}
+	}
+
+	private static List<Price> prices(long fromId, long toId, String payload) {
+		return LongStream.range(fromId, toId)
+		                 .mapToObj(id -> new Price(id, NOW.plusNanos(id), payload))
+		                 .collect(Collectors.toList());
+	}
+
+	private static final class Recorder implements CommitJournal.Replayer {
+		private final List<Long> epochs = new ArrayList<>();
+		private final List<List<Price>> commits = new ArrayList<>();
+
+		@Override
+		public void replay(long epoch, List<Price> prices) {
+			epochs.add(epoch);
+			commits.add(prices);
+		}
+	}
+}
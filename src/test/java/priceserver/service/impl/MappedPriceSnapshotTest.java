@@ -0,0 +1,102 @@
+package priceserver.service.impl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import priceserver.domain.Price;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class MappedPriceSnapshotTest {
+	private static final ZonedDateTime NOW = ZonedDateTime.now(ZoneOffset.UTC);
+
+	private Path directory;
+
+	@BeforeEach
+	void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("snapshot");
+	}
+
+	@AfterEach
+	void deleteDirectory() throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	void pricesAreReadBackFromTheMappedFile() throws IOException {
+		final List<Price> prices = new ArrayList<>();
+		for (long id = 0; id < 1000; id += 2) {
+			prices.add(new Price(id, NOW.plusSeconds(id), "payload " + id).withEpoch(id + 1));
+		}
+		final Path path = directory.resolve("book.snap");
+		MappedPriceSnapshot.write(path, 7L, prices);
+
+		final MappedPriceSnapshot snapshot = MappedPriceSnapshot.open(path);
+		assertEquals(7L, snapshot.epoch());
+		//Fuzzy, holding parts of commits after its epoch
+		assertEquals(999L, snapshot.highestEpoch());
+		assertEquals(prices.size(), snapshot.size());
+		for (int i = 0; i < prices.size(); i++) {
+			assertEquals(prices.get(i), snapshot.priceAt(i));
+			assertEquals(prices.get(i).getEpoch(), snapshot.priceAt(i).getEpoch());
+			assertEquals(prices.get(i), snapshot.get(prices.get(i).getId()));
+		}
+		assertNull(snapshot.get(1L));
+		assertNull(snapshot.get(-1L));
+		assertNull(snapshot.get(1000L));
+	}
+
+	@Test
+	void commitsMergeAgainstASnapshotThatIsStillLoading() throws IOException, InterruptedException {
+		final List<Price> prices = new ArrayList<>();
+		for (long id = 0; id < 50_000; id++) {
+			prices.add(new Price(id, NOW, "snapshot " + id));
+		}
+		final Path path = directory.resolve("book.snap");
+		MappedPriceSnapshot.write(path, 3L, prices);
+
+		final OpenAddressingPriceStore store =
+				new OpenAddressingPriceStore(16, 1, 1, PriceHistory.disabled(), PayloadPool.disabled());
+		store.loadLazily(MappedPriceSnapshot.open(path));
+		assertEquals(3L, store.epoch());
+
+		final Price newer = new Price(40_000L, NOW.plusSeconds(1), "newer");
+		final Price older = new Price(49_999L, NOW.minusSeconds(1), "older");
+		final Price added = new Price(60_000L, NOW, "added");
+		store.commit(4L, Arrays.asList(newer, older, added));
+
+		assertEquals(newer, store.get(40_000L));
+		assertEquals(prices.get(49_999), store.get(49_999L));
+		assertEquals(added, store.get(60_000L));
+		assertEquals(prices.get(123), store.get(123L));
+
+		final Map<Long, Price> book = new HashMap<>();
+		store.forEach(price -> book.merge(price.getId(), price, (first, second) -> second));
+		assertEquals(50_001, book.size());
+		assertEquals(newer, book.get(40_000L));
+
+		while (store.size() < 50_001) {
+			Thread.sleep(10);
+		}
+		assertEquals(newer, store.get(40_000L));
+		assertEquals(prices.get(49_999), store.get(49_999L));
+		assertEquals(prices.get(123), store.get(123L));
+		assertEquals(4L, store.get(60_000L).getEpoch());
+	}
+}
@@ -0,0 +1,212 @@
+package priceserver.service.impl;
+
+import org.junit.jupiter.api.Test;
+import priceserver.domain.Price;
+import priceserver.service.PriceStore;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class OpenAddressingPriceStoreTest {
+	private static final ZonedDateTime NOW = ZonedDateTime.now(ZoneOffset.UTC);
+
+	private final OpenAddressingPriceStore store =
+			new OpenAddressingPriceStore(16, 1, 1, PriceHistory.disabled(), PayloadPool.disabled());
+
+	@Test
+	void getReturnsNullForUnknownId() {
+		assertNull(store.get(42L));
+		assertNull(store.get(0L));
+	}
+
+	@Test
+	void commitKeepsOnlyTheLatestPriceAndStampsTheEpoch() {
+		final Price older = new Price(7L, NOW, "older");
+		final Price newer = new Price(7L, NOW.plusSeconds(1), "newer");
+
+		store.commit(1L, Collections.singletonList(newer));
+		store.commit(2L, Collections.singletonList(older));
+
+		assertEquals(newer, store.get(7L));
+		assertEquals(1L, store.get(7L).getEpoch());
+		assertEquals(2L, store.epoch());
+		assertEquals(1, store.size());
+	}
+
+	@Test
+	void epochsMustIncrease() {
+		store.commit(3L, Collections.singletonList(new Price(7L, NOW, "p")));
+
+		assertThrows(IllegalArgumentException.class,
+		             () -> store.commit(3L, Collections.singletonList(new Price(8L, NOW, "p"))));
+		assertNull(store.get(8L));
+	}
+
+	@Test
+	void sameIdTwiceInOneCommitKeepsTheLatest() {
+		final Price older = new Price(7L, NOW, "older");
+		final Price newer = new Price(7L, NOW.plusSeconds(1), "newer");
+
+		store.commit(1L, Arrays.asList(newer, older));
+
+		assertEquals(newer, store.get(7L));
+	}
+
+	@Test
+	void zeroAndNegativeIdsAreStored() {
+		final Price zero = new Price(0L, NOW, "zero");
+		final Price negative = new Price(-5L, NOW, "negative");
+
+		store.commit(1L, Arrays.asList(zero, negative));
+
+		assertEquals(zero, store.get(0L));
+		assertEquals(negative, store.get(-5L));
+		assertEquals(2, store.size());
+	}
+
+	@Test
+	void storeGrowsBeyondItsInitialCapacityWithoutLosingPrices() {
+		store.commit(1L, LongStream.range(1, 100_000)
+		                           .mapToObj(id -> new Price(id, NOW, "p" + id))
+		                           .collect(Collectors.toList()));
+
+		assertEquals(99_999, store.size());
+		LongStream.range(1, 100_000).forEach(id -> assertEquals("p" + id, store.get(id).getPayload()));
+		assertNull(store.get(100_000L));
+	}
+
+	@Test
+	void commitsMergedInParallelMatchThoseMergedOnOneThread() {
+		final OpenAddressingPriceStore parallel =
+				new OpenAddressingPriceStore(16, 16, 4, PriceHistory.disabled(), PayloadPool.disabled());
+		final List<Price> book = LongStream.range(0, 50_000)
+		                                   .mapToObj(id -> new Price(id, NOW, "book " + id))
+		                                   .collect(Collectors.toList());
+		//Every other id is newer than the book, and ids from 40,000 up appear twice with the later copy newer
+		final List<Price> commit = LongStream.range(0, 60_000)
+		                                     .mapToObj(id -> new Price(id, id % 2 == 0 ? NOW.plusSeconds(1) :
+				                                     NOW.minusSeconds(1), "first " + id))
+		                                     .collect(Collectors.toList());
+		LongStream.range(40_000, 60_000)
+		          .mapToObj(id -> new Price(id, NOW.plusSeconds(2), "second " + id))
+		          .forEach(commit::add);
+
+		for (OpenAddressingPriceStore each : Arrays.asList(store, parallel)) {
+			each.commit(1L, book);
+			each.commit(2L, commit);
+		}
+
+		assertEquals(store.size(), parallel.size());
+		assertEquals(store.bytes(), parallel.bytes());
+		for (long id = 0; id < 60_000; id++) {
+			assertEquals(store.get(id), parallel.get(id));
+			assertEquals(store.get(id).getPayload(), parallel.get(id).getPayload());
+			assertEquals(store.get(id).getEpoch(), parallel.get(id).getEpoch());
+		}
+		assertEquals("book 1", parallel.get(1L).getPayload());
+		assertEquals("first 2", parallel.get(2L).getPayload());
+		assertEquals("second 45001", parallel.get(45_001L).getPayload());
+	}
+
+	@Test
+	void readersNeverSeePartOfACommit() throws InterruptedException {
+		final int prices = 5_000;
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicReference<String> failure = new AtomicReference<>();
+
+		//Once the last id of a commit is visible, the first id must be visible at that epoch or later
+		final Thread reader = new Thread(() -> {
+			while (!done.get()) {
+				final Price last = store.get(prices);
+				final Price first = store.get(1L);
+				if (last != null && (first == null || first.getEpoch() < last.getEpoch())) {
+					failure.set("Saw " + last + " but then " + first);
+					return;
+				}
+			}
+		});
+		reader.start();
+
+		for (int commit = 1; commit <= 200; commit++) {
+			final ZonedDateTime time = NOW.plusSeconds(commit);
+			final List<Price> batch = LongStream.rangeClosed(1, prices)
+			                                    .mapToObj(id -> new Price(id, time, "p"))
+			                                    .collect(Collectors.toList());
+			store.commit(commit, batch);
+		}
+		done.set(true);
+		reader.join();
+
+		assertNull(failure.get());
+	}
+
+	@Test
+	void aViewKeepsReadingTheEpochItWasPinnedAt() {
+		store.commit(1L, Arrays.asList(new Price(1L, NOW, "one"), new Price(2L, NOW, "two")));
+		final PriceStore.View view = store.view();
+		store.commit(2L, Arrays.asList(new Price(1L, NOW.plusSeconds(1), "one again"), new Price(3L, NOW, "three")));
+		store.commit(3L, Collections.singletonList(new Price(1L, NOW.plusSeconds(2), "one once more")));
+
+		assertEquals(1L, view.epoch());
+		assertEquals("one", view.get(1L).getPayload());
+		assertEquals("two", view.get(2L).getPayload());
+		assertNull(view.get(3L));
+		final List<Price> visited = new ArrayList<>();
+		view.forEach(visited::add);
+		assertEquals(Arrays.asList("one", "two"),
+		             visited.stream().map(Price::getPayload).sorted().collect(Collectors.toList()));
+		assertEquals("one once more", store.get(1L).getPayload());
+	}
+
+	@Test
+	void theWholeBookIsVisitedAsOfOneEpochWhileCommitsCarryOn() throws InterruptedException {
+		final int prices = 5_000;
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicInteger mixed = new AtomicInteger();
+		store.commit(1L, LongStream.rangeClosed(1, prices)
+		                           .mapToObj(id -> new Price(id, NOW, "p"))
+		                           .collect(Collectors.toList()));
+
+		//Every commit changes every id, so a visit mixing two commits would see more than one epoch
+		final Thread reader = new Thread(() -> {
+			while (!done.get()) {
+				final PriceStore.View view = store.view();
+				final AtomicInteger seen = new AtomicInteger();
+				view.forEach(price -> {
+					seen.incrementAndGet();
+					if (price.getEpoch() != view.epoch()) {
+						mixed.incrementAndGet();
+					}
+				});
+				if (seen.get() != prices) {
+					mixed.incrementAndGet();
+				}
+			}
+		});
+		reader.start();
+
+		for (int commit = 2; commit <= 200; commit++) {
+			final ZonedDateTime time = NOW.plusSeconds(commit);
+			store.commit(commit, LongStream.rangeClosed(1, prices)
+			                               .mapToObj(id -> new Price(id, time, "p"))
+			                               .collect(Collectors.toList()));
+		}
+		done.set(true);
+		reader.join();
+
+		assertEquals(0, mixed.get());
+	}
+}
@@ -0,0 +1,84 @@
+package priceserver.service.impl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import priceserver.domain.Price;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class PayloadPoolTest {
+	private static final ZonedDateTime NOW = ZonedDateTime.now(ZoneOffset.UTC);
+
+	private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+	private final PayloadPool pool = new PayloadPool(true, registry);
+
+	@Test
+	void identicalPayloadsAreSharedAndOthersAreNot() {
+		final byte[] first = bytes("{\"status\":\"HALTED\"}");
+		final byte[] same = bytes("{\"status\":\"HALTED\"}");
+		final byte[] other = bytes("{\"status\":\"OPEN\"}");
+
+		assertSame(first, pool.intern(first));
+		assertSame(first, pool.intern(same));
+		assertSame(other, pool.intern(other));
+		assertEquals(2, pool.size());
+		assertEquals(40.0, registry.get("priceserver.payloads.shared").counter().count());
+
+		final Price price = new Price(1L, NOW, "{\"status\":\"HALTED\"}");
+		final Price interned = pool.intern(price);
+		assertSame(first, interned.getPayloadBytes());
+		assertEquals(price, interned);
+		assertSame(interned, pool.intern(interned));
+	}
+
+	@Test
+	void aDisabledPoolKeepsEveryPayloadAsItIs() {
+		final PayloadPool disabled = PayloadPool.disabled();
+		final byte[] first = bytes("payload");
+		final byte[] same = bytes("payload");
+
+		assertSame(first, disabled.intern(first));
+		assertSame(same, disabled.intern(same));
+		assertEquals(0, disabled.size());
+	}
+
+	@Test
+	void payloadsNoLongerHeldByAnyPriceAreSweptOut() throws InterruptedException {
+		for (int i = 0; i < 1000; i++) {
+			pool.intern(bytes("dropped " + i));
+		}
+		final byte[] kept = pool.intern(bytes("kept"));
+
+		for (int attempt = 0; attempt < 50 && pool.size() > 2; attempt++) {
+			System.gc();
+			Thread.sleep(10);
+			pool.intern(bytes("sweep"));
+		}
+		assertEquals(2, pool.size());
+		assertSame(kept, pool.intern(bytes("kept")));
+	}
+
+	@Test
+	void theBookSharesPayloadsBetweenInstruments() {
+		final OpenAddressingPriceStore store = new OpenAddressingPriceStore(16, 4, 1, PriceHistory.disabled(), pool);
+		store.commit(1L, Arrays.asList(new Price(1L, NOW, "template"), new Price(2L, NOW, "template")));
+		store.commit(2L, Arrays.asList(new Price(3L, NOW, "template"), new Price(4L, NOW, "unique")));
+
+		final byte[] shared = store.get(1L).getPayloadBytes();
+		assertSame(shared, store.get(2L).getPayloadBytes());
+		assertSame(shared, store.get(3L).getPayloadBytes());
+		assertNotSame(shared, store.get(4L).getPayloadBytes());
+		assertEquals(2L, store.get(3L).getEpoch());
+	}
+
+	private static byte[] bytes(String payload) {
+		return payload.getBytes(StandardCharsets.UTF_8);
+	}
+}
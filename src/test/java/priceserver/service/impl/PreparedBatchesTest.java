@@ -0,0 +1,112 @@
+package priceserver.service.impl;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import priceserver.domain.Price;
+import priceserver.exceptions.BatchAlreadyCommitted;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PreparedBatchesTest {
+	private static final ZonedDateTime NOW = ZonedDateTime.now(ZoneOffset.UTC);
+
+	private Path directory;
+
+	@BeforeEach
+	void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("prepared");
+	}
+
+	@AfterEach
+	void deleteDirectory() throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	void preparedBatchesSurviveARestartUntilTheirCommitIsJournalled() throws IOException {
+		final List<Price> first = Arrays.asList(new Price(1L, NOW, "one"), new Price(2L, NOW, "two"));
+		final List<Price> second = Arrays.asList(new Price(3L, NOW, "three"));
+		final List<Price> third = Arrays.asList(new Price(4L, NOW, "four"));
+		final PreparedBatches before = open();
+		assertEquals(0L, before.recover(0L));
+		before.prepare(7L, first);
+		before.prepare(8L, second);
+		before.prepare(9L, third);
+		//Its commit started, and reached the journal, before the restart
+		assertEquals(second, before.startCommit(8L, 12L));
+		assertThrows(BatchAlreadyCommitted.class, () -> before.startCommit(8L, 12L));
+		//Committed in full, so only the record of it is kept
+		before.startCommit(9L, 11L);
+		before.committed(9L);
+		assertEquals(11L, before.committedAs(9L));
+
+		final PreparedBatches after = open();
+		assertEquals(9L, after.recover(12L));
+		assertEquals(first, sortedById(after.remove(7L)));
+		assertFalse(after.contains(8L));
+		assertEquals(12L, after.committedAs(8L));
+		assertEquals(11L, after.committedAs(9L));
+		assertNull(after.remove(7L));
+	}
+
+	@Test
+	void aBatchWhoseCommitWasNotJournalledIsCommittedUnderTheSameEpochAfterARestart() throws IOException {
+		final List<Price> prices = Arrays.asList(new Price(1L, NOW, "one"));
+		final PreparedBatches before = open();
+		before.recover(0L);
+		before.prepare(3L, prices);
+		before.startCommit(3L, 5L);
+
+		final PreparedBatches after = open();
+		after.recover(4L);
+		assertTrue(after.contains(3L));
+		assertEquals(0L, after.committedAs(3L));
+		assertEquals(prices, sortedById(after.startCommit(3L, 5L)));
+		after.committed(3L);
+		assertEquals(5L, after.committedAs(3L));
+	}
+
+	@Test
+	void batchesNotCommittedInTimeAreDropped() throws IOException, InterruptedException {
+		final PreparedBatches prepared = new PreparedBatches(true, directory.toString(), 100L, PayloadPool.disabled());
+		prepared.recover(0L);
+		prepared.prepare(1L, Arrays.asList(new Price(1L, NOW, "one")));
+		prepared.prepare(2L, Arrays.asList(new Price(2L, NOW, "two")));
+		prepared.startCommit(2L, 3L);
+		Thread.sleep(200);
+
+		prepared.prepare(4L, Arrays.asList(new Price(4L, NOW, "four")));
+		assertFalse(prepared.contains(1L));
+		assertTrue(prepared.contains(2L));
+		assertTrue(prepared.contains(4L));
+	}
+
+	private PreparedBatches open() throws IOException {
+		return new PreparedBatches(true, directory.toString(), 60_000L, PayloadPool.disabled());
+	}
+
+	private static List<Price> sortedById(Collection<Price> prices) {
+		final List<Price> sorted = new ArrayList<>(prices);
+		sorted.sort(Comparator.comparingLong(Price::getId));
+		return sorted;
+	}
+}
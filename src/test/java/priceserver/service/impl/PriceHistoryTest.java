@@ -0,0 +1,120 @@
+package priceserver.service.impl;
+
+import org.junit.jupiter.api.Test;
+import priceserver.domain.Price;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PriceHistoryTest {
+	private static final ZonedDateTime NOW = ZonedDateTime.now(ZoneOffset.UTC);
+
+	@Test
+	void asOfFindsTheNewestVersionAtOrBeforeTheTime() {
+		final PriceHistory history = new PriceHistory(4, 8, 0);
+		for (int i = 0; i < 5; i++) {
+			history.record(price(7L, NOW.plusSeconds(10 * i), "v" + i, i + 1));
+		}
+
+		assertNull(history.asOf(7L, nanos(NOW.minusNanos(1))));
+		assertEquals("v0", history.asOf(7L, nanos(NOW)).getPayload());
+		assertEquals("v2", history.asOf(7L, nanos(NOW.plusSeconds(25))).getPayload());
+		assertEquals(3L, history.asOf(7L, nanos(NOW.plusSeconds(25))).getEpoch());
+		assertEquals("v4", history.asOf(7L, nanos(NOW.plusDays(1))).getPayload());
+		assertNull(history.asOf(8L, nanos(NOW)));
+		assertEquals(5L, history.versions());
+	}
+
+	@Test
+	void versionsPastTheDepthAreEvictedOldestFirst() {
+		final PriceHistory history = new PriceHistory(1, 3, 0);
+		for (int i = 0; i < 10; i++) {
+			history.record(price(7L, NOW.plusSeconds(i), "v" + i, i + 1));
+		}
+
+		assertEquals(3L, history.versions());
+		assertNull(history.asOf(7L, nanos(NOW.plusSeconds(6))));
+		assertEquals("v7", history.asOf(7L, nanos(NOW.plusSeconds(7))).getPayload());
+	}
+
+	@Test
+	void versionsNoNewerThanTheLastAreIgnored() {
+		final PriceHistory history = new PriceHistory(1, 8, 0);
+		history.record(price(7L, NOW, "first", 1L));
+		history.record(price(7L, NOW, "again", 2L));
+		history.record(price(7L, NOW.minusSeconds(1), "older", 3L));
+
+		assertEquals(1L, history.versions());
+		assertEquals("first", history.asOf(7L, nanos(NOW)).getPayload());
+	}
+
+	@Test
+	void timestampsSpreadFurtherApartThanAnIntOffsetAreStillFound() {
+		final PriceHistory history = new PriceHistory(1, 4, 0);
+		//Seconds apart, so the base has to move, then years apart, so the offsets have to widen
+		final ZonedDateTime[] times = {NOW, NOW.plusSeconds(2), NOW.plusSeconds(4), NOW.plusSeconds(6),
+		                               NOW.plusYears(1), NOW.plusYears(2)};
+		for (int i = 0; i < times.length; i++) {
+			history.record(price(7L, times[i], "v" + i, i + 1));
+		}
+
+		assertNull(history.asOf(7L, nanos(NOW.plusSeconds(3))));
+		for (int i = 2; i < times.length; i++) {
+			final Price price = history.asOf(7L, nanos(times[i]));
+			assertEquals("v" + i, price.getPayload());
+			assertEquals(i + 1, price.getEpoch());
+		}
+	}
+
+	@Test
+	void epochsSpreadFurtherApartThanAnIntOffsetAreStillReported() {
+		final PriceHistory history = new PriceHistory(1, 2, 0);
+		//Billions of commits apart, so the epoch base has to move, then further apart than an int offset can go
+		final long[] epochs = {1L, 1_000_000_000L, 2_500_000_000L, 3_500_000_000L, 20_000_000_000L};
+		for (int i = 0; i < epochs.length; i++) {
+			history.record(price(7L, NOW.plusSeconds(i), "v" + i, epochs[i]));
+			for (int j = Math.max(0, i - 1); j <= i; j++) {
+				final Price price = history.asOf(7L, nanos(NOW.plusSeconds(j)));
+				assertEquals("v" + j, price.getPayload());
+				assertEquals(epochs[j], price.getEpoch());
+			}
+		}
+	}
+
+	@Test
+	void versionsRecordedLongestAgoAreEvictedOnceOverTheMemoryLimit() {
+		final PriceHistory history = new PriceHistory(1, 1000, 1);
+		final String payload = new String(new char[1000]).replace('\0', 'x');
+		for (int i = 0; i < 2000; i++) {
+			history.record(price(i % 2, NOW.plusSeconds(i), payload, i + 1));
+		}
+
+		assertTrue(history.bytes() <= 1024 * 1024);
+		//Each version takes a little over a kilobyte
+		assertTrue(history.versions() > 1000 && history.versions() < 1024);
+		assertNull(history.asOf(0L, nanos(NOW)));
+		assertNull(history.asOf(1L, nanos(NOW.plusSeconds(900))));
+		assertEquals(payload, history.asOf(1L, nanos(NOW.plusSeconds(1999))).getPayload());
+	}
+
+	@Test
+	void disabledHistoryKeepsNothing() {
+		final PriceHistory history = PriceHistory.disabled();
+		history.record(price(7L, NOW, "v", 1L));
+
+		assertNull(history.asOf(7L, nanos(NOW)));
+		assertEquals(0L, history.versions());
+	}
+
+	private static Price price(long id, ZonedDateTime time, String payload, long epoch) {
+		return new Price(id, time, payload).withEpoch(epoch);
+	}
+
+	private static long nanos(ZonedDateTime time) {
+		return Price.toEpochNanos(time);
+	}
+}
@@ -0,0 +1,94 @@
+package priceserver.service.impl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import priceserver.domain.Price;
+import priceserver.service.PriceSubscription;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PriceSubscriptionsTest {
+	private static final ZonedDateTime NOW = ZonedDateTime.now(ZoneOffset.UTC);
+
+	private final OpenAddressingPriceStore store =
+			new OpenAddressingPriceStore(16, 1, 1, PriceHistory.disabled(), PayloadPool.disabled());
+	private final PriceSubscriptions subscriptions = new PriceSubscriptions(new SimpleMeterRegistry());
+	private final AtomicInteger changes = new AtomicInteger();
+	private long epoch;
+
+	@Test
+	void subscriptionStartsWithTheCurrentPricesAndIsOnlyToldOfChangesOnceDrained() {
+		final Price first = new Price(1L, NOW, "first");
+		commit(first);
+
+		final PriceSubscription subscription = subscribe(1L, 2L);
+		commit(new Price(2L, NOW, "second"));
+		assertEquals(0, changes.get());
+
+		assertEquals(new HashSet<>(Arrays.asList(first, new Price(2L, NOW, "second"))),
+		             new HashSet<>(subscription.poll()));
+		assertTrue(subscription.poll().isEmpty());
+
+		commit(new Price(1L, NOW.plusSeconds(1), "third"));
+		assertEquals(1, changes.get());
+	}
+
+	@Test
+	void aSubscriberThatDoesNotPollOnlyEverHasTheLatestPriceForEachId() {
+		final PriceSubscription subscription = subscribe(1L, 2L);
+		assertTrue(subscription.poll().isEmpty());
+
+		for (int i = 0; i < 100; i++) {
+			commit(new Price(1L, NOW.plusSeconds(i), "one " + i), new Price(2L, NOW.plusSeconds(i), "two " + i));
+		}
+
+		assertEquals(1, changes.get());
+		assertEquals(new HashSet<>(Arrays.asList(new Price(1L, NOW.plusSeconds(99), "one 99"),
+		                                         new Price(2L, NOW.plusSeconds(99), "two 99"))),
+		             new HashSet<>(subscription.poll()));
+	}
+
+	@Test
+	void onlyPricesThatChangeAFollowedIdAreSent() {
+		commit(new Price(1L, NOW, "newer"));
+		final PriceSubscription subscription = subscribe(1L);
+		subscription.poll();
+		assertTrue(subscription.poll().isEmpty());
+
+		commit(new Price(1L, NOW.minusSeconds(1), "older"), new Price(3L, NOW, "not followed"));
+
+		assertEquals(0, changes.get());
+		assertTrue(subscription.poll().isEmpty());
+	}
+
+	@Test
+	void closedSubscriptionIsNoLongerOfferedPrices() {
+		final PriceSubscription subscription = subscribe(1L);
+		subscription.poll();
+		subscription.close();
+
+		commit(new Price(1L, NOW, "after"));
+
+		assertEquals(0, changes.get());
+		assertEquals(Collections.emptyList(), subscription.poll());
+	}
+
+	private PriceSubscription subscribe(long... ids) {
+		return subscriptions.subscribe(ids, changes::incrementAndGet, store::get);
+	}
+
+	private void commit(Price... prices) {
+		final Collection<Price> committed = Arrays.asList(prices);
+		store.commit(++epoch, committed);
+		subscriptions.publish(epoch, committed, store);
+	}
+}
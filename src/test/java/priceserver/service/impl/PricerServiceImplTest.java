@@ -0,0 +1,81 @@
+package priceserver.service.impl;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import priceserver.domain.Price;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PricerServiceImplTest {
+	private static final ZonedDateTime NOW = ZonedDateTime.now(ZoneOffset.UTC);
+
+	private Path directory;
+
+	@BeforeEach
+	void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("pricer");
+	}
+
+	@AfterEach
+	void deleteDirectory() throws IOException {
+		try (Stream<Path> files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Test
+	void aRestartFromAFuzzySnapshotWithoutAJournalNeverReusesAnEpochInTheBook() throws IOException {
+		//Taken at epoch 3 while epoch 5 was being published, so holding part of it
+		final Path snapshots = Files.createDirectories(directory.resolve("snapshots"));
+		MappedPriceSnapshot.write(snapshots.resolve(String.format("snapshot-%020d.snap", 3L)),
+		                          3L,
+		                          Arrays.asList(new Price(1L, NOW, "one").withEpoch(2L),
+		                                        new Price(2L, NOW, "two").withEpoch(5L)));
+
+		final OpenAddressingPriceStore store =
+				new OpenAddressingPriceStore(16, 1, 1, PriceHistory.disabled(), PayloadPool.disabled());
+		final NoCommitJournal journal = new NoCommitJournal();
+		try (PriceSnapshotter snapshotter = new PriceSnapshotter(store, journal, true, snapshots.toString(), 300);
+		     BatchManagerEhCacheImpl batches = new BatchManagerEhCacheImpl(100, 1, 2, 4,
+		                                                                   directory.resolve("batches").toString(),
+		                                                                   60_000, 60_000, 1, PayloadPool.disabled(),
+		                                                                   AdmissionControl.unlimited(),
+		                                                                   new SimpleMeterRegistry())) {
+			final PricerServiceImpl pricerService =
+					new PricerServiceImpl(batches,
+					                      store,
+					                      journal,
+					                      PreparedBatches.inMemory(),
+					                      snapshotter,
+					                      new AsyncCommits(1, 60_000),
+					                      new CommitGroups(0L, 64, 100_000, new SimpleMeterRegistry()),
+					                      PriceHistory.disabled(),
+					                      new PriceSubscriptions(new SimpleMeterRegistry()),
+					                      new StandaloneReplication(),
+					                      new SimpleMeterRegistry());
+			pricerService.recover();
+
+			//Anything read before the restart, at epoch 5 or before, no longer matches the book
+			assertTrue(pricerService.epoch() > 5L);
+			assertEquals(5L, pricerService.latestPrice(2L).getEpoch());
+			final long batchId = pricerService.createBatch("feed").getId();
+			pricerService.upload(batchId, Collections.singletonList(new Price(3L, NOW, "three")));
+			pricerService.commit(batchId);
+			assertTrue(pricerService.latestPrice(3L).getEpoch() > 5L);
+			assertEquals(pricerService.epoch(), pricerService.latestPrice(3L).getEpoch());
+		}
+	}
+}